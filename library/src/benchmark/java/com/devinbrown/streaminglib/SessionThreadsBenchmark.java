@@ -0,0 +1,153 @@
+package com.devinbrown.streaminglib;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the {@link SessionThreads} factories on many idle connections, the way the RTSP input
+ * listeners use them: one thread per connection, blocked in a read nearly all the time and woken
+ * now and then by a short message
+ * <p>
+ * For each factory it reports how long starting the readers took, the OS threads they took, the
+ * Java heap they took, and how long waking every reader once took. Virtual thread stacks live on the
+ * heap while platform thread stacks don't, so compare the OS threads too. Virtual threads need
+ * Java 21; on older runtimes only the platform threads run. Outside the library's source sets so it
+ * never ships:
+ * <pre>
+ * javac -d build/benchmark \
+ *     library/src/main/java/com/devinbrown/streaminglib/SessionThreads.java \
+ *     library/src/benchmark/java/com/devinbrown/streaminglib/SessionThreadsBenchmark.java
+ * java -cp build/benchmark com.devinbrown.streaminglib.SessionThreadsBenchmark [connections] [rounds]
+ * </pre>
+ * Each connection takes two file descriptors, so raise ulimit -n for more than about 500.
+ */
+public final class SessionThreadsBenchmark {
+    private static final int DEFAULT_CONNECTIONS = 1000;
+    private static final int DEFAULT_ROUNDS = 50;
+    private static final int WARMUP_ROUNDS = 5;
+
+    private final int connections;
+    private final int rounds;
+
+    private volatile CountDownLatch woken;
+
+    private SessionThreadsBenchmark(int connections, int rounds) {
+        this.connections = connections;
+        this.rounds = rounds;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_CONNECTIONS;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_ROUNDS;
+        System.out.println("Java " + System.getProperty("java.version") + ", " + connections + " connections, "
+                + rounds + " rounds");
+
+        ThreadFactory virtual = SessionThreads.virtual();
+        if (virtual == null) System.out.println("No virtual threads on this runtime, they need Java 21");
+
+        // The first pass of each only warms up
+        for (int pass = 0; pass < 2; pass++) {
+            boolean report = pass == 1;
+            new SessionThreadsBenchmark(connections, report ? rounds : WARMUP_ROUNDS)
+                    .run("platform", SessionThreads.platform(), report);
+            if (virtual != null) {
+                new SessionThreadsBenchmark(connections, report ? rounds : WARMUP_ROUNDS)
+                        .run("virtual", virtual, report);
+            }
+        }
+    }
+
+    private void run(String name, ThreadFactory factory, boolean report) throws Exception {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        Socket[] senders = new Socket[connections];
+        Socket[] receivers = new Socket[connections];
+        ServerSocket server = new ServerSocket(0, connections, InetAddress.getLoopbackAddress());
+        try {
+            for (int i = 0; i < connections; i++) {
+                senders[i] = new Socket(server.getInetAddress(), server.getLocalPort());
+                senders[i].setTcpNoDelay(true);
+                receivers[i] = server.accept();
+            }
+        } finally {
+            server.close();
+        }
+
+        System.gc();
+        long heapBefore = usedHeap();
+        int threadsBefore = threads.getThreadCount();
+        threads.resetPeakThreadCount();
+
+        CountDownLatch reading = new CountDownLatch(connections);
+        CountDownLatch stopped = new CountDownLatch(connections);
+        long start = System.nanoTime();
+        for (int i = 0; i < connections; i++) {
+            factory.newThread(new Reader(receivers[i], reading, stopped)).start();
+        }
+        reading.await();
+        long startNanos = System.nanoTime() - start;
+
+        System.gc();
+        long heap = usedHeap() - heapBefore;
+        int osThreads = threads.getPeakThreadCount() - threadsBefore;
+
+        byte[] message = new byte[]{1};
+        long wakeNanos = 0;
+        for (int r = 0; r < rounds; r++) {
+            CountDownLatch l = woken = new CountDownLatch(connections);
+            long t = System.nanoTime();
+            for (Socket s : senders) s.getOutputStream().write(message);
+            l.await();
+            wakeNanos += System.nanoTime() - t;
+        }
+
+        for (Socket s : senders) s.close();
+        if (!stopped.await(30, TimeUnit.SECONDS)) System.out.println(name + ": Readers did not stop");
+        for (Socket s : receivers) s.close();
+
+        if (report) {
+            System.out.println(String.format("%-8s start %7.1f ms, %6d OS threads, heap %8d KB, wake all %8.1f us",
+                    name, startNanos / 1e6, osThreads, heap / 1024, wakeNanos / 1e3 / Math.max(1, rounds)));
+        }
+    }
+
+    private static long usedHeap() {
+        Runtime r = Runtime.getRuntime();
+        return r.totalMemory() - r.freeMemory();
+    }
+
+    /**
+     * Blocks in a read until the sender closes, like an RTSP input listener
+     */
+    private final class Reader implements Runnable {
+        private final Socket socket;
+        private final CountDownLatch reading;
+        private final CountDownLatch stopped;
+
+        Reader(Socket socket, CountDownLatch reading, CountDownLatch stopped) {
+            this.socket = socket;
+            this.reading = reading;
+            this.stopped = stopped;
+        }
+
+        @Override
+        public void run() {
+            try {
+                InputStream in = socket.getInputStream();
+                reading.countDown();
+                while (in.read() >= 0) woken.countDown();
+            } catch (IOException e) {
+                System.out.println("Reader: " + e.getMessage());
+            } finally {
+                stopped.countDown();
+            }
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.devinbrown.streaminglib;
+
+import org.greenrobot.eventbus.EventBus;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Makes EventBuses whose ThreadMode.ASYNC subscribers get events one at a time, in the order they
+ * were posted
+ * <p>
+ * A plain EventBus hands every ASYNC event to its own task on an unbounded pool, so consecutive
+ * packets or responses of one session can be handled at the same time and out of order. Each bus
+ * made here dispatches through a {@link SerialExecutor} instead. Every bus shares one bounded pool,
+ * so sessions and streams still spread across the cores.
+ * <p>
+ * Sessions and streams of the library make their buses here. Applications can pass one to
+ * {@link RtspClientStreamEvent.ConnectionRequest} to get the same ordering for client sessions.
+ */
+public final class OrderedEventBus {
+    private static final String TAG = "OrderedEventBus";
+
+    // Handlers only queue what they write to connections, but may wait on locks or UDP sends, so there
+    // are more threads than cores
+    private static final int POOL_SIZE = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+    private static final long IDLE_TIMEOUT_S = 30;
+
+    private static final ThreadPoolExecutor dispatchPool = createPool();
+
+    private OrderedEventBus() {
+    }
+
+    /**
+     * @return A new bus dispatching ASYNC events in order on the shared pool
+     */
+    public static EventBus create() {
+        return EventBus.builder().executorService(new SerialExecutor(dispatchPool)).build();
+    }
+
+    /**
+     * @return The pool shared by every ordered bus
+     */
+    public static ExecutorService getDispatchPool() {
+        return dispatchPool;
+    }
+
+    private static ThreadPoolExecutor createPool() {
+        // The queue holds at most one task per bus with pending events
+        ThreadPoolExecutor p = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, IDLE_TIMEOUT_S, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, TAG);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        p.allowCoreThreadTimeOut(true);
+        return p;
+    }
+}
@@ -3,6 +3,8 @@ package com.devinbrown.streaminglib;
 import android.net.Uri;
 
 import com.devinbrown.streaminglib.media.RtpMedia;
+import com.devinbrown.streaminglib.rtp.RingBuffer;
+import com.devinbrown.streaminglib.rtp.RtpBuffer;
 import com.devinbrown.streaminglib.rtp.RtpClientStream;
 import com.devinbrown.streaminglib.rtp.RtpStream;
 import com.devinbrown.streaminglib.rtsp.RtspAuth;
@@ -64,10 +66,19 @@ public class RtspClientStreamEvent {
     public static class SetupStreamRequest {
         public RtpMedia media;
         public RtpStream.RtpProtocol rtpProtocol;
+        public RtpStream.Delivery delivery;
 
         public SetupStreamRequest(RtpMedia m, RtpStream.RtpProtocol p) {
+            this(m, p, RtpStream.Delivery.UNICAST);
+        }
+
+        /**
+         * @param d Delivery for UDP. With multicast the server chooses the group.
+         */
+        public SetupStreamRequest(RtpMedia m, RtpStream.RtpProtocol p, RtpStream.Delivery d) {
             media = m;
             rtpProtocol = p;
+            delivery = d;
         }
     }
 
@@ -132,10 +143,77 @@ public class RtspClientStreamEvent {
         }
     }
 
+    /**
+     * Media received on a stream. Only the {@link #length} bytes of {@link #data} starting at
+     * {@link #offset} are valid.
+     * <p>
+     * {@link #timestamp} is the presentation time in microseconds, e.g. from MediaCodec. Senders map
+     * it to the RTP clock of the media; receivers get it from the RTP timestamps, counted from the
+     * first frame received.
+     * <p>
+     * When the data is held in a pooled buffer the subscriber must call {@link #release()} once it is
+     * done with it.
+     * <p>
+     * Also the entry type of the {@link RingBuffer} a media can deliver its frames through instead,
+     * see {@link RtpMedia#setFrameRing(RingBuffer)}. Entries there are reused, so a consumer keeping
+     * the data must retain the buffer rather than the entry.
+     */
     public static class MediaDataReceived {
+        public static final RingBuffer.EntryFactory<MediaDataReceived> FACTORY = new RingBuffer.EntryFactory<MediaDataReceived>() {
+            @Override
+            public MediaDataReceived newEntry() {
+                return new MediaDataReceived();
+            }
+        };
+
         public byte[] data;
+        public int offset;
+        public int length;
+        // Presentation time in microseconds
+        public long timestamp;
+        public boolean keyFrame;
+        public RtpBuffer buffer;
+
+        /**
+         * Media made now, for producers that don't know its presentation time
+         */
         public MediaDataReceived(byte[] d) {
+            this(d, System.nanoTime() / 1000, false);
+        }
+
+        /**
+         * @param d      Frame
+         * @param timeUs Presentation time in microseconds
+         * @param k      Whether the frame can be decoded on its own
+         */
+        public MediaDataReceived(byte[] d, long timeUs, boolean k) {
             data = d;
+            length = d.length;
+            timestamp = timeUs;
+            keyFrame = k;
+        }
+
+        public MediaDataReceived(RtpBuffer b, int o, int l, long t, boolean k) {
+            set(b, o, l, t, k);
+        }
+
+        /**
+         * An empty entry of a frame ring
+         */
+        public MediaDataReceived() {
+        }
+
+        public void set(RtpBuffer b, int o, int l, long t, boolean k) {
+            data = b.data;
+            offset = o;
+            length = l;
+            timestamp = t;
+            keyFrame = k;
+            buffer = b;
+        }
+
+        public void release() {
+            if (buffer != null) buffer.release();
         }
     }
 }
@@ -0,0 +1,149 @@
+package com.devinbrown.streaminglib;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs tasks one at a time, in the order they were submitted, on threads of a shared pool
+ * <p>
+ * At most one task of the executor is queued or running on the pool at any time, so tasks never
+ * overlap and each sees everything the ones before it did, without locks of its own. Many serial
+ * executors can share one bounded pool: they run in parallel with each other, and a busy executor
+ * gives its thread back after a batch of tasks so the others aren't starved.
+ */
+public class SerialExecutor extends AbstractExecutorService {
+    private static final String TAG = "SerialExecutor";
+
+    // Tasks run before the pool thread is handed to other executors
+    private static final int BATCH_SIZE = 32;
+
+    private final Executor pool;
+
+    // Guarded by tasks
+    private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+    private boolean scheduled;
+    private boolean shutdown;
+
+    private final Runnable drain = new Runnable() {
+        @Override
+        public void run() {
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                Runnable task;
+                synchronized (tasks) {
+                    task = tasks.poll();
+                    if (task == null) {
+                        scheduled = false;
+                        tasks.notifyAll();
+                        return;
+                    }
+                }
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "drain: Task failed: " + e);
+                }
+            }
+
+            // Let other executors run, the rest of the tasks follow
+            try {
+                pool.execute(this);
+            } catch (RejectedExecutionException e) {
+                synchronized (tasks) {
+                    scheduled = false;
+                    tasks.notifyAll();
+                }
+                Log.e(TAG, "drain: Pool rejected the remaining tasks: " + e.getMessage());
+            }
+        }
+    };
+
+    /**
+     * @param pool Runs the tasks, usually shared by many serial executors
+     */
+    public SerialExecutor(Executor pool) {
+        this.pool = pool;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        synchronized (tasks) {
+            if (shutdown) throw new RejectedExecutionException("SerialExecutor is shut down");
+            tasks.add(task);
+            if (scheduled) return;
+            scheduled = true;
+        }
+        try {
+            pool.execute(drain);
+        } catch (RejectedExecutionException e) {
+            synchronized (tasks) {
+                tasks.remove(task);
+                scheduled = false;
+                tasks.notifyAll();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @return Number of tasks waiting to run
+     */
+    public int getQueueDepth() {
+        synchronized (tasks) {
+            return tasks.size();
+        }
+    }
+
+    /**
+     * Accepts no more tasks. Those already submitted still run. The pool is not shut down.
+     */
+    @Override
+    public void shutdown() {
+        synchronized (tasks) {
+            shutdown = true;
+        }
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        synchronized (tasks) {
+            shutdown = true;
+            List<Runnable> pending = new ArrayList<>(tasks);
+            tasks.clear();
+            return pending;
+        }
+    }
+
+    @Override
+    public boolean isShutdown() {
+        synchronized (tasks) {
+            return shutdown;
+        }
+    }
+
+    @Override
+    public boolean isTerminated() {
+        synchronized (tasks) {
+            return shutdown && !scheduled;
+        }
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (tasks) {
+            while (!(shutdown && !scheduled)) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) return false;
+                TimeUnit.NANOSECONDS.timedWait(tasks, remaining);
+            }
+            return true;
+        }
+    }
+}
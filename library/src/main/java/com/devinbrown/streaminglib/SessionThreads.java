@@ -0,0 +1,71 @@
+package com.devinbrown.streaminglib;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Thread factories for the threads that block on a connection or socket: the RTSP input listener of
+ * each session and the UDP listeners of streams that don't use a receive reactor
+ * <p>
+ * Those threads spend nearly all their time blocked in a read. With virtual threads, available from
+ * Java 21, the runtime parks them instead of holding an OS thread each, so thousands of sessions run
+ * on a handful of carrier threads with the same blocking code. They are looked up by reflection
+ * because the library also targets runtimes without them, such as Android, where
+ * {@link #virtual()} returns null.
+ * <p>
+ * Up to Java 23 a virtual thread that blocks while holding a monitor, inside a synchronized block or
+ * method, pins its carrier thread, so a few stalled connections could hold up every session. The
+ * library never waits for a connection while holding a monitor: its reads hold no locks, and its
+ * writes only a {@link java.util.concurrent.locks.ReentrantLock}. Code run on these threads, such as
+ * event handlers, should do the same.
+ */
+public final class SessionThreads {
+    private static final ThreadFactory PLATFORM = new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            return new Thread(r);
+        }
+    };
+
+    private static final ThreadFactory VIRTUAL = createVirtual();
+
+    private SessionThreads() {
+    }
+
+    /**
+     * @return A factory of ordinary threads, one OS thread each. The default.
+     */
+    public static ThreadFactory platform() {
+        return PLATFORM;
+    }
+
+    /**
+     * @return A factory of virtual threads, or null if the runtime has none
+     */
+    public static ThreadFactory virtual() {
+        return VIRTUAL;
+    }
+
+    /**
+     * @return Virtual threads if the runtime has them, otherwise ordinary threads
+     */
+    public static ThreadFactory virtualOrPlatform() {
+        return VIRTUAL != null ? VIRTUAL : PLATFORM;
+    }
+
+    /**
+     * Thread.ofVirtual().name("streaminglib-", 0).factory()
+     */
+    private static ThreadFactory createVirtual() {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "streaminglib-", 0L);
+            Method factory = builderClass.getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // Before Java 21, or a preview that isn't enabled
+            return null;
+        }
+    }
+}
@@ -2,6 +2,7 @@ package com.devinbrown.streaminglib.media;
 
 import android.media.MediaFormat;
 import android.net.Uri;
+import android.util.Base64;
 import android.util.Log;
 
 import com.devinbrown.streaminglib.Utils;
@@ -103,6 +104,7 @@ public class MediaFormatHelper {
                 format.setString(MediaFormat.KEY_MIME, mimeType);
                 format.setInteger(MediaFormat.KEY_SAMPLE_RATE, r.clockRate);
                 format.setInteger(MediaFormat.KEY_CHANNEL_COUNT, r.channelCount);
+                setFormatSpecificData(mimeType, format, f);
                 break;
         }
 
@@ -110,27 +112,69 @@ public class MediaFormatHelper {
     }
 
     private static void setFormatSpecificData(String mimeType, MediaFormat format, Fmtp fmtp) {
+        if (fmtp == null) return;
+
         switch (mimeType.toLowerCase()) {
-            case "audio/mpeg-generic":
+            case "audio/mpeg4-generic":
             case MediaFormat.MIMETYPE_AUDIO_AAC:
                 setAacFormatSpecificData(format, fmtp);
                 break;
+            case "video/h264":
+            case MediaFormat.MIMETYPE_VIDEO_AVC:
+                setH264FormatSpecificData(format, fmtp);
+                break;
+            case "video/h265":
+            case MediaFormat.MIMETYPE_VIDEO_HEVC:
+                setH265FormatSpecificData(format, fmtp);
+                break;
         }
     }
 
     // a=fmtp:96 streamtype=5;profile-level-id=1;mode=AAC-hbr;sizelength=13;indexlength=3;indexdeltalength=3;config=1210
     private static void setAacFormatSpecificData(MediaFormat format, Fmtp fmtp) {
-        String params = fmtp.formatSpecificParams;
-        String configString = null;
-        String[] paramsSplit = params.split(";");
-        for (String param : paramsSplit) {
-            param = param.trim();
-            String[] paramSplit = param.split("=");
-            if (paramSplit[0].toLowerCase().equals("config") && paramSplit.length == 2) {
-                configString = paramSplit[1];
+        String configString = fmtp.getParameter("config");
+        if (configString != null) {
+            format.setByteBuffer("csd-0", ByteBuffer.wrap(Utils.hexStringToByteArray(configString)));
+        }
+    }
+
+    // a=fmtp:96 packetization-mode=1;profile-level-id=42e01f;sprop-parameter-sets=Z0LgH5ZUBQHsgA==,aM4xUg==
+    // Reference: https://tools.ietf.org/html/rfc6184#section-8.1
+    private static void setH264FormatSpecificData(MediaFormat format, Fmtp fmtp) {
+        String sprop = fmtp.getParameter("sprop-parameter-sets");
+        if (sprop == null) return;
+
+        // MediaCodec expects the SPS in csd-0 and the PPS in csd-1, each with an Annex B start code
+        String[] sets = sprop.split(",");
+        for (int i = 0; i < sets.length && i < 2; i++) {
+            byte[] nal = Base64.decode(sets[i], Base64.DEFAULT);
+            ByteBuffer csd = ByteBuffer.allocate(4 + nal.length);
+            csd.put(new byte[]{0, 0, 0, 1}).put(nal).flip();
+            format.setByteBuffer("csd-" + i, csd);
+        }
+    }
+
+    // a=fmtp:96 sprop-vps=QAEMAf//AWAAAAMAkAAAAwAAAwBdlZgJ;sprop-sps=QgEBAWAAAAMAkAAAAwAAAwBdoAKAgC0WWVmkkyvAQEAAAAMAQAAAAwHoQA==;sprop-pps=RAHBcrRiQA==
+    // Reference: https://tools.ietf.org/html/rfc7798#section-7.1
+    private static void setH265FormatSpecificData(MediaFormat format, Fmtp fmtp) {
+        // MediaCodec expects the VPS, SPS and PPS together in csd-0, each with an Annex B start code
+        String[] names = {"sprop-vps", "sprop-sps", "sprop-pps"};
+        List<byte[]> nals = new ArrayList<>();
+        int length = 0;
+        for (String name : names) {
+            String value = fmtp.getParameter(name);
+            if (value == null) return;
+            for (String set : value.split(",")) {
+                byte[] nal = Base64.decode(set, Base64.DEFAULT);
+                nals.add(nal);
+                length += 4 + nal.length;
             }
         }
-        format.setByteBuffer("csd-0", ByteBuffer.wrap(Utils.hexStringToByteArray(configString)));
+
+        ByteBuffer csd = ByteBuffer.allocate(length);
+        for (byte[] nal : nals) csd.put(new byte[]{0, 0, 0, 1}).put(nal);
+        csd.flip();
+        format.setByteBuffer("csd-0", csd);
     }
 
     private static Uri getControlUri(Uri baseUri, MediaDescription md) {
@@ -3,17 +3,75 @@ package com.devinbrown.streaminglib.media;
 import android.media.MediaFormat;
 import android.net.Uri;
 
+import com.devinbrown.streaminglib.RtspClientStreamEvent;
+import com.devinbrown.streaminglib.rtp.RingBuffer;
+import com.devinbrown.streaminglib.rtp.RingStage;
 import com.devinbrown.streaminglib.sdp.MediaDescription;
 
 import org.greenrobot.eventbus.EventBus;
 
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
 public class RtpMedia {
+    private static final String TAG = "RtpMedia";
+
+    // Clock rate of video payload formats, assumed when the format has no sample rate
+    private static final int DEFAULT_CLOCK_RATE = 90000;
+
+    // Shortest time between two key frames forced by receiver requests
+    public static final int DEFAULT_MIN_KEY_FRAME_INTERVAL_MS = 1000;
+
+    /**
+     * Produces the frames of a media and can encode a key frame on demand
+     */
+    public interface KeyFrameRequestListener {
+        /**
+         * Called when receivers need a key frame, e.g. one that just joined or lost packets it couldn't
+         * recover. Requests of every receiver are combined and rate limited, so the producer can
+         * simply make its next frame a key frame.
+         * <p>
+         * Called on a timer thread or the thread that received the request.
+         *
+         * @param m Media to send a key frame of
+         */
+        void onKeyFrameRequested(RtpMedia m);
+    }
+
+    private static ScheduledThreadPoolExecutor keyFrameTimer;
+
     public Uri uri;
     public String control;
     public MediaDescription mediaDescription;
     public MediaFormat mediaFormat;
     public EventBus streamEventBus;
 
+    // Received frames go here instead of streamEventBus when set
+    private volatile RingBuffer<RtspClientStreamEvent.MediaDataReceived> frameRing;
+
+    // Guarded by this
+    private KeyFrameRequestListener keyFrameRequestListener;
+    private long minKeyFrameIntervalNanos = DEFAULT_MIN_KEY_FRAME_INTERVAL_MS * 1000000L;
+    private boolean keyFrameSent;
+    private long lastKeyFrameNanos;
+    private ScheduledFuture<?> pendingKeyFrameRequest;
+    private long keyFrameRequests;
+    private long forcedKeyFrames;
+
+    private final Runnable deliverKeyFrameRequest = new Runnable() {
+        @Override
+        public void run() {
+            KeyFrameRequestListener l;
+            synchronized (RtpMedia.this) {
+                pendingKeyFrameRequest = null;
+                l = takeKeyFrameRequest(System.nanoTime());
+            }
+            if (l != null) l.onKeyFrameRequested(RtpMedia.this);
+        }
+    };
+
     public RtpMedia(Uri u, String c, MediaDescription d, MediaFormat f) {
         uri = u;
         control = c;
@@ -26,4 +84,122 @@ public class RtpMedia {
         // TODO: Use this
         //streamEventBus = EventBus.builder().logNoSubscriberMessages(false).build();
     }
+
+    /**
+     * @return RTP clock rate of the media: the sample rate for audio, 90 kHz otherwise
+     */
+    public int getClockRate() {
+        if (mediaFormat != null && mediaFormat.containsKey(MediaFormat.KEY_SAMPLE_RATE)) {
+            return mediaFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+        }
+        return DEFAULT_CLOCK_RATE;
+    }
+
+    /**
+     * Sets who is asked for key frames when receivers send a picture loss indication or full intra
+     * request
+     *
+     * @param l                     Producer of the media, null to ignore key frame requests
+     * @param minKeyFrameIntervalMs Shortest time between two requested key frames
+     */
+    public synchronized void setKeyFrameRequestListener(KeyFrameRequestListener l, int minKeyFrameIntervalMs) {
+        if (minKeyFrameIntervalMs < 0) throw new IllegalArgumentException("Invalid interval: " + minKeyFrameIntervalMs);
+        keyFrameRequestListener = l;
+        minKeyFrameIntervalNanos = minKeyFrameIntervalMs * 1000000L;
+    }
+
+    /**
+     * Asks the producer for a key frame. Requests arriving within the minimum interval of the last
+     * key frame are combined into one that is passed on when the interval is over, and dropped if a
+     * key frame is sent in the meantime.
+     * <p>
+     * Reference: https://tools.ietf.org/html/rfc5104#section-4.3.1.2
+     */
+    public void requestKeyFrame() {
+        KeyFrameRequestListener l;
+        synchronized (this) {
+            keyFrameRequests++;
+            if (keyFrameRequestListener == null || pendingKeyFrameRequest != null) return;
+
+            long now = System.nanoTime();
+            long wait = keyFrameSent ? lastKeyFrameNanos + minKeyFrameIntervalNanos - now : 0;
+            if (wait > 0) {
+                pendingKeyFrameRequest = getKeyFrameTimer().schedule(deliverKeyFrameRequest, wait, TimeUnit.NANOSECONDS);
+                return;
+            }
+            l = takeKeyFrameRequest(now);
+        }
+        l.onKeyFrameRequested(this);
+    }
+
+    /**
+     * Called for each key frame sent, which satisfies the pending request
+     */
+    public synchronized void onKeyFrameSent() {
+        keyFrameSent = true;
+        lastKeyFrameNanos = System.nanoTime();
+        if (pendingKeyFrameRequest != null) {
+            pendingKeyFrameRequest.cancel(false);
+            pendingKeyFrameRequest = null;
+        }
+    }
+
+    /**
+     * Delivers the frames received for this media through a ring instead of posting
+     * {@link RtspClientStreamEvent.MediaDataReceived} events, so each frame costs no allocation and no
+     * thread hop. The frames come from the thread running the receive stage of the media's stream, also
+     * those released once a gap was waited on long enough, so a single producer ring is enough. Frames
+     * that find the ring full are dropped.
+     *
+     * @param r Ring made with {@link RtspClientStreamEvent.MediaDataReceived#FACTORY}, consumed e.g. by
+     *          a {@link RingStage} whose handler releases each buffer. Null to post events again.
+     */
+    public void setFrameRing(RingBuffer<RtspClientStreamEvent.MediaDataReceived> r) {
+        frameRing = r;
+    }
+
+    public RingBuffer<RtspClientStreamEvent.MediaDataReceived> getFrameRing() {
+        return frameRing;
+    }
+
+    /**
+     * @return Key frame requests received from receivers
+     */
+    public synchronized long getKeyFrameRequestCount() {
+        return keyFrameRequests;
+    }
+
+    /**
+     * @return Key frame requests passed on to the producer
+     */
+    public synchronized long getForcedKeyFrameCount() {
+        return forcedKeyFrames;
+    }
+
+    /**
+     * Counts the key frame the producer is about to be asked for as sent, so requests in the meantime
+     * wait for the interval
+     */
+    private KeyFrameRequestListener takeKeyFrameRequest(long nowNanos) {
+        if (keyFrameRequestListener == null) return null;
+        keyFrameSent = true;
+        lastKeyFrameNanos = nowNanos;
+        forcedKeyFrames++;
+        return keyFrameRequestListener;
+    }
+
+    private static synchronized ScheduledThreadPoolExecutor getKeyFrameTimer() {
+        if (keyFrameTimer == null) {
+            keyFrameTimer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, TAG);
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            keyFrameTimer.setRemoveOnCancelPolicy(true);
+        }
+        return keyFrameTimer;
+    }
 }
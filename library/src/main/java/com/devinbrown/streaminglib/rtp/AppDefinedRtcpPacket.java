@@ -1,6 +1,8 @@
 package com.devinbrown.streaminglib.rtp;
 
 /**
+ * Flyweight view of an APP packet
+ * <p>
  * Reference: https://tools.ietf.org/html/rfc3550#section-6.7
  */
 
@@ -16,6 +18,34 @@ package com.devinbrown.streaminglib.rtp;
 //    |                   application-dependent data                ...
 //    +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
 
-
 public class AppDefinedRtcpPacket extends RtcpPacket {
+    private static final int DATA_OFFSET = HEADER_LENGTH + 8;
+
+    @Override
+    public boolean wrap(byte[] data, int offset, int available) {
+        return super.wrap(data, offset, available) && getPacketType() == PT_APP
+                && getContentLength() >= DATA_OFFSET;
+    }
+
+    public int getSubtype() {
+        return getCount();
+    }
+
+    /**
+     * @return The four ASCII characters of the name, packed big endian
+     */
+    public int getName() {
+        return (int) RtpPacket.readUnsignedInt(buffer, offset + HEADER_LENGTH + 4);
+    }
+
+    /**
+     * @return Offset into {@link #getBuffer()} of the application-dependent data
+     */
+    public int getDataOffset() {
+        return offset + DATA_OFFSET;
+    }
+
+    public int getDataLength() {
+        return getContentLength() - DATA_OFFSET;
+    }
 }
@@ -0,0 +1,141 @@
+package com.devinbrown.streaminglib.rtp;
+
+/**
+ * Flyweight view of a transport layer (RTPFB) or payload-specific (PSFB) feedback message
+ * <p>
+ * The count field holds the feedback message type (FMT). The feedback control information (FCI)
+ * depends on it: generic NACKs list lost packets as a packet ID and a bitmask of the 16 packets
+ * following it, a picture loss indication has none and a full intra request lists the SSRC and
+ * request sequence number of each source asked for a decoder refresh.
+ * <p>
+ * Reference: https://tools.ietf.org/html/rfc4585#section-6.1
+ * Reference: https://tools.ietf.org/html/rfc5104#section-4.3.1
+ */
+
+//     0                   1                   2                   3
+//     0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1
+//    +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+//    |V=2|P|   FMT   |       PT      |          length               |
+//    +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+//    |                  SSRC of packet sender                        |
+//    +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+//    |                  SSRC of media source                         |
+//    +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+//    :            Feedback Control Information (FCI)                 :
+//    :                                                               :
+//
+//    Generic NACK FCI:
+//    +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+//    |            PID                |             BLP               |
+//    +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+//
+//    FIR FCI:
+//    +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+//    |                              SSRC                             |
+//    +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+//    | Seq nr.       |    Reserved                                   |
+//    +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+
+public class FeedbackRtcpPacket extends RtcpPacket {
+    // Transport layer feedback message types
+    public static final int FMT_GENERIC_NACK = 1;
+    // Payload-specific feedback message types
+    public static final int FMT_PLI = 1;
+    public static final int FMT_FIR = 4;
+
+    static final int FCI_OFFSET = HEADER_LENGTH + 8;
+    static final int GENERIC_NACK_LENGTH = 4;
+    static final int FIR_LENGTH = 8;
+
+    @Override
+    public boolean wrap(byte[] data, int offset, int available) {
+        return super.wrap(data, offset, available)
+                && (getPacketType() == PT_RTPFB || getPacketType() == PT_PSFB)
+                && getContentLength() >= FCI_OFFSET;
+    }
+
+    /**
+     * @return Feedback message type, interpreted per packet type
+     */
+    public int getFormat() {
+        return getCount();
+    }
+
+    public long getMediaSsrc() {
+        return RtpPacket.readUnsignedInt(buffer, offset + HEADER_LENGTH + 4);
+    }
+
+    public boolean isGenericNack() {
+        return getPacketType() == PT_RTPFB && getFormat() == FMT_GENERIC_NACK;
+    }
+
+    /**
+     * Reference: https://tools.ietf.org/html/rfc4585#section-6.3.1
+     */
+    public boolean isPictureLossIndication() {
+        return getPacketType() == PT_PSFB && getFormat() == FMT_PLI;
+    }
+
+    /**
+     * Reference: https://tools.ietf.org/html/rfc5104#section-4.3.1
+     */
+    public boolean isFullIntraRequest() {
+        return getPacketType() == PT_PSFB && getFormat() == FMT_FIR;
+    }
+
+    /**
+     * @return Number of sources a full intra request is addressed to
+     */
+    public int getFirCount() {
+        return (getContentLength() - FCI_OFFSET) / FIR_LENGTH;
+    }
+
+    /**
+     * @param i Index of the entry, from 0 to {@link #getFirCount()} - 1
+     * @return SSRC of the source asked for a decoder refresh
+     */
+    public long getFirSsrc(int i) {
+        return RtpPacket.readUnsignedInt(buffer, firOffset(i));
+    }
+
+    /**
+     * @param i Index of the entry, from 0 to {@link #getFirCount()} - 1
+     * @return Request sequence number, the same for repetitions of one request
+     */
+    public int getFirSequenceNumber(int i) {
+        return buffer[firOffset(i) + 4] & 0xFF;
+    }
+
+    /**
+     * @return Number of PID and BLP pairs of a generic NACK
+     */
+    public int getNackCount() {
+        return (getContentLength() - FCI_OFFSET) / GENERIC_NACK_LENGTH;
+    }
+
+    /**
+     * @param i Index of the pair, from 0 to {@link #getNackCount()} - 1
+     * @return Sequence number of a lost packet
+     */
+    public int getNackPacketId(int i) {
+        return RtpPacket.readUnsignedShort(buffer, nackOffset(i));
+    }
+
+    /**
+     * @param i Index of the pair, from 0 to {@link #getNackCount()} - 1
+     * @return Bit n set if packet PID + n + 1 is lost as well
+     */
+    public int getNackBitmask(int i) {
+        return RtpPacket.readUnsignedShort(buffer, nackOffset(i) + 2);
+    }
+
+    private int firOffset(int i) {
+        if (i < 0 || i >= getFirCount()) throw new IndexOutOfBoundsException("FIR " + i);
+        return offset + FCI_OFFSET + FIR_LENGTH * i;
+    }
+
+    private int nackOffset(int i) {
+        if (i < 0 || i >= getNackCount()) throw new IndexOutOfBoundsException("NACK " + i);
+        return offset + FCI_OFFSET + GENERIC_NACK_LENGTH * i;
+    }
+}
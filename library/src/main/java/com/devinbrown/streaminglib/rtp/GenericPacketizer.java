@@ -0,0 +1,29 @@
+package com.devinbrown.streaminglib.rtp;
+
+/**
+ * Packetizer for payload formats without a dedicated one: each frame is split into packets of at
+ * most the maximum payload size and the marker bit is set on the last one
+ */
+public class GenericPacketizer extends RtpPacketizer {
+
+    public GenericPacketizer(Listener l, int payloadType, int maxPayloadSize) {
+        super(l, payloadType, maxPayloadSize);
+    }
+
+    public GenericPacketizer(Listener l, int payloadType, int maxPayloadSize, int clockRate) {
+        super(l, payloadType, maxPayloadSize, clockRate);
+    }
+
+    @Override
+    protected void packetizeFrame(byte[] data, int offset, int length, long timestamp) {
+        int end = offset + length;
+        do {
+            int n = Math.min(maxPayloadSize, end - offset);
+            RtpBuffer b = beginPacket(timestamp);
+            System.arraycopy(data, offset, b.data, b.length, n);
+            b.length += n;
+            offset += n;
+            endPacket(b, offset == end);
+        } while (offset < end);
+    }
+}
@@ -1,6 +1,10 @@
 package com.devinbrown.streaminglib.rtp;
 
+import java.nio.charset.StandardCharsets;
+
 /**
+ * Flyweight view of a BYE packet
+ * <p>
  * Reference: https://tools.ietf.org/html/rfc3550#section-6.6
  */
 
@@ -16,5 +20,35 @@ package com.devinbrown.streaminglib.rtp;
 //    (opt) |     length    |               reason for leaving            ...
 //    +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
 
-public class GoodByeRtcpPacket {
+public class GoodByeRtcpPacket extends RtcpPacket {
+
+    @Override
+    public boolean wrap(byte[] data, int offset, int available) {
+        return super.wrap(data, offset, available) && getPacketType() == PT_BYE
+                && HEADER_LENGTH + 4 * getSourceCount() <= getContentLength();
+    }
+
+    public int getSourceCount() {
+        return getCount();
+    }
+
+    /**
+     * @param i Index of the source, from 0 to {@link #getSourceCount()} - 1
+     * @return SSRC or CSRC of the source leaving
+     */
+    public long getSource(int i) {
+        if (i < 0 || i >= getSourceCount()) throw new IndexOutOfBoundsException("Source " + i);
+        return RtpPacket.readUnsignedInt(buffer, offset + HEADER_LENGTH + 4 * i);
+    }
+
+    /**
+     * @return Reason for leaving, or null if none was given
+     */
+    public String getReason() {
+        int o = offset + HEADER_LENGTH + 4 * getSourceCount();
+        if (o >= offset + getContentLength()) return null;
+        int l = buffer[o] & 0xFF;
+        if (o + 1 + l > offset + getContentLength()) return null;
+        return new String(buffer, o + 1, l, StandardCharsets.UTF_8);
+    }
 }
@@ -0,0 +1,92 @@
+package com.devinbrown.streaminglib.rtp;
+
+/**
+ * Reassembles H.264 access units from RTP payloads
+ * <p>
+ * Handles single NAL unit packets, STAP-A aggregation packets and FU-A fragmentation units, the
+ * packet types allowed in single NAL unit and non-interleaved mode. With
+ * {@link NalFraming#LENGTH_PREFIXED} the output is in AVCC format.
+ * <p>
+ * Reference: https://tools.ietf.org/html/rfc6184#section-5
+ */
+public class H264Depacketizer extends NalUnitDepacketizer {
+    private static final int NAL_TYPE_IDR = 5;
+    private static final int NAL_TYPE_STAP_A = 24;
+    private static final int NAL_TYPE_FU_A = 28;
+
+    public H264Depacketizer(Listener l, NalFraming f) {
+        super(l, f);
+    }
+
+    @Override
+    void depacketizePayload(long timestamp, byte[] d, int o, int n) {
+        int type = d[o] & 0x1F;
+        if (type >= 1 && type <= 23) {
+            writeNal(timestamp, d, o, n);
+        } else if (type == NAL_TYPE_STAP_A) {
+            depacketizeStapA(timestamp, d, o + 1, n - 1);
+        } else if (type == NAL_TYPE_FU_A) {
+            depacketizeFuA(timestamp, d, o, n);
+        } else {
+            // STAP-B, MTAP and FU-B only occur in interleaved mode
+            discardPacket();
+        }
+    }
+
+    @Override
+    boolean startsNal(byte[] d, int o, int n) {
+        int type = d[o] & 0x1F;
+        if (type == NAL_TYPE_FU_A) return n >= 2 && (d[o + 1] & 0x80) != 0;
+        return (type >= 1 && type <= 23) || type == NAL_TYPE_STAP_A;
+    }
+
+    @Override
+    boolean isKeyFrameNal(byte[] d, int o) {
+        return (d[o] & 0x1F) == NAL_TYPE_IDR;
+    }
+
+    /**
+     * Reference: https://tools.ietf.org/html/rfc6184#section-5.7.1
+     */
+    private void depacketizeStapA(long timestamp, byte[] d, int o, int n) {
+        while (n >= 2) {
+            int size = RtpPacket.readUnsignedShort(d, o);
+            o += 2;
+            n -= 2;
+            if (size == 0 || size > n) {
+                discardPacket();
+                return;
+            }
+            writeNal(timestamp, d, o, size);
+            o += size;
+            n -= size;
+        }
+    }
+
+    /**
+     * Reference: https://tools.ietf.org/html/rfc6184#section-5.8
+     */
+    private void depacketizeFuA(long timestamp, byte[] d, int o, int n) {
+        if (n < 2) {
+            discardPacket();
+            return;
+        }
+
+        int indicator = d[o];
+        int header = d[o + 1];
+        boolean start = (header & 0x80) != 0;
+        boolean end = (header & 0x40) != 0;
+
+        if (start) {
+            beginNal(timestamp);
+            append((indicator & 0xE0) | (header & 0x1F));
+        } else if (!isWritingNal()) {
+            // Missed the start of this NAL unit
+            discardPacket();
+            return;
+        }
+
+        append(d, o + 2, n - 2);
+        if (end) endNal();
+    }
+}
@@ -0,0 +1,156 @@
+package com.devinbrown.streaminglib.rtp;
+
+/**
+ * Splits H.264 access units in Annex B format into RTP packets in non-interleaved mode
+ * <p>
+ * NAL units that fit in a packet are sent as single NAL unit packets, or aggregated into a STAP-A
+ * when several small ones (e.g. SPS, PPS and SEI) fit together. Larger NAL units are split into FU-A
+ * fragments. The marker bit is set on the last packet of the access unit. Payloads are written
+ * straight into the pooled packet buffers.
+ * <p>
+ * Reference: https://tools.ietf.org/html/rfc6184#section-5
+ */
+public class H264Packetizer extends RtpPacketizer {
+    private static final int NAL_TYPE_STAP_A = 24;
+    private static final int NAL_TYPE_FU_A = 28;
+
+    private static final int STAP_A_HEADER_LENGTH = 1;
+    private static final int NAL_SIZE_LENGTH = 2;
+    private static final int FU_A_HEADER_LENGTH = 2;
+
+    // Packet holding one NAL unit or a STAP-A that more NAL units may still be added to
+    private RtpBuffer pending;
+    private int pendingNalCount;
+
+    public H264Packetizer(Listener l, int payloadType, int maxPayloadSize) {
+        super(l, payloadType, maxPayloadSize);
+    }
+
+    public H264Packetizer(Listener l, int payloadType, int maxPayloadSize, int clockRate) {
+        super(l, payloadType, maxPayloadSize, clockRate);
+    }
+
+    /**
+     * Packetize one access unit. Data that doesn't start with a start code is taken as a single NAL
+     * unit.
+     */
+    @Override
+    protected void packetizeFrame(byte[] data, int offset, int length, long timestamp) {
+        int end = offset + length;
+        int nalStart = findNalStart(data, offset, end);
+        if (nalStart < 0) nalStart = offset;
+
+        while (nalStart < end) {
+            int nextStart = findNalStart(data, nalStart, end);
+            int nalEnd = nextStart < 0 ? end : nextStart - 3;
+            boolean last = nextStart < 0;
+
+            // Drop trailing zero bytes (trailing_zero_8bits)
+            while (nalEnd > nalStart && data[nalEnd - 1] == 0) nalEnd--;
+            if (nalEnd > nalStart) addNal(data, nalStart, nalEnd - nalStart, timestamp, last);
+            else if (last) flushPending(true);
+
+            nalStart = last ? end : nextStart;
+        }
+    }
+
+    private void addNal(byte[] d, int o, int n, long timestamp, boolean last) {
+        if (n > maxPayloadSize) {
+            flushPending(false);
+            fragment(d, o, n, timestamp, last);
+            return;
+        }
+
+        if (pending != null && !appendToPending(d, o, n)) flushPending(false);
+        if (pending == null) {
+            pending = beginPacket(timestamp);
+            System.arraycopy(d, o, pending.data, pending.length, n);
+            pending.length += n;
+            pendingNalCount = 1;
+        }
+        if (last) flushPending(true);
+    }
+
+    /**
+     * Reference: https://tools.ietf.org/html/rfc6184#section-5.7.1
+     *
+     * @return false if the NAL unit doesn't fit in the pending packet
+     */
+    private boolean appendToPending(byte[] d, int o, int n) {
+        int payloadStart = RtpPacket.FIXED_HEADER_LENGTH;
+        int payloadLength = pending.length - payloadStart;
+        int needed = NAL_SIZE_LENGTH + n;
+        if (pendingNalCount == 1) needed += STAP_A_HEADER_LENGTH + NAL_SIZE_LENGTH;
+        if (payloadLength + needed > maxPayloadSize) return false;
+
+        byte[] p = pending.data;
+        if (pendingNalCount == 1) {
+            // Turn the single NAL unit packet into a STAP-A
+            System.arraycopy(p, payloadStart, p, payloadStart + STAP_A_HEADER_LENGTH + NAL_SIZE_LENGTH, payloadLength);
+            p[payloadStart] = (byte) ((p[payloadStart + 3] & 0xE0) | NAL_TYPE_STAP_A);
+            p[payloadStart + 1] = (byte) (payloadLength >> 8);
+            p[payloadStart + 2] = (byte) payloadLength;
+            pending.length += STAP_A_HEADER_LENGTH + NAL_SIZE_LENGTH;
+        }
+
+        // The STAP-A carries the highest NRI and any forbidden bit of its NAL units
+        int f = (p[payloadStart] | d[o]) & 0x80;
+        int nri = Math.max(p[payloadStart] & 0x60, d[o] & 0x60);
+        p[payloadStart] = (byte) (f | nri | NAL_TYPE_STAP_A);
+
+        p[pending.length++] = (byte) (n >> 8);
+        p[pending.length++] = (byte) n;
+        System.arraycopy(d, o, p, pending.length, n);
+        pending.length += n;
+        pendingNalCount++;
+        return true;
+    }
+
+    private void flushPending(boolean marker) {
+        if (pending == null) return;
+        RtpBuffer b = pending;
+        pending = null;
+        pendingNalCount = 0;
+        endPacket(b, marker);
+    }
+
+    /**
+     * Reference: https://tools.ietf.org/html/rfc6184#section-5.8
+     */
+    private void fragment(byte[] d, int o, int n, long timestamp, boolean last) {
+        int indicator = (d[o] & 0xE0) | NAL_TYPE_FU_A;
+        int type = d[o] & 0x1F;
+        int end = o + n;
+        int maxFragment = maxPayloadSize - FU_A_HEADER_LENGTH;
+
+        // The NAL unit header is carried in the FU indicator and header
+        o++;
+        boolean start = true;
+        while (o < end) {
+            int size = Math.min(maxFragment, end - o);
+            boolean lastFragment = o + size == end;
+            RtpBuffer b = beginPacket(timestamp);
+            b.data[b.length++] = (byte) indicator;
+            b.data[b.length++] = (byte) ((start ? 0x80 : 0) | (lastFragment ? 0x40 : 0) | type);
+            System.arraycopy(d, o, b.data, b.length, size);
+            b.length += size;
+            o += size;
+            start = false;
+            endPacket(b, last && lastFragment);
+        }
+    }
+
+    /**
+     * @return Offset of the first NAL unit byte after the next start code at or after o, or -1
+     */
+    private static int findNalStart(byte[] d, int o, int end) {
+        for (int i = o; i + 2 < end; i++) {
+            if ((d[i + 2] & 0xFF) > 1) {
+                i += 2;
+            } else if (d[i] == 0 && d[i + 1] == 0 && d[i + 2] == 1) {
+                return i + 3;
+            }
+        }
+        return -1;
+    }
+}
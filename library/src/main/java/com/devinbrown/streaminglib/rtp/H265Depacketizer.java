@@ -0,0 +1,152 @@
+package com.devinbrown.streaminglib.rtp;
+
+/**
+ * Reassembles H.265 (HEVC) access units from RTP payloads
+ * <p>
+ * Handles single NAL unit packets, aggregation packets (AP) and fragmentation units (FU). When the
+ * stream signals sprop-max-don-diff greater than 0 every packet carries a decoding order number
+ * (DONL/DOND), which is stripped from the output. NAL units are emitted in transmission order. With
+ * {@link NalFraming#LENGTH_PREFIXED} the output is in HVCC format.
+ * <p>
+ * Reference: https://tools.ietf.org/html/rfc7798#section-4.4
+ */
+public class H265Depacketizer extends NalUnitDepacketizer {
+    private static final int NAL_HEADER_LENGTH = 2;
+
+    private static final int NAL_TYPE_BLA_W_LP = 16;
+    private static final int NAL_TYPE_RSV_IRAP_23 = 23;
+    private static final int NAL_TYPE_AP = 48;
+    private static final int NAL_TYPE_FU = 49;
+
+    private final boolean donPresent;
+
+    /**
+     * @param l          Receives access units
+     * @param f          NAL unit framing of the output
+     * @param donPresent Whether packets carry decoding order numbers (sprop-max-don-diff > 0)
+     */
+    public H265Depacketizer(Listener l, NalFraming f, boolean donPresent) {
+        super(l, f);
+        this.donPresent = donPresent;
+    }
+
+    @Override
+    void depacketizePayload(long timestamp, byte[] d, int o, int n) {
+        if (n < NAL_HEADER_LENGTH) {
+            discardPacket();
+            return;
+        }
+
+        int type = nalType(d, o);
+        if (type == NAL_TYPE_AP) {
+            depacketizeAp(timestamp, d, o, n);
+        } else if (type == NAL_TYPE_FU) {
+            depacketizeFu(timestamp, d, o, n);
+        } else if (type < NAL_TYPE_AP) {
+            depacketizeSingle(timestamp, d, o, n);
+        } else {
+            // PACI and reserved types
+            discardPacket();
+        }
+    }
+
+    @Override
+    boolean startsNal(byte[] d, int o, int n) {
+        if (n < NAL_HEADER_LENGTH) return false;
+        int type = nalType(d, o);
+        if (type == NAL_TYPE_FU) return n > NAL_HEADER_LENGTH && (d[o + NAL_HEADER_LENGTH] & 0x80) != 0;
+        return type <= NAL_TYPE_AP;
+    }
+
+    @Override
+    boolean isKeyFrameNal(byte[] d, int o) {
+        int type = nalType(d, o);
+        return type >= NAL_TYPE_BLA_W_LP && type <= NAL_TYPE_RSV_IRAP_23;
+    }
+
+    /**
+     * Reference: https://tools.ietf.org/html/rfc7798#section-4.4.1
+     */
+    private void depacketizeSingle(long timestamp, byte[] d, int o, int n) {
+        if (!donPresent) {
+            writeNal(timestamp, d, o, n);
+            return;
+        }
+
+        // NAL unit header, DONL, then the NAL unit payload
+        int skip = NAL_HEADER_LENGTH + 2;
+        if (n <= skip) {
+            discardPacket();
+            return;
+        }
+        beginNal(timestamp);
+        append(d, o, NAL_HEADER_LENGTH);
+        append(d, o + skip, n - skip);
+        endNal();
+    }
+
+    /**
+     * Reference: https://tools.ietf.org/html/rfc7798#section-4.4.2
+     */
+    private void depacketizeAp(long timestamp, byte[] d, int o, int n) {
+        int end = o + n;
+        o += NAL_HEADER_LENGTH;
+
+        boolean first = true;
+        while (o < end) {
+            // DONL before the first NAL unit, DOND before the others
+            if (donPresent) o += first ? 2 : 1;
+            first = false;
+
+            if (end - o < 2) break;
+            int size = RtpPacket.readUnsignedShort(d, o);
+            o += 2;
+            if (size < NAL_HEADER_LENGTH || size > end - o) {
+                discardPacket();
+                return;
+            }
+            writeNal(timestamp, d, o, size);
+            o += size;
+        }
+    }
+
+    /**
+     * Reference: https://tools.ietf.org/html/rfc7798#section-4.4.3
+     */
+    private void depacketizeFu(long timestamp, byte[] d, int o, int n) {
+        int headerLength = NAL_HEADER_LENGTH + 1;
+        if (n <= headerLength) {
+            discardPacket();
+            return;
+        }
+
+        int fuHeader = d[o + NAL_HEADER_LENGTH];
+        boolean start = (fuHeader & 0x80) != 0;
+        boolean end = (fuHeader & 0x40) != 0;
+
+        // Only the first fragment carries a DONL
+        if (start && donPresent) headerLength += 2;
+        if (n < headerLength) {
+            discardPacket();
+            return;
+        }
+
+        if (start) {
+            beginNal(timestamp);
+            // Rebuild the NAL unit header: F and LayerId from the payload header, type from the FU header
+            append((d[o] & 0x81) | ((fuHeader & 0x3F) << 1));
+            append(d[o + 1]);
+        } else if (!isWritingNal()) {
+            // Missed the start of this NAL unit
+            discardPacket();
+            return;
+        }
+
+        append(d, o + headerLength, n - headerLength);
+        if (end) endNal();
+    }
+
+    private static int nalType(byte[] d, int o) {
+        return (d[o] >> 1) & 0x3F;
+    }
+}
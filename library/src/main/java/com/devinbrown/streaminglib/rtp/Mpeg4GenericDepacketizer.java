@@ -0,0 +1,240 @@
+package com.devinbrown.streaminglib.rtp;
+
+import com.devinbrown.streaminglib.sdp.Fmtp;
+
+/**
+ * Splits mpeg4-generic RTP payloads (e.g. AAC-hbr, AAC-lbr) into access units
+ * <p>
+ * The AU header section is parsed with the field lengths signalled in the fmtp line. Each access unit
+ * that fits in its packet is handed on as a view of the received packet buffer, which is retained
+ * once per access unit, so nothing is copied. Access units fragmented over several packets are
+ * gathered into a pooled buffer as they arrive.
+ * <p>
+ * Reference: https://tools.ietf.org/html/rfc3640#section-3.2
+ */
+public class Mpeg4GenericDepacketizer extends RtpDepacketizer {
+    private static final int FRAME_CAPACITY = 8 * 1024;
+
+    // Samples per AAC frame, used when constantDuration isn't signalled
+    private static final int DEFAULT_FRAME_DURATION = 1024;
+
+    private final int sizeLength;
+    private final int indexLength;
+    private final int indexDeltaLength;
+    private final int ctsDeltaLength;
+    private final int dtsDeltaLength;
+    private final boolean randomAccessIndication;
+    private final int streamStateIndication;
+    private final int auxiliaryDataSizeLength;
+    private final int constantSize;
+    private final int frameDuration;
+    private final boolean auHeadersPresent;
+
+    // Access unit fragmented over several packets
+    private RtpBuffer fragment;
+    private long fragmentRtpTimestamp;
+    private long fragmentTimestamp;
+    private int fragmentSize;
+
+    private long discardedPackets;
+
+    /**
+     * @param l Receives access units
+     * @param f fmtp of the stream, giving the AU header field lengths
+     */
+    public Mpeg4GenericDepacketizer(Listener l, Fmtp f) {
+        super(l, FRAME_CAPACITY);
+        sizeLength = getIntParameter(f, "sizeLength", 0);
+        indexLength = getIntParameter(f, "indexLength", 0);
+        indexDeltaLength = getIntParameter(f, "indexDeltaLength", 0);
+        ctsDeltaLength = getIntParameter(f, "CTSDeltaLength", 0);
+        dtsDeltaLength = getIntParameter(f, "DTSDeltaLength", 0);
+        randomAccessIndication = getIntParameter(f, "randomAccessIndication", 0) != 0;
+        streamStateIndication = getIntParameter(f, "streamStateIndication", 0);
+        auxiliaryDataSizeLength = getIntParameter(f, "auxiliaryDataSizeLength", 0);
+        constantSize = getIntParameter(f, "constantSize", 0);
+        frameDuration = getIntParameter(f, "constantDuration", DEFAULT_FRAME_DURATION);
+
+        auHeadersPresent = sizeLength > 0 || indexLength > 0 || indexDeltaLength > 0 || ctsDeltaLength > 0
+                || dtsDeltaLength > 0 || randomAccessIndication || streamStateIndication > 0;
+    }
+
+    @Override
+    public void depacketize(RtpPacket p) {
+        byte[] d = p.getBuffer();
+        int o = p.getPayloadOffset();
+        int end = o + p.getPayloadLength();
+        long timestamp = p.getTimestamp();
+
+        int bitPos = 0;
+        int bitEnd = 0;
+        int dataOffset = o;
+        if (auHeadersPresent) {
+            if (end - o < 2) {
+                discardedPackets++;
+                return;
+            }
+            int headersLength = RtpPacket.readUnsignedShort(d, o);
+            bitPos = (o + 2) * 8;
+            bitEnd = bitPos + headersLength;
+            dataOffset = o + 2 + (headersLength + 7) / 8;
+        }
+        if (auxiliaryDataSizeLength > 0 && dataOffset + (auxiliaryDataSizeLength + 7) / 8 <= end) {
+            int auxiliaryLength = readBits(d, dataOffset * 8, auxiliaryDataSizeLength, end * 8);
+            dataOffset += (auxiliaryDataSizeLength + auxiliaryLength + 7) / 8;
+        }
+        if (dataOffset > end) {
+            discardedPackets++;
+            return;
+        }
+
+        if (fragment != null) {
+            if (timestamp == fragmentRtpTimestamp) {
+                continueFragment(d, dataOffset, end - dataOffset, p.getMarker());
+                return;
+            }
+            // The last fragment was lost
+            dropFragment();
+        }
+
+        if (!auHeadersPresent) {
+            deliver(p, dataOffset, end - dataOffset, timestamp);
+            return;
+        }
+
+        int index = 0;
+        for (int i = 0; bitPos < bitEnd; i++) {
+            int size = constantSize;
+            if (sizeLength > 0) {
+                size = readBits(d, bitPos, sizeLength, bitEnd);
+                bitPos += sizeLength;
+            }
+            if (i == 0) {
+                index = readBits(d, bitPos, indexLength, bitEnd);
+                bitPos += indexLength;
+            } else {
+                index += readBits(d, bitPos, indexDeltaLength, bitEnd) + 1;
+                bitPos += indexDeltaLength;
+            }
+            if (ctsDeltaLength > 0) {
+                boolean ctsPresent = readBits(d, bitPos, 1, bitEnd) != 0;
+                bitPos += ctsPresent ? 1 + ctsDeltaLength : 1;
+            }
+            if (dtsDeltaLength > 0) {
+                boolean dtsPresent = readBits(d, bitPos, 1, bitEnd) != 0;
+                bitPos += dtsPresent ? 1 + dtsDeltaLength : 1;
+            }
+            if (randomAccessIndication) bitPos++;
+            bitPos += streamStateIndication;
+
+            if (bitPos > bitEnd || size <= 0) {
+                discardedPackets++;
+                return;
+            }
+
+            long auTimestamp = (timestamp + (long) index * frameDuration) & 0xFFFFFFFFL;
+            int available = end - dataOffset;
+            if (size > available) {
+                // Only a packet carrying a single access unit may hold a fragment of it
+                if (i == 0 && available > 0 && !p.getMarker()) {
+                    startFragment(d, dataOffset, available, size, timestamp, auTimestamp);
+                } else {
+                    discardedPackets++;
+                }
+                return;
+            }
+
+            deliver(p, dataOffset, size, auTimestamp);
+            dataOffset += size;
+        }
+    }
+
+    @Override
+    public void onPacketsLost() {
+        dropFragment();
+    }
+
+    /**
+     * @return Number of packets dropped as malformed or part of a damaged access unit
+     */
+    public long getDiscardedPackets() {
+        return discardedPackets;
+    }
+
+    private void deliver(RtpPacket p, int offset, int length, long timestamp) {
+        RtpBuffer b = p.getRtpBuffer();
+        if (b != null) {
+            b.retain();
+            listener.onFrame(b, offset, length, timestamp, true);
+        } else {
+            // Packet isn't in a buffer that can be shared
+            RtpBuffer f = acquireFrame();
+            f.ensureCapacity(length);
+            System.arraycopy(p.getBuffer(), offset, f.data, 0, length);
+            f.length = length;
+            listener.onFrame(f, 0, length, timestamp, true);
+        }
+    }
+
+    /**
+     * Reference: https://tools.ietf.org/html/rfc3640#section-3.2.3
+     */
+    private void startFragment(byte[] d, int o, int n, int size, long rtpTimestamp, long auTimestamp) {
+        fragment = acquireFrame();
+        fragment.ensureCapacity(size);
+        fragmentRtpTimestamp = rtpTimestamp;
+        fragmentTimestamp = auTimestamp;
+        fragmentSize = size;
+        System.arraycopy(d, o, fragment.data, 0, n);
+        fragment.length = n;
+    }
+
+    private void continueFragment(byte[] d, int o, int n, boolean marker) {
+        if (fragment.length + n > fragmentSize) {
+            discardedPackets++;
+            dropFragment();
+            return;
+        }
+        System.arraycopy(d, o, fragment.data, fragment.length, n);
+        fragment.length += n;
+
+        if (fragment.length == fragmentSize) {
+            RtpBuffer b = fragment;
+            fragment = null;
+            listener.onFrame(b, 0, b.length, fragmentTimestamp, true);
+        } else if (marker) {
+            // Last fragment but the access unit is incomplete
+            discardedPackets++;
+            dropFragment();
+        }
+    }
+
+    private void dropFragment() {
+        if (fragment != null) {
+            fragment.release();
+            fragment = null;
+        }
+    }
+
+    /**
+     * Reads n bits, most significant first. Bits at or past bitLimit read as 0.
+     */
+    private static int readBits(byte[] d, int bitPos, int n, int bitLimit) {
+        int v = 0;
+        for (int i = bitPos; i < bitPos + n; i++) {
+            int bit = i < bitLimit ? (d[i >> 3] >> (7 - (i & 7))) & 1 : 0;
+            v = (v << 1) | bit;
+        }
+        return v;
+    }
+
+    private static int getIntParameter(Fmtp f, String name, int defaultValue) {
+        String value = f != null ? f.getParameter(name) : null;
+        if (value == null) return defaultValue;
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+}
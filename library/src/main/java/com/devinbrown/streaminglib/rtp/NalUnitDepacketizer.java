@@ -0,0 +1,198 @@
+package com.devinbrown.streaminglib.rtp;
+
+/**
+ * Common frame assembly for codecs carried as NAL units (H.264, H.265)
+ * <p>
+ * NAL units are written one after another into a single pooled buffer per access unit, prefixed with
+ * either an Annex B start code or a 4 byte length. An access unit ends at the packet with the marker
+ * bit set, or when the timestamp changes if that packet was lost. After packet loss the rest of the
+ * access unit in progress is discarded, and so is the next one if its first packet received doesn't
+ * start a NAL unit, since its start was lost too.
+ */
+public abstract class NalUnitDepacketizer extends RtpDepacketizer {
+    private static final int FRAME_CAPACITY = 64 * 1024;
+    private static final int NAL_PREFIX_LENGTH = 4;
+
+    public enum NalFraming {
+        // 00 00 00 01 before each NAL unit, as MediaCodec expects
+        ANNEX_B,
+        // 4 byte big endian length before each NAL unit, as in MP4 files
+        LENGTH_PREFIXED
+    }
+
+    private final NalFraming framing;
+
+    private RtpBuffer frame;
+    private long frameTimestamp;
+    private boolean frameKey;
+
+    // Offset in frame of the prefix of the NAL unit being written, -1 between NAL units
+    private int nalStart = -1;
+
+    // Set after a loss until an access unit that starts cleanly
+    private boolean discarding;
+    // Timestamp of the access unit being discarded, if any
+    private boolean haveDiscardTimestamp;
+    private long discardTimestamp;
+    // Whether the first access unit after the loss still has to be checked for a clean start
+    private boolean checkingStart;
+
+    private long discardedPackets;
+
+    NalUnitDepacketizer(Listener l, NalFraming f) {
+        super(l, FRAME_CAPACITY);
+        framing = f;
+    }
+
+    @Override
+    public void depacketize(RtpPacket p) {
+        long timestamp = p.getTimestamp();
+
+        if (discarding) {
+            if (haveDiscardTimestamp && timestamp == discardTimestamp) {
+                discardedPackets++;
+                return;
+            }
+            if (checkingStart) {
+                checkingStart = false;
+                if (p.getPayloadLength() < 1 || !startsNal(p.getBuffer(), p.getPayloadOffset(), p.getPayloadLength())) {
+                    // The lost packets held the start of this access unit
+                    discardTimestamp = timestamp;
+                    haveDiscardTimestamp = true;
+                    discardedPackets++;
+                    return;
+                }
+            }
+            discarding = false;
+        }
+
+        // The previous access unit's last packet was lost
+        if (frame != null && timestamp != frameTimestamp) emitFrame();
+
+        if (p.getPayloadLength() < 1) {
+            discardedPackets++;
+        } else {
+            depacketizePayload(timestamp, p.getBuffer(), p.getPayloadOffset(), p.getPayloadLength());
+        }
+
+        if (p.getMarker()) emitFrame();
+    }
+
+    @Override
+    public void onPacketsLost() {
+        // Only the access unit in progress is known to be damaged
+        haveDiscardTimestamp = frame != null;
+        if (frame != null) {
+            discardTimestamp = frameTimestamp;
+            frame.release();
+            frame = null;
+        }
+        nalStart = -1;
+        discarding = true;
+        checkingStart = true;
+    }
+
+    /**
+     * @return Number of packets dropped as malformed, unsupported or part of a damaged access unit
+     */
+    public long getDiscardedPackets() {
+        return discardedPackets;
+    }
+
+    /**
+     * Split one RTP payload into NAL units with {@link #writeNal} or {@link #beginNal}, {@link #append}
+     * and {@link #endNal}
+     */
+    abstract void depacketizePayload(long timestamp, byte[] d, int o, int n);
+
+    /**
+     * @return Whether the payload starts a NAL unit: a single NAL unit, an aggregation packet or the
+     * first fragment of a fragmentation unit
+     */
+    abstract boolean startsNal(byte[] d, int o, int n);
+
+    /**
+     * @return Whether the NAL unit starting at d[o] can start decoding on its own
+     */
+    abstract boolean isKeyFrameNal(byte[] d, int o);
+
+    void discardPacket() {
+        discardedPackets++;
+    }
+
+    boolean isWritingNal() {
+        return nalStart >= 0;
+    }
+
+    void writeNal(long timestamp, byte[] d, int o, int n) {
+        beginNal(timestamp);
+        append(d, o, n);
+        endNal();
+    }
+
+    /**
+     * Start a NAL unit. A NAL unit that was started but never ended is dropped.
+     */
+    void beginNal(long timestamp) {
+        if (frame == null) {
+            frame = acquireFrame();
+            frameTimestamp = timestamp;
+            frameKey = false;
+        } else if (nalStart >= 0) {
+            frame.length = nalStart;
+        }
+
+        frame.ensureCapacity(frame.length + NAL_PREFIX_LENGTH);
+        nalStart = frame.length;
+        frame.data[nalStart] = 0;
+        frame.data[nalStart + 1] = 0;
+        frame.data[nalStart + 2] = 0;
+        frame.data[nalStart + 3] = 1;
+        frame.length += NAL_PREFIX_LENGTH;
+    }
+
+    void append(byte[] d, int o, int n) {
+        frame.ensureCapacity(frame.length + n);
+        System.arraycopy(d, o, frame.data, frame.length, n);
+        frame.length += n;
+    }
+
+    void append(int b) {
+        frame.ensureCapacity(frame.length + 1);
+        frame.data[frame.length++] = (byte) b;
+    }
+
+    void endNal() {
+        int nalLength = frame.length - nalStart - NAL_PREFIX_LENGTH;
+        if (nalLength == 0) {
+            frame.length = nalStart;
+        } else {
+            if (framing == NalFraming.LENGTH_PREFIXED) {
+                frame.data[nalStart] = (byte) (nalLength >>> 24);
+                frame.data[nalStart + 1] = (byte) (nalLength >>> 16);
+                frame.data[nalStart + 2] = (byte) (nalLength >>> 8);
+                frame.data[nalStart + 3] = (byte) nalLength;
+            }
+            if (isKeyFrameNal(frame.data, nalStart + NAL_PREFIX_LENGTH)) frameKey = true;
+        }
+        nalStart = -1;
+    }
+
+    private void emitFrame() {
+        if (frame == null) return;
+
+        // Drop a fragmented NAL unit whose end was never received
+        if (nalStart >= 0) {
+            frame.length = nalStart;
+            nalStart = -1;
+        }
+
+        RtpBuffer b = frame;
+        frame = null;
+        if (b.length > 0) {
+            listener.onFrame(b, 0, b.length, frameTimestamp, frameKey);
+        } else {
+            b.release();
+        }
+    }
+}
@@ -1,6 +1,8 @@
 package com.devinbrown.streaminglib.rtp;
 
 /**
+ * Flyweight view of a receiver report
+ * <p>
  * Reference: https://tools.ietf.org/html/rfc3550#section-6.4.2
  */
 
@@ -31,4 +33,26 @@ package com.devinbrown.streaminglib.rtp;
 //            +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
 
 public class ReceiverReportRtcpPacket extends RtcpPacket {
+    private static final int REPORT_BLOCKS_OFFSET = HEADER_LENGTH + 4;
+
+    @Override
+    public boolean wrap(byte[] data, int offset, int available) {
+        return super.wrap(data, offset, available) && getPacketType() == PT_RR
+                && length >= REPORT_BLOCKS_OFFSET + getCount() * RtcpReportBlock.LENGTH;
+    }
+
+    public int getReportCount() {
+        return getCount();
+    }
+
+    /**
+     * @param i    Index of the report block, from 0 to {@link #getReportCount()} - 1
+     * @param into View to point at the report block
+     * @return into
+     */
+    public RtcpReportBlock getReportBlock(int i, RtcpReportBlock into) {
+        if (i < 0 || i >= getReportCount()) throw new IndexOutOfBoundsException("Report block " + i);
+        into.wrap(buffer, offset + REPORT_BLOCKS_OFFSET + i * RtcpReportBlock.LENGTH);
+        return into;
+    }
 }
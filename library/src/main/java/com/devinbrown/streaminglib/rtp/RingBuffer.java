@@ -0,0 +1,183 @@
+package com.devinbrown.streaminglib.rtp;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded ring of pre-allocated entries handed from producers to a single consumer
+ * <p>
+ * A producer claims a sequence number with {@link #tryClaim()}, fills the entry {@link #get(long)}
+ * returns for it and makes it visible with {@link #publish(long)}. The consumer handles every
+ * published entry in order with {@link #poll(Handler, int)}, a batch at a time, and the slots are
+ * reused once the batch is done. Entries are made once, up front, so passing packets through the
+ * ring allocates nothing.
+ * <p>
+ * With a single producer the claim is a plain counter of the producing thread. With several, claims
+ * are made with a compare and set and each slot records the sequence published into it, so the
+ * consumer never reads past an entry that was claimed but not yet published.
+ * <p>
+ * A full ring never blocks a producer: the claim fails and the producer decides what to drop, since
+ * the producers are usually receive threads that must keep reading.
+ *
+ * @param <E> Entry type
+ */
+public class RingBuffer<E> implements WaitStrategy.Waitable {
+    /**
+     * Makes the entries of a ring
+     */
+    public interface EntryFactory<E> {
+        E newEntry();
+    }
+
+    /**
+     * Consumes entries. The entry is reused once the batch is done, so it must not be kept.
+     */
+    public interface Handler<E> {
+        /**
+         * @param entry      Published entry
+         * @param endOfBatch Whether it is the last entry available for now, e.g. to flush
+         */
+        void onEntry(E entry, boolean endOfBatch);
+    }
+
+    private final Object[] entries;
+    private final int mask;
+    private final boolean multiProducer;
+    private final WaitStrategy waitStrategy;
+
+    // Last sequence the consumer is done with, written by the consumer
+    private final AtomicLong consumed = new AtomicLong(-1);
+
+    // Single producer: last published sequence
+    private final AtomicLong cursor = new AtomicLong(-1);
+    // Single producer: last claimed sequence, only used by the producer
+    private long claimed = -1;
+
+    // Several producers: last claimed sequence, and the sequence published into each slot
+    private final AtomicLong sharedClaimed = new AtomicLong(-1);
+    private final AtomicLongArray published;
+
+    private final AtomicLong rejectedClaims = new AtomicLong();
+
+    /**
+     * @param capacity      Number of entries, a power of 2
+     * @param factory       Makes every entry now
+     * @param multiProducer Whether several threads publish at once
+     * @param w             How the consumer waits for entries, only shared with rings of the same consumer
+     */
+    public RingBuffer(int capacity, EntryFactory<E> factory, boolean multiProducer, WaitStrategy w) {
+        if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+            throw new IllegalArgumentException("Capacity must be a power of 2: " + capacity);
+        }
+        entries = new Object[capacity];
+        for (int i = 0; i < capacity; i++) entries[i] = factory.newEntry();
+        mask = capacity - 1;
+        this.multiProducer = multiProducer;
+        waitStrategy = w;
+        if (multiProducer) {
+            published = new AtomicLongArray(capacity);
+            for (int i = 0; i < capacity; i++) published.set(i, -1);
+        } else {
+            published = null;
+        }
+    }
+
+    public int getCapacity() {
+        return entries.length;
+    }
+
+    public WaitStrategy getWaitStrategy() {
+        return waitStrategy;
+    }
+
+    /**
+     * Claims the next slot
+     *
+     * @return Sequence of the slot, or -1 if the ring is full
+     */
+    public long tryClaim() {
+        if (!multiProducer) {
+            long next = claimed + 1;
+            if (next - consumed.get() > entries.length) return reject();
+            claimed = next;
+            return next;
+        }
+        while (true) {
+            long current = sharedClaimed.get();
+            long next = current + 1;
+            if (next - consumed.get() > entries.length) return reject();
+            if (sharedClaimed.compareAndSet(current, next)) return next;
+        }
+    }
+
+    /**
+     * @param sequence Claimed or published sequence
+     * @return The entry of its slot
+     */
+    @SuppressWarnings("unchecked")
+    public E get(long sequence) {
+        return (E) entries[(int) sequence & mask];
+    }
+
+    /**
+     * Hands a claimed and filled entry to the consumer
+     */
+    public void publish(long sequence) {
+        if (multiProducer) published.lazySet((int) sequence & mask, sequence);
+        else cursor.lazySet(sequence);
+        waitStrategy.signal();
+    }
+
+    /**
+     * Handles the entries published so far, in order. Only called by the consumer.
+     *
+     * @param h        Handler of each entry
+     * @param maxBatch Most entries handled before returning
+     * @return Number of entries handled
+     */
+    public int poll(Handler<? super E> h, int maxBatch) {
+        long next = consumed.get() + 1;
+        long available = getAvailable(next, next + maxBatch - 1);
+        if (available < next) return 0;
+        long s = next;
+        try {
+            for (; s <= available; s++) h.onEntry(get(s), s == available);
+        } finally {
+            // An entry whose handler threw is given up, so it can't fail forever
+            consumed.lazySet(Math.min(s, available));
+        }
+        return (int) (available - next + 1);
+    }
+
+    /**
+     * @return Whether an entry is waiting for the consumer
+     */
+    @Override
+    public boolean hasAvailable() {
+        long next = consumed.get() + 1;
+        return getAvailable(next, next) >= next;
+    }
+
+    /**
+     * @return Claims that failed because the ring was full
+     */
+    public long getRejectedClaims() {
+        return rejectedClaims.get();
+    }
+
+    /**
+     * @return Highest sequence up to max such that every one from next on is published
+     */
+    private long getAvailable(long next, long max) {
+        if (!multiProducer) return Math.min(cursor.get(), max);
+        for (long s = next; s <= max; s++) {
+            if (published.get((int) s & mask) != s) return s - 1;
+        }
+        return max;
+    }
+
+    private long reject() {
+        rejectedClaims.incrementAndGet();
+        return -1;
+    }
+}
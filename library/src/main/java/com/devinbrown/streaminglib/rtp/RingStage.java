@@ -0,0 +1,118 @@
+package com.devinbrown.streaminglib.rtp;
+
+import android.util.Log;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A step of a media pipeline: a single consumer of a {@link RingBuffer}, handling it in batches
+ * <p>
+ * The stage either has a thread of its own or shares one of a {@link RingStageGroup} with other
+ * stages. Either way its handler always runs on the same thread, so whatever it keeps needs no locks,
+ * and stages chain by publishing into the ring of the next one. When the ring is empty the thread
+ * waits with the ring's {@link WaitStrategy}. Entries published before {@link #stop()} are still
+ * handled.
+ *
+ * @param <E> Entry type
+ */
+public class RingStage<E> {
+    private static final String TAG = "RingStage";
+
+    public static final int DEFAULT_BATCH_SIZE = 64;
+
+    private final RingBuffer<E> ring;
+    private final RingBuffer.Handler<? super E> handler;
+    private final int batchSize;
+    // Exactly one of them is set
+    private final Thread thread;
+    private final RingStageGroup.Worker worker;
+    private volatile boolean running = true;
+
+    private final Runnable consumer = new Runnable() {
+        @Override
+        public void run() {
+            WaitStrategy w = ring.getWaitStrategy();
+            while (running) {
+                try {
+                    if (poll() == 0) w.await(ring);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+            drain();
+        }
+    };
+
+    /**
+     * @param ring      Ring the stage consumes
+     * @param handler   Handles each entry on the stage's thread
+     * @param batchSize Most entries handled between two looks at whether the stage was stopped
+     * @param f         Makes the stage's thread
+     */
+    public RingStage(RingBuffer<E> ring, RingBuffer.Handler<? super E> handler, int batchSize, ThreadFactory f) {
+        if (batchSize <= 0) throw new IllegalArgumentException("Invalid batch size: " + batchSize);
+        this.ring = ring;
+        this.handler = handler;
+        this.batchSize = batchSize;
+        thread = f.newThread(consumer);
+        worker = null;
+    }
+
+    /**
+     * A stage run by a thread of a {@link RingStageGroup}, whose ring waits with that thread's strategy
+     */
+    RingStage(RingBuffer<E> ring, RingBuffer.Handler<? super E> handler, int batchSize, RingStageGroup.Worker w) {
+        if (batchSize <= 0) throw new IllegalArgumentException("Invalid batch size: " + batchSize);
+        this.ring = ring;
+        this.handler = handler;
+        this.batchSize = batchSize;
+        thread = null;
+        worker = w;
+    }
+
+    public RingBuffer<E> getRing() {
+        return ring;
+    }
+
+    public void start() {
+        if (worker != null) worker.add(this);
+        else thread.start();
+    }
+
+    /**
+     * Stops the stage once it handled what was already published. The thread isn't interrupted, so
+     * a handler writing to an interruptible channel doesn't get it closed.
+     */
+    public void stop() {
+        running = false;
+        ring.getWaitStrategy().signal();
+    }
+
+    boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Handles a batch of what was published
+     *
+     * @return Number of entries handled
+     */
+    int poll() {
+        try {
+            return ring.poll(handler, batchSize);
+        } catch (RuntimeException e) {
+            // The failed entry is skipped
+            Log.e(TAG, "run: Handler failed: " + e);
+            return 1;
+        }
+    }
+
+    /**
+     * Hands over what was published before stopping
+     */
+    void drain() {
+        while (poll() > 0) {
+            // Until the ring is empty
+        }
+    }
+}
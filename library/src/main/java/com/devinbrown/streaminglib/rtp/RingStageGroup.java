@@ -0,0 +1,144 @@
+package com.devinbrown.streaminglib.rtp;
+
+import java.util.Arrays;
+
+/**
+ * Runs the {@link RingStage}s of every stream on a small, fixed set of threads instead of a thread
+ * each
+ * <p>
+ * Each thread takes a batch from the ring of each of its stages in turn, so a busy stage can't starve
+ * the rest, and waits with its own {@link WaitStrategy} once they are all empty. The rings of its
+ * stages share that strategy, so publishing into any of them wakes the thread. A stage stays on the
+ * thread it was given, so its handler still needs no locks.
+ */
+public class RingStageGroup {
+    private static final String TAG = "RingStageGroup";
+
+    private static RingStageGroup sharedInstance;
+
+    private final Worker[] workers;
+
+    /**
+     * @param threadCount Number of threads
+     * @param w           How the threads wait for entries. Each thread gets a strategy like it.
+     */
+    public RingStageGroup(int threadCount, WaitStrategy w) {
+        if (threadCount < 1) throw new IllegalArgumentException("RingStageGroup needs at least one thread");
+
+        workers = new Worker[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            workers[i] = new Worker(w.copy(), TAG + "-" + i);
+            workers[i].thread.start();
+        }
+    }
+
+    /**
+     * Get the shared RingStageGroup instance, with blocking threads sized to the number of available
+     * cores (at most 4)
+     *
+     * @return the shared RingStageGroup instance
+     */
+    public static synchronized RingStageGroup getDefault() {
+        if (sharedInstance == null) {
+            int cores = Runtime.getRuntime().availableProcessors();
+            sharedInstance = new RingStageGroup(Math.max(1, Math.min(4, cores)), WaitStrategy.blocking());
+        }
+        return sharedInstance;
+    }
+
+    /**
+     * Makes a stage and its ring on the least loaded thread. It runs once started.
+     *
+     * @param capacity      Number of entries of the ring, a power of 2
+     * @param f             Makes the entries of the ring
+     * @param multiProducer Whether several threads publish into the ring at once
+     * @param h             Handles each entry on the stage's thread
+     * @param batchSize     Most entries handled before the thread moves on to its next stage
+     */
+    public <E> RingStage<E> newStage(int capacity, RingBuffer.EntryFactory<E> f, boolean multiProducer,
+                                     RingBuffer.Handler<? super E> h, int batchSize) {
+        Worker target = workers[0];
+        for (Worker w : workers) {
+            if (w.stages.length < target.stages.length) target = w;
+        }
+        RingBuffer<E> ring = new RingBuffer<>(capacity, f, multiProducer, target.waitStrategy);
+        return new RingStage<>(ring, h, batchSize, target);
+    }
+
+    /**
+     * @return Number of stages started and not yet stopped and drained
+     */
+    public int getStageCount() {
+        int n = 0;
+        for (Worker w : workers) n += w.stages.length;
+        return n;
+    }
+
+    /**
+     * Stops all threads. Entries still in the rings of their stages are not handled.
+     */
+    public void shutdown() {
+        for (Worker w : workers) w.thread.interrupt();
+    }
+
+    static class Worker implements Runnable, WaitStrategy.Waitable {
+        private final WaitStrategy waitStrategy;
+        private final Thread thread;
+        // Copied on change so the thread can go through them without a lock
+        private volatile RingStage<?>[] stages = new RingStage<?>[0];
+
+        private Worker(WaitStrategy w, String name) {
+            waitStrategy = w;
+            thread = new Thread(this, name);
+            thread.setDaemon(true);
+        }
+
+        synchronized void add(RingStage<?> s) {
+            RingStage<?>[] a = Arrays.copyOf(stages, stages.length + 1);
+            a[a.length - 1] = s;
+            stages = a;
+            waitStrategy.signal();
+        }
+
+        private synchronized void remove(RingStage<?> s) {
+            RingStage<?>[] a = new RingStage<?>[stages.length - 1];
+            int n = 0;
+            for (RingStage<?> t : stages) {
+                if (t != s) a[n++] = t;
+            }
+            stages = a;
+        }
+
+        @Override
+        public void run() {
+            while (!Thread.currentThread().isInterrupted()) {
+                int handled = 0;
+                for (RingStage<?> s : stages) {
+                    if (s.isRunning()) {
+                        handled += s.poll();
+                    } else {
+                        s.drain();
+                        remove(s);
+                    }
+                }
+                if (handled > 0) continue;
+                try {
+                    waitStrategy.await(this);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+        }
+
+        /**
+         * Whether a stage has entries or was stopped
+         */
+        @Override
+        public boolean hasAvailable() {
+            for (RingStage<?> s : stages) {
+                if (!s.isRunning() || s.getRing().hasAvailable()) return true;
+            }
+            return false;
+        }
+    }
+}
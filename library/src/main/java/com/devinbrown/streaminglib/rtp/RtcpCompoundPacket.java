@@ -0,0 +1,140 @@
+package com.devinbrown.streaminglib.rtp;
+
+/**
+ * Walks the RTCP packets of a received compound packet in place
+ * <p>
+ * {@link #wrap} validates the whole datagram once. Each call to {@link #next()} then moves to the next
+ * packet and the typed getters return a flyweight view of it. The views are reused from packet to
+ * packet, so walking a compound packet doesn't allocate.
+ * <p>
+ * Reference: https://tools.ietf.org/html/rfc3550#section-6.1
+ */
+public class RtcpCompoundPacket {
+    private final RtcpPacket packet = new RtcpPacket();
+    private final SenderReportRtcpPacket senderReport = new SenderReportRtcpPacket();
+    private final ReceiverReportRtcpPacket receiverReport = new ReceiverReportRtcpPacket();
+    private final SourceDescriptionRtcpPacket sourceDescription = new SourceDescriptionRtcpPacket();
+    private final GoodByeRtcpPacket goodBye = new GoodByeRtcpPacket();
+    private final AppDefinedRtcpPacket appDefined = new AppDefinedRtcpPacket();
+    private final FeedbackRtcpPacket feedback = new FeedbackRtcpPacket();
+
+    private byte[] buffer;
+    private int start;
+    private int end;
+    private int position;
+    private int packetOffset;
+    private int packetLength;
+
+    public boolean wrap(RtpBuffer b) {
+        return wrap(b.data, 0, b.length);
+    }
+
+    /**
+     * Points the walker at a compound packet and checks its validity
+     * <p>
+     * Reference: https://tools.ietf.org/html/rfc3550#appendix-A.2
+     *
+     * @param data   Array holding the compound packet
+     * @param offset Start of the compound packet
+     * @param length Length of the compound packet
+     * @return false if the headers are inconsistent, the first packet isn't a report or padding
+     * appears anywhere but the last packet
+     */
+    public boolean wrap(byte[] data, int offset, int length) {
+        buffer = data;
+        start = offset;
+        end = offset;
+        rewind();
+
+        int o = offset;
+        int last = offset + length;
+        while (o < last) {
+            if (!packet.wrap(data, o, last - o)) return false;
+            if (o == offset && packet.getPacketType() != RtcpPacket.PT_SR
+                    && packet.getPacketType() != RtcpPacket.PT_RR) {
+                return false;
+            }
+            o += packet.getLength();
+            if (packet.hasPadding() && o != last) return false;
+        }
+        if (o == offset) return false;
+
+        end = last;
+        return true;
+    }
+
+    /**
+     * Moves back before the first packet
+     */
+    public void rewind() {
+        position = start;
+        packetLength = 0;
+    }
+
+    /**
+     * Moves to the next packet
+     *
+     * @return false when there are no more packets
+     */
+    public boolean next() {
+        if (position >= end) return false;
+        packet.wrap(buffer, position, end - position);
+        packetOffset = position;
+        packetLength = packet.getLength();
+        position += packetLength;
+        return true;
+    }
+
+    public int getPacketType() {
+        return packet.getPacketType();
+    }
+
+    /**
+     * @return Generic view of the current packet
+     */
+    public RtcpPacket getPacket() {
+        return packet;
+    }
+
+    /**
+     * @return View of the current packet, or null if it isn't a valid sender report
+     */
+    public SenderReportRtcpPacket getSenderReport() {
+        return senderReport.wrap(buffer, packetOffset, packetLength) ? senderReport : null;
+    }
+
+    /**
+     * @return View of the current packet, or null if it isn't a valid receiver report
+     */
+    public ReceiverReportRtcpPacket getReceiverReport() {
+        return receiverReport.wrap(buffer, packetOffset, packetLength) ? receiverReport : null;
+    }
+
+    /**
+     * @return View of the current packet, or null if it isn't a valid source description
+     */
+    public SourceDescriptionRtcpPacket getSourceDescription() {
+        return sourceDescription.wrap(buffer, packetOffset, packetLength) ? sourceDescription : null;
+    }
+
+    /**
+     * @return View of the current packet, or null if it isn't a valid BYE
+     */
+    public GoodByeRtcpPacket getGoodBye() {
+        return goodBye.wrap(buffer, packetOffset, packetLength) ? goodBye : null;
+    }
+
+    /**
+     * @return View of the current packet, or null if it isn't a valid APP packet
+     */
+    public AppDefinedRtcpPacket getAppDefined() {
+        return appDefined.wrap(buffer, packetOffset, packetLength) ? appDefined : null;
+    }
+
+    /**
+     * @return View of the current packet, or null if it isn't a valid RTPFB or PSFB feedback message
+     */
+    public FeedbackRtcpPacket getFeedback() {
+        return feedback.wrap(buffer, packetOffset, packetLength) ? feedback : null;
+    }
+}
@@ -0,0 +1,288 @@
+package com.devinbrown.streaminglib.rtp;
+
+/**
+ * Builds outgoing RTCP compound packets directly into an {@link RtpBuffer}
+ * <p>
+ * Call {@link #start} with the buffer, add packets in order (a report first, then SDES and any
+ * others) and {@link #finish()} to fill in the last length field. The writer keeps no per packet
+ * state beyond the offset of the packet being written, so it can be reused for every report.
+ * <p>
+ * Reference: https://tools.ietf.org/html/rfc3550#section-6.1
+ */
+public class RtcpCompoundWriter {
+    // Most report blocks, SDES chunks or BYE sources one packet can hold
+    static final int MAX_COUNT = 31;
+
+    private RtpBuffer out;
+
+    // Offset of the header of the packet being written, -1 before the first
+    private int packetStart = -1;
+    private boolean chunkOpen;
+
+    /**
+     * Starts a compound packet at the beginning of b
+     */
+    public void start(RtpBuffer b) {
+        out = b;
+        out.length = 0;
+        packetStart = -1;
+        chunkOpen = false;
+    }
+
+    /**
+     * Reference: https://tools.ietf.org/html/rfc3550#section-6.4.1
+     *
+     * @param ssrc         Sender SSRC
+     * @param ntpTimestamp 64 bit NTP timestamp
+     * @param rtpTimestamp RTP timestamp corresponding to ntpTimestamp
+     * @param packetCount  RTP packets sent
+     * @param octetCount   Payload octets sent
+     */
+    public void beginSenderReport(long ssrc, long ntpTimestamp, long rtpTimestamp, long packetCount, long octetCount) {
+        beginPacket(RtcpPacket.PT_SR, 0);
+        writeInt(ssrc);
+        writeInt(ntpTimestamp >>> 32);
+        writeInt(ntpTimestamp);
+        writeInt(rtpTimestamp);
+        writeInt(packetCount);
+        writeInt(octetCount);
+    }
+
+    /**
+     * Reference: https://tools.ietf.org/html/rfc3550#section-6.4.2
+     *
+     * @param ssrc Sender SSRC
+     */
+    public void beginReceiverReport(long ssrc) {
+        beginPacket(RtcpPacket.PT_RR, 0);
+        writeInt(ssrc);
+    }
+
+    /**
+     * Adds a reception report block to the sender or receiver report being written
+     *
+     * @param ssrc                          Source reported on
+     * @param fractionLost                  Fraction lost since the last report (0-255)
+     * @param cumulativeLost                Cumulative packets lost, clamped to 24 bits
+     * @param extendedHighestSequenceNumber Extended highest sequence number received
+     * @param jitter                        Interarrival jitter in timestamp units
+     * @param lastSr                        Middle 32 bits of the last SR's NTP timestamp, or 0
+     * @param delaySinceLastSr              Delay since that SR in units of 1/65536 seconds, or 0
+     */
+    public void addReportBlock(long ssrc, int fractionLost, long cumulativeLost, long extendedHighestSequenceNumber,
+                               long jitter, long lastSr, long delaySinceLastSr) {
+        int type = currentPacketType();
+        if (type != RtcpPacket.PT_SR && type != RtcpPacket.PT_RR) {
+            throw new IllegalStateException("Report blocks only belong in SR and RR packets");
+        }
+        incrementCount();
+
+        if (cumulativeLost > 0x7FFFFF) cumulativeLost = 0x7FFFFF;
+        if (cumulativeLost < -0x800000) cumulativeLost = -0x800000;
+
+        writeInt(ssrc);
+        writeInt(((fractionLost & 0xFF) << 24) | (cumulativeLost & 0xFFFFFF));
+        writeInt(extendedHighestSequenceNumber);
+        writeInt(jitter);
+        writeInt(lastSr);
+        writeInt(delaySinceLastSr);
+    }
+
+    /**
+     * Reference: https://tools.ietf.org/html/rfc3550#section-6.5
+     */
+    public void beginSourceDescription() {
+        beginPacket(RtcpPacket.PT_SDES, 0);
+    }
+
+    /**
+     * Starts a chunk of the source description being written
+     */
+    public void addSourceDescriptionChunk(long ssrc) {
+        if (currentPacketType() != RtcpPacket.PT_SDES) {
+            throw new IllegalStateException("Chunks only belong in SDES packets");
+        }
+        endChunk();
+        incrementCount();
+        writeInt(ssrc);
+        chunkOpen = true;
+    }
+
+    /**
+     * Adds an item to the current chunk
+     *
+     * @param type  Item type, e.g. {@link SourceDescriptionRtcpPacket#ITEM_CNAME}
+     * @param value Item text, at most 255 bytes of UTF-8
+     */
+    public void addSourceDescriptionItem(int type, byte[] value) {
+        if (!chunkOpen) throw new IllegalStateException("No SDES chunk started");
+        if (value.length > 255) throw new IllegalArgumentException("SDES item longer than 255 bytes");
+        ensureCapacity(2 + value.length);
+        out.data[out.length++] = (byte) type;
+        out.data[out.length++] = (byte) value.length;
+        System.arraycopy(value, 0, out.data, out.length, value.length);
+        out.length += value.length;
+    }
+
+    /**
+     * Reference: https://tools.ietf.org/html/rfc3550#section-6.6
+     *
+     * @param ssrc   Source leaving
+     * @param reason Reason for leaving, or null
+     */
+    public void addGoodBye(long ssrc, byte[] reason) {
+        beginPacket(RtcpPacket.PT_BYE, 1);
+        writeInt(ssrc);
+        if (reason != null) {
+            int l = Math.min(reason.length, 255);
+            ensureCapacity(1 + l);
+            out.data[out.length++] = (byte) l;
+            System.arraycopy(reason, 0, out.data, out.length, l);
+            out.length += l;
+            padToWord();
+        }
+    }
+
+    /**
+     * Reference: https://tools.ietf.org/html/rfc3550#section-6.7
+     *
+     * @param subtype Application subtype (0-31)
+     * @param ssrc    Sender SSRC
+     * @param name    Four ASCII characters packed big endian
+     * @param data    Application-dependent data, padded with zeros to a multiple of 4 bytes
+     * @param offset  Offset of the data
+     * @param length  Length of the data
+     */
+    public void addAppDefined(int subtype, long ssrc, int name, byte[] data, int offset, int length) {
+        beginPacket(RtcpPacket.PT_APP, subtype);
+        writeInt(ssrc);
+        writeInt(name);
+        ensureCapacity(length);
+        System.arraycopy(data, offset, out.data, out.length, length);
+        out.length += length;
+        padToWord();
+    }
+
+    /**
+     * Starts a generic NACK, to be followed by {@link #addGenericNackItem} for each run of lost packets
+     * <p>
+     * Reference: https://tools.ietf.org/html/rfc4585#section-6.2.1
+     *
+     * @param senderSsrc SSRC of the stream sending the feedback
+     * @param mediaSsrc  SSRC of the stream the packets were lost from
+     */
+    public void beginGenericNack(long senderSsrc, long mediaSsrc) {
+        beginPacket(RtcpPacket.PT_RTPFB, FeedbackRtcpPacket.FMT_GENERIC_NACK);
+        writeInt(senderSsrc);
+        writeInt(mediaSsrc);
+    }
+
+    /**
+     * @param packetId Sequence number of a lost packet
+     * @param bitmask  Bit n set if packet packetId + n + 1 is lost as well
+     */
+    public void addGenericNackItem(int packetId, int bitmask) {
+        if (currentPacketType() != RtcpPacket.PT_RTPFB) throw new IllegalStateException("No generic NACK started");
+        writeInt(((packetId & 0xFFFF) << 16) | (bitmask & 0xFFFF));
+    }
+
+    /**
+     * Adds a picture loss indication, asking the sender for a key frame after losses
+     * <p>
+     * Reference: https://tools.ietf.org/html/rfc4585#section-6.3.1
+     *
+     * @param senderSsrc SSRC of the stream sending the feedback
+     * @param mediaSsrc  SSRC of the stream pictures were lost from
+     */
+    public void addPictureLossIndication(long senderSsrc, long mediaSsrc) {
+        beginPacket(RtcpPacket.PT_PSFB, FeedbackRtcpPacket.FMT_PLI);
+        writeInt(senderSsrc);
+        writeInt(mediaSsrc);
+    }
+
+    /**
+     * Adds a full intra request for a single source, asking it to refresh the decoder e.g. of a new
+     * receiver
+     * <p>
+     * Reference: https://tools.ietf.org/html/rfc5104#section-4.3.1
+     *
+     * @param senderSsrc     SSRC of the stream sending the feedback
+     * @param mediaSsrc      SSRC of the stream asked for the refresh
+     * @param sequenceNumber Request sequence number, incremented for each new request
+     */
+    public void addFullIntraRequest(long senderSsrc, long mediaSsrc, int sequenceNumber) {
+        beginPacket(RtcpPacket.PT_PSFB, FeedbackRtcpPacket.FMT_FIR);
+        writeInt(senderSsrc);
+        // The media source field is unused, the sources are in the FCI
+        writeInt(0);
+        writeInt(mediaSsrc);
+        writeInt((sequenceNumber & 0xFF) << 24);
+    }
+
+    /**
+     * Closes the last packet
+     *
+     * @return Length of the compound packet
+     */
+    public int finish() {
+        endPacket();
+        packetStart = -1;
+        return out.length;
+    }
+
+    private void beginPacket(int type, int count) {
+        endPacket();
+        packetStart = out.length;
+        ensureCapacity(RtcpPacket.HEADER_LENGTH);
+        out.data[out.length++] = (byte) ((RtcpPacket.VERSION << 6) | (count & 0x1F));
+        out.data[out.length++] = (byte) type;
+        out.data[out.length++] = 0;
+        out.data[out.length++] = 0;
+    }
+
+    private void endPacket() {
+        if (packetStart < 0) return;
+        endChunk();
+        int words = (out.length - packetStart) / 4 - 1;
+        out.data[packetStart + 2] = (byte) (words >>> 8);
+        out.data[packetStart + 3] = (byte) words;
+    }
+
+    /**
+     * Terminates an open SDES chunk with a null item and pads it to a 32 bit boundary
+     */
+    private void endChunk() {
+        if (!chunkOpen) return;
+        chunkOpen = false;
+        ensureCapacity(4);
+        out.data[out.length++] = SourceDescriptionRtcpPacket.ITEM_END;
+        padToWord();
+    }
+
+    private int currentPacketType() {
+        return packetStart < 0 ? -1 : out.data[packetStart + 1] & 0xFF;
+    }
+
+    private void incrementCount() {
+        int count = out.data[packetStart] & 0x1F;
+        if (count == MAX_COUNT) throw new IllegalStateException("RTCP packet already holds " + MAX_COUNT + " items");
+        out.data[packetStart] = (byte) ((out.data[packetStart] & 0xE0) | (count + 1));
+    }
+
+    private void padToWord() {
+        ensureCapacity(3);
+        while ((out.length - packetStart) % 4 != 0) out.data[out.length++] = 0;
+    }
+
+    private void writeInt(long v) {
+        ensureCapacity(4);
+        out.data[out.length++] = (byte) (v >>> 24);
+        out.data[out.length++] = (byte) (v >>> 16);
+        out.data[out.length++] = (byte) (v >>> 8);
+        out.data[out.length++] = (byte) v;
+    }
+
+    private void ensureCapacity(int n) {
+        out.ensureCapacity(out.length + n);
+    }
+}
@@ -1,8 +1,108 @@
 package com.devinbrown.streaminglib.rtp;
 
 /**
+ * Flyweight view of a single RTCP packet within a compound packet
+ * <p>
+ * Like {@link RtpPacket}, an instance is pointed at one packet after another with {@link #wrap} and
+ * reads every field straight from the underlying bytes. The subclasses add the fields of each packet
+ * type. {@link RtcpCompoundPacket} walks a received datagram and hands out the right view for each
+ * packet.
+ * <p>
  * Reference: https://tools.ietf.org/html/rfc3550#section-6
  */
 
-public class RtcpPacket extends RtpPacket {
+//     0                   1                   2                   3
+//     0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1
+//    +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+//    |V=2|P|  count  |      PT       |             length            |
+//    +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+
+public class RtcpPacket {
+    public static final int VERSION = 2;
+    public static final int HEADER_LENGTH = 4;
+
+    public static final int PT_SR = 200;
+    public static final int PT_RR = 201;
+    public static final int PT_SDES = 202;
+    public static final int PT_BYE = 203;
+    public static final int PT_APP = 204;
+    // Reference: https://tools.ietf.org/html/rfc4585#section-6.1
+    public static final int PT_RTPFB = 205;
+    public static final int PT_PSFB = 206;
+
+    byte[] buffer;
+    int offset;
+    int length;
+
+    /**
+     * Points this view at the RTCP packet starting at offset
+     *
+     * @param data      Array holding the packet
+     * @param offset    Start of the packet
+     * @param available Bytes available from offset
+     * @return false if the header is invalid or the packet is longer than the bytes available
+     */
+    public boolean wrap(byte[] data, int offset, int available) {
+        buffer = data;
+        this.offset = offset;
+        length = 0;
+
+        if (available < HEADER_LENGTH || getVersion() != VERSION) return false;
+        int l = HEADER_LENGTH + 4 * RtpPacket.readUnsignedShort(data, offset + 2);
+        if (l > available) return false;
+
+        length = l;
+        return true;
+    }
+
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return Length of the packet in bytes, including the header and any padding
+     */
+    public int getLength() {
+        return length;
+    }
+
+    public int getVersion() {
+        return (buffer[offset] & 0xC0) >>> 6;
+    }
+
+    public boolean hasPadding() {
+        return (buffer[offset] & 0x20) != 0;
+    }
+
+    /**
+     * @return The 5 bit count field: reception report count, source count or APP subtype
+     */
+    public int getCount() {
+        return buffer[offset] & 0x1F;
+    }
+
+    public int getPacketType() {
+        return buffer[offset + 1] & 0xFF;
+    }
+
+    /**
+     * @return The SSRC following the header: the sender for SR, RR and APP, the first source for SDES and
+     * BYE
+     */
+    public long getSsrc() {
+        return RtpPacket.readUnsignedInt(buffer, offset + HEADER_LENGTH);
+    }
+
+    /**
+     * @return Length of the packet excluding trailing padding
+     */
+    int getContentLength() {
+        if (!hasPadding()) return length;
+        int p = buffer[offset + length - 1] & 0xFF;
+        return p <= length - HEADER_LENGTH ? length - p : length;
+    }
 }
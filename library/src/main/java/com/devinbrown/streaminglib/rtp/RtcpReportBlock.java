@@ -0,0 +1,74 @@
+package com.devinbrown.streaminglib.rtp;
+
+/**
+ * Flyweight view of a reception report block in a sender or receiver report
+ * <p>
+ * Reference: https://tools.ietf.org/html/rfc3550#section-6.4.1
+ */
+
+//    +=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+
+//    |                 SSRC_n (SSRC of nth source)                   |
+//    +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+//    | fraction lost |       cumulative number of packets lost       |
+//    +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+//    |           extended highest sequence number received           |
+//    +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+//    |                      interarrival jitter                      |
+//    +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+//    |                         last SR (LSR)                         |
+//    +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+//    |                   delay since last SR (DLSR)                  |
+//    +=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+
+
+public class RtcpReportBlock {
+    public static final int LENGTH = 24;
+
+    private byte[] buffer;
+    private int offset;
+
+    void wrap(byte[] data, int offset) {
+        buffer = data;
+        this.offset = offset;
+    }
+
+    public long getSsrc() {
+        return RtpPacket.readUnsignedInt(buffer, offset);
+    }
+
+    /**
+     * @return Fraction lost as a fixed point number with the binary point at the left edge (0-255)
+     */
+    public int getFractionLost() {
+        return buffer[offset + 4] & 0xFF;
+    }
+
+    /**
+     * @return Cumulative number of packets lost, a signed 24 bit value
+     */
+    public int getCumulativeLost() {
+        int v = ((buffer[offset + 5] & 0xFF) << 16) | ((buffer[offset + 6] & 0xFF) << 8) | (buffer[offset + 7] & 0xFF);
+        return (v << 8) >> 8;
+    }
+
+    public long getExtendedHighestSequenceNumber() {
+        return RtpPacket.readUnsignedInt(buffer, offset + 8);
+    }
+
+    public long getJitter() {
+        return RtpPacket.readUnsignedInt(buffer, offset + 12);
+    }
+
+    /**
+     * @return Middle 32 bits of the NTP timestamp of the last sender report received, or 0
+     */
+    public long getLastSr() {
+        return RtpPacket.readUnsignedInt(buffer, offset + 16);
+    }
+
+    /**
+     * @return Delay since the last sender report was received, in units of 1/65536 seconds
+     */
+    public long getDelaySinceLastSr() {
+        return RtpPacket.readUnsignedInt(buffer, offset + 20);
+    }
+}
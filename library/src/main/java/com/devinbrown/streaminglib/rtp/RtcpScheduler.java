@@ -0,0 +1,366 @@
+package com.devinbrown.streaminglib.rtp;
+
+import android.util.Log;
+
+import java.util.Random;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends the RTCP reports of every {@link RtpStream} from a single timer thread
+ * <p>
+ * Each participant gets a {@link Session} holding the transmission state of RFC 3550 appendix A.7:
+ * the time of the last and next transmission, the member count at the last transmission and the
+ * average compound packet size. When a session's timer fires the interval is recomputed from the
+ * current membership and the report is only sent if it is still due (timer reconsideration).
+ * Otherwise the timer is pushed back. When members leave, the pending transmission is pulled
+ * forward (reverse reconsideration).
+ * <p>
+ * Sessions only occupy an entry in the timer queue, so thousands of streams cost no threads.
+ * <p>
+ * Reference: https://tools.ietf.org/html/rfc3550#section-6.3
+ */
+public class RtcpScheduler {
+    private static final String TAG = "RtcpScheduler";
+
+    // Fraction of the session bandwidth RTCP may use
+    public static final double RTCP_BANDWIDTH_FRACTION = 0.05;
+
+    private static final double RTCP_MIN_TIME = 5.0;
+    private static final double RTCP_SENDER_BW_FRACTION = 0.25;
+    private static final double RTCP_RCVR_BW_FRACTION = 1 - RTCP_SENDER_BW_FRACTION;
+
+    // e - 3/2, compensates for the bias reconsideration introduces
+    private static final double COMPENSATION = 2.71828 - 1.5;
+
+    // IPv4 and UDP header bytes added to each compound packet when averaging sizes
+    private static final int UDP_IP_OVERHEAD = 28;
+
+    // Probable size of the first compound packet (RR with one block, SDES with CNAME)
+    private static final double INITIAL_AVERAGE_RTCP_SIZE = 128;
+
+    private static final int REPORT_BUFFER_SIZE = 1400;
+
+    private static RtcpScheduler sharedInstance;
+
+    private final ScheduledThreadPoolExecutor timer;
+    private final Random random = new Random();
+
+    // Only used on the timer thread
+    private final RtcpCompoundWriter writer = new RtcpCompoundWriter();
+    private final RtpBuffer reportBuffer = new RtpBuffer(null, REPORT_BUFFER_SIZE);
+
+    /**
+     * A member of an RTP session that sends RTCP reports
+     */
+    public interface Participant {
+        /**
+         * @param activeSinceNanos Members not heard from since this time, from {@link System#nanoTime()},
+         *                         have timed out
+         * @return Number of session members, including this participant
+         */
+        int getMemberCount(long activeSinceNanos);
+
+        /**
+         * @param activeSinceNanos Senders that haven't sent RTP since this time have stopped sending
+         * @return Number of senders, including this participant if it sends
+         */
+        int getSenderCount(long activeSinceNanos);
+
+        /**
+         * @return Whether this participant sent RTP since its last report
+         */
+        boolean isSender();
+
+        /**
+         * @return Bandwidth available to RTCP in bytes per second. 0 turns RTCP off.
+         */
+        double getRtcpBandwidth();
+
+        /**
+         * Builds a compound packet with w into b and sends it. Called on the scheduler thread.
+         *
+         * @param goodBye Whether the participant is leaving and the packet must end with a BYE
+         * @return Length of the packet sent, 0 if nothing was sent
+         */
+        int sendReport(RtcpCompoundWriter w, RtpBuffer b, boolean goodBye);
+    }
+
+    public RtcpScheduler() {
+        timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, TAG);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        timer.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Get the shared RtcpScheduler instance
+     *
+     * @return the shared RtcpScheduler instance
+     */
+    public static synchronized RtcpScheduler getDefault() {
+        if (sharedInstance == null) sharedInstance = new RtcpScheduler();
+        return sharedInstance;
+    }
+
+    /**
+     * Starts sending reports for a participant
+     *
+     * @param p Participant joining its session
+     * @return Session to report membership changes to and to close when leaving
+     */
+    public Session add(Participant p) {
+        Session s = new Session(p);
+        s.start();
+        return s;
+    }
+
+    /**
+     * Runs a task on the timer thread, e.g. to send feedback before the next regular report
+     *
+     * @param task       Task to run
+     * @param delayNanos Delay before running it
+     * @return Future to cancel the task with
+     */
+    public ScheduledFuture<?> schedule(Runnable task, long delayNanos) {
+        return timer.schedule(task, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Stops the timer thread. Reports of open sessions are no longer sent.
+     */
+    public void shutdown() {
+        timer.shutdownNow();
+    }
+
+    /**
+     * Deterministic RTCP transmission interval
+     * <p>
+     * Reference: https://tools.ietf.org/html/rfc3550#appendix-A.7
+     *
+     * @param members       Session members, including ourselves
+     * @param senders       Members that sent RTP recently, including ourselves
+     * @param rtcpBandwidth Bandwidth available to RTCP in bytes per second
+     * @param weSent        Whether we sent RTP recently
+     * @param avgRtcpSize   Average compound packet size in bytes, including UDP and IP headers
+     * @param initial       Whether we haven't sent a report yet
+     * @return Interval in seconds, before randomization
+     */
+    static double computeDeterministicInterval(int members, int senders, double rtcpBandwidth, boolean weSent,
+                                               double avgRtcpSize, boolean initial) {
+        // Halve the minimum for the first report so a new participant is noticed sooner
+        double minTime = initial ? RTCP_MIN_TIME / 2 : RTCP_MIN_TIME;
+
+        // Give senders a quarter of the bandwidth once they are outnumbered by receivers enough that
+        // an equal split would starve them
+        int n = members;
+        if (senders <= members * RTCP_SENDER_BW_FRACTION) {
+            if (weSent) {
+                rtcpBandwidth *= RTCP_SENDER_BW_FRACTION;
+                n = senders;
+            } else {
+                rtcpBandwidth *= RTCP_RCVR_BW_FRACTION;
+                n -= senders;
+            }
+        }
+
+        double t = avgRtcpSize * n / rtcpBandwidth;
+        return t < minTime ? minTime : t;
+    }
+
+    /**
+     * Randomizes the deterministic interval to [0.5, 1.5] times its value and compensates for the
+     * bias of reconsideration
+     *
+     * @return Interval in seconds
+     */
+    double randomizeInterval(double deterministicInterval) {
+        double r;
+        synchronized (random) {
+            r = random.nextDouble();
+        }
+        return deterministicInterval * (r + 0.5) / COMPENSATION;
+    }
+
+    /**
+     * Transmission state of one participant
+     */
+    public class Session {
+        private final Participant participant;
+
+        // Times from System.nanoTime()
+        private long tp;
+        private long tn;
+        private int pmembers;
+        private double avgRtcpSize = INITIAL_AVERAGE_RTCP_SIZE;
+        private boolean initial = true;
+        private double deterministicInterval = RTCP_MIN_TIME;
+        private boolean closed;
+
+        private ScheduledFuture<?> pending;
+        private final Runnable onTimer = new Runnable() {
+            @Override
+            public void run() {
+                onTimerExpired(System.nanoTime());
+            }
+        };
+
+        private Session(Participant p) {
+            participant = p;
+        }
+
+        private synchronized void start() {
+            long now = System.nanoTime();
+            tp = now;
+            pmembers = 1;
+            double t = computeInterval(now);
+            if (t < 0) return;
+            tn = now + toNanos(t);
+            schedule(now);
+        }
+
+        /**
+         * Accounts for a received compound packet in the average RTCP packet size
+         *
+         * @param length Length of the compound packet, without UDP and IP headers
+         */
+        public synchronized void onRtcpReceived(int length) {
+            avgRtcpSize = (length + UDP_IP_OVERHEAD) / 16.0 + avgRtcpSize * 15 / 16;
+        }
+
+        /**
+         * Pulls the next transmission forward after members left, e.g. on receiving a BYE
+         * <p>
+         * Reference: https://tools.ietf.org/html/rfc3550#section-6.3.4
+         */
+        public void onMembersLeft() {
+            onMembersLeft(System.nanoTime());
+        }
+
+        synchronized void onMembersLeft(long now) {
+            if (closed || pending == null) return;
+            int members = participant.getMemberCount(now - memberTimeoutNanos());
+            if (members >= pmembers) return;
+
+            double ratio = (double) members / pmembers;
+            tn = now + (long) ((tn - now) * ratio);
+            tp = now - (long) ((now - tp) * ratio);
+            pmembers = members;
+            schedule(now);
+        }
+
+        /**
+         * Stops sending reports without waiting for the timer thread
+         *
+         * @param goodBye Whether to send a BYE first
+         * @param then    Run once the BYE went out, e.g. to close the channels it goes out on. Runs right
+         *                away if no BYE is sent. May be null.
+         */
+        public void close(boolean goodBye, final Runnable then) {
+            boolean sentReport;
+            synchronized (this) {
+                if (closed) return;
+                closed = true;
+                if (pending != null) pending.cancel(false);
+                sentReport = !initial;
+            }
+            // A participant that never sent a report was never counted as a member, so it needs no BYE
+            if (goodBye && sentReport) {
+                try {
+                    timer.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                participant.sendReport(writer, reportBuffer, true);
+                            } catch (RuntimeException e) {
+                                Log.w(TAG, "close: BYE not sent: " + e);
+                            }
+                            if (then != null) then.run();
+                        }
+                    });
+                    return;
+                } catch (RuntimeException e) {
+                    // Scheduler was shut down
+                }
+            }
+            if (then != null) then.run();
+        }
+
+        /**
+         * Reference: https://tools.ietf.org/html/rfc3550#section-6.3.6
+         */
+        synchronized void onTimerExpired(long now) {
+            if (closed) return;
+            double t = computeInterval(now);
+            if (t < 0) return;
+
+            long next = tp + toNanos(t);
+            if (next - now > 0) {
+                // The membership grew since the timer was set, so the report isn't due yet
+                tn = next;
+                schedule(now);
+                return;
+            }
+
+            int length = participant.sendReport(writer, reportBuffer, false);
+            if (length > 0) {
+                avgRtcpSize = (length + UDP_IP_OVERHEAD) / 16.0 + avgRtcpSize * 15 / 16;
+                initial = false;
+            }
+            tp = now;
+            pmembers = participant.getMemberCount(now - memberTimeoutNanos());
+
+            t = computeInterval(now);
+            if (t < 0) return;
+            tn = now + toNanos(t);
+            schedule(now);
+        }
+
+        /**
+         * @return When the next report is due, from {@link System#nanoTime()}
+         */
+        synchronized long getNextTransmissionNanos() {
+            return tn;
+        }
+
+        /**
+         * @return Randomized interval in seconds, or -1 if RTCP is turned off
+         */
+        private double computeInterval(long now) {
+            double bandwidth = participant.getRtcpBandwidth();
+            if (bandwidth <= 0) return -1;
+
+            // Senders that stayed silent for two intervals and members for five are no longer counted
+            int members = Math.max(1, participant.getMemberCount(now - memberTimeoutNanos()));
+            int senders = participant.getSenderCount(now - 2 * toNanos(deterministicInterval));
+            deterministicInterval = computeDeterministicInterval(members, senders, bandwidth,
+                    participant.isSender(), avgRtcpSize, initial);
+            return randomizeInterval(deterministicInterval);
+        }
+
+        private long memberTimeoutNanos() {
+            return 5 * toNanos(deterministicInterval);
+        }
+
+        private void schedule(long now) {
+            if (pending != null) pending.cancel(false);
+            try {
+                pending = timer.schedule(onTimer, Math.max(0, tn - now), TimeUnit.NANOSECONDS);
+            } catch (RuntimeException e) {
+                Log.w(TAG, "schedule: Scheduler was shut down");
+                pending = null;
+            }
+        }
+    }
+
+    private static long toNanos(double seconds) {
+        return (long) (seconds * 1000000000L);
+    }
+}
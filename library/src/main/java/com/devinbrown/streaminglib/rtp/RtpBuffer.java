@@ -0,0 +1,114 @@
+package com.devinbrown.streaminglib.rtp;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * Reusable packet buffer handed out by an {@link RtpBufferPool}
+ * <p>
+ * Only the first {@link #length} bytes of {@link #data} are valid. Whoever ends up holding the
+ * buffer must call {@link #release()} once it is done with it so the pool can reuse it.
+ * <p>
+ * Buffers used to assemble media frames can grow with {@link #ensureCapacity(int)}. A grown buffer
+ * keeps its larger array when it goes back to the pool.
+ * <p>
+ * A buffer handed to several owners (e.g. a packet carrying several audio frames) is reference
+ * counted: each additional owner calls {@link #retain()} and the buffer returns to the pool when the
+ * last owner releases it.
+ */
+public class RtpBuffer {
+    private static final AtomicIntegerFieldUpdater<RtpBuffer> REFERENCES =
+            AtomicIntegerFieldUpdater.newUpdater(RtpBuffer.class, "references");
+
+    public byte[] data;
+    public int length;
+
+    // When the packet arrived, from System.nanoTime()
+    public long arrivalNanos;
+
+    // Set by packetizers on the first packet of a frame that can be decoded on its own
+    public boolean keyFrameStart;
+
+    ByteBuffer byteBuffer;
+    private final RtpBufferPool pool;
+
+    private volatile int references;
+
+    RtpBuffer(RtpBufferPool p, int capacity) {
+        this(p, new byte[capacity]);
+    }
+
+    private RtpBuffer(RtpBufferPool p, byte[] d) {
+        pool = p;
+        data = d;
+        byteBuffer = ByteBuffer.wrap(d);
+    }
+
+    /**
+     * Wraps data that did not come from a pool (e.g. RTSP interleaved data). Releasing it is a no-op.
+     *
+     * @param d Packet data
+     * @return RtpBuffer covering all of d
+     */
+    public static RtpBuffer wrap(byte[] d) {
+        RtpBuffer b = new RtpBuffer(null, d);
+        b.length = d.length;
+        b.arrivalNanos = System.nanoTime();
+        return b;
+    }
+
+    public int capacity() {
+        return data.length;
+    }
+
+    /**
+     * Grows the backing array, keeping the first {@link #length} bytes
+     *
+     * @param minCapacity Capacity needed
+     */
+    public void ensureCapacity(int minCapacity) {
+        if (minCapacity <= data.length) return;
+        int c = Math.max(minCapacity, data.length * 2);
+        byte[] d = new byte[c];
+        System.arraycopy(data, 0, d, 0, length);
+        data = d;
+        byteBuffer = ByteBuffer.wrap(d);
+    }
+
+    /**
+     * Points the buffer's ByteBuffer at a range of the data, e.g. for a gathering write, without
+     * allocating. Senders sharing the packet use it while holding the buffer's lock.
+     *
+     * @param offset First byte of the range
+     * @param length Number of bytes
+     * @return The buffer's ByteBuffer, positioned on the range
+     */
+    ByteBuffer byteBuffer(int offset, int length) {
+        byteBuffer.limit(offset + length);
+        byteBuffer.position(offset);
+        return byteBuffer;
+    }
+
+    /**
+     * Adds an owner. Each call must be matched by a {@link #release()}.
+     */
+    public void retain() {
+        REFERENCES.incrementAndGet(this);
+    }
+
+    /**
+     * Drops an owner and returns this buffer to its pool once no owners are left
+     */
+    public void release() {
+        if (pool != null && REFERENCES.decrementAndGet(this) == 0) pool.recycle(this);
+    }
+
+    /**
+     * Called by the pool when the buffer is handed out
+     */
+    void reset() {
+        length = 0;
+        keyFrameStart = false;
+        references = 1;
+    }
+}
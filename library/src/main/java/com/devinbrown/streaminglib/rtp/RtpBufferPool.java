@@ -0,0 +1,49 @@
+package com.devinbrown.streaminglib.rtp;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Fixed size pool of {@link RtpBuffer}s
+ * <p>
+ * Every buffer is allocated up front, so acquiring and releasing never allocates. When all buffers
+ * are in use {@link #acquire()} returns null rather than growing the pool.
+ */
+public class RtpBufferPool {
+    private final ArrayBlockingQueue<RtpBuffer> free;
+    private final int size;
+    private final int bufferCapacity;
+
+    public RtpBufferPool(int size, int bufferCapacity) {
+        this.size = size;
+        this.bufferCapacity = bufferCapacity;
+        free = new ArrayBlockingQueue<>(size);
+        for (int i = 0; i < size; i++) {
+            free.offer(new RtpBuffer(this, bufferCapacity));
+        }
+    }
+
+    /**
+     * @return a free buffer with a length of 0, or null if every buffer is in use
+     */
+    public RtpBuffer acquire() {
+        RtpBuffer b = free.poll();
+        if (b != null) b.reset();
+        return b;
+    }
+
+    void recycle(RtpBuffer b) {
+        free.offer(b);
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public int getBufferCapacity() {
+        return bufferCapacity;
+    }
+
+    public int getAvailable() {
+        return free.size();
+    }
+}
@@ -1,24 +1,124 @@
 package com.devinbrown.streaminglib.rtp;
 
+import android.util.Log;
 import android.util.Pair;
 
 import com.devinbrown.streaminglib.media.RtpMedia;
 import com.devinbrown.streaminglib.rtsp.RtspSession;
 
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
 import java.net.SocketException;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
 
 /**
- *
+ * Receives a single RTP stream and reports its reception quality back to the sender in RTCP receiver
+ * reports
+ * <p>
+ * Packets missing from a unicast UDP stream are requested again with generic NACKs, and key frames
+ * with a full intra request after joining or a picture loss indication after losses that couldn't be
+ * recovered. Feedback is sent as soon as it is due rather than with the next regular report.
+ * <p>
+ * Received RTP packets go through a {@link RingStage}: the receiving thread publishes each packet into
+ * a pre-allocated ring, and a thread of a {@link RingStageGroup} shared with the other streams runs it
+ * through the jitter buffer and depacketizer and delivers the frames, without events or allocations
+ * per packet.
+ * <p>
+ * Reference: https://tools.ietf.org/html/rfc4585#section-3.5
  */
+public class RtpClientStream extends RtpStream {
+    private static final String TAG = "RtpClientStream";
 
-// TODO: RTCP!
+    // Time the jitter buffer waits on a gap for a retransmission, about a round trip
+    public static final int DEFAULT_LOSS_RECOVERY_DELAY_MS = 100;
+
+    private static final int FEEDBACK_BUFFER_SIZE = 512;
+
+    public static final int DEFAULT_RECEIVE_RING_SIZE = 1024;
 
-public class RtpClientStream extends RtpStream {
     private RtpInputProcessor rtpInputProcessor;
 
+    private RingStageGroup receiveStages;
+    private int receiveRingSize = DEFAULT_RECEIVE_RING_SIZE;
+    private RingStage<ReceivedPacket> receiveStage;
+    // Set once receiving starts, read by the receiving thread
+    private volatile RingBuffer<ReceivedPacket> receiveRing;
+    // Only written by the receiving thread
+    private volatile long droppedReceivePackets;
+
+    private final RingBuffer.Handler<ReceivedPacket> receiveHandler = new RingBuffer.Handler<ReceivedPacket>() {
+        @Override
+        public void onEntry(ReceivedPacket p, boolean endOfBatch) {
+            RtpBuffer b = p.buffer;
+            if (b == null) {
+                rtpInputProcessor.drain(System.nanoTime());
+                return;
+            }
+            p.buffer = null;
+            rtpInputProcessor.onRtp(b);
+        }
+    };
+
+    // Only used on the RTCP scheduler thread
+    private final RtcpCompoundWriter feedbackWriter = new RtcpCompoundWriter();
+    private final RtpBuffer feedbackBuffer = new RtpBuffer(null, FEEDBACK_BUFFER_SIZE);
+
+    // Guarded by feedbackTask
+    private ScheduledFuture<?> pendingFeedback;
+    private long feedbackDueNanos;
+    private boolean closed;
+
+    private final Runnable feedbackTask = new Runnable() {
+        @Override
+        public void run() {
+            sendFeedback();
+        }
+    };
+
+    private final RtpInputProcessor.FeedbackListener feedbackListener = new RtpInputProcessor.FeedbackListener() {
+        @Override
+        public void onFeedbackPending(long delayNanos) {
+            scheduleFeedback(delayNanos);
+        }
+    };
+
+    // Guarded by feedbackTask
+    private ScheduledFuture<?> pendingDrain;
+    private long drainDueNanos;
+
+    // Hands the drain to the receive stage, so frames are only ever delivered from its thread
+    private final Runnable drainTask = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (feedbackTask) {
+                pendingDrain = null;
+                if (closed) return;
+            }
+            RingBuffer<ReceivedPacket> r = receiveRing;
+            long seq = r != null ? r.tryClaim() : -1;
+            // A full ring holds packets whose arrival schedules the drain again
+            if (seq < 0) return;
+            r.get(seq).buffer = null;
+            r.publish(seq);
+        }
+    };
+
+    private final RtpInputProcessor.DrainListener drainListener = new RtpInputProcessor.DrainListener() {
+        @Override
+        public void onDrainPending(long delayNanos) {
+            scheduleDrain(delayNanos);
+        }
+    };
+
     public RtpClientStream(RtspSession s, RtpMedia m) {
         super(s, m);
         rtpInputProcessor = new RtpInputProcessor(m, streamEventBus);
+        rtpInputProcessor.setFeedbackListener(feedbackListener);
+        rtpInputProcessor.setDrainListener(drainListener);
+        rtpInputProcessor.setNackEnabled(true, DEFAULT_LOSS_RECOVERY_DELAY_MS);
+        rtpInputProcessor.setKeyFrameRequestsEnabled(true);
     }
 
     /**
@@ -36,23 +136,46 @@ public class RtpClientStream extends RtpStream {
     }
 
     /**
-     * Create RtpClientStream for UDP
+     * Create RtpClientStream for UDP multicast. The group is joined once the SETUP response names it.
      */
     @Override
     public void initializeMulticast() {
-        // TODO: Multicast not yet supported
-        assert (false);
-
         rtpProtocol = RtpProtocol.UDP;
         streamType = StreamType.CLIENT;
         delivery = Delivery.MULTICAST;
 
-        // TODO: This might need to be different for multicast
-        // setupUdpPorts(localRtpPorts);
+        // The group's sender doesn't take feedback, and feedback from every viewer would add up
+        rtpInputProcessor.setNackEnabled(false, 0);
+        rtpInputProcessor.setKeyFrameRequestsEnabled(false);
 
         state = RtpStreamState.INITIALIZED;
     }
 
+    /**
+     * Joins the multicast group from the SETUP response and starts receiving from it
+     *
+     * @param group Group address from the Transport destination
+     * @param ports RTP and RTCP port from the Transport port
+     * @param ttl   Time to live for the RTCP reports sent to the group, null for the default
+     * @param ni    Interface to join on, e.g. the one of the RTSP connection, null to pick one
+     * @throws IOException Unable to join the group
+     */
+    public void configureMulticast(InetAddress group, Pair<Integer, Integer> ports, Integer ttl, NetworkInterface ni)
+            throws IOException {
+        validateState(RtpStreamState.CONFIGURED, RtpStreamState.INITIALIZED);
+        if (delivery != Delivery.MULTICAST) throw new IllegalStateException("RtpClientStream must be initialized for multicast");
+        if (group == null || !group.isMulticastAddress() || ports == null) {
+            throw new IOException("SETUP response has no multicast destination and port");
+        }
+
+        multicastTtl = ttl;
+        joinMulticastGroup(group, ports, ni);
+
+        state = RtpStreamState.CONFIGURED;
+
+        startListening();
+    }
+
     /**
      * Create RtpClientStream for TCP (RTSP Interleaved)
      *
@@ -61,8 +184,12 @@ public class RtpClientStream extends RtpStream {
     @Override
     public void initializeTcp(Pair<Integer, Integer> interleavedRtpChannels) {
         this.interleavedRtpChannels = interleavedRtpChannels;
-        rtpProtocol = RtpProtocol.UDP;
-        streamType = StreamType.SERVER;
+        rtpProtocol = RtpProtocol.TCP;
+        streamType = StreamType.CLIENT;
+        delivery = Delivery.UNICAST;
+
+        // TCP loses nothing, so NACKs would only ask for duplicates
+        rtpInputProcessor.setNackEnabled(false, 0);
 
         state = RtpStreamState.INITIALIZED;
     }
@@ -77,10 +204,214 @@ public class RtpClientStream extends RtpStream {
         startListening();
     }
 
+    /**
+     * Configures the reorder buffer incoming RTP passes through
+     *
+     * @param maxPackets   Maximum number of packets held at once
+     * @param minLatencyMs Minimum time a packet waits for a missing predecessor
+     * @param maxLatencyMs Maximum time a packet waits for a missing predecessor
+     */
+    public void setJitterBufferLimits(int maxPackets, int minLatencyMs, int maxLatencyMs) {
+        rtpInputProcessor.setJitterBufferLimits(maxPackets, minLatencyMs, maxLatencyMs);
+    }
+
+    /**
+     * Turns requesting missing packets with generic NACKs on or off. On by default for unicast UDP.
+     *
+     * @param enabled         Whether to send NACKs
+     * @param recoveryDelayMs Extra time a gap is waited on for a retransmission, about a round trip
+     */
+    public void setNackEnabled(boolean enabled, int recoveryDelayMs) {
+        rtpInputProcessor.setNackEnabled(enabled, recoveryDelayMs);
+    }
+
+    /**
+     * Turns asking the sender for key frames on or off. On by default for unicast.
+     */
+    public void setKeyFrameRequestsEnabled(boolean enabled) {
+        rtpInputProcessor.setKeyFrameRequestsEnabled(enabled);
+    }
+
+    /**
+     * @return Snapshot of the reception statistics of every source heard from on this stream
+     */
+    public List<RtpReceiverStatistics.Snapshot> getReceiverStatistics() {
+        return rtpInputProcessor.getReceiverStatistics();
+    }
+
+    @Override
+    public int getMemberCount(long activeSinceNanos) {
+        return rtpInputProcessor.countActiveSources(activeSinceNanos) + 1;
+    }
+
+    @Override
+    public int getSenderCount(long activeSinceNanos) {
+        return rtpInputProcessor.countSenders(activeSinceNanos);
+    }
+
+    @Override
+    public boolean isSender() {
+        return false;
+    }
+
+    /**
+     * Reference: https://tools.ietf.org/html/rfc3550#section-6.4.2
+     */
+    @Override
+    void writeReport(RtcpCompoundWriter w, long nowNanos) {
+        w.beginReceiverReport(ssrc);
+        rtpInputProcessor.addReportBlocks(w, nowNanos);
+    }
+
+    @Override
+    public void teardown() {
+        synchronized (feedbackTask) {
+            closed = true;
+            if (pendingFeedback != null) pendingFeedback.cancel(false);
+            pendingFeedback = null;
+            if (pendingDrain != null) pendingDrain.cancel(false);
+            pendingDrain = null;
+        }
+        rtpInputProcessor.close();
+        super.teardown();
+        if (receiveStage != null) receiveStage.stop();
+    }
+
+    /**
+     * Sets which threads run the receive stage. Call before the stream is configured.
+     *
+     * @param g        Threads that run the stage, waiting for packets with their {@link WaitStrategy}.
+     *                 Null for {@link RingStageGroup#getDefault()}.
+     * @param ringSize Packets the ring holds, a power of 2. Packets arriving while it is full are
+     *                 dropped and recovered like lost ones.
+     */
+    public void setReceivePipeline(RingStageGroup g, int ringSize) {
+        if (receiveStage != null) throw new IllegalStateException("Receiving already started");
+        if (ringSize <= 0 || (ringSize & (ringSize - 1)) != 0) {
+            throw new IllegalArgumentException("Ring size must be a power of 2: " + ringSize);
+        }
+        receiveStages = g;
+        receiveRingSize = ringSize;
+    }
+
+    /**
+     * @return Packets dropped because the receive stage fell behind
+     */
+    public long getDroppedReceivePackets() {
+        return droppedReceivePackets;
+    }
+
+    /**
+     * Publishes the packet to the receive stage. Packets that find the ring full are dropped.
+     */
+    @Override
+    public void onRtpReceived(RtpBuffer b) {
+        RingBuffer<ReceivedPacket> r = receiveRing;
+        long seq = r != null ? r.tryClaim() : -1;
+        if (seq < 0) {
+            droppedReceivePackets++;
+            b.release();
+            return;
+        }
+        r.get(seq).buffer = b;
+        r.publish(seq);
+    }
+
+    /**
+     * Makes sure feedback is sent within delayNanos
+     */
+    private void scheduleFeedback(long delayNanos) {
+        long due = System.nanoTime() + delayNanos;
+        synchronized (feedbackTask) {
+            if (closed) return;
+            if (pendingFeedback != null) {
+                if (feedbackDueNanos - due <= 0) return;
+                pendingFeedback.cancel(false);
+            }
+            feedbackDueNanos = due;
+            pendingFeedback = RtcpScheduler.getDefault().schedule(feedbackTask, delayNanos);
+        }
+    }
+
+    /**
+     * Makes sure the jitter buffer is drained within delayNanos. The RTCP scheduler times it, the receive
+     * stage runs it.
+     */
+    private void scheduleDrain(long delayNanos) {
+        long due = System.nanoTime() + delayNanos;
+        synchronized (feedbackTask) {
+            if (closed) return;
+            if (pendingDrain != null) {
+                if (drainDueNanos - due <= 0) return;
+                pendingDrain.cancel(false);
+            }
+            drainDueNanos = due;
+            pendingDrain = RtcpScheduler.getDefault().schedule(drainTask, delayNanos);
+        }
+    }
+
+    /**
+     * Sends a compound packet of an empty receiver report, SDES CNAME and the key frame request and
+     * generic NACKs that are due, then waits for the next ones. Runs on the RTCP scheduler thread.
+     * <p>
+     * Reference: https://tools.ietf.org/html/rfc4585#section-3.1
+     */
+    private void sendFeedback() {
+        synchronized (feedbackTask) {
+            pendingFeedback = null;
+        }
+
+        long now = System.nanoTime();
+        RtcpCompoundWriter w = feedbackWriter;
+        w.start(feedbackBuffer);
+        w.beginReceiverReport(ssrc);
+        w.beginSourceDescription();
+        w.addSourceDescriptionChunk(ssrc);
+        w.addSourceDescriptionItem(SourceDescriptionRtcpPacket.ITEM_CNAME, CNAME);
+        if (rtpInputProcessor.writeFeedback(w, ssrc, now)) {
+            w.finish();
+            try {
+                sendRtcp(feedbackBuffer);
+            } catch (IOException e) {
+                Log.w(TAG, "sendFeedback: Unable to send feedback: " + e.getMessage());
+            }
+        }
+
+        long delay = rtpInputProcessor.getFeedbackDelayNanos(now);
+        if (delay >= 0) scheduleFeedback(delay);
+    }
+
     @Override
     void startListening() {
-        new Thread(new RtpInputListener()).start();
-        new Thread(new RtcpInputListener()).start();
+        if (receiveStage == null) {
+            RingStageGroup g = receiveStages != null ? receiveStages : RingStageGroup.getDefault();
+            // The receiving thread and the drain timer both publish
+            receiveStage = g.newStage(receiveRingSize, ReceivedPacket.FACTORY, true, receiveHandler,
+                    RingStage.DEFAULT_BATCH_SIZE);
+            receiveRing = receiveStage.getRing();
+            receiveStage.start();
+        }
+        // Interleaved packets arrive through the RTSP session instead
+        if (rtpProtocol == RtpProtocol.UDP) {
+            startRtpInputListener();
+            startRtcpInputListener();
+        }
+        setupRtcp();
+        rtpInputProcessor.setRtcpSession(getRtcpSession());
         state = RtpStreamState.STREAMING;
     }
+
+    /**
+     * Entry of the receive ring. Without a buffer it asks the stage to drain the jitter buffer.
+     */
+    private static class ReceivedPacket {
+        static final RingBuffer.EntryFactory<ReceivedPacket> FACTORY = new RingBuffer.EntryFactory<ReceivedPacket>() {
+            @Override
+            public ReceivedPacket newEntry() {
+                return new ReceivedPacket();
+            }
+        };
+
+        RtpBuffer buffer;
+    }
 }
@@ -0,0 +1,96 @@
+package com.devinbrown.streaminglib.rtp;
+
+import android.media.MediaFormat;
+
+import com.devinbrown.streaminglib.media.RtpMedia;
+import com.devinbrown.streaminglib.sdp.Fmtp;
+import com.devinbrown.streaminglib.sdp.Rtpmap;
+
+/**
+ * Turns the payloads of in-order RTP packets back into the frames a decoder consumes
+ * <p>
+ * Frames are assembled in buffers from a small {@link RtpBufferPool} that grow to fit the largest
+ * frame seen, so steady state reception doesn't allocate. If every pooled buffer is still held by the
+ * listener a temporary buffer is allocated instead of stalling.
+ */
+public abstract class RtpDepacketizer {
+    private static final int FRAME_POOL_SIZE = 8;
+
+    public interface Listener {
+        /**
+         * Called for each complete frame. The listener takes ownership of one reference to the buffer.
+         *
+         * @param b         Buffer holding the frame. May be shared with other frames.
+         * @param offset    Offset of the frame in b
+         * @param length    Length of the frame
+         * @param timestamp RTP timestamp of the frame
+         * @param keyFrame  Whether the frame can be decoded on its own
+         */
+        void onFrame(RtpBuffer b, int offset, int length, long timestamp, boolean keyFrame);
+    }
+
+    protected final Listener listener;
+    private final RtpBufferPool framePool;
+    private final int frameCapacity;
+
+    protected RtpDepacketizer(Listener l, int frameCapacity) {
+        listener = l;
+        this.frameCapacity = frameCapacity;
+        framePool = new RtpBufferPool(FRAME_POOL_SIZE, frameCapacity);
+    }
+
+    /**
+     * Create the depacketizer matching the media format, or null if the payload is passed through as is
+     *
+     * @param m RtpMedia being received
+     * @param l Receives frames
+     * @return a depacketizer for the media, or null
+     */
+    static RtpDepacketizer create(RtpMedia m, Listener l) {
+        MediaFormat f = m.mediaFormat;
+        if (f == null || !f.containsKey(MediaFormat.KEY_MIME)) return null;
+
+        switch (f.getString(MediaFormat.KEY_MIME).toLowerCase()) {
+            case "video/h264":
+            case MediaFormat.MIMETYPE_VIDEO_AVC:
+                return new H264Depacketizer(l, NalUnitDepacketizer.NalFraming.ANNEX_B);
+            case "video/h265":
+            case MediaFormat.MIMETYPE_VIDEO_HEVC:
+                Fmtp hevcFmtp = getFmtp(m, "h265");
+                String maxDonDiff = hevcFmtp != null ? hevcFmtp.getParameter("sprop-max-don-diff") : null;
+                boolean donPresent = maxDonDiff != null && !maxDonDiff.equals("0");
+                return new H265Depacketizer(l, NalUnitDepacketizer.NalFraming.ANNEX_B, donPresent);
+            case "audio/mpeg4-generic":
+                return new Mpeg4GenericDepacketizer(l, getFmtp(m, "mpeg4-generic"));
+            default:
+                return null;
+        }
+    }
+
+    private static Fmtp getFmtp(RtpMedia m, String encodingName) {
+        if (m.mediaDescription == null) return null;
+        for (Rtpmap r : m.mediaDescription.getRtpmaps()) {
+            if (r != null && r.mimeSubType.equalsIgnoreCase(encodingName)) {
+                return m.mediaDescription.getFmtpWithFormat(r.payloadType);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Consume the payload of the next packet in sequence order
+     *
+     * @param p Packet. Only valid for the duration of the call.
+     */
+    public abstract void depacketize(RtpPacket p);
+
+    /**
+     * Called when packets were lost so any partially assembled frame can be dropped
+     */
+    public abstract void onPacketsLost();
+
+    protected RtpBuffer acquireFrame() {
+        RtpBuffer b = framePool.acquire();
+        return b != null ? b : new RtpBuffer(null, frameCapacity);
+    }
+}
@@ -0,0 +1,112 @@
+package com.devinbrown.streaminglib.rtp;
+
+import com.devinbrown.streaminglib.RtspClientStreamEvent;
+import com.devinbrown.streaminglib.media.RtpMedia;
+
+import org.greenrobot.eventbus.Subscribe;
+import org.greenrobot.eventbus.ThreadMode;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Packetizes the frames of one {@link RtpMedia} once and hands the same packets to every subscribed
+ * stream
+ * <p>
+ * Packets are reference counted {@link RtpBuffer}s that subscribers must treat as immutable: each
+ * subscriber gets its own reference and rewrites the fields that differ per receiver (SSRC, sequence
+ * number and timestamp offsets) in a separate header while sending. The subscriber list is replaced,
+ * never modified, so fanning out takes no lock.
+ */
+public class RtpFanOut implements RtpPacketizer.Listener {
+    private static final Map<RtpMedia, RtpFanOut> hubs = new HashMap<>();
+
+    public interface Subscriber {
+        /**
+         * Called for each packet. The subscriber takes ownership of one reference to the buffer and
+         * must not modify it.
+         *
+         * @param b Complete RTP packet with an SSRC of 0
+         */
+        void onRtpPacket(RtpBuffer b);
+    }
+
+    private final RtpMedia media;
+    private final RtpPacketizer packetizer;
+    private volatile Subscriber[] subscribers = new Subscriber[0];
+
+    private RtpFanOut(RtpMedia m) {
+        media = m;
+        packetizer = RtpPacketizer.create(m, this);
+    }
+
+    /**
+     * Subscribe to the packets of a media, creating its hub for the first subscriber
+     *
+     * @param m Media to receive packets of
+     * @param s Subscriber
+     */
+    static void subscribe(RtpMedia m, Subscriber s) {
+        synchronized (hubs) {
+            RtpFanOut hub = hubs.get(m);
+            if (hub == null) {
+                hub = new RtpFanOut(m);
+                hubs.put(m, hub);
+                m.streamEventBus.register(hub);
+            }
+            Subscriber[] current = hub.subscribers;
+            Subscriber[] added = new Subscriber[current.length + 1];
+            System.arraycopy(current, 0, added, 0, current.length);
+            added[current.length] = s;
+            hub.subscribers = added;
+        }
+    }
+
+    /**
+     * Unsubscribe from the packets of a media, dropping its hub after the last subscriber
+     *
+     * @param m Media the subscriber receives packets of
+     * @param s Subscriber
+     */
+    static void unsubscribe(RtpMedia m, Subscriber s) {
+        synchronized (hubs) {
+            RtpFanOut hub = hubs.get(m);
+            if (hub == null) return;
+            Subscriber[] current = hub.subscribers;
+            int i = 0;
+            while (i < current.length && current[i] != s) i++;
+            if (i == current.length) return;
+
+            Subscriber[] removed = new Subscriber[current.length - 1];
+            System.arraycopy(current, 0, removed, 0, i);
+            System.arraycopy(current, i + 1, removed, i, current.length - i - 1);
+            hub.subscribers = removed;
+            if (removed.length == 0) {
+                m.streamEventBus.unregister(hub);
+                hubs.remove(m);
+            }
+        }
+    }
+
+    /**
+     * Frames are packetized on the posting thread so they keep their order. Their media time is
+     * mapped to the media's RTP clock.
+     */
+    @Subscribe(threadMode = ThreadMode.POSTING)
+    public void handleEvent(RtspClientStreamEvent.MediaDataReceived event) {
+        synchronized (packetizer) {
+            long timestamp = packetizer.toRtpTimestamp(event.timestamp);
+            packetizer.packetize(event.data, event.offset, event.length, timestamp, event.keyFrame);
+        }
+        if (event.keyFrame) media.onKeyFrameSent();
+    }
+
+    @Override
+    public void onPacket(RtpBuffer b) {
+        for (Subscriber s : subscribers) {
+            b.retain();
+            s.onRtpPacket(b);
+        }
+        b.release();
+    }
+}
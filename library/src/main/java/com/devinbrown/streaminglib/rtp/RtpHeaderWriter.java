@@ -0,0 +1,207 @@
+package com.devinbrown.streaminglib.rtp;
+
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+
+/**
+ * Writes RTP headers for one stream
+ * <p>
+ * Keeps the stream's SSRC, payload type, next sequence number and timestamp offset, plus optional
+ * CSRCs and a header extension, and writes them in place into a caller-provided array or
+ * {@link ByteBuffer}. Nothing is allocated per packet. Sequence numbers and timestamps start at random
+ * values as RFC 3550 recommends.
+ * <p>
+ * Not thread safe: each stream writes its headers from one thread at a time.
+ * <p>
+ * Reference: https://tools.ietf.org/html/rfc3550#section-5.1
+ */
+public class RtpHeaderWriter {
+    private static final int MAX_CSRC_COUNT = 15;
+    private static final int EXTENSION_HEADER_LENGTH = 4;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final long ssrc;
+    private final int payloadType;
+    private final int clockRate;
+    private final int sequenceNumberOffset;
+    private final long timestampOffset;
+
+    private int sequenceNumber;
+
+    private final long[] csrcs = new long[MAX_CSRC_COUNT];
+    private int csrcCount;
+
+    private int extensionProfile = -1;
+    private byte[] extensionData;
+    private int extensionOffset;
+    private int extensionLength;
+
+    /**
+     * @param ssrc        Synchronization source of the stream
+     * @param payloadType RTP payload type
+     * @param clockRate   RTP clock rate used to convert media times
+     */
+    public RtpHeaderWriter(long ssrc, int payloadType, int clockRate) {
+        this(ssrc, payloadType, clockRate, RANDOM.nextInt(0x10000), RANDOM.nextInt() & 0xFFFFFFFFL);
+    }
+
+    /**
+     * @param sequenceNumberOffset First sequence number, also added to relayed sequence numbers
+     * @param timestampOffset      Added to every timestamp
+     */
+    public RtpHeaderWriter(long ssrc, int payloadType, int clockRate, int sequenceNumberOffset, long timestampOffset) {
+        if (clockRate <= 0) throw new IllegalArgumentException("Invalid clock rate: " + clockRate);
+        this.ssrc = ssrc;
+        this.payloadType = payloadType;
+        this.clockRate = clockRate;
+        this.sequenceNumberOffset = sequenceNumberOffset & 0xFFFF;
+        this.timestampOffset = timestampOffset;
+        sequenceNumber = this.sequenceNumberOffset;
+    }
+
+    public long getSsrc() {
+        return ssrc;
+    }
+
+    /**
+     * @return Sequence number the next written header gets
+     */
+    public int getSequenceNumber() {
+        return sequenceNumber;
+    }
+
+    /**
+     * Maps a media time to an RTP timestamp of this stream
+     *
+     * @param mediaTimeUs Presentation time in microseconds, e.g. from MediaCodec
+     * @return RTP timestamp, including the stream's random offset
+     */
+    public long toRtpTimestamp(long mediaTimeUs) {
+        long ticks = (mediaTimeUs / 1000000L) * clockRate + (mediaTimeUs % 1000000L) * clockRate / 1000000L;
+        return (timestampOffset + ticks) & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Sets the contributing sources written in every header
+     *
+     * @param c     CSRC identifiers
+     * @param count Number of CSRCs to use, at most 15
+     */
+    public void setCsrcs(long[] c, int count) {
+        if (count < 0 || count > MAX_CSRC_COUNT) throw new IllegalArgumentException("Invalid CSRC count: " + count);
+        System.arraycopy(c, 0, csrcs, 0, count);
+        csrcCount = count;
+    }
+
+    /**
+     * Sets the header extension written in every header. The data is referenced, not copied.
+     * <p>
+     * Reference: https://tools.ietf.org/html/rfc3550#section-5.3.1
+     *
+     * @param profile Profile-defined 16 bit value
+     * @param data    Array holding the extension
+     * @param offset  Offset of the extension
+     * @param length  Length of the extension, a multiple of 4
+     */
+    public void setExtension(int profile, byte[] data, int offset, int length) {
+        if (length % 4 != 0) throw new IllegalArgumentException("Extension length must be a multiple of 4: " + length);
+        extensionProfile = profile & 0xFFFF;
+        extensionData = data;
+        extensionOffset = offset;
+        extensionLength = length;
+    }
+
+    public void clearExtension() {
+        extensionProfile = -1;
+        extensionData = null;
+    }
+
+    /**
+     * @return Length of the headers this writer writes
+     */
+    public int getHeaderLength() {
+        int l = RtpPacket.FIXED_HEADER_LENGTH + 4 * csrcCount;
+        if (extensionProfile >= 0) l += EXTENSION_HEADER_LENGTH + extensionLength;
+        return l;
+    }
+
+    /**
+     * Writes a header with the next sequence number
+     *
+     * @param d            Destination array
+     * @param o            Offset of the header
+     * @param rtpTimestamp Timestamp, e.g. from {@link #toRtpTimestamp(long)}
+     * @param marker       Marker bit
+     * @return Header length
+     */
+    public int write(byte[] d, int o, long rtpTimestamp, boolean marker) {
+        int l = write(d, o, payloadType, sequenceNumber, rtpTimestamp, marker);
+        sequenceNumber = (sequenceNumber + 1) & 0xFFFF;
+        return l;
+    }
+
+    /**
+     * Writes a header with the next sequence number at the position of bb and advances it
+     *
+     * @param bb           Heap ByteBuffer with room for {@link #getHeaderLength()} bytes
+     * @param rtpTimestamp Timestamp, e.g. from {@link #toRtpTimestamp(long)}
+     * @param marker       Marker bit
+     * @return Header length
+     */
+    public int write(ByteBuffer bb, long rtpTimestamp, boolean marker) {
+        int l = write(bb.array(), bb.arrayOffset() + bb.position(), rtpTimestamp, marker);
+        bb.position(bb.position() + l);
+        return l;
+    }
+
+    /**
+     * Writes the header of a packet relayed from another source: the payload type and marker are
+     * kept, the sequence number and timestamp are shifted by this stream's offsets and the SSRC,
+     * CSRCs and extension are this stream's. The sequence number is not advanced, so gaps in the
+     * source stay visible to the receiver.
+     *
+     * @param src       Source packet
+     * @param srcOffset Offset of the source packet's header
+     * @param d         Destination array
+     * @param o         Offset of the header
+     * @return Header length
+     */
+    public int translate(byte[] src, int srcOffset, byte[] d, int o) {
+        int seq = (RtpPacket.readUnsignedShort(src, srcOffset + 2) + sequenceNumberOffset) & 0xFFFF;
+        long timestamp = (RtpPacket.readUnsignedInt(src, srcOffset + 4) + timestampOffset) & 0xFFFFFFFFL;
+        boolean marker = (src[srcOffset + 1] & 0x80) != 0;
+        int l = write(d, o, src[srcOffset + 1] & 0x7F, seq, timestamp, marker);
+        sequenceNumber = (seq + 1) & 0xFFFF;
+        return l;
+    }
+
+    private int write(byte[] d, int o, int pt, int seq, long timestamp, boolean marker) {
+        int start = o;
+        boolean extension = extensionProfile >= 0;
+        d[o++] = (byte) ((RtpPacket.VERSION << 6) | (extension ? 0x10 : 0) | csrcCount);
+        d[o++] = (byte) ((marker ? 0x80 : 0) | pt);
+        d[o++] = (byte) (seq >> 8);
+        d[o++] = (byte) seq;
+        o = writeInt(d, o, timestamp);
+        o = writeInt(d, o, ssrc);
+        for (int i = 0; i < csrcCount; i++) o = writeInt(d, o, csrcs[i]);
+        if (extension) {
+            d[o++] = (byte) (extensionProfile >> 8);
+            d[o++] = (byte) extensionProfile;
+            d[o++] = (byte) (extensionLength / 4 >> 8);
+            d[o++] = (byte) (extensionLength / 4);
+            System.arraycopy(extensionData, extensionOffset, d, o, extensionLength);
+            o += extensionLength;
+        }
+        return o - start;
+    }
+
+    private static int writeInt(byte[] d, int o, long v) {
+        d[o] = (byte) (v >>> 24);
+        d[o + 1] = (byte) (v >>> 16);
+        d[o + 2] = (byte) (v >>> 8);
+        d[o + 3] = (byte) v;
+        return o + 4;
+    }
+}
@@ -10,54 +10,507 @@ import org.greenrobot.eventbus.EventBus;
 import org.greenrobot.eventbus.Subscribe;
 import org.greenrobot.eventbus.ThreadMode;
 
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Received and analyzes incoming RTP and RTCP data
+ * <p>
+ * RTP packets pass through a {@link RtpJitterBuffer} so media data is posted in sequence order.
+ * Payloads with a {@link RtpDepacketizer} are posted as complete frames, others as they arrive.
+ * Reception statistics are kept per SSRC and can be read from any thread. With NACKs enabled, packets
+ * missing from the sequence are requested again and the jitter buffer waits long enough for them.
+ * With key frame requests enabled, a full intra request is sent when the stream starts with frames
+ * that can't be decoded on their own, and a picture loss indication when packets were lost for good.
  */
-class RtpInputProcessor {
+class RtpInputProcessor implements RtpJitterBuffer.Listener, RtpDepacketizer.Listener {
     private static final String TAG = "RtpInputProcessor";
 
+    // Bound on tracked sources so a stream of bogus SSRCs can't grow the table without limit
+    private static final int MAX_SOURCES = 32;
+
+    // Shortest wait before a missing packet is requested, in case it was only reordered
+    private static final long MIN_REORDER_WAIT_NANOS = 5000000L;
+
+    // Shortest time between two key frame requests while waiting for a key frame
+    private static final long KEY_FRAME_REQUEST_INTERVAL_NANOS = 500000000L;
+
+    /**
+     * Sends the feedback built by {@link #writeFeedback}
+     */
+    interface FeedbackListener {
+        /**
+         * Called when packets went missing or a key frame is needed
+         *
+         * @param delayNanos Time until feedback is due
+         */
+        void onFeedbackPending(long delayNanos);
+    }
+
+    /**
+     * Calls {@link #drain(long)} when packets held behind a gap are due, since no packet may arrive
+     * to release them
+     */
+    interface DrainListener {
+        /**
+         * Called when packets are held behind a gap
+         *
+         * @param delayNanos Time until the gap is given up on
+         */
+        void onDrainPending(long delayNanos);
+    }
+
     private RtpMedia rtpMedia;
     private EventBus rtpPacketEventBus;
+    private RtpPacket rtpPacket = new RtpPacket();
+    private final RtcpCompoundPacket rtcpPacket = new RtcpCompoundPacket();
+    private RtpJitterBuffer jitterBuffer;
+    private RtpDepacketizer depacketizer;
+    private final int clockRate;
+
+    // Replaced, never modified, when a source is added so readers need no lock
+    private volatile RtpReceiverStatistics[] sources = new RtpReceiverStatistics[0];
+    private RtpReceiverStatistics lastSource;
+
+    // Previous snapshot of each source for the fraction lost, only used on the RTCP scheduler thread
+    private RtpReceiverStatistics.Snapshot[] reportedSnapshots = new RtpReceiverStatistics.Snapshot[0];
+    private RtpReceiverStatistics.Snapshot reportScratch = new RtpReceiverStatistics.Snapshot();
+
+    private volatile RtcpScheduler.Session rtcpSession;
+
+    private RtpNackGenerator nackGenerator;
+    private FeedbackListener feedbackListener;
+    private DrainListener drainListener;
+
+    private boolean keyFrameRequestsEnabled;
+    private boolean waitingForKeyFrame = true;
+    private boolean decodedKeyFrame;
+    // FeedbackRtcpPacket.FMT_PLI or FMT_FIR when a request is pending, otherwise 0
+    private int pendingKeyFrameRequest;
+    private boolean keyFrameRequested;
+    private long keyFrameRequestedNanos;
+    private int firSequenceNumber;
+    private long mediaSsrc;
+    private boolean haveMediaSsrc;
+
+    // RTP timestamp of the last delivered data and the ticks counted since the first
+    private boolean haveMediaTime;
+    private long lastDeliveredTimestamp;
+    private long deliveredTicks;
 
     RtpInputProcessor(RtpMedia r, EventBus e) {
         rtpMedia = r;
         rtpPacketEventBus = e;
+        clockRate = r.getClockRate();
+        jitterBuffer = new RtpJitterBuffer(this, clockRate);
+        depacketizer = RtpDepacketizer.create(r, this);
         rtpPacketEventBus.register(this);
     }
 
-    @Subscribe(threadMode = ThreadMode.ASYNC)
-    public void handleEvent(RtspSessionEvent.RtpPacketReceived event) {
-        handleRtp(event.data);
+    void close() {
+        rtpPacketEventBus.unregister(this);
+    }
+
+    synchronized void setJitterBufferLimits(int maxPackets, int minLatencyMs, int maxLatencyMs) {
+        jitterBuffer.setLimits(maxPackets, minLatencyMs, maxLatencyMs);
+    }
+
+    /**
+     * @param l Sends the feedback
+     */
+    synchronized void setFeedbackListener(FeedbackListener l) {
+        feedbackListener = l;
+    }
+
+    /**
+     * @param l Schedules {@link #drain(long)}
+     */
+    synchronized void setDrainListener(DrainListener l) {
+        drainListener = l;
+    }
+
+    /**
+     * Releases the packets held behind a gap that was waited on long enough. Called once the delay the
+     * {@link DrainListener} was given elapsed, on the thread that passes in the packets.
+     */
+    synchronized void drain(long nowNanos) {
+        jitterBuffer.drain(nowNanos);
+        notifyDrainPending(nowNanos);
+    }
+
+    /**
+     * Turns requesting missing packets with generic NACKs on or off
+     *
+     * @param enabled         Whether to send NACKs
+     * @param recoveryDelayMs Extra time the jitter buffer waits on a gap for a retransmission
+     */
+    synchronized void setNackEnabled(boolean enabled, int recoveryDelayMs) {
+        if (!enabled) {
+            nackGenerator = null;
+            jitterBuffer.setLossRecoveryDelay(0);
+        } else {
+            if (nackGenerator == null) nackGenerator = new RtpNackGenerator();
+            jitterBuffer.setLossRecoveryDelay(recoveryDelayMs);
+        }
+    }
+
+    /**
+     * Turns asking the sender for key frames on or off
+     */
+    synchronized void setKeyFrameRequestsEnabled(boolean enabled) {
+        keyFrameRequestsEnabled = enabled;
+        if (!enabled) pendingKeyFrameRequest = 0;
+    }
+
+    /**
+     * Adds the key frame request and generic NACKs that are due
+     *
+     * @param w          Writer of a compound packet that already holds its report
+     * @param senderSsrc SSRC of the stream sending the feedback
+     * @param nowNanos   Current time from {@link System#nanoTime()}
+     * @return Whether anything was added to w
+     */
+    synchronized boolean writeFeedback(RtcpCompoundWriter w, long senderSsrc, long nowNanos) {
+        boolean written = false;
+        if (pendingKeyFrameRequest != 0 && getKeyFrameRequestDelayNanos(nowNanos) == 0) {
+            if (pendingKeyFrameRequest == FeedbackRtcpPacket.FMT_FIR) {
+                w.addFullIntraRequest(senderSsrc, mediaSsrc, firSequenceNumber++);
+            } else {
+                w.addPictureLossIndication(senderSsrc, mediaSsrc);
+            }
+            pendingKeyFrameRequest = 0;
+            keyFrameRequested = true;
+            keyFrameRequestedNanos = nowNanos;
+            written = true;
+        }
+        if (nackGenerator != null) {
+            updateNackTiming();
+            if (nackGenerator.writeNacks(w, senderSsrc, nowNanos) > 0) written = true;
+        }
+        return written;
+    }
+
+    /**
+     * @param nowNanos Current time from {@link System#nanoTime()}
+     * @return Time until the next feedback is due, or -1 if none is pending
+     */
+    synchronized long getFeedbackDelayNanos(long nowNanos) {
+        long delay = nackGenerator == null ? -1 : nackGenerator.getDelayNanos(nowNanos);
+        if (pendingKeyFrameRequest != 0) {
+            long keyFrameDelay = getKeyFrameRequestDelayNanos(nowNanos);
+            if (delay < 0 || keyFrameDelay < delay) delay = keyFrameDelay;
+        }
+        return delay;
+    }
+
+    void setRtcpSession(RtcpScheduler.Session s) {
+        rtcpSession = s;
+    }
+
+    /**
+     * @param activeSinceNanos Sources not heard from since this time are not counted
+     * @return Number of remote sources that sent RTP or RTCP since activeSinceNanos
+     */
+    int countActiveSources(long activeSinceNanos) {
+        int n = 0;
+        for (RtpReceiverStatistics s : sources) {
+            if (s.isActiveSince(activeSinceNanos)) n++;
+        }
+        return n;
+    }
+
+    /**
+     * @param activeSinceNanos Sources that haven't sent RTP since this time are not counted
+     * @return Number of remote sources that sent RTP since activeSinceNanos
+     */
+    int countSenders(long activeSinceNanos) {
+        int n = 0;
+        for (RtpReceiverStatistics s : sources) {
+            if (s.hasSentSince(activeSinceNanos)) n++;
+        }
+        return n;
+    }
+
+    /**
+     * Adds a reception report block for every source that sent RTP since the last report. Only
+     * called from the RTCP scheduler thread.
+     * <p>
+     * Reference: https://tools.ietf.org/html/rfc3550#section-6.4.1
+     *
+     * @param w        Writer positioned in a sender or receiver report
+     * @param nowNanos Time of the report from {@link System#nanoTime()}
+     */
+    void addReportBlocks(RtcpCompoundWriter w, long nowNanos) {
+        RtpReceiverStatistics[] current = sources;
+        if (reportedSnapshots.length < current.length) {
+            RtpReceiverStatistics.Snapshot[] grown = new RtpReceiverStatistics.Snapshot[current.length];
+            System.arraycopy(reportedSnapshots, 0, grown, 0, reportedSnapshots.length);
+            reportedSnapshots = grown;
+        }
+
+        int blocks = 0;
+        for (int i = 0; i < current.length && blocks < RtcpCompoundWriter.MAX_COUNT; i++) {
+            RtpReceiverStatistics.Snapshot prior = reportedSnapshots[i];
+            RtpReceiverStatistics.Snapshot now = current[i].snapshot(reportScratch);
+            if (current[i].hasLeft() || now.received == 0) continue;
+            if (prior != null && now.received == prior.received) continue;
+
+            w.addReportBlock(now.ssrc, now.getFractionLost(prior), now.getCumulativeLost(),
+                    now.extendedHighestSequenceNumber, now.jitter, now.lastSenderReport,
+                    now.getDelaySinceLastSenderReport(nowNanos));
+            blocks++;
+
+            // Keep this snapshot for the next interval and reuse the old one as scratch
+            reportedSnapshots[i] = now;
+            reportScratch = prior != null ? prior : new RtpReceiverStatistics.Snapshot();
+        }
+    }
+
+    /**
+     * @return Snapshot of the reception statistics of every source heard from
+     */
+    List<RtpReceiverStatistics.Snapshot> getReceiverStatistics() {
+        RtpReceiverStatistics[] current = sources;
+        List<RtpReceiverStatistics.Snapshot> snapshots = new ArrayList<>(current.length);
+        for (RtpReceiverStatistics s : current) snapshots.add(s.snapshot());
+        return snapshots;
+    }
+
+    /**
+     * Handles a received RTP packet. Called from the stream's receive stage, one packet at a time.
+     */
+    void onRtp(RtpBuffer b) {
+        handleRtp(b);
     }
 
     @Subscribe(threadMode = ThreadMode.ASYNC)
     public void handleEvent(RtspSessionEvent.RtcpPacketReceived event) {
         Log.d(TAG, "handleEvent: RtspSessionEvent.RtcpPacketReceived");
-        handleRtcp(event.data);
+        handleRtcp(event.buffer);
     }
 
-    private void handleRtp(byte[] data) {
-        // TODO: Analyze RTP data (sequence number, timing, etc)
-        sendMediaData(data);
+    private synchronized void handleRtp(RtpBuffer b) {
+        if (rtpPacket.wrap(b)) {
+            // Released packets are wrapped in rtpPacket too, so read this one first
+            long ssrc = rtpPacket.getSsrc();
+            int sequenceNumber = rtpPacket.getSequenceNumber();
+            long timestamp = rtpPacket.getTimestamp();
+            long arrivalNanos = b.arrivalNanos;
+            RtpReceiverStatistics s = getSource(ssrc);
+            if (s != null) s.update(sequenceNumber, timestamp, arrivalNanos);
+            if (haveMediaSsrc && ssrc != mediaSsrc) {
+                // A new source numbers its packets independently of the old one
+                jitterBuffer.reset();
+                haveMediaTime = false;
+            }
+            mediaSsrc = ssrc;
+            haveMediaSsrc = true;
+            if (nackGenerator != null && nackGenerator.onPacket(ssrc, sequenceNumber, arrivalNanos)) {
+                updateNackTiming();
+                notifyFeedbackPending(nackGenerator.getDelayNanos(arrivalNanos));
+            }
+            // Retransmissions take the place of their gap here as long as it is still held back
+            jitterBuffer.insert(b, sequenceNumber, timestamp, arrivalNanos);
+            notifyDrainPending(arrivalNanos);
+        } else {
+            Log.w(TAG, "handleRtp: Dropping malformed RTP packet");
+            b.release();
+        }
     }
 
-    private void handleRtcp(byte[] data) {
-        // TODO: Analyze RTCP packet
+    /**
+     * Asks for a key frame unless a request is already pending
+     *
+     * @param format FeedbackRtcpPacket.FMT_FIR before the first key frame, FMT_PLI after losses
+     */
+    private void requestKeyFrame(int format) {
+        if (!keyFrameRequestsEnabled || pendingKeyFrameRequest != 0) return;
+        pendingKeyFrameRequest = format;
+        notifyFeedbackPending(getKeyFrameRequestDelayNanos(System.nanoTime()));
     }
 
     /**
-     * Remove RTP header and post the rtpMedia data
+     * A request is repeated at most every KEY_FRAME_REQUEST_INTERVAL_NANOS while frames keep arriving
+     * that can't be decoded
      * <p>
-     * Reference: https://tools.ietf.org/html/rfc3550#section-5.1
+     * Reference: https://tools.ietf.org/html/rfc4585#section-6.3.1.2
+     */
+    private long getKeyFrameRequestDelayNanos(long nowNanos) {
+        if (!keyFrameRequested) return 0;
+        return Math.max(0, keyFrameRequestedNanos + KEY_FRAME_REQUEST_INTERVAL_NANOS - nowNanos);
+    }
+
+    private void notifyFeedbackPending(long delayNanos) {
+        if (feedbackListener != null) feedbackListener.onFeedbackPending(delayNanos);
+    }
+
+    private void notifyDrainPending(long nowNanos) {
+        if (drainListener == null) return;
+        long delay = jitterBuffer.getDrainDelayNanos(nowNanos);
+        if (delay >= 0) drainListener.onDrainPending(delay);
+    }
+
+    /**
+     * Waits twice the jitter before requesting a packet and gives up when the jitter buffer would
      */
-    private void sendMediaData(byte[] rtpData) {
-        // TODO: The header length is dynamic, but 12 is the "normal" length
-        byte[] mediaData = Arrays.copyOfRange(rtpData, 12, rtpData.length);
+    private void updateNackTiming() {
+        long jitterNanos = (long) (jitterBuffer.getJitter() * 1000000000L / clockRate);
+        long reorderWait = Math.max(MIN_REORDER_WAIT_NANOS, 2 * jitterNanos);
+        long retryInterval = Math.max(RtpNackGenerator.DEFAULT_RETRY_INTERVAL_MS * 1000000L, reorderWait);
+        nackGenerator.setTiming(reorderWait, retryInterval, jitterBuffer.getTargetDelayNanos());
+    }
 
-        Log.d(TAG, "sendMediaData: Data length: " + mediaData.length);
+    @Override
+    public void onPacket(RtpBuffer b, long extendedSequenceNumber) {
+        if (rtpPacket.wrap(b)) {
+            if (depacketizer != null) {
+                depacketizer.depacketize(rtpPacket);
+            } else {
+                sendMediaData(rtpPacket);
+            }
+        }
+        b.release();
+    }
 
-        rtpMedia.streamEventBus.post(new RtspClientStreamEvent.MediaDataReceived(mediaData));
+    @Override
+    public void onPacketsLost(long firstExtendedSequenceNumber, int count) {
+        Log.w(TAG, "onPacketsLost: " + count + " packet(s) starting at " + firstExtendedSequenceNumber);
+        if (depacketizer != null) depacketizer.onPacketsLost();
+        // Frames referring to the lost data can't be decoded until the next key frame
+        waitingForKeyFrame = true;
     }
+
+    @Override
+    public void onFrame(RtpBuffer b, int offset, int length, long timestamp, boolean keyFrame) {
+        if (keyFrame) {
+            waitingForKeyFrame = false;
+            decodedKeyFrame = true;
+            pendingKeyFrameRequest = 0;
+            keyFrameRequested = false;
+        } else if (waitingForKeyFrame) {
+            requestKeyFrame(decodedKeyFrame ? FeedbackRtcpPacket.FMT_PLI : FeedbackRtcpPacket.FMT_FIR);
+        }
+        if (!deliver(b, offset, length, timestamp, keyFrame)) {
+            // Frames after the dropped one can't be decoded until the next key frame
+            waitingForKeyFrame = true;
+        }
+    }
+
+    /**
+     * Hands media data to the frame ring of the media, or posts it when there is none. Takes over the
+     * reference to b.
+     *
+     * @param rtpTimestamp RTP timestamp, delivered as media time in microseconds
+     * @return False if the frame ring was full and the data was dropped
+     */
+    private boolean deliver(RtpBuffer b, int offset, int length, long rtpTimestamp, boolean keyFrame) {
+        long timestamp = toMediaTimeUs(rtpTimestamp);
+        RingBuffer<RtspClientStreamEvent.MediaDataReceived> ring = rtpMedia.getFrameRing();
+        if (ring == null) {
+            rtpMedia.streamEventBus.post(new RtspClientStreamEvent.MediaDataReceived(b, offset, length, timestamp, keyFrame));
+            return true;
+        }
+        long seq = ring.tryClaim();
+        if (seq < 0) {
+            b.release();
+            return false;
+        }
+        ring.get(seq).set(b, offset, length, timestamp, keyFrame);
+        ring.publish(seq);
+        return true;
+    }
+
+    /**
+     * Counts RTP clock ticks from the first delivered data, across wraparounds, and converts them to
+     * microseconds
+     */
+    private long toMediaTimeUs(long rtpTimestamp) {
+        if (haveMediaTime) {
+            deliveredTicks += (int) (rtpTimestamp - lastDeliveredTimestamp);
+        } else {
+            haveMediaTime = true;
+            deliveredTicks = 0;
+        }
+        lastDeliveredTimestamp = rtpTimestamp;
+        return (deliveredTicks / clockRate) * 1000000L + (deliveredTicks % clockRate) * 1000000L / clockRate;
+    }
+
+    private RtpReceiverStatistics findSource(long ssrc) {
+        for (RtpReceiverStatistics s : sources) {
+            if (s.getSsrc() == ssrc) return s;
+        }
+        return null;
+    }
+
+    private RtpReceiverStatistics getSource(long ssrc) {
+        if (lastSource != null && lastSource.getSsrc() == ssrc) return lastSource;
+
+        RtpReceiverStatistics[] current = sources;
+        for (RtpReceiverStatistics s : current) {
+            if (s.getSsrc() == ssrc) return lastSource = s;
+        }
+        if (current.length >= MAX_SOURCES) return null;
+
+        RtpReceiverStatistics[] added = new RtpReceiverStatistics[current.length + 1];
+        System.arraycopy(current, 0, added, 0, current.length);
+        added[current.length] = new RtpReceiverStatistics(ssrc, clockRate);
+        sources = added;
+        return lastSource = added[current.length];
+    }
+
+    private synchronized void handleRtcp(RtpBuffer b) {
+        if (!rtcpPacket.wrap(b)) {
+            Log.w(TAG, "handleRtcp: Dropping malformed RTCP packet");
+            b.release();
+            return;
+        }
+
+        RtcpScheduler.Session session = rtcpSession;
+        if (session != null) session.onRtcpReceived(b.length);
+
+        boolean membersLeft = false;
+        while (rtcpPacket.next()) {
+            switch (rtcpPacket.getPacketType()) {
+                case RtcpPacket.PT_SR:
+                    SenderReportRtcpPacket sr = rtcpPacket.getSenderReport();
+                    if (sr != null) {
+                        RtpReceiverStatistics s = getSource(sr.getSsrc());
+                        if (s != null) s.onSenderReport(sr.getCompactNtpTimestamp(), b.arrivalNanos);
+                    }
+                    break;
+                case RtcpPacket.PT_BYE:
+                    GoodByeRtcpPacket bye = rtcpPacket.getGoodBye();
+                    if (bye != null) {
+                        Log.d(TAG, "handleRtcp: BYE from " + bye.getSourceCount() + " source(s), reason: "
+                                + bye.getReason());
+                        for (int i = 0; i < bye.getSourceCount(); i++) {
+                            RtpReceiverStatistics s = findSource(bye.getSource(i));
+                            if (s != null && !s.hasLeft()) {
+                                s.onGoodBye();
+                                membersLeft = true;
+                            }
+                        }
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        b.release();
+
+        if (membersLeft && session != null) session.onMembersLeft();
+    }
+
+    /**
+     * Remove RTP header (including CSRCs, header extension and padding) and deliver the rtpMedia data
+     * from the packet's buffer
+     * <p>
+     * Reference: https://tools.ietf.org/html/rfc3550#section-5.1
+     */
+    private void sendMediaData(RtpPacket p) {
+        RtpBuffer b = p.getRtpBuffer();
+        b.retain();
+        deliver(b, p.getPayloadOffset(), p.getPayloadLength(), p.getTimestamp(), false);
+    }
+
 }
@@ -0,0 +1,345 @@
+package com.devinbrown.streaminglib.rtp;
+
+/**
+ * Bounded reorder buffer that releases RTP packets in sequence number order
+ * <p>
+ * Packets are keyed by their extended (wraparound corrected) sequence number in a fixed ring of slots.
+ * A packet is released as soon as every packet before it has been released. When a sequence number is
+ * missing, later packets are held back until the oldest of them has waited for the target delay, after
+ * which the gap is declared lost and skipped.
+ * <p>
+ * The target delay follows the interarrival jitter (RFC 3550 section 6.4.1) and is clamped between the
+ * configured minimum and maximum latency. When lost packets are requested again, a loss recovery delay
+ * is added on top so retransmissions can still take the place of the gap. The number of packets held
+ * is capped, so a long gap can't hold on to more than a fixed number of buffers.
+ * <p>
+ * A packet more than MAX_MISORDER behind the highest sequence number is dropped, unless the next one
+ * follows it, in which case the sender is taken to have restarted: everything held is released and
+ * the buffer starts over from there, like the sequence number validation of RFC 3550 appendix A.1.
+ * <p>
+ * Not thread safe. Callers must serialize access.
+ */
+public class RtpJitterBuffer {
+    public static final int DEFAULT_MAX_PACKETS = 64;
+    public static final int DEFAULT_MIN_LATENCY_MS = 20;
+    public static final int DEFAULT_MAX_LATENCY_MS = 200;
+
+    // Target delay in units of measured jitter
+    private static final int JITTER_MULTIPLIER = 4;
+
+    private static final int RTP_SEQ_MOD = 1 << 16;
+    private static final int MAX_MISORDER = 100;
+
+    public interface Listener {
+        /**
+         * Called for each packet in sequence order. The listener takes ownership of the buffer.
+         */
+        void onPacket(RtpBuffer b, long extendedSequenceNumber);
+
+        /**
+         * Called when packets were given up on
+         *
+         * @param firstExtendedSequenceNumber Extended sequence number of the first missing packet
+         * @param count                       Number of consecutive packets missing
+         */
+        void onPacketsLost(long firstExtendedSequenceNumber, int count);
+    }
+
+    private final Listener listener;
+    private final int clockRate;
+
+    private RtpBuffer[] slots;
+    private long[] arrivals;
+    private int mask;
+    private int maxPackets;
+    private long minLatencyNanos;
+    private long maxLatencyNanos;
+    private long recoveryDelayNanos;
+
+    private boolean started;
+    private long highest;       // Highest extended sequence number seen
+    private long next;          // Next extended sequence number to release
+    private int buffered;
+    // Sequence number that confirms a restart if it arrives next, or -1
+    private int badSeq = -1;
+
+    // Jitter estimate (RFC 3550 A.8) in RTP timestamp units
+    private double jitter;
+    private boolean haveLast;
+    private long lastTimestamp;
+    private long lastArrivalNanos;
+
+    private long released;
+    private long lost;
+    private long late;
+    private long duplicates;
+
+    /**
+     * @param l         Receives packets in order
+     * @param clockRate RTP clock rate of the stream, used to convert jitter to time
+     */
+    public RtpJitterBuffer(Listener l, int clockRate) {
+        this(l, clockRate, DEFAULT_MAX_PACKETS, DEFAULT_MIN_LATENCY_MS, DEFAULT_MAX_LATENCY_MS);
+    }
+
+    /**
+     * @param l            Receives packets in order
+     * @param clockRate    RTP clock rate of the stream, used to convert jitter to time
+     * @param maxPackets   Maximum number of packets held at once
+     * @param minLatencyMs Minimum time a packet waits for a missing predecessor
+     * @param maxLatencyMs Maximum time a packet waits for a missing predecessor
+     */
+    public RtpJitterBuffer(Listener l, int clockRate, int maxPackets, int minLatencyMs, int maxLatencyMs) {
+        if (clockRate <= 0) throw new IllegalArgumentException("Invalid clock rate: " + clockRate);
+        listener = l;
+        this.clockRate = clockRate;
+        setLimits(maxPackets, minLatencyMs, maxLatencyMs);
+    }
+
+    /**
+     * Changes the latency and memory caps. Any packets currently held are released first.
+     *
+     * @param maxPackets   Maximum number of packets held at once
+     * @param minLatencyMs Minimum time a packet waits for a missing predecessor
+     * @param maxLatencyMs Maximum time a packet waits for a missing predecessor
+     */
+    public void setLimits(int maxPackets, int minLatencyMs, int maxLatencyMs) {
+        if (maxPackets < 1) throw new IllegalArgumentException("maxPackets must be at least 1");
+        if (minLatencyMs < 0 || maxLatencyMs < minLatencyMs) {
+            throw new IllegalArgumentException("Invalid latency range: " + minLatencyMs + "-" + maxLatencyMs);
+        }
+
+        if (slots != null) flush();
+
+        // The ring spans twice the packet cap so held packets can sit behind a gap
+        int capacity = Integer.highestOneBit(maxPackets * 2);
+        if (capacity < maxPackets * 2) capacity <<= 1;
+        slots = new RtpBuffer[capacity];
+        arrivals = new long[capacity];
+        mask = capacity - 1;
+        this.maxPackets = maxPackets;
+        minLatencyNanos = minLatencyMs * 1000000L;
+        maxLatencyNanos = maxLatencyMs * 1000000L;
+    }
+
+    /**
+     * Sets the extra time a gap is waited on for a retransmission of the missing packets, e.g. the
+     * round trip of a NACK. The target delay still doesn't exceed the maximum latency.
+     *
+     * @param recoveryDelayMs Time added to the jitter derived delay, 0 when nothing is retransmitted
+     */
+    public void setLossRecoveryDelay(int recoveryDelayMs) {
+        if (recoveryDelayMs < 0) throw new IllegalArgumentException("Invalid loss recovery delay: " + recoveryDelayMs);
+        recoveryDelayNanos = recoveryDelayMs * 1000000L;
+    }
+
+    /**
+     * Adds a packet and releases every packet that is now ready
+     *
+     * @param b              Packet buffer. Ownership passes to the jitter buffer.
+     * @param sequenceNumber 16 bit RTP sequence number
+     * @param timestamp      RTP timestamp
+     * @param arrivalNanos   Arrival time from {@link System#nanoTime()}
+     */
+    public void insert(RtpBuffer b, int sequenceNumber, long timestamp, long arrivalNanos) {
+        long ext = extend(sequenceNumber);
+        if (highest - ext > MAX_MISORDER) {
+            if (sequenceNumber != badSeq) {
+                // Very late, or the first packet of a sender that restarted lower
+                badSeq = (sequenceNumber + 1) & (RTP_SEQ_MOD - 1);
+                late++;
+                b.release();
+                drain(arrivalNanos);
+                return;
+            }
+            // Two sequential packets: the sender restarted without telling us
+            reset();
+            ext = extend(sequenceNumber);
+        }
+        updateJitter(timestamp, arrivalNanos);
+
+        if (ext < next) {
+            // Already released or given up on
+            late++;
+            b.release();
+        } else {
+            // Make room if the packet is too far ahead of the playout point
+            while (ext - next >= slots.length || (buffered >= maxPackets && slots[(int) ext & mask] == null)) {
+                if (buffered == 0) {
+                    // Nothing held and the stream jumped far ahead: resynchronize on this packet
+                    lost += ext - next;
+                    listener.onPacketsLost(next, (int) Math.min(Integer.MAX_VALUE, ext - next));
+                    next = ext;
+                    break;
+                }
+                skipToNextBuffered();
+            }
+
+            int i = (int) ext & mask;
+            if (ext < next) {
+                late++;
+                b.release();
+            } else if (slots[i] != null) {
+                duplicates++;
+                b.release();
+            } else {
+                slots[i] = b;
+                arrivals[i] = arrivalNanos;
+                buffered++;
+            }
+        }
+
+        drain(arrivalNanos);
+    }
+
+    /**
+     * Releases packets whose missing predecessors have been waited on long enough. Call when
+     * {@link #getDrainDelayNanos(long)} says so, since no packet may arrive to do it.
+     *
+     * @param nowNanos Current time from {@link System#nanoTime()}
+     */
+    public void drain(long nowNanos) {
+        long delay = getTargetDelayNanos();
+        while (buffered > 0) {
+            int i = (int) next & mask;
+            if (slots[i] != null) {
+                release(i);
+                continue;
+            }
+
+            // Gap: wait for it unless the first packet after it has waited long enough
+            int firstHeld = findFirstBuffered();
+            if (nowNanos - arrivals[firstHeld] < delay) break;
+            skipToNextBuffered();
+        }
+    }
+
+    /**
+     * @param nowNanos Current time from {@link System#nanoTime()}
+     * @return Time until {@link #drain(long)} gives up on the gap packets are held behind, or -1 if
+     * none are held
+     */
+    public long getDrainDelayNanos(long nowNanos) {
+        if (buffered == 0) return -1;
+        long due = arrivals[findFirstBuffered()] + getTargetDelayNanos();
+        return Math.max(0, due - nowNanos);
+    }
+
+    /**
+     * Releases everything held, skipping over gaps
+     */
+    public void flush() {
+        while (buffered > 0) skipToNextBuffered();
+    }
+
+    /**
+     * Releases everything held and starts over with the next packet, e.g. when the source changed
+     */
+    public void reset() {
+        flush();
+        started = false;
+        haveLast = false;
+        badSeq = -1;
+    }
+
+    /**
+     * @return Current target delay, derived from the measured jitter
+     */
+    public long getTargetDelayNanos() {
+        long jitterNanos = (long) (jitter * 1000000000L / clockRate);
+        long d = JITTER_MULTIPLIER * jitterNanos + recoveryDelayNanos;
+        if (d < minLatencyNanos) d = minLatencyNanos;
+        if (d > maxLatencyNanos) d = maxLatencyNanos;
+        return d;
+    }
+
+    /**
+     * @return Interarrival jitter in RTP timestamp units
+     */
+    public double getJitter() {
+        return jitter;
+    }
+
+    public int getBuffered() {
+        return buffered;
+    }
+
+    public long getReleased() {
+        return released;
+    }
+
+    public long getLost() {
+        return lost;
+    }
+
+    public long getLate() {
+        return late;
+    }
+
+    public long getDuplicates() {
+        return duplicates;
+    }
+
+    /**
+     * Converts a 16 bit sequence number to the extended sequence number closest to the highest seen
+     */
+    private long extend(int sequenceNumber) {
+        if (!started) {
+            started = true;
+            highest = sequenceNumber;
+            next = sequenceNumber;
+            return sequenceNumber;
+        }
+
+        int delta = (short) (sequenceNumber - (int) (highest & 0xFFFF));
+        long ext = highest + delta;
+        if (ext > highest) highest = ext;
+        return ext;
+    }
+
+    /**
+     * Reference: https://tools.ietf.org/html/rfc3550#appendix-A.8
+     */
+    private void updateJitter(long timestamp, long arrivalNanos) {
+        if (haveLast) {
+            // D(i,j) = (Rj - Ri) - (Sj - Si), with the timestamp difference taken modulo 2^32
+            double arrivalDelta = (arrivalNanos - lastArrivalNanos) * (double) clockRate / 1000000000L;
+            int timestampDelta = (int) (timestamp - lastTimestamp);
+            double d = Math.abs(arrivalDelta - timestampDelta);
+            jitter += (d - jitter) / 16.0;
+        }
+        lastTimestamp = timestamp;
+        lastArrivalNanos = arrivalNanos;
+        haveLast = true;
+    }
+
+    private int findFirstBuffered() {
+        for (long s = next; ; s++) {
+            int i = (int) s & mask;
+            if (slots[i] != null) return i;
+        }
+    }
+
+    /**
+     * Declares everything up to the next held packet lost and releases that packet
+     */
+    private void skipToNextBuffered() {
+        long first = next;
+        while (slots[(int) next & mask] == null) next++;
+        int missing = (int) (next - first);
+        if (missing > 0) {
+            lost += missing;
+            listener.onPacketsLost(first, missing);
+        }
+        release((int) next & mask);
+    }
+
+    private void release(int i) {
+        RtpBuffer b = slots[i];
+        slots[i] = null;
+        buffered--;
+        released++;
+        listener.onPacket(b, next);
+        next++;
+    }
+}
@@ -0,0 +1,280 @@
+package com.devinbrown.streaminglib.rtp;
+
+import android.util.Log;
+import android.util.Pair;
+
+import com.devinbrown.streaminglib.media.RtpMedia;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Sends one media to a multicast group once, for every viewer that set it up with multicast delivery
+ * <p>
+ * The group subscribes to the {@link RtpFanOut} of the media like a unicast {@link RtpServerStream}
+ * does, so the server's egress for a media stays the same however many multicast viewers join. Each
+ * media gets its own group address and port pair from an administratively scoped range, allocated
+ * when its first viewer joins and released after its last viewer leaves. The group sends its own
+ * sender reports to the group's RTCP port, counting its viewers as members.
+ * <p>
+ * Reference: https://tools.ietf.org/html/rfc2326#section-12.39
+ */
+public class RtpMulticastGroup implements RtpFanOut.Subscriber, RtcpScheduler.Participant {
+    private static final String TAG = "RtpMulticastGroup";
+
+    // Organization-local scope
+    // Reference: https://tools.ietf.org/html/rfc2365#section-6.2
+    private static final String DEFAULT_FIRST_ADDRESS = "239.255.42.0";
+    private static final int DEFAULT_FIRST_PORT = 52000;
+    public static final int DEFAULT_TTL = 16;
+    static final int MAX_GROUPS = 256;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private static final Map<RtpMedia, RtpMulticastGroup> groups = new HashMap<>();
+    private static InetAddress firstAddress;
+    private static int firstPort = DEFAULT_FIRST_PORT;
+    private static int ttl = DEFAULT_TTL;
+
+    private final RtpMedia media;
+    private final int index;
+    private final InetAddress address;
+    private final Pair<Integer, Integer> ports;
+    private final int groupTtl;
+    private final DatagramChannel channel;
+    private final DatagramChannel rtcpChannel;
+    private final InetSocketAddress rtcpDestination;
+    private int viewers;
+
+    private final long ssrc = RANDOM.nextInt() & 0xFFFFFFFFL;
+    private final RtpHeaderWriter headerWriter;
+    private final RtpSenderStatistics senderStatistics;
+    private RtcpScheduler.Session rtcpSession;
+
+    // Rewritten header of the packet being sent, guarded by itself
+    private final byte[] header = new byte[RtpPacket.FIXED_HEADER_LENGTH];
+    private final ByteBuffer headerBuffer = ByteBuffer.wrap(header);
+    private final ByteBuffer[] gather = {headerBuffer, null};
+
+    private RtpMulticastGroup(RtpMedia m, int index, InetAddress address, int rtpPort, int ttl) throws IOException {
+        media = m;
+        this.index = index;
+        this.address = address;
+        ports = new Pair<>(rtpPort, rtpPort + 1);
+        groupTtl = ttl;
+        headerWriter = new RtpHeaderWriter(ssrc, RtpPacketizer.getPayloadType(m), m.getClockRate());
+        senderStatistics = new RtpSenderStatistics(m.getClockRate());
+        rtcpDestination = new InetSocketAddress(address, rtpPort + 1);
+
+        channel = DatagramChannel.open(StandardProtocolFamily.INET);
+        DatagramChannel rtcp = null;
+        try {
+            channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, ttl);
+            channel.connect(new InetSocketAddress(address, rtpPort));
+            rtcp = DatagramChannel.open(StandardProtocolFamily.INET);
+            rtcp.setOption(StandardSocketOptions.IP_MULTICAST_TTL, ttl);
+        } catch (IOException e) {
+            channel.close();
+            if (rtcp != null) rtcp.close();
+            throw e;
+        }
+        rtcpChannel = rtcp;
+    }
+
+    /**
+     * Sets the addresses, ports and TTL of groups created from now on. Group n uses the nth address
+     * after firstAddress and the ports firstPort + 2n and firstPort + 2n + 1.
+     *
+     * @param first    First group address, e.g. 239.255.42.0
+     * @param port     First RTP port, even
+     * @param groupTtl Time to live of sent packets
+     */
+    public static void setAddressRange(InetAddress first, int port, int groupTtl) {
+        if (!first.isMulticastAddress()) throw new IllegalArgumentException("Not a multicast address: " + first);
+        if (port % 2 != 0 || port + 2 * MAX_GROUPS > 0xFFFF) throw new IllegalArgumentException("Invalid port: " + port);
+        synchronized (groups) {
+            firstAddress = first;
+            firstPort = port;
+            ttl = groupTtl;
+        }
+    }
+
+    /**
+     * Adds a viewer to the group of a media, creating the group for the first viewer
+     *
+     * @param m Media to receive
+     * @return Group the media is sent to
+     * @throws IOException Unable to create the group's socket, or every group address is in use
+     */
+    static RtpMulticastGroup join(RtpMedia m) throws IOException {
+        synchronized (groups) {
+            RtpMulticastGroup g = groups.get(m);
+            if (g == null) {
+                int i = findFreeIndex();
+                if (i < 0) throw new IOException("No free multicast group address");
+                if (firstAddress == null) firstAddress = InetAddress.getByName(DEFAULT_FIRST_ADDRESS);
+                g = new RtpMulticastGroup(m, i, groupAddress(firstAddress, i), firstPort + 2 * i, ttl);
+                groups.put(m, g);
+                RtpFanOut.subscribe(m, g);
+                g.rtcpSession = RtcpScheduler.getDefault().add(g);
+                Log.d(TAG, "join: Sending " + m.control + " to " + g.address.getHostAddress() + ":" + g.ports.first);
+            }
+            g.viewers++;
+            return g;
+        }
+    }
+
+    /**
+     * Removes a viewer, closing the group after the last one
+     */
+    void leave() {
+        synchronized (groups) {
+            if (viewers == 0 || --viewers > 0) return;
+            groups.remove(media);
+            RtpFanOut.unsubscribe(media, this);
+        }
+        rtcpSession.close(true, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    channel.close();
+                    rtcpChannel.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "leave: " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    public InetAddress getAddress() {
+        return address;
+    }
+
+    /**
+     * @return RTP and RTCP port of the group
+     */
+    public Pair<Integer, Integer> getPorts() {
+        return ports;
+    }
+
+    public int getTtl() {
+        return groupTtl;
+    }
+
+    /**
+     * @return Number of viewers that set up this group
+     */
+    public int getViewerCount() {
+        synchronized (groups) {
+            return viewers;
+        }
+    }
+
+    /**
+     * Send a packet from the {@link RtpFanOut} to the group with the group's SSRC, sequence number and
+     * timestamp
+     */
+    @Override
+    public void onRtpPacket(RtpBuffer b) {
+        try {
+            synchronized (header) {
+                int headerLength = headerWriter.translate(b.data, 0, header, 0);
+                headerBuffer.clear();
+                headerBuffer.limit(headerLength);
+                synchronized (b) {
+                    gather[1] = b.byteBuffer(RtpPacket.FIXED_HEADER_LENGTH, b.length - RtpPacket.FIXED_HEADER_LENGTH);
+                    channel.write(gather);
+                }
+                senderStatistics.onPacketSent(RtpPacket.readUnsignedInt(header, 4),
+                        b.length - RtpPacket.FIXED_HEADER_LENGTH, System.nanoTime());
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "onRtpPacket: Unable to send RTP: " + e.getMessage());
+        } finally {
+            b.release();
+        }
+    }
+
+    /**
+     * Viewers that set up the group, plus the group itself
+     */
+    @Override
+    public int getMemberCount(long activeSinceNanos) {
+        return getViewerCount() + 1;
+    }
+
+    @Override
+    public int getSenderCount(long activeSinceNanos) {
+        return senderStatistics.hasSentSince(activeSinceNanos) ? 1 : 0;
+    }
+
+    @Override
+    public boolean isSender() {
+        return senderStatistics.isSender();
+    }
+
+    @Override
+    public double getRtcpBandwidth() {
+        return RtpStream.getRtcpBandwidth(media);
+    }
+
+    /**
+     * Sends a sender report with SDES CNAME (and BYE when closing) to the group
+     */
+    @Override
+    public int sendReport(RtcpCompoundWriter w, RtpBuffer b, boolean goodBye) {
+        w.start(b);
+        senderStatistics.beginReport(w, ssrc, System.nanoTime());
+        w.beginSourceDescription();
+        w.addSourceDescriptionChunk(ssrc);
+        w.addSourceDescriptionItem(SourceDescriptionRtcpPacket.ITEM_CNAME, RtpStream.CNAME);
+        if (goodBye) w.addGoodBye(ssrc, null);
+        int length = w.finish();
+
+        ByteBuffer bb = b.byteBuffer;
+        bb.clear();
+        bb.limit(length);
+        try {
+            rtcpChannel.send(bb, rtcpDestination);
+            return length;
+        } catch (IOException e) {
+            Log.w(TAG, "sendReport: Unable to send RTCP: " + e.getMessage());
+            return 0;
+        }
+    }
+
+    /**
+     * @return Lowest group index not in use, or -1
+     */
+    private static int findFreeIndex() {
+        boolean[] used = new boolean[MAX_GROUPS];
+        for (RtpMulticastGroup g : groups.values()) used[g.index] = true;
+        for (int i = 0; i < MAX_GROUPS; i++) {
+            if (!used[i]) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * @return The address index places after first
+     */
+    static InetAddress groupAddress(InetAddress first, int index) throws UnknownHostException {
+        byte[] a = first.getAddress();
+        int carry = index;
+        for (int i = a.length - 1; i >= 0 && carry != 0; i--) {
+            int v = (a[i] & 0xFF) + carry;
+            a[i] = (byte) v;
+            carry = v >> 8;
+        }
+        return InetAddress.getByAddress(a);
+    }
+}
@@ -0,0 +1,234 @@
+package com.devinbrown.streaminglib.rtp;
+
+/**
+ * Finds packets missing from a received RTP stream and builds the generic NACKs asking for them again
+ * <p>
+ * Every sequence number skipped over is remembered in a ring indexed by its low bits. A missing
+ * packet is first requested after a short wait, so packets that were only reordered aren't asked for,
+ * and again after each retry interval until it arrives, it was requested a fixed number of times or
+ * the jitter buffer would have given up on it anyway. Missing packets close to each other are packed
+ * into one PID and bitmask item.
+ * <p>
+ * Not thread safe. Callers must serialize access.
+ * <p>
+ * Reference: https://tools.ietf.org/html/rfc4585#section-6.2.1
+ */
+public class RtpNackGenerator {
+    public static final int DEFAULT_MAX_REQUESTS = 3;
+    public static final int DEFAULT_RETRY_INTERVAL_MS = 40;
+
+    // Span of sequence numbers tracked. Larger jumps are taken as a restart of the sender.
+    static final int CAPACITY = 256;
+    private static final int MASK = CAPACITY - 1;
+
+    // Packets a PID and bitmask item covers
+    private static final int ITEM_SPAN = 17;
+
+    private final boolean[] missing = new boolean[CAPACITY];
+    private final long[] detectedNanos = new long[CAPACITY];
+    private final long[] requestedNanos = new long[CAPACITY];
+    private final int[] requests = new int[CAPACITY];
+
+    private boolean started;
+    private long mediaSsrc;
+    private long highest;       // Highest extended sequence number seen
+    private long oldest;        // No packet before this one is missing
+    private int missingCount;
+
+    private int maxRequests = DEFAULT_MAX_REQUESTS;
+    private long reorderWaitNanos;
+    private long retryIntervalNanos = DEFAULT_RETRY_INTERVAL_MS * 1000000L;
+    private long giveUpNanos = RtpJitterBuffer.DEFAULT_MAX_LATENCY_MS * 1000000L;
+
+    private long requested;
+    private long recovered;
+    private long abandoned;
+
+    /**
+     * @param reorderWaitNanos   Wait before a missing packet is first requested, in case it was only
+     *                           reordered
+     * @param retryIntervalNanos Wait before a packet is requested again
+     * @param giveUpNanos        Time after which a missing packet is no longer useful
+     */
+    public void setTiming(long reorderWaitNanos, long retryIntervalNanos, long giveUpNanos) {
+        this.reorderWaitNanos = reorderWaitNanos;
+        this.retryIntervalNanos = retryIntervalNanos;
+        this.giveUpNanos = giveUpNanos;
+    }
+
+    /**
+     * @param n Times a missing packet is requested at most
+     */
+    public void setMaxRequests(int n) {
+        if (n < 1) throw new IllegalArgumentException("maxRequests must be at least 1");
+        maxRequests = n;
+    }
+
+    /**
+     * Records a received packet
+     *
+     * @param ssrc           SSRC of the packet. Packets of a new source start over.
+     * @param sequenceNumber 16 bit RTP sequence number
+     * @param arrivalNanos   Arrival time from {@link System#nanoTime()}
+     * @return Whether the packet revealed new missing packets
+     */
+    public boolean onPacket(long ssrc, int sequenceNumber, long arrivalNanos) {
+        if (!started || ssrc != mediaSsrc) {
+            reset();
+            started = true;
+            mediaSsrc = ssrc;
+            highest = sequenceNumber;
+            oldest = highest + 1;
+            return false;
+        }
+
+        long ext = highest + (short) (sequenceNumber - (int) (highest & 0xFFFF));
+        if (ext <= highest) {
+            // Reordered or retransmitted
+            int i = (int) ext & MASK;
+            if (highest - ext < CAPACITY && missing[i]) {
+                clear(i);
+                recovered++;
+            }
+            return false;
+        }
+
+        if (ext - highest > CAPACITY) {
+            // Too far ahead to be loss worth recovering: resynchronize on this packet
+            reset();
+            started = true;
+            mediaSsrc = ssrc;
+            highest = ext;
+            oldest = ext + 1;
+            return false;
+        }
+
+        // Forget packets that fall out of the ring
+        long first = ext - CAPACITY + 1;
+        for (; oldest < first; oldest++) {
+            int i = (int) oldest & MASK;
+            if (missing[i]) {
+                clear(i);
+                abandoned++;
+            }
+        }
+
+        boolean added = false;
+        for (long s = highest + 1; s < ext; s++) {
+            int i = (int) s & MASK;
+            missing[i] = true;
+            detectedNanos[i] = arrivalNanos;
+            requests[i] = 0;
+            missingCount++;
+            added = true;
+        }
+        clear((int) ext & MASK);
+        highest = ext;
+        return added;
+    }
+
+    /**
+     * @param nowNanos Current time from {@link System#nanoTime()}
+     * @return Time until a missing packet is due to be requested, or -1 if none is missing
+     */
+    public long getDelayNanos(long nowNanos) {
+        if (missingCount == 0) return -1;
+        long delay = Long.MAX_VALUE;
+        for (long s = oldest; s < highest; s++) {
+            int i = (int) s & MASK;
+            if (!missing[i]) continue;
+            long due = requests[i] == 0 ? detectedNanos[i] + reorderWaitNanos : requestedNanos[i] + retryIntervalNanos;
+            delay = Math.min(delay, Math.max(0, due - nowNanos));
+        }
+        return delay;
+    }
+
+    /**
+     * Adds a generic NACK for every missing packet that is due, and forgets packets given up on
+     *
+     * @param w          Writer of a compound packet that already holds its report
+     * @param senderSsrc SSRC of the stream sending the feedback
+     * @param nowNanos   Current time from {@link System#nanoTime()}
+     * @return Number of packets requested, 0 if nothing was added to w
+     */
+    public int writeNacks(RtcpCompoundWriter w, long senderSsrc, long nowNanos) {
+        int n = 0;
+        long pid = -1;
+        int bitmask = 0;
+        for (long s = oldest; s < highest && missingCount > 0; s++) {
+            int i = (int) s & MASK;
+            if (!missing[i]) {
+                if (s == oldest) oldest++;
+                continue;
+            }
+
+            if (nowNanos - detectedNanos[i] >= giveUpNanos || requests[i] >= maxRequests) {
+                clear(i);
+                abandoned++;
+                if (s == oldest) oldest++;
+                continue;
+            }
+
+            long due = requests[i] == 0 ? detectedNanos[i] + reorderWaitNanos : requestedNanos[i] + retryIntervalNanos;
+            if (due - nowNanos > 0) continue;
+
+            if (pid >= 0 && s - pid < ITEM_SPAN) {
+                bitmask |= 1 << (s - pid - 1);
+            } else {
+                if (pid >= 0) w.addGenericNackItem((int) pid, bitmask);
+                else w.beginGenericNack(senderSsrc, mediaSsrc);
+                pid = s;
+                bitmask = 0;
+            }
+            requests[i]++;
+            requestedNanos[i] = nowNanos;
+            n++;
+        }
+        if (pid >= 0) w.addGenericNackItem((int) pid, bitmask);
+        requested += n;
+        return n;
+    }
+
+    /**
+     * Forgets every missing packet, e.g. when the stream is torn down
+     */
+    public void reset() {
+        for (int i = 0; i < CAPACITY; i++) missing[i] = false;
+        missingCount = 0;
+        started = false;
+    }
+
+    /**
+     * @return Number of packets currently missing
+     */
+    public int getMissingCount() {
+        return missingCount;
+    }
+
+    /**
+     * @return Packet requests sent, counting each retry
+     */
+    public long getRequested() {
+        return requested;
+    }
+
+    /**
+     * @return Missing packets that arrived late or were retransmitted
+     */
+    public long getRecovered() {
+        return recovered;
+    }
+
+    /**
+     * @return Missing packets given up on
+     */
+    public long getAbandoned() {
+        return abandoned;
+    }
+
+    private void clear(int i) {
+        if (!missing[i]) return;
+        missing[i] = false;
+        missingCount--;
+    }
+}
@@ -1,9 +1,235 @@
 package com.devinbrown.streaminglib.rtp;
 
+import java.nio.ByteBuffer;
+
 /**
+ * Flyweight view of an RTP packet
+ * <p>
+ * A single instance can be pointed at one packet after another with {@link #wrap}. Nothing is copied
+ * and nothing is allocated: every accessor reads straight from the wrapped bytes, and the payload is
+ * described by {@link #getPayloadOffset()} and {@link #getPayloadLength()} into {@link #getBuffer()}.
+ * <p>
  * Reference: https://tools.ietf.org/html/rfc3550#section-5
  */
 
+//     0                   1                   2                   3
+//     0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1
+//    +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+//    |V=2|P|X|  CC   |M|     PT      |       sequence number         |
+//    +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+//    |                           timestamp                           |
+//    +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+//    |           synchronization source (SSRC) identifier            |
+//    +=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+
+//    |            contributing source (CSRC) identifiers             |
+//    |                             ....                              |
+//    +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+//    |      defined by profile       |           length              |
+//    +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+//    |                        header extension                       |
+//    |                             ....                              |
+//    +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+
 public class RtpPacket {
+    public static final int VERSION = 2;
+    public static final int FIXED_HEADER_LENGTH = 12;
+
+    byte[] buffer;
+    int offset;
+    int length;
+
+    // Pooled buffer the packet was wrapped from, if any
+    private RtpBuffer source;
+
+    private int headerLength;
+    private int paddingLength;
+
+    /**
+     * Points this view at a packet held in a pooled buffer
+     *
+     * @param b Buffer holding one RTP packet
+     * @return false if the bytes are not a valid RTP packet
+     */
+    public boolean wrap(RtpBuffer b) {
+        boolean valid = wrap(b.data, 0, b.length);
+        source = b;
+        return valid;
+    }
+
+    /**
+     * Points this view at the remaining bytes of a heap ByteBuffer
+     *
+     * @param bb Heap ByteBuffer positioned at the start of an RTP packet
+     * @return false if the bytes are not a valid RTP packet
+     */
+    public boolean wrap(ByteBuffer bb) {
+        if (!bb.hasArray()) throw new IllegalArgumentException("RtpPacket requires a heap ByteBuffer");
+        return wrap(bb.array(), bb.arrayOffset() + bb.position(), bb.remaining());
+    }
+
+    /**
+     * Points this view at a region of a byte array and validates the header
+     *
+     * @param data   Array holding the packet
+     * @param offset Start of the packet
+     * @param length Length of the packet
+     * @return false if the bytes are not a valid RTP packet
+     */
+    public boolean wrap(byte[] data, int offset, int length) {
+        buffer = data;
+        this.offset = offset;
+        this.length = length;
+        source = null;
+        headerLength = 0;
+        paddingLength = 0;
+
+        if (length < FIXED_HEADER_LENGTH || getVersion() != VERSION) return false;
+
+        int h = FIXED_HEADER_LENGTH + 4 * getCsrcCount();
+        if (hasExtension()) {
+            if (length < h + 4) return false;
+            h += 4 + 4 * readUnsignedShort(data, offset + h + 2);
+        }
+        if (length < h) return false;
+
+        int p = 0;
+        if (hasPadding()) {
+            p = data[offset + length - 1] & 0xFF;
+            if (p == 0 || h + p > length) return false;
+        }
+
+        headerLength = h;
+        paddingLength = p;
+        return true;
+    }
+
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * @return The RtpBuffer this packet was wrapped from, or null if it was wrapped from an array
+     */
+    public RtpBuffer getRtpBuffer() {
+        return source;
+    }
+
+    public int getVersion() {
+        return (buffer[offset] & 0xC0) >>> 6;
+    }
+
+    public boolean hasPadding() {
+        return (buffer[offset] & 0x20) != 0;
+    }
+
+    public boolean hasExtension() {
+        return (buffer[offset] & 0x10) != 0;
+    }
+
+    public int getCsrcCount() {
+        return buffer[offset] & 0x0F;
+    }
+
+    public boolean getMarker() {
+        return (buffer[offset + 1] & 0x80) != 0;
+    }
+
+    public int getPayloadType() {
+        return buffer[offset + 1] & 0x7F;
+    }
+
+    public int getSequenceNumber() {
+        return readUnsignedShort(buffer, offset + 2);
+    }
+
+    public long getTimestamp() {
+        return readUnsignedInt(buffer, offset + 4);
+    }
+
+    public long getSsrc() {
+        return readUnsignedInt(buffer, offset + 8);
+    }
+
+    /**
+     * @param i Index of the CSRC, from 0 to {@link #getCsrcCount()} - 1
+     * @return The CSRC identifier
+     */
+    public long getCsrc(int i) {
+        if (i < 0 || i >= getCsrcCount()) throw new IndexOutOfBoundsException("CSRC index " + i);
+        return readUnsignedInt(buffer, offset + FIXED_HEADER_LENGTH + 4 * i);
+    }
+
+    /**
+     * @return The profile defined 16 bits of the header extension, or -1 if there is no extension
+     */
+    public int getExtensionProfile() {
+        if (!hasExtension()) return -1;
+        return readUnsignedShort(buffer, offset + FIXED_HEADER_LENGTH + 4 * getCsrcCount());
+    }
+
+    /**
+     * @return Offset into {@link #getBuffer()} of the header extension data, after its 4 byte header
+     */
+    public int getExtensionOffset() {
+        return offset + FIXED_HEADER_LENGTH + 4 * getCsrcCount() + 4;
+    }
+
+    /**
+     * @return Length in bytes of the header extension data, or 0 if there is no extension
+     */
+    public int getExtensionLength() {
+        if (!hasExtension()) return 0;
+        return 4 * readUnsignedShort(buffer, offset + FIXED_HEADER_LENGTH + 4 * getCsrcCount() + 2);
+    }
+
+    public int getHeaderLength() {
+        return headerLength;
+    }
+
+    public int getPaddingLength() {
+        return paddingLength;
+    }
+
+    /**
+     * @return Offset into {@link #getBuffer()} of the first payload byte
+     */
+    public int getPayloadOffset() {
+        return offset + headerLength;
+    }
+
+    /**
+     * @return Payload length, excluding any padding
+     */
+    public int getPayloadLength() {
+        return length - headerLength - paddingLength;
+    }
+
+    /**
+     * Copies the payload into the given array
+     *
+     * @param dst       Destination array
+     * @param dstOffset Offset in dst
+     * @return Number of bytes copied
+     */
+    public int copyPayload(byte[] dst, int dstOffset) {
+        int l = getPayloadLength();
+        System.arraycopy(buffer, getPayloadOffset(), dst, dstOffset, l);
+        return l;
+    }
+
+    static int readUnsignedShort(byte[] b, int o) {
+        return ((b[o] & 0xFF) << 8) | (b[o + 1] & 0xFF);
+    }
 
+    static long readUnsignedInt(byte[] b, int o) {
+        return ((long) (b[o] & 0xFF) << 24) | ((b[o + 1] & 0xFF) << 16) | ((b[o + 2] & 0xFF) << 8) | (b[o + 3] & 0xFF);
+    }
 }
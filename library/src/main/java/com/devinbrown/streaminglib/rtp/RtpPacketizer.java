@@ -0,0 +1,141 @@
+package com.devinbrown.streaminglib.rtp;
+
+import android.media.MediaFormat;
+
+import com.devinbrown.streaminglib.media.RtpMedia;
+
+/**
+ * Splits the frames of one media into RTP packets
+ * <p>
+ * Packets are built in buffers from an {@link RtpBufferPool} with a fixed 12 byte header carrying the
+ * payload type, sequence number, timestamp and marker bit. The SSRC is left 0: every receiver of a
+ * packet rewrites it along with the other fields that differ per receiver, so a frame is only
+ * packetized once however many receivers there are.
+ * <p>
+ * Reference: https://tools.ietf.org/html/rfc3550#section-5.1
+ */
+public abstract class RtpPacketizer {
+    // Payload bytes per packet so header and payload fit in the MTU
+    static final int MAX_PAYLOAD_SIZE = RtpStream.MTU - RtpPacket.FIXED_HEADER_LENGTH;
+
+    private static final int PACKET_POOL_SIZE = 256;
+    private static final int DEFAULT_PAYLOAD_TYPE = 96;
+
+    // Clock rate of packetizers made without one, that of video
+    private static final int DEFAULT_CLOCK_RATE = 90000;
+
+    public interface Listener {
+        /**
+         * Called for each packet. The listener takes ownership of one reference to the buffer.
+         *
+         * @param b Complete RTP packet
+         */
+        void onPacket(RtpBuffer b);
+    }
+
+    protected final Listener listener;
+    protected final int maxPayloadSize;
+    private final RtpBufferPool pool;
+
+    // Receivers rewrite the SSRC and add their own offsets, so sequence numbers and timestamps start at 0
+    private final RtpHeaderWriter headerWriter;
+    private boolean nextPacketStartsKeyFrame;
+
+    protected RtpPacketizer(Listener l, int payloadType, int maxPayloadSize) {
+        this(l, payloadType, maxPayloadSize, DEFAULT_CLOCK_RATE);
+    }
+
+    /**
+     * @param clockRate RTP clock rate of the media, used by {@link #toRtpTimestamp(long)}
+     */
+    protected RtpPacketizer(Listener l, int payloadType, int maxPayloadSize, int clockRate) {
+        listener = l;
+        this.maxPayloadSize = maxPayloadSize;
+        headerWriter = new RtpHeaderWriter(0, payloadType, clockRate, 0, 0);
+        pool = new RtpBufferPool(PACKET_POOL_SIZE, RtpPacket.FIXED_HEADER_LENGTH + maxPayloadSize);
+    }
+
+    /**
+     * Create the packetizer matching the media format
+     *
+     * @param m RtpMedia being sent
+     * @param l Receives packets
+     * @return a packetizer for the media
+     */
+    static RtpPacketizer create(RtpMedia m, Listener l) {
+        int payloadType = getPayloadType(m);
+        MediaFormat f = m.mediaFormat;
+        String mime = f != null && f.containsKey(MediaFormat.KEY_MIME) ? f.getString(MediaFormat.KEY_MIME) : "";
+
+        switch (mime.toLowerCase()) {
+            case "video/h264":
+            case MediaFormat.MIMETYPE_VIDEO_AVC:
+                return new H264Packetizer(l, payloadType, MAX_PAYLOAD_SIZE, m.getClockRate());
+            default:
+                return new GenericPacketizer(l, payloadType, MAX_PAYLOAD_SIZE, m.getClockRate());
+        }
+    }
+
+    static int getPayloadType(RtpMedia m) {
+        if (m.mediaDescription == null || m.mediaDescription.payloadTypes.isEmpty()) return DEFAULT_PAYLOAD_TYPE;
+        return m.mediaDescription.payloadTypes.get(0);
+    }
+
+    /**
+     * Maps a media time to the RTP timestamp of the packets. Receivers add their own offset, so
+     * timestamps start at 0.
+     *
+     * @param mediaTimeUs Presentation time in microseconds
+     * @return RTP timestamp in the media's clock rate
+     */
+    public long toRtpTimestamp(long mediaTimeUs) {
+        return headerWriter.toRtpTimestamp(mediaTimeUs);
+    }
+
+    /**
+     * Packetize one frame. Must not be called concurrently.
+     *
+     * @param data      Array holding the frame
+     * @param offset    Offset of the frame
+     * @param length    Length of the frame
+     * @param timestamp RTP timestamp of the frame, e.g. from {@link #toRtpTimestamp(long)}
+     * @param keyFrame  Whether the frame can be decoded on its own. Marks its first packet so
+     *                  receivers that dropped packets know where they can resume.
+     */
+    public void packetize(byte[] data, int offset, int length, long timestamp, boolean keyFrame) {
+        nextPacketStartsKeyFrame = keyFrame;
+        packetizeFrame(data, offset, length, timestamp);
+    }
+
+    /**
+     * Split one frame into packets with {@link #beginPacket} and {@link #endPacket}
+     */
+    protected abstract void packetizeFrame(byte[] data, int offset, int length, long timestamp);
+
+    /**
+     * Start a packet with the next sequence number
+     *
+     * @return Buffer holding the RTP header, positioned at the start of the payload
+     */
+    protected RtpBuffer beginPacket(long timestamp) {
+        RtpBuffer b = pool.acquire();
+        if (b == null) {
+            // Every pooled packet is still queued for a receiver
+            b = new RtpBuffer(null, RtpPacket.FIXED_HEADER_LENGTH + maxPayloadSize);
+        }
+        b.length = headerWriter.write(b.data, 0, timestamp, false);
+        b.keyFrameStart = nextPacketStartsKeyFrame;
+        nextPacketStartsKeyFrame = false;
+        return b;
+    }
+
+    /**
+     * Hand a finished packet to the listener
+     *
+     * @param marker Whether this packet ends the frame
+     */
+    protected void endPacket(RtpBuffer b, boolean marker) {
+        if (marker) b.data[1] |= (byte) 0x80;
+        listener.onPacket(b);
+    }
+}
@@ -0,0 +1,297 @@
+package com.devinbrown.streaminglib.rtp;
+
+/**
+ * Reception statistics for a single synchronization source
+ * <p>
+ * Updated incrementally by the receiving thread with {@link #update}, using the sequence number
+ * validation of RFC 3550 appendix A.1 and the interarrival jitter estimate of appendix A.8. Other
+ * threads read a consistent view with {@link #snapshot(Snapshot)}, which never blocks the receiver:
+ * the published values are guarded by a sequence counter and readers retry if a write raced them.
+ * <p>
+ * Only one thread may call {@link #update}.
+ * <p>
+ * Reference: https://tools.ietf.org/html/rfc3550#appendix-A.1
+ */
+public class RtpReceiverStatistics {
+    private static final int RTP_SEQ_MOD = 1 << 16;
+    private static final int MAX_DROPOUT = 3000;
+    private static final int MAX_MISORDER = 100;
+    private static final int MIN_SEQUENTIAL = 2;
+
+    /**
+     * Point in time copy of the statistics of one source
+     */
+    public static class Snapshot {
+        public long ssrc;
+        public int baseSequenceNumber;
+        public long extendedHighestSequenceNumber;
+        public long received;
+        public long jitter;
+        public long lastArrivalNanos;
+        // Middle 32 bits of the NTP timestamp of the last sender report, 0 if none was received
+        public long lastSenderReport;
+        public long lastSenderReportArrivalNanos;
+
+        /**
+         * @return Number of packets expected, from the first sequence number to the highest
+         */
+        public long getExpected() {
+            return received == 0 ? 0 : extendedHighestSequenceNumber - baseSequenceNumber + 1;
+        }
+
+        /**
+         * @return Cumulative number of packets lost. Negative when duplicates were received.
+         */
+        public long getCumulativeLost() {
+            return getExpected() - received;
+        }
+
+        /**
+         * Fraction of packets lost since an earlier snapshot of the same source, as reported in RTCP
+         * receiver reports
+         * <p>
+         * Reference: https://tools.ietf.org/html/rfc3550#appendix-A.3
+         *
+         * @param prior Snapshot taken at the start of the interval, or null for the whole session
+         * @return Fraction lost as a fixed point number with the binary point at the left edge (0-255)
+         */
+        public int getFractionLost(Snapshot prior) {
+            long expectedInterval = getExpected() - (prior == null ? 0 : prior.getExpected());
+            long receivedInterval = received - (prior == null ? 0 : prior.received);
+            long lostInterval = expectedInterval - receivedInterval;
+            if (expectedInterval == 0 || lostInterval <= 0) return 0;
+            return (int) ((lostInterval << 8) / expectedInterval);
+        }
+
+        /**
+         * Delay between receiving the last sender report and nowNanos, as reported in RTCP receiver
+         * reports
+         * <p>
+         * Reference: https://tools.ietf.org/html/rfc3550#section-6.4.1
+         *
+         * @param nowNanos Time from {@link System#nanoTime()}
+         * @return Delay in units of 1/65536 seconds, or 0 if no sender report was received
+         */
+        public long getDelaySinceLastSenderReport(long nowNanos) {
+            if (lastSenderReport == 0) return 0;
+            long delay = nowNanos - lastSenderReportArrivalNanos;
+            return delay <= 0 ? 0 : ((delay << 16) / 1000000000L) & 0xFFFFFFFFL;
+        }
+    }
+
+    private final long ssrc;
+    private final int clockRate;
+
+    // Receiver state (RFC 3550 A.1), only touched by the updating thread
+    private boolean started;
+    private int maxSeq;
+    private long cycles;
+    private int baseSeq;
+    private int badSeq;
+    private int probation;
+    private long received;
+
+    // Jitter state (RFC 3550 A.8), jitter is scaled by 16
+    private boolean haveTransit;
+    private int transit;
+    private long jitter;
+    private long firstArrivalNanos;
+
+    // Published state, written between two increments of version
+    private volatile int version;
+    private volatile int publishedBaseSeq;
+    private volatile long publishedExtendedMax;
+    private volatile long publishedReceived;
+    private volatile long publishedJitter;
+    private volatile long publishedArrivalNanos;
+    private volatile long publishedLastSr;
+    private volatile long publishedLastSrArrivalNanos;
+    private volatile boolean left;
+
+    /**
+     * @param ssrc      Synchronization source being tracked
+     * @param clockRate RTP clock rate of the source
+     */
+    public RtpReceiverStatistics(long ssrc, int clockRate) {
+        if (clockRate <= 0) throw new IllegalArgumentException("Invalid clock rate: " + clockRate);
+        this.ssrc = ssrc;
+        this.clockRate = clockRate;
+    }
+
+    public long getSsrc() {
+        return ssrc;
+    }
+
+    /**
+     * Accounts for one received packet of this source
+     *
+     * @param sequenceNumber 16 bit RTP sequence number
+     * @param timestamp      RTP timestamp
+     * @param arrivalNanos   Arrival time from {@link System#nanoTime()}
+     * @return false while the source is on probation or when the sequence number is invalid
+     */
+    public boolean update(int sequenceNumber, long timestamp, long arrivalNanos) {
+        if (!started) {
+            // First packet of the source
+            started = true;
+            initSequence(sequenceNumber);
+            maxSeq = (sequenceNumber - 1) & (RTP_SEQ_MOD - 1);
+            probation = MIN_SEQUENTIAL;
+            firstArrivalNanos = arrivalNanos;
+        }
+
+        boolean valid = updateSequence(sequenceNumber);
+        updateJitter(timestamp, arrivalNanos);
+        publish(arrivalNanos);
+        return valid;
+    }
+
+    /**
+     * Records a sender report of this source so the next receiver report can carry LSR and DLSR.
+     * Must be called from the thread calling {@link #update}.
+     *
+     * @param compactNtpTimestamp Middle 32 bits of the NTP timestamp in the sender report
+     * @param arrivalNanos        Arrival time from {@link System#nanoTime()}
+     */
+    public void onSenderReport(long compactNtpTimestamp, long arrivalNanos) {
+        version++;
+        publishedLastSr = compactNtpTimestamp;
+        publishedLastSrArrivalNanos = arrivalNanos;
+        version++;
+    }
+
+    /**
+     * Marks the source as having left the session with a BYE
+     */
+    public void onGoodBye() {
+        left = true;
+    }
+
+    public boolean hasLeft() {
+        return left;
+    }
+
+    /**
+     * @param sinceNanos Time from {@link System#nanoTime()}
+     * @return Whether a valid RTP packet of this source arrived at or after sinceNanos
+     */
+    public boolean hasSentSince(long sinceNanos) {
+        return !left && publishedReceived > 0 && publishedArrivalNanos - sinceNanos >= 0;
+    }
+
+    /**
+     * @param sinceNanos Time from {@link System#nanoTime()}
+     * @return Whether RTP or a sender report of this source arrived at or after sinceNanos
+     */
+    public boolean isActiveSince(long sinceNanos) {
+        if (left) return false;
+        if (hasSentSince(sinceNanos)) return true;
+        return publishedLastSr != 0 && publishedLastSrArrivalNanos - sinceNanos >= 0;
+    }
+
+    /**
+     * Copies a consistent view of the statistics without blocking the receiving thread
+     *
+     * @param into Snapshot to fill
+     * @return into
+     */
+    public Snapshot snapshot(Snapshot into) {
+        int v;
+        do {
+            v = version;
+            if ((v & 1) != 0) continue;
+            into.baseSequenceNumber = publishedBaseSeq;
+            into.extendedHighestSequenceNumber = publishedExtendedMax;
+            into.received = publishedReceived;
+            into.jitter = publishedJitter;
+            into.lastArrivalNanos = publishedArrivalNanos;
+            into.lastSenderReport = publishedLastSr;
+            into.lastSenderReportArrivalNanos = publishedLastSrArrivalNanos;
+        } while ((v & 1) != 0 || v != version);
+        into.ssrc = ssrc;
+        return into;
+    }
+
+    public Snapshot snapshot() {
+        return snapshot(new Snapshot());
+    }
+
+    private void initSequence(int seq) {
+        baseSeq = seq;
+        maxSeq = seq;
+        badSeq = RTP_SEQ_MOD + 1;
+        cycles = 0;
+        received = 0;
+    }
+
+    /**
+     * Reference: https://tools.ietf.org/html/rfc3550#appendix-A.1
+     */
+    private boolean updateSequence(int seq) {
+        int udelta = (seq - maxSeq) & (RTP_SEQ_MOD - 1);
+
+        if (probation > 0) {
+            // Source is not valid until MIN_SEQUENTIAL packets with sequential numbers have been received
+            if (seq == ((maxSeq + 1) & (RTP_SEQ_MOD - 1))) {
+                probation--;
+                maxSeq = seq;
+                if (probation == 0) {
+                    initSequence(seq);
+                    received++;
+                    return true;
+                }
+            } else {
+                probation = MIN_SEQUENTIAL - 1;
+                maxSeq = seq;
+            }
+            return false;
+        } else if (udelta < MAX_DROPOUT) {
+            // In order, with permissible gap
+            if (seq < maxSeq) {
+                // Sequence number wrapped - count another 64K cycle
+                cycles += RTP_SEQ_MOD;
+            }
+            maxSeq = seq;
+        } else if (udelta <= RTP_SEQ_MOD - MAX_MISORDER) {
+            // The sequence number made a very large jump
+            if (seq == badSeq) {
+                // Two sequential packets -- assume that the other side restarted without telling us
+                initSequence(seq);
+            } else {
+                badSeq = (seq + 1) & (RTP_SEQ_MOD - 1);
+                return false;
+            }
+        }
+        // Otherwise a duplicate or reordered packet
+        received++;
+        return true;
+    }
+
+    /**
+     * Reference: https://tools.ietf.org/html/rfc3550#appendix-A.8
+     */
+    private void updateJitter(long timestamp, long arrivalNanos) {
+        // Arrival time in timestamp units, relative to the first packet so the product can't overflow
+        long elapsed = arrivalNanos - firstArrivalNanos;
+        long arrival = (elapsed / 1000000000L) * clockRate + (elapsed % 1000000000L) * clockRate / 1000000000L;
+
+        int t = (int) (arrival - timestamp);
+        if (haveTransit) {
+            int d = t - transit;
+            if (d < 0) d = -d;
+            jitter += d - ((jitter + 8) >> 4);
+        }
+        transit = t;
+        haveTransit = true;
+    }
+
+    private void publish(long arrivalNanos) {
+        version++;
+        publishedBaseSeq = baseSeq;
+        publishedExtendedMax = cycles + maxSeq;
+        publishedReceived = received;
+        publishedJitter = jitter >> 4;
+        publishedArrivalNanos = arrivalNanos;
+        version++;
+    }
+}
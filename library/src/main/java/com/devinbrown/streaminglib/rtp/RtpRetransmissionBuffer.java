@@ -0,0 +1,118 @@
+package com.devinbrown.streaminglib.rtp;
+
+/**
+ * Keeps the packets a stream sent recently so packets reported lost in generic NACKs can be sent
+ * again
+ * <p>
+ * Packets are held in a ring indexed by the low bits of the sequence number they were sent with, so
+ * looking one up is a single array access. A held packet is a reference to the shared
+ * {@link RtpBuffer} from the {@link RtpFanOut}, retained until its slot is reused: streams of the same
+ * media hold the same buffers, so the cache costs no copies.
+ * <p>
+ * Retransmissions are paid for with credit that every sent packet earns in proportion to its size,
+ * so they never take more than a fixed share of the stream's bandwidth however many NACKs arrive.
+ * <p>
+ * Not thread safe: the stream guards it with the lock it sends under.
+ * <p>
+ * Reference: https://tools.ietf.org/html/rfc4585#section-6.2.1
+ */
+public class RtpRetransmissionBuffer {
+    public static final int DEFAULT_CAPACITY = 128;
+    public static final double DEFAULT_BANDWIDTH_SHARE = 0.2;
+    // Most retransmitted bytes that can be saved up for a burst of losses
+    private static final int MAX_CREDIT = 64 * 1024;
+
+    private final RtpBuffer[] packets;
+    private final int[] sequenceNumbers;
+    private final int mask;
+    private final double bandwidthShare;
+    private double credit;
+
+    private long retransmitted;
+    private long rateLimited;
+    private long missing;
+
+    /**
+     * @param capacity       Number of packets held, a power of two
+     * @param bandwidthShare Share of the sent bytes retransmissions may add, e.g. 0.2
+     */
+    public RtpRetransmissionBuffer(int capacity, double bandwidthShare) {
+        if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        }
+        packets = new RtpBuffer[capacity];
+        sequenceNumbers = new int[capacity];
+        mask = capacity - 1;
+        this.bandwidthShare = bandwidthShare;
+    }
+
+    /**
+     * Holds a sent packet and earns credit for retransmissions
+     *
+     * @param sequenceNumber Sequence number the packet was sent with
+     * @param b              Packet as shared, retained until its slot is reused
+     */
+    public void onPacketSent(int sequenceNumber, RtpBuffer b) {
+        int i = sequenceNumber & mask;
+        if (packets[i] != null) packets[i].release();
+        b.retain();
+        packets[i] = b;
+        sequenceNumbers[i] = sequenceNumber;
+
+        credit = Math.min(MAX_CREDIT, credit + b.length * bandwidthShare);
+    }
+
+    /**
+     * Takes a packet to retransmit
+     *
+     * @param sequenceNumber Sequence number of the lost packet
+     * @return The packet, still held by this buffer, or null if it is no longer held or there isn't
+     * enough credit left
+     */
+    public RtpBuffer get(int sequenceNumber) {
+        int i = sequenceNumber & mask;
+        RtpBuffer b = packets[i];
+        if (b == null || sequenceNumbers[i] != sequenceNumber) {
+            missing++;
+            return null;
+        }
+        if (credit < b.length) {
+            rateLimited++;
+            return null;
+        }
+        credit -= b.length;
+        retransmitted++;
+        return b;
+    }
+
+    /**
+     * Releases every held packet
+     */
+    public void clear() {
+        for (int i = 0; i < packets.length; i++) {
+            if (packets[i] != null) packets[i].release();
+            packets[i] = null;
+        }
+    }
+
+    /**
+     * @return Packets handed out for retransmission
+     */
+    public long getRetransmitted() {
+        return retransmitted;
+    }
+
+    /**
+     * @return Requests refused for lack of credit
+     */
+    public long getRateLimited() {
+        return rateLimited;
+    }
+
+    /**
+     * @return Requests for packets no longer held
+     */
+    public long getMissing() {
+        return missing;
+    }
+}
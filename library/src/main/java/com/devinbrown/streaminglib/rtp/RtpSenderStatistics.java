@@ -0,0 +1,184 @@
+package com.devinbrown.streaminglib.rtp;
+
+/**
+ * Transmission statistics of one sending stream, and the sender reports built from them
+ * <p>
+ * The sending thread counts packets and payload octets with {@link #onPacketSent} and remembers when
+ * each new RTP timestamp first went out. A sender report maps the wall clock time it is built at to
+ * the RTP timestamp of that instant by extrapolating from the latest timestamp at the media clock
+ * rate, which lets receivers synchronize streams and compute the round trip time.
+ * <p>
+ * Counting takes no lock: like {@link RtpReceiverStatistics} the published values are guarded by a
+ * sequence counter and the reporting thread retries if a write raced it. Only one thread may call
+ * {@link #onPacketSent}, and only one (the RTCP thread) may build reports.
+ * <p>
+ * Reference: https://tools.ietf.org/html/rfc3550#section-6.4.1
+ */
+public class RtpSenderStatistics {
+    // Seconds from the NTP epoch (1900) to the Unix epoch (1970)
+    private static final long NTP_UNIX_OFFSET_SECONDS = 2208988800L;
+
+    // Wall clock at a known System.nanoTime(), so report times have nanosecond resolution and never
+    // jump back
+    private static final long WALL_CLOCK_BASE_NANOS = System.currentTimeMillis() * 1000000L;
+    private static final long MONOTONIC_BASE_NANOS = System.nanoTime();
+
+    /**
+     * Point in time copy of the statistics
+     */
+    public static class Snapshot {
+        public long packetCount;
+        public long octetCount;
+        // Latest RTP timestamp sent and when its first packet went out, from System.nanoTime()
+        public long rtpTimestamp;
+        public long rtpTimestampNanos;
+        public long lastSentNanos;
+    }
+
+    private final int clockRate;
+
+    // Only used by the sending thread
+    private long packetCount;
+    private long octetCount;
+    private long rtpTimestamp = -1;
+    private long rtpTimestampNanos;
+
+    // Published state, written between two increments of version
+    private volatile int version;
+    private volatile long publishedPacketCount;
+    private volatile long publishedOctetCount;
+    private volatile long publishedRtpTimestamp;
+    private volatile long publishedRtpTimestampNanos;
+    private volatile long publishedLastSentNanos;
+
+    // Only used by the reporting thread
+    private final Snapshot reportSnapshot = new Snapshot();
+    private long packetsAtLastReport;
+    private long packetsAtReportBefore;
+
+    /**
+     * @param clockRate RTP clock rate of the stream
+     */
+    public RtpSenderStatistics(int clockRate) {
+        if (clockRate <= 0) throw new IllegalArgumentException("Invalid clock rate: " + clockRate);
+        this.clockRate = clockRate;
+    }
+
+    /**
+     * Accounts for one sent packet
+     *
+     * @param timestamp     RTP timestamp of the packet as sent
+     * @param payloadLength Payload octets, without header and padding
+     * @param sentNanos     Send time from {@link System#nanoTime()}
+     */
+    public void onPacketSent(long timestamp, int payloadLength, long sentNanos) {
+        packetCount++;
+        octetCount += payloadLength;
+        // All packets of a frame share its timestamp, so only the first one dates it
+        if (timestamp != rtpTimestamp) {
+            rtpTimestamp = timestamp;
+            rtpTimestampNanos = sentNanos;
+        }
+
+        version++;
+        publishedPacketCount = packetCount;
+        publishedOctetCount = octetCount;
+        publishedRtpTimestamp = rtpTimestamp;
+        publishedRtpTimestampNanos = rtpTimestampNanos;
+        publishedLastSentNanos = sentNanos;
+        version++;
+    }
+
+    /**
+     * Copies a consistent view of the statistics without blocking the sending thread
+     *
+     * @param into Snapshot to fill
+     * @return into
+     */
+    public Snapshot snapshot(Snapshot into) {
+        int v;
+        do {
+            v = version;
+            if ((v & 1) != 0) continue;
+            into.packetCount = publishedPacketCount;
+            into.octetCount = publishedOctetCount;
+            into.rtpTimestamp = publishedRtpTimestamp;
+            into.rtpTimestampNanos = publishedRtpTimestampNanos;
+            into.lastSentNanos = publishedLastSentNanos;
+        } while ((v & 1) != 0 || v != version);
+        return into;
+    }
+
+    public Snapshot snapshot() {
+        return snapshot(new Snapshot());
+    }
+
+    /**
+     * @return Whether a packet was sent at or after sinceNanos
+     */
+    public boolean hasSentSince(long sinceNanos) {
+        return publishedPacketCount > 0 && publishedLastSentNanos - sinceNanos >= 0;
+    }
+
+    /**
+     * Whether the next report is a sender report: packets were sent since the report before the
+     * last one. Called on the reporting thread.
+     * <p>
+     * Reference: https://tools.ietf.org/html/rfc3550#section-6.4
+     */
+    public boolean isSender() {
+        return publishedPacketCount != packetsAtReportBefore;
+    }
+
+    /**
+     * Starts a compound packet with a sender report if {@link #isSender()}, otherwise with an empty
+     * receiver report. Called on the reporting thread.
+     *
+     * @param w        Writer to add the report to
+     * @param ssrc     SSRC of the stream
+     * @param nowNanos Time of the report from {@link System#nanoTime()}
+     */
+    public void beginReport(RtcpCompoundWriter w, long ssrc, long nowNanos) {
+        Snapshot s = snapshot(reportSnapshot);
+        if (s.packetCount != packetsAtReportBefore) {
+            w.beginSenderReport(ssrc, toNtpTimestamp(nowNanos), getRtpTimestampAt(s, nowNanos, clockRate),
+                    s.packetCount, s.octetCount);
+        } else {
+            w.beginReceiverReport(ssrc);
+        }
+        packetsAtReportBefore = packetsAtLastReport;
+        packetsAtLastReport = s.packetCount;
+    }
+
+    /**
+     * Extrapolates the RTP timestamp of an instant from the latest timestamp sent
+     *
+     * @param s         Statistics with at least one packet sent
+     * @param nowNanos  Instant from {@link System#nanoTime()}
+     * @param clockRate RTP clock rate
+     * @return RTP timestamp
+     */
+    static long getRtpTimestampAt(Snapshot s, long nowNanos, int clockRate) {
+        long elapsed = nowNanos - s.rtpTimestampNanos;
+        long ticks = (elapsed / 1000000000L) * clockRate + (elapsed % 1000000000L) * clockRate / 1000000000L;
+        return (s.rtpTimestamp + ticks) & 0xFFFFFFFFL;
+    }
+
+    /**
+     * @param nanos Time from {@link System#nanoTime()}
+     * @return 64 bit NTP timestamp of the wall clock at that time
+     */
+    public static long toNtpTimestamp(long nanos) {
+        return unixNanosToNtp(WALL_CLOCK_BASE_NANOS + (nanos - MONOTONIC_BASE_NANOS));
+    }
+
+    /**
+     * @param unixNanos Nanoseconds since the Unix epoch
+     * @return Seconds since 1900 in the upper 32 bits, fraction of a second in the lower 32 bits
+     */
+    static long unixNanosToNtp(long unixNanos) {
+        long seconds = unixNanos / 1000000000L + NTP_UNIX_OFFSET_SECONDS;
+        long fraction = ((unixNanos % 1000000000L) << 32) / 1000000000L;
+        return (seconds << 32) | fraction;
+    }
+}
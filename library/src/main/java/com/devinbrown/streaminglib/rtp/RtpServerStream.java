@@ -3,24 +3,54 @@ package com.devinbrown.streaminglib.rtp;
 import android.util.Log;
 import android.util.Pair;
 
-import com.devinbrown.streaminglib.RtspClientStreamEvent;
 import com.devinbrown.streaminglib.media.RtpMedia;
-import com.devinbrown.streaminglib.rtsp.Rtsp;
-import com.devinbrown.streaminglib.rtsp.RtspInterleavedData;
 import com.devinbrown.streaminglib.rtsp.RtspSession;
+import com.devinbrown.streaminglib.rtsp.RtspSessionEvent;
 
 import org.greenrobot.eventbus.Subscribe;
 import org.greenrobot.eventbus.ThreadMode;
 
 import java.io.IOException;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
 
-public class RtpServerStream extends RtpStream {
+/**
+ * Sends one media to a single receiver. Packets come from the {@link RtpFanOut} of the media, shared
+ * with every other stream of the same media. With multicast delivery the stream only holds a place
+ * in the media's {@link RtpMulticastGroup}, which sends for all its viewers.
+ * <p>
+ * Over UDP, recently sent packets are kept in an {@link RtpRetransmissionBuffer} and sent again when
+ * the receiver reports them lost in a generic NACK. Interleaved over TCP nothing is lost, so NACKs are
+ * ignored and nothing is kept.
+ */
+public class RtpServerStream extends RtpStream implements RtpFanOut.Subscriber {
     private static final String TAG = "RtpServerStream";
 
+    // Writes this stream's SSRC and random sequence number and timestamp offsets into relayed packets
+    private final RtpHeaderWriter headerWriter;
+
+    // Rewritten header of the packet being sent, guarded by itself
+    private final byte[] header = new byte[RtpPacket.FIXED_HEADER_LENGTH];
+    private final ByteBuffer headerBuffer = ByteBuffer.wrap(header);
+    private final ByteBuffer[] gather = {headerBuffer, null};
+
+    private final RtpSenderStatistics senderStatistics;
+    // Guarded by header. Holds no packets once closed.
+    private boolean closed;
+    private final RtpRetransmissionBuffer retransmissionBuffer = new RtpRetransmissionBuffer(
+            RtpRetransmissionBuffer.DEFAULT_CAPACITY, RtpRetransmissionBuffer.DEFAULT_BANDWIDTH_SHARE);
+
+    // Guarded by this
+    private final RtcpCompoundPacket rtcpPacket = new RtcpCompoundPacket();
+    private int lastFirSequenceNumber = -1;
+
+    private boolean subscribed;
+    private RtpMulticastGroup multicastGroup;
+
     public RtpServerStream(RtspSession s, RtpMedia m) {
         super(s, m);
-        m.streamEventBus.register(this);
+        headerWriter = new RtpHeaderWriter(ssrc, RtpPacketizer.getPayloadType(m), m.getClockRate());
+        senderStatistics = new RtpSenderStatistics(m.getClockRate());
     }
 
     @Override
@@ -34,9 +64,35 @@ public class RtpServerStream extends RtpStream {
         state = RtpStreamState.INITIALIZED;
     }
 
+    /**
+     * Joins the multicast group of the media, whose address and ports are answered to the SETUP
+     */
     @Override
-    public void initializeMulticast() {
-        assert (false);
+    public void initializeMulticast() throws SocketException {
+        rtpProtocol = RtpProtocol.UDP;
+        streamType = StreamType.SERVER;
+        delivery = Delivery.MULTICAST;
+
+        try {
+            multicastGroup = RtpMulticastGroup.join(rtpMedia);
+        } catch (IOException e) {
+            throw new SocketException("Unable to send to a multicast group: " + e.getMessage());
+        }
+        multicastAddress = multicastGroup.getAddress();
+        multicastTtl = multicastGroup.getTtl();
+        localRtpPorts = multicastGroup.getPorts();
+        remoteRtpPorts = multicastGroup.getPorts();
+
+        state = RtpStreamState.INITIALIZED;
+    }
+
+    public void configureMulticast() {
+        validateState(RtpStreamState.CONFIGURED, RtpStreamState.INITIALIZED);
+        if (delivery != Delivery.MULTICAST) throw new IllegalStateException("RtpServerStream must be initialized for multicast");
+
+        state = RtpStreamState.CONFIGURED;
+
+        startListening();
     }
 
     @Override
@@ -59,29 +115,194 @@ public class RtpServerStream extends RtpStream {
         startListening();
     }
 
-    @Subscribe(threadMode = ThreadMode.ASYNC)
-    public void handleEvent(RtspClientStreamEvent.MediaDataReceived event) {
-        Log.d(TAG, "handleEvent: RtspClientStreamEvent.MediaDataReceived");
-
+    /**
+     * Send a packet from the {@link RtpFanOut} with this stream's SSRC, sequence number and timestamp.
+     * The shared packet is left untouched: the rewritten header is sent from a per stream copy
+     * followed by the shared payload.
+     */
+    @Override
+    public void onRtpPacket(RtpBuffer b) {
         try {
-            switch (rtpProtocol) {
-                case UDP:
-                    sendRtp(event.data);
-                    break;
-                case TCP:
-                    Rtsp r = new RtspInterleavedData(interleavedRtpChannels.first, event.data);
-                    rtspSession.sendRtsp(r);
-                    break;
+            synchronized (header) {
+                int payloadLength = send(b);
+                senderStatistics.onPacketSent(RtpPacket.readUnsignedInt(header, 4), payloadLength, System.nanoTime());
+                if (!closed && rtpProtocol == RtpProtocol.UDP) retransmissionBuffer.onPacketSent(RtpPacket.readUnsignedShort(header, 2), b);
             }
         } catch (IOException e) {
-            // TODO: handle exception
-            e.printStackTrace();
+            Log.w(TAG, "onRtpPacket: Unable to send RTP: " + e.getMessage());
+        } finally {
+            b.release();
+        }
+    }
+
+    /**
+     * Sends a shared packet with this stream's header. Called holding the header lock.
+     *
+     * @return Payload length
+     */
+    private int send(RtpBuffer b) throws IOException {
+        int headerLength = headerWriter.translate(b.data, 0, header, 0);
+        int payloadLength = b.length - RtpPacket.FIXED_HEADER_LENGTH;
+        switch (rtpProtocol) {
+            case UDP:
+                headerBuffer.clear();
+                headerBuffer.limit(headerLength);
+                // Other streams send the same packet, e.g. a retransmission from the RTCP thread
+                synchronized (b) {
+                    gather[1] = b.byteBuffer(RtpPacket.FIXED_HEADER_LENGTH, payloadLength);
+                    sendRtp(gather);
+                }
+                break;
+            case TCP:
+                rtspSession.sendInterleaved(interleavedRtpChannels.first, header, headerLength,
+                        b, RtpPacket.FIXED_HEADER_LENGTH, payloadLength);
+                break;
         }
+        return payloadLength;
+    }
+
+    @Subscribe(threadMode = ThreadMode.ASYNC)
+    public void handleEvent(RtspSessionEvent.RtcpPacketReceived event) {
+        handleRtcp(event.buffer);
+    }
+
+    /**
+     * Retransmits the packets that generic NACKs for this stream report lost, and passes picture loss
+     * indications and full intra requests on to the media as key frame requests
+     * <p>
+     * Reference: https://tools.ietf.org/html/rfc4585#section-6.2.1
+     * Reference: https://tools.ietf.org/html/rfc5104#section-4.3.1
+     */
+    private synchronized void handleRtcp(RtpBuffer b) {
+        if (!rtcpPacket.wrap(b)) {
+            Log.w(TAG, "handleRtcp: Dropping malformed RTCP packet");
+            b.release();
+            return;
+        }
+
+        RtcpScheduler.Session session = getRtcpSession();
+        if (session != null) session.onRtcpReceived(b.length);
+
+        boolean keyFrameRequested = false;
+        while (rtcpPacket.next()) {
+            int type = rtcpPacket.getPacketType();
+            if (type != RtcpPacket.PT_RTPFB && type != RtcpPacket.PT_PSFB) continue;
+            FeedbackRtcpPacket fb = rtcpPacket.getFeedback();
+            if (fb == null) continue;
+
+            if (fb.isGenericNack() && fb.getMediaSsrc() == ssrc) {
+                for (int i = 0; i < fb.getNackCount(); i++) {
+                    int pid = fb.getNackPacketId(i);
+                    int blp = fb.getNackBitmask(i);
+                    retransmit(pid);
+                    for (int bit = 0; bit < 16; bit++) {
+                        if ((blp & (1 << bit)) != 0) retransmit((pid + bit + 1) & 0xFFFF);
+                    }
+                }
+            } else if (fb.isPictureLossIndication() && fb.getMediaSsrc() == ssrc) {
+                keyFrameRequested = true;
+            } else if (fb.isFullIntraRequest()) {
+                for (int i = 0; i < fb.getFirCount(); i++) {
+                    // Repetitions of a request carry the same sequence number
+                    if (fb.getFirSsrc(i) != ssrc || fb.getFirSequenceNumber(i) == lastFirSequenceNumber) continue;
+                    lastFirSequenceNumber = fb.getFirSequenceNumber(i);
+                    keyFrameRequested = true;
+                }
+            }
+        }
+        b.release();
+
+        if (keyFrameRequested) rtpMedia.requestKeyFrame();
+    }
+
+    private void retransmit(int sequenceNumber) {
+        // TCP already delivered it, a copy would only arrive as a duplicate behind the queued packets
+        if (rtpProtocol == RtpProtocol.TCP) return;
+        synchronized (header) {
+            RtpBuffer p = retransmissionBuffer.get(sequenceNumber);
+            if (p == null) return;
+            try {
+                send(p);
+            } catch (IOException e) {
+                Log.w(TAG, "retransmit: Unable to send RTP: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return Packets sent again after the receiver reported them lost
+     */
+    public long getRetransmittedPackets() {
+        synchronized (header) {
+            return retransmissionBuffer.getRetransmitted();
+        }
+    }
+
+
+    /**
+     * A unicast server stream has a single receiver
+     */
+    @Override
+    public int getMemberCount(long activeSinceNanos) {
+        return 2;
+    }
+
+    @Override
+    public int getSenderCount(long activeSinceNanos) {
+        return senderStatistics.hasSentSince(activeSinceNanos) ? 1 : 0;
+    }
+
+    @Override
+    public boolean isSender() {
+        return senderStatistics.isSender();
+    }
+
+    /**
+     * @return Snapshot of the packets and octets sent to the receiver
+     */
+    public RtpSenderStatistics.Snapshot getSenderStatistics() {
+        return senderStatistics.snapshot();
+    }
+
+    /**
+     * Reports what was sent in a sender report, or as a receiver without report blocks while nothing
+     * is sent
+     */
+    @Override
+    void writeReport(RtcpCompoundWriter w, long nowNanos) {
+        senderStatistics.beginReport(w, ssrc, nowNanos);
+    }
+
+    @Override
+    public void teardown() {
+        if (subscribed) {
+            RtpFanOut.unsubscribe(rtpMedia, this);
+            streamEventBus.unregister(this);
+        }
+        subscribed = false;
+        synchronized (header) {
+            closed = true;
+            retransmissionBuffer.clear();
+        }
+        if (multicastGroup != null) multicastGroup.leave();
+        multicastGroup = null;
+        super.teardown();
     }
 
     @Override
     void startListening() {
-        new Thread(new RtcpInputListener()).start();
+        if (delivery == Delivery.MULTICAST) {
+            // The group already sends, and receivers report to the group rather than to this stream
+            state = RtpStreamState.STREAMING;
+            return;
+        }
+        if (rtpProtocol == RtpProtocol.UDP) startRtcpInputListener();
+        setupRtcp();
+        if (!subscribed) {
+            streamEventBus.register(this);
+            RtpFanOut.subscribe(rtpMedia, this);
+        }
+        subscribed = true;
         state = RtpStreamState.STREAMING;
     }
 }
@@ -1,18 +1,30 @@
 package com.devinbrown.streaminglib.rtp;
 
+import android.util.Log;
 import android.util.Pair;
 
+import com.devinbrown.streaminglib.OrderedEventBus;
+import com.devinbrown.streaminglib.SessionThreads;
 import com.devinbrown.streaminglib.media.RtpMedia;
 import com.devinbrown.streaminglib.rtsp.RtspSession;
 import com.devinbrown.streaminglib.rtsp.RtspSessionEvent;
+import com.devinbrown.streaminglib.sdp.Bandwidth;
 
 import org.greenrobot.eventbus.EventBus;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
 import java.net.SocketException;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Enumeration;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * RtpStream encapsulates an RTP/RTCP session
@@ -20,7 +32,9 @@ import java.net.SocketException;
  * Reference: https://tools.ietf.org/html/rfc3550
  */
 
-public abstract class RtpStream {
+public abstract class RtpStream implements RtcpScheduler.Participant {
+    private static final String TAG = "RtpStream";
+
     enum RtpStreamState {NEW, INITIALIZED, CONFIGURED, STREAMING, PLAYING, PAUSED, FINISHED}
 
     public enum RtpPacketType {RTP, RTCP}
@@ -32,7 +46,23 @@ public abstract class RtpStream {
     public enum Delivery {UNICAST, MULTICAST}
 
     private static final int STARTING_UDP_RTP_PORT = 50000;
-    private static final int MTU = 1400;
+    static final int MTU = 1400;
+    // Must comfortably exceed what the jitter buffer may hold so the socket keeps receiving
+    private static final int RECEIVE_BUFFER_COUNT = 128;
+
+    // Session bandwidth assumed when the SDP has no b= line, in bits per second
+    private static final int DEFAULT_SESSION_BANDWIDTH = 64000;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    // Random CNAME shared by every stream of this process so receivers can synchronize them
+    // Reference: https://tools.ietf.org/html/rfc7022#section-4.2
+    static final byte[] CNAME = createCname();
+
+    // Shared by all streams. Falls back to one blocking listener thread per socket when disabled.
+    private static UdpReceiveReactor receiveReactor;
+    private static boolean blockingListeners;
+    private static ThreadFactory listenerThreadFactory = SessionThreads.platform();
 
     // UDP
     Pair<Integer, Integer> localRtpPorts;
@@ -41,6 +71,10 @@ public abstract class RtpStream {
     // TCP (RTSP Interleaved)
     Pair<Integer, Integer> interleavedRtpChannels;
 
+    // Multicast, the group and the ports are in remoteRtpPorts
+    InetAddress multicastAddress;
+    Integer multicastTtl;
+
     RtspSession rtspSession;
     RtpProtocol rtpProtocol;
     StreamType streamType;
@@ -51,53 +85,225 @@ public abstract class RtpStream {
     RtpMedia rtpMedia;
     EventBus streamEventBus;
 
+    // Our synchronization source
+    final long ssrc = RANDOM.nextInt() & 0xFFFFFFFFL;
+    private RtcpScheduler.Session rtcpSession;
+
     // UDP
-    private DatagramSocket rtpSocket;
-    private DatagramSocket rtcpSocket;
-    private byte[] rtpBuffer = new byte[]{};
-    private DatagramPacket rtpPacket;
-    private byte[] rtcpBuffer = new byte[]{};
-    private DatagramPacket rtcpPacket;
+    private DatagramChannel rtpChannel;
+    private DatagramChannel rtcpChannel;
+    private InetSocketAddress rtpDestination;
+    private InetSocketAddress rtcpDestination;
+    private RtpBufferPool receiveBufferPool;
+    private UdpReceiveReactor.Registration rtpRegistration;
+    private UdpReceiveReactor.Registration rtcpRegistration;
+    private Thread rtpListenerThread;
+    private Thread rtcpListenerThread;
+    private UdpReceiveReactor registeredReactor;
 
     RtpStream(RtspSession s, RtpMedia m) {
         rtspSession = s;
         rtpMedia = m;
-        streamEventBus = new EventBus();
+        streamEventBus = OrderedEventBus.create();
     }
 
     public EventBus getStreamEventBus() {
         return streamEventBus;
     }
 
+    /**
+     * Sets the reactor that UDP streams configured from now on register their sockets with
+     *
+     * @param r Shared receive reactor, or null to use one blocking listener thread per socket
+     */
+    public static synchronized void setReceiveReactor(UdpReceiveReactor r) {
+        receiveReactor = r;
+        blockingListeners = r == null;
+    }
+
+    /**
+     * Sets how blocking listener threads are made for UDP streams configured from now on, e.g.
+     * {@link SessionThreads#virtual()} so idle sockets don't hold an OS thread each
+     *
+     * @param f Factory of listener threads, used when there is no receive reactor
+     */
+    public static synchronized void setListenerThreadFactory(ThreadFactory f) {
+        if (f == null) throw new IllegalArgumentException("ThreadFactory must not be null");
+        listenerThreadFactory = f;
+    }
+
+    private static synchronized ThreadFactory getListenerThreadFactory() {
+        return listenerThreadFactory;
+    }
+
+    private static synchronized UdpReceiveReactor getReceiveReactor() {
+        if (blockingListeners) return null;
+        if (receiveReactor == null) receiveReactor = UdpReceiveReactor.getDefault();
+        return receiveReactor;
+    }
+
     void setupUdpPorts() throws SocketException {
         int port = STARTING_UDP_RTP_PORT;
-        while (rtpSocket == null && rtcpSocket == null) {
+        while (rtpChannel == null && rtcpChannel == null) {
             if (port >= 0xFFFF) {
                 throw new SocketException("Unable to create two consecutive sockets.");
             }
             try {
-                rtpSocket = new DatagramSocket(port);
-                rtcpSocket = new DatagramSocket(port + 1);
-            } catch (SocketException e) {
-                rtpSocket = null;
-                rtcpSocket = null;
+                rtpChannel = DatagramChannel.open();
+                rtpChannel.bind(new InetSocketAddress(port));
+                rtcpChannel = DatagramChannel.open();
+                rtcpChannel.bind(new InetSocketAddress(port + 1));
+            } catch (IOException e) {
+                closeQuietly(rtpChannel);
+                closeQuietly(rtcpChannel);
+                rtpChannel = null;
+                rtcpChannel = null;
                 port += 2;
             }
         }
-        localRtpPorts = new Pair<>(rtpSocket.getLocalPort(), rtcpSocket.getLocalPort());
+        receiveBufferPool = new RtpBufferPool(RECEIVE_BUFFER_COUNT, MTU);
+        localRtpPorts = new Pair<>(rtpChannel.socket().getLocalPort(), rtcpChannel.socket().getLocalPort());
     }
 
     /**
-     * TODO: Make RTCP run in an extension of Runnable or make RTCP Client and Server and base class like RTP
+     * Opens sockets bound to the group's ports and joins the group on them. RTCP is sent to the group
+     * as well.
+     * <p>
+     * Reference: https://tools.ietf.org/html/rfc3550#section-11
+     *
+     * @param group Multicast group address
+     * @param ports RTP and RTCP port of the group
+     * @param ni    Interface to join on, null for the first one that supports multicast
+     */
+    void joinMulticastGroup(InetAddress group, Pair<Integer, Integer> ports, NetworkInterface ni) throws IOException {
+        if (ni == null) ni = findMulticastInterface();
+        try {
+            rtpChannel = openMulticastChannel(group, ports.first, ni);
+            rtcpChannel = openMulticastChannel(group, ports.second, ni);
+            if (multicastTtl != null) rtcpChannel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, multicastTtl);
+        } catch (IOException e) {
+            closeQuietly(rtpChannel);
+            closeQuietly(rtcpChannel);
+            rtpChannel = null;
+            rtcpChannel = null;
+            throw e;
+        }
+        receiveBufferPool = new RtpBufferPool(RECEIVE_BUFFER_COUNT, MTU);
+        multicastAddress = group;
+        localRtpPorts = ports;
+        remoteRtpPorts = ports;
+        rtpDestination = new InetSocketAddress(group, ports.first);
+        rtcpDestination = new InetSocketAddress(group, ports.second);
+    }
+
+    private static NetworkInterface findMulticastInterface() throws IOException {
+        Enumeration<NetworkInterface> e = NetworkInterface.getNetworkInterfaces();
+        while (e != null && e.hasMoreElements()) {
+            NetworkInterface ni = e.nextElement();
+            if (ni.isUp() && ni.supportsMulticast() && !ni.isLoopback()) return ni;
+        }
+        throw new SocketException("No network interface supports multicast");
+    }
+
+    private static DatagramChannel openMulticastChannel(InetAddress group, int port, NetworkInterface ni) throws IOException {
+        DatagramChannel c = DatagramChannel.open(StandardProtocolFamily.INET);
+        try {
+            // Other receivers of the group on this host bind the same port
+            c.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            c.bind(new InetSocketAddress(port));
+            c.setOption(StandardSocketOptions.IP_MULTICAST_IF, ni);
+            c.join(group, ni);
+            return c;
+        } catch (IOException e) {
+            c.close();
+            throw e;
+        }
+    }
+
+    private static void closeQuietly(DatagramChannel c) {
+        if (c == null) return;
+        try {
+            c.close();
+        } catch (IOException e) {
+            // Nothing more to do
+        }
+    }
+
+    /**
+     * Starts sending RTCP reports for this stream from the shared {@link RtcpScheduler}
      */
     void setupRtcp() {
-        Thread rtcpThread = new Thread(new Runnable() {
-            @Override
-            public void run() {
+        if (rtcpSession == null) rtcpSession = RtcpScheduler.getDefault().add(this);
+    }
 
+    RtcpScheduler.Session getRtcpSession() {
+        return rtcpSession;
+    }
+
+    /**
+     * Bandwidth available to RTCP: the RS and RR modifiers if both are given, otherwise 5% of the AS
+     * bandwidth
+     * <p>
+     * Reference: https://tools.ietf.org/html/rfc3556#section-2
+     */
+    @Override
+    public double getRtcpBandwidth() {
+        return getRtcpBandwidth(rtpMedia);
+    }
+
+    static double getRtcpBandwidth(RtpMedia m) {
+        int as = -1;
+        int rs = -1;
+        int rr = -1;
+        if (m != null && m.mediaDescription != null) {
+            for (Bandwidth b : m.mediaDescription.bandwidths) {
+                if ("AS".equalsIgnoreCase(b.bandwidthType)) as = b.bandwidth;
+                else if ("RS".equalsIgnoreCase(b.bandwidthType)) rs = b.bandwidth;
+                else if ("RR".equalsIgnoreCase(b.bandwidthType)) rr = b.bandwidth;
             }
-        });
-        rtcpThread.start();
+        }
+        if (rs >= 0 && rr >= 0) return (rs + rr) / 8.0;
+        int sessionBandwidth = as > 0 ? as * 1000 : DEFAULT_SESSION_BANDWIDTH;
+        return sessionBandwidth / 8.0 * RtcpScheduler.RTCP_BANDWIDTH_FRACTION;
+    }
+
+    /**
+     * Builds a report with SDES CNAME (and BYE when leaving) and sends it to the remote RTCP port
+     * <p>
+     * Reference: https://tools.ietf.org/html/rfc3550#section-6.1
+     */
+    @Override
+    public int sendReport(RtcpCompoundWriter w, RtpBuffer b, boolean goodBye) {
+        w.start(b);
+        writeReport(w, System.nanoTime());
+        w.beginSourceDescription();
+        w.addSourceDescriptionChunk(ssrc);
+        w.addSourceDescriptionItem(SourceDescriptionRtcpPacket.ITEM_CNAME, CNAME);
+        if (goodBye) w.addGoodBye(ssrc, null);
+        int length = w.finish();
+
+        try {
+            return sendRtcp(b) ? length : 0;
+        } catch (IOException e) {
+            Log.w(TAG, "sendReport: Unable to send RTCP: " + e.getMessage());
+            return 0;
+        }
+    }
+
+    /**
+     * Writes the sender or receiver report that starts each compound packet
+     *
+     * @param w        Writer to add the report to
+     * @param nowNanos Time of the report from {@link System#nanoTime()}
+     */
+    abstract void writeReport(RtcpCompoundWriter w, long nowNanos);
+
+    private static byte[] createCname() {
+        byte[] r = new byte[12];
+        RANDOM.nextBytes(r);
+        StringBuilder sb = new StringBuilder(r.length * 2);
+        for (byte b : r) sb.append(String.format("%02x", b & 0xFF));
+        return sb.toString().getBytes(StandardCharsets.US_ASCII);
     }
 
     void validateState(RtpStreamState newState, RtpStreamState requiredState) throws IllegalStateException {
@@ -169,63 +375,148 @@ public abstract class RtpStream {
         return interleavedRtpChannels;
     }
 
-    synchronized void sendRtp(byte[] data) throws IOException {
-        rtpPacket.setData(data);
-        rtpSocket.send(rtpPacket);
+    public InetAddress getMulticastAddress() {
+        return multicastAddress;
+    }
+
+    public Integer getMulticastTtl() {
+        return multicastTtl;
+    }
+
+    void sendRtp(byte[] data) throws IOException {
+        rtpChannel.send(ByteBuffer.wrap(data), rtpDestination);
+    }
+
+    /**
+     * Send an RTP packet given as a header and payload with a single gathering write. The socket is
+     * connected to the destination on first use, which gathering writes require.
+     *
+     * @param packet Header and payload
+     */
+    void sendRtp(ByteBuffer[] packet) throws IOException {
+        if (!rtpChannel.isConnected()) rtpChannel.connect(rtpDestination);
+        rtpChannel.write(packet);
+    }
+
+    void sendRtcp(byte[] data) throws IOException {
+        rtcpChannel.send(ByteBuffer.wrap(data), rtcpDestination);
+    }
+
+    /**
+     * @return false if the stream has nowhere to send RTCP yet
+     */
+    boolean sendRtcp(RtpBuffer b) throws IOException {
+        if (rtpProtocol == RtpProtocol.TCP) {
+            if (interleavedRtpChannels == null || interleavedRtpChannels.second == null) return false;
+            rtspSession.sendInterleaved(interleavedRtpChannels.second, null, 0, b.data, 0, b.length);
+            return true;
+        }
+        if (rtcpChannel == null || rtcpDestination == null) return false;
+        ByteBuffer bb = b.byteBuffer;
+        bb.clear();
+        bb.limit(b.length);
+        rtcpChannel.send(bb, rtcpDestination);
+        return true;
     }
 
-    synchronized void sendRtcp(byte[] data) throws IOException {
-        rtcpPacket.setData(data);
-        rtcpSocket.send(rtcpPacket);
+    /**
+     * Passes on an RTP packet received on UDP or interleaved on the RTSP connection. Called by the
+     * receiving thread, which takes no other packets of this stream meanwhile.
+     *
+     * @param b Received packet, released by whoever consumes it
+     */
+    public void onRtpReceived(RtpBuffer b) {
+        streamEventBus.post(new RtspSessionEvent.RtpPacketReceived(b));
     }
 
     /**
-     * Listen for RTP packets on UDP
+     * Start receiving RTP packets on UDP
      */
-    class RtpInputListener implements Runnable {
-        @Override
-        public void run() {
-            while (!Thread.interrupted()) {
-                try {
-                    byte[] buffer = new byte[MTU];
-                    DatagramPacket p = new DatagramPacket(buffer, MTU);
-                    rtpSocket.receive(p);
-                    p.getLength();
-
-                    streamEventBus.post(new RtspSessionEvent.RtpPacketReceived(buffer));
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+    void startRtpInputListener() {
+        UdpInputListener.Sink sink = new UdpInputListener.Sink() {
+            @Override
+            public void onPacket(RtpBuffer b) {
+                onRtpReceived(b);
             }
+        };
+
+        UdpReceiveReactor reactor = getReceiveReactor();
+        if (reactor != null) {
+            rtpRegistration = registerWithReactor(reactor, rtpChannel, sink);
+        } else {
+            rtpListenerThread = getListenerThreadFactory().newThread(new UdpInputListener(rtpChannel, receiveBufferPool, sink));
+            rtpListenerThread.start();
         }
     }
 
     /**
-     * Listen for RTCP packets on UDP
+     * Start receiving RTCP packets on UDP
      */
-    class RtcpInputListener implements Runnable {
-        @Override
-        public void run() {
-            while (!Thread.interrupted()) {
-                try {
-                    byte[] buffer = new byte[MTU];
-                    DatagramPacket p = new DatagramPacket(buffer, MTU);
-                    rtcpSocket.receive(p);
-                    streamEventBus.post(new RtspSessionEvent.RtcpPacketReceived(buffer));
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+    void startRtcpInputListener() {
+        UdpInputListener.Sink sink = new UdpInputListener.Sink() {
+            @Override
+            public void onPacket(RtpBuffer b) {
+                streamEventBus.post(new RtspSessionEvent.RtcpPacketReceived(b));
             }
+        };
+
+        UdpReceiveReactor reactor = getReceiveReactor();
+        if (reactor != null) {
+            rtcpRegistration = registerWithReactor(reactor, rtcpChannel, sink);
+        } else {
+            rtcpListenerThread = getListenerThreadFactory().newThread(new UdpInputListener(rtcpChannel, receiveBufferPool, sink));
+            rtcpListenerThread.start();
         }
     }
 
+    private UdpReceiveReactor.Registration registerWithReactor(UdpReceiveReactor reactor, DatagramChannel c, UdpInputListener.Sink sink) {
+        try {
+            registeredReactor = reactor;
+            return reactor.register(c, receiveBufferPool, sink);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to register UDP socket for receiving: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Stops receiving and releases the UDP sockets. The stream can't be used afterwards.
+     */
+    public void teardown() {
+        if (rtpRegistration != null) registeredReactor.deregister(rtpRegistration);
+        if (rtcpRegistration != null) registeredReactor.deregister(rtcpRegistration);
+        rtpRegistration = null;
+        rtcpRegistration = null;
+
+        // Interrupting a listener closes its channel, so both wait for the BYE and tearing down never does
+        final DatagramChannel rtp = rtpChannel;
+        final DatagramChannel rtcp = rtcpChannel;
+        final Thread rtpListener = rtpListenerThread;
+        final Thread rtcpListener = rtcpListenerThread;
+        Runnable stopListening = new Runnable() {
+            @Override
+            public void run() {
+                if (rtpListener != null) rtpListener.interrupt();
+                if (rtcpListener != null) rtcpListener.interrupt();
+                closeQuietly(rtp);
+                closeQuietly(rtcp);
+            }
+        };
+        rtpListenerThread = null;
+        rtcpListenerThread = null;
+        if (rtcpSession != null) rtcpSession.close(true, stopListening);
+        else stopListening.run();
+        rtcpSession = null;
+
+        state = RtpStreamState.FINISHED;
+    }
+
     public void configureUdp(Pair<Integer, Integer> remoteRtpPorts, InetAddress host) throws IllegalStateException {
         validateState(RtpStreamState.CONFIGURED, RtpStreamState.INITIALIZED);
         validateRtpProtocol(RtpProtocol.UDP);
         this.remoteRtpPorts = remoteRtpPorts;
 
-        rtpPacket = new DatagramPacket(new byte[]{}, 0, host, remoteRtpPorts.first);
-        rtcpPacket = new DatagramPacket(new byte[]{}, 0, host, remoteRtpPorts.second);
+        rtpDestination = new InetSocketAddress(host, remoteRtpPorts.first);
+        rtcpDestination = new InetSocketAddress(host, remoteRtpPorts.second);
 
         state = RtpStreamState.CONFIGURED;
 
@@ -234,7 +525,7 @@ public abstract class RtpStream {
 
     abstract public void initializeUdp() throws SocketException;
 
-    abstract public void initializeMulticast();
+    abstract public void initializeMulticast() throws SocketException;
 
     abstract public void initializeTcp(Pair<Integer, Integer> interleavedRtpChannels);
 
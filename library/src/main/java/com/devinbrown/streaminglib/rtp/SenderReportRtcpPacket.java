@@ -1,6 +1,8 @@
 package com.devinbrown.streaminglib.rtp;
 
 /**
+ * Flyweight view of a sender report
+ * <p>
  * Reference: https://tools.ietf.org/html/rfc3550#section-6.4.1
  */
 
@@ -41,5 +43,53 @@ package com.devinbrown.streaminglib.rtp;
 //         +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
 
 public class SenderReportRtcpPacket extends RtcpPacket {
+    static final int SENDER_INFO_LENGTH = 20;
+    private static final int REPORT_BLOCKS_OFFSET = HEADER_LENGTH + 4 + SENDER_INFO_LENGTH;
 
+    @Override
+    public boolean wrap(byte[] data, int offset, int available) {
+        return super.wrap(data, offset, available) && getPacketType() == PT_SR
+                && length >= REPORT_BLOCKS_OFFSET + getCount() * RtcpReportBlock.LENGTH;
+    }
+
+    /**
+     * @return Full 64 bit NTP timestamp: seconds since 1900 in the upper 32 bits, fraction in the lower
+     */
+    public long getNtpTimestamp() {
+        return (RtpPacket.readUnsignedInt(buffer, offset + 8) << 32) | RtpPacket.readUnsignedInt(buffer, offset + 12);
+    }
+
+    /**
+     * @return Middle 32 bits of the NTP timestamp, as echoed in the LSR field of reception reports
+     */
+    public long getCompactNtpTimestamp() {
+        return (getNtpTimestamp() >>> 16) & 0xFFFFFFFFL;
+    }
+
+    public long getRtpTimestamp() {
+        return RtpPacket.readUnsignedInt(buffer, offset + 16);
+    }
+
+    public long getPacketCount() {
+        return RtpPacket.readUnsignedInt(buffer, offset + 20);
+    }
+
+    public long getOctetCount() {
+        return RtpPacket.readUnsignedInt(buffer, offset + 24);
+    }
+
+    public int getReportCount() {
+        return getCount();
+    }
+
+    /**
+     * @param i    Index of the report block, from 0 to {@link #getReportCount()} - 1
+     * @param into View to point at the report block
+     * @return into
+     */
+    public RtcpReportBlock getReportBlock(int i, RtcpReportBlock into) {
+        if (i < 0 || i >= getReportCount()) throw new IndexOutOfBoundsException("Report block " + i);
+        into.wrap(buffer, offset + REPORT_BLOCKS_OFFSET + i * RtcpReportBlock.LENGTH);
+        return into;
+    }
 }
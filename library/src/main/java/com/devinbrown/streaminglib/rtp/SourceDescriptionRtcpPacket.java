@@ -1,6 +1,13 @@
 package com.devinbrown.streaminglib.rtp;
 
+import java.nio.charset.StandardCharsets;
+
 /**
+ * Flyweight view of a source description packet
+ * <p>
+ * Items are read in place with a cursor: each call to {@link #nextItem()} moves to the next item,
+ * crossing into the next chunk as needed, and the getItem* methods describe the current item.
+ * <p>
  * Reference: https://tools.ietf.org/html/rfc3550#section-6.5
  */
 
@@ -21,4 +28,105 @@ package com.devinbrown.streaminglib.rtp;
 //            +=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+
 
 public class SourceDescriptionRtcpPacket extends RtcpPacket {
+    public static final int ITEM_END = 0;
+    public static final int ITEM_CNAME = 1;
+    public static final int ITEM_NAME = 2;
+    public static final int ITEM_EMAIL = 3;
+    public static final int ITEM_PHONE = 4;
+    public static final int ITEM_LOC = 5;
+    public static final int ITEM_TOOL = 6;
+    public static final int ITEM_NOTE = 7;
+    public static final int ITEM_PRIV = 8;
+
+    private int position;
+    private int chunksRead;
+    private boolean inChunk;
+    private long itemSsrc;
+    private int itemType;
+    private int itemOffset;
+    private int itemLength;
+
+    @Override
+    public boolean wrap(byte[] data, int offset, int available) {
+        if (!super.wrap(data, offset, available) || getPacketType() != PT_SDES) return false;
+        rewind();
+        return true;
+    }
+
+    public int getChunkCount() {
+        return getCount();
+    }
+
+    /**
+     * Moves the cursor back before the first item
+     */
+    public void rewind() {
+        position = offset + HEADER_LENGTH;
+        chunksRead = 0;
+        inChunk = false;
+    }
+
+    /**
+     * Moves the cursor to the next item
+     *
+     * @return false when there are no more items or the rest of the packet is malformed
+     */
+    public boolean nextItem() {
+        int end = offset + getContentLength();
+        while (true) {
+            if (!inChunk) {
+                if (chunksRead >= getChunkCount() || position + 4 > end) return false;
+                itemSsrc = RtpPacket.readUnsignedInt(buffer, position);
+                position += 4;
+                chunksRead++;
+                inChunk = true;
+                continue;
+            }
+
+            if (position >= end) return false;
+            int type = buffer[position] & 0xFF;
+            if (type == ITEM_END) {
+                // The item list is terminated by one or more null octets up to the next 32 bit boundary
+                position = offset + ((position + 1 - offset + 3) & ~3);
+                inChunk = false;
+                continue;
+            }
+
+            if (position + 2 > end) return false;
+            int l = buffer[position + 1] & 0xFF;
+            if (position + 2 + l > end) return false;
+
+            itemType = type;
+            itemOffset = position + 2;
+            itemLength = l;
+            position += 2 + l;
+            return true;
+        }
+    }
+
+    /**
+     * @return SSRC or CSRC of the chunk holding the current item
+     */
+    public long getItemSsrc() {
+        return itemSsrc;
+    }
+
+    public int getItemType() {
+        return itemType;
+    }
+
+    /**
+     * @return Offset into {@link #getBuffer()} of the current item's text
+     */
+    public int getItemOffset() {
+        return itemOffset;
+    }
+
+    public int getItemLength() {
+        return itemLength;
+    }
+
+    public String getItemText() {
+        return new String(buffer, itemOffset, itemLength, StandardCharsets.UTF_8);
+    }
 }
@@ -0,0 +1,92 @@
+package com.devinbrown.streaminglib.rtp;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Blocking receive loop for a single UDP socket (RTP or RTCP)
+ * <p>
+ * Each datagram is received straight into a buffer from the {@link RtpBufferPool} and handed to the
+ * {@link Sink} with its valid length. Nothing is allocated per datagram: the sink is responsible for
+ * releasing the buffer back to the pool. If the pool runs dry the datagram is read into a scratch
+ * buffer and dropped.
+ * <p>
+ * A receive error that doesn't close the socket is logged and retried after a pause that doubles
+ * with each failure in a row, so a socket that keeps failing doesn't spin.
+ */
+class UdpInputListener implements Runnable {
+    private static final String TAG = "UdpInputListener";
+
+    private static final long MIN_BACKOFF_MS = 10;
+    private static final long MAX_BACKOFF_MS = 1000;
+
+    interface Sink {
+        void onPacket(RtpBuffer b);
+    }
+
+    private final DatagramChannel channel;
+    private final RtpBufferPool pool;
+    private final Sink sink;
+    private final ByteBuffer scratch;
+
+    private volatile long received;
+    private volatile long dropped;
+
+    UdpInputListener(DatagramChannel c, RtpBufferPool p, Sink s) {
+        channel = c;
+        pool = p;
+        sink = s;
+        scratch = ByteBuffer.allocate(p.getBufferCapacity());
+    }
+
+    @Override
+    public void run() {
+        long backoffMs = 0;
+        while (!Thread.interrupted() && channel.isOpen()) {
+            RtpBuffer b = pool.acquire();
+            try {
+                if (b == null) {
+                    scratch.clear();
+                    channel.receive(scratch);
+                    dropped++;
+                    continue;
+                }
+
+                b.byteBuffer.clear();
+                channel.receive(b.byteBuffer);
+                b.length = b.byteBuffer.position();
+                b.arrivalNanos = System.nanoTime();
+                received++;
+                backoffMs = 0;
+            } catch (ClosedChannelException e) {
+                // Channel closed (stream torn down or thread interrupted)
+                if (b != null) b.release();
+                break;
+            } catch (IOException e) {
+                if (b != null) b.release();
+                backoffMs = backoffMs == 0 ? MIN_BACKOFF_MS : Math.min(backoffMs * 2, MAX_BACKOFF_MS);
+                Log.w(TAG, "run: Problem receiving datagram, retrying in " + backoffMs + " ms: " + e.getMessage());
+                try {
+                    Thread.sleep(backoffMs);
+                } catch (InterruptedException ie) {
+                    break;
+                }
+                continue;
+            }
+
+            sink.onPacket(b);
+        }
+    }
+
+    long getReceived() {
+        return received;
+    }
+
+    long getDropped() {
+        return dropped;
+    }
+}
@@ -0,0 +1,234 @@
+package com.devinbrown.streaminglib.rtp;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Multiplexes the RTP and RTCP sockets of every {@link RtpStream} onto a small, fixed set of I/O
+ * threads
+ * <p>
+ * Each I/O thread owns a {@link Selector}. Channels are switched to non-blocking mode when they are
+ * registered and every readable channel is drained into buffers from its {@link RtpBufferPool},
+ * exactly like {@link UdpInputListener} does for a single socket.
+ */
+public class UdpReceiveReactor {
+    private static final String TAG = "UdpReceiveReactor";
+
+    // Upper bound on datagrams read from one channel per wakeup so a busy stream can't starve the rest
+    private static final int MAX_READS_PER_WAKEUP = 64;
+
+    private static UdpReceiveReactor sharedInstance;
+
+    private final IoThread[] ioThreads;
+
+    public UdpReceiveReactor(int threadCount) {
+        if (threadCount < 1) throw new IllegalArgumentException("UdpReceiveReactor needs at least one thread");
+
+        ioThreads = new IoThread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            try {
+                ioThreads[i] = new IoThread(Selector.open());
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to open selector: " + e.getMessage(), e);
+            }
+            ioThreads[i].setName(TAG + "-" + i);
+            ioThreads[i].setDaemon(true);
+            ioThreads[i].start();
+        }
+    }
+
+    /**
+     * Get the shared UdpReceiveReactor instance, sized to the number of available cores (at most 4)
+     *
+     * @return the shared UdpReceiveReactor instance
+     */
+    public static synchronized UdpReceiveReactor getDefault() {
+        if (sharedInstance == null) {
+            int cores = Runtime.getRuntime().availableProcessors();
+            sharedInstance = new UdpReceiveReactor(Math.max(1, Math.min(4, cores)));
+        }
+        return sharedInstance;
+    }
+
+    /**
+     * Start receiving on the given channel. The channel is switched to non-blocking mode and handed to
+     * the least loaded I/O thread.
+     *
+     * @param c    Bound DatagramChannel
+     * @param p    Pool that received datagrams are read into
+     * @param s    Receives each datagram. Responsible for releasing the buffer.
+     * @return Registration to pass to {@link #deregister(Registration)}
+     * @throws IOException Channel could not be switched to non-blocking mode
+     */
+    Registration register(DatagramChannel c, RtpBufferPool p, UdpInputListener.Sink s) throws IOException {
+        c.configureBlocking(false);
+
+        IoThread target = ioThreads[0];
+        for (IoThread t : ioThreads) {
+            if (t.registrations.get() < target.registrations.get()) target = t;
+        }
+
+        target.registrations.incrementAndGet();
+        Registration r = new Registration(target, c, p, s);
+        target.pending.offer(r);
+        target.selector.wakeup();
+        return r;
+    }
+
+    /**
+     * Stop receiving for the given registration. Datagrams already handed to the sink are unaffected.
+     *
+     * @param r Registration returned by {@link #register}
+     */
+    void deregister(Registration r) {
+        r.cancelled = true;
+        r.ioThread.pending.offer(r);
+        r.ioThread.selector.wakeup();
+    }
+
+    /**
+     * Stops all I/O threads. Registered channels are left open.
+     */
+    public void shutdown() {
+        for (IoThread t : ioThreads) {
+            t.interrupt();
+            t.selector.wakeup();
+        }
+    }
+
+    static class Registration {
+        private final IoThread ioThread;
+        private final DatagramChannel channel;
+        private final RtpBufferPool pool;
+        private final UdpInputListener.Sink sink;
+        private final ByteBuffer scratch;
+        private SelectionKey key;
+        private boolean removed;
+        private volatile boolean cancelled;
+
+        private volatile long received;
+        private volatile long dropped;
+
+        private Registration(IoThread t, DatagramChannel c, RtpBufferPool p, UdpInputListener.Sink s) {
+            ioThread = t;
+            channel = c;
+            pool = p;
+            sink = s;
+            scratch = ByteBuffer.allocate(p.getBufferCapacity());
+        }
+
+        /**
+         * Reads up to {@link #MAX_READS_PER_WAKEUP} datagrams without blocking
+         */
+        private void drain() throws IOException {
+            for (int i = 0; i < MAX_READS_PER_WAKEUP && !cancelled; i++) {
+                RtpBuffer b = pool.acquire();
+                if (b == null) {
+                    scratch.clear();
+                    if (channel.receive(scratch) == null) return;
+                    dropped++;
+                    continue;
+                }
+
+                b.byteBuffer.clear();
+                if (channel.receive(b.byteBuffer) == null) {
+                    b.release();
+                    return;
+                }
+                b.length = b.byteBuffer.position();
+                b.arrivalNanos = System.nanoTime();
+                received++;
+                sink.onPacket(b);
+            }
+        }
+
+        long getReceived() {
+            return received;
+        }
+
+        long getDropped() {
+            return dropped;
+        }
+    }
+
+    private static class IoThread extends Thread {
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<Registration> pending = new ConcurrentLinkedQueue<>();
+
+        // Only used to pick the least loaded thread
+        private final AtomicInteger registrations = new AtomicInteger();
+
+        IoThread(Selector s) {
+            selector = s;
+        }
+
+        @Override
+        public void run() {
+            while (!Thread.interrupted()) {
+                try {
+                    selector.select();
+                    processPending();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey k = keys.next();
+                        keys.remove();
+                        Registration r = (Registration) k.attachment();
+                        if (!k.isValid() || r.cancelled) continue;
+                        try {
+                            r.drain();
+                        } catch (ClosedChannelException e) {
+                            remove(r);
+                        } catch (IOException e) {
+                            Log.e(TAG, "Problem receiving datagram: " + e.getMessage());
+                        }
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "Selector failed: " + e.getMessage());
+                    break;
+                }
+            }
+
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // Nothing more to do
+            }
+        }
+
+        private void processPending() {
+            Registration r;
+            while ((r = pending.poll()) != null) {
+                if (r.cancelled) {
+                    remove(r);
+                } else if (r.key == null && !r.removed) {
+                    try {
+                        r.key = r.channel.register(selector, SelectionKey.OP_READ, r);
+                    } catch (ClosedChannelException e) {
+                        Log.e(TAG, "Channel closed before it could be registered");
+                        remove(r);
+                    }
+                }
+            }
+        }
+
+        private void remove(Registration r) {
+            if (r.removed) return;
+            r.removed = true;
+            if (r.key != null) {
+                r.key.cancel();
+                r.key = null;
+            }
+            registrations.decrementAndGet();
+        }
+    }
+}
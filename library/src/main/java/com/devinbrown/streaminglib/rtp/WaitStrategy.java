@@ -0,0 +1,132 @@
+package com.devinbrown.streaminglib.rtp;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * How the consumer of a {@link RingBuffer} waits while nothing is published, trading latency for CPU
+ * <p>
+ * {@link #busySpin()} reacts fastest but keeps a core busy, {@link #yielding()} lets other threads
+ * run in between, {@link #sleeping(long)} naps for a fixed time and {@link #blocking()} sleeps until
+ * a producer wakes it, the best choice on battery powered devices.
+ * <p>
+ * A strategy belongs to one consumer thread. The rings that thread consumes, e.g. those of a
+ * {@link RingStageGroup} thread, share it so publishing into any of them wakes the thread.
+ */
+public abstract class WaitStrategy {
+    // Longest a blocked consumer sleeps, so a missed wake up only costs this much
+    private static final long MAX_BLOCK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    /**
+     * What a consumer waits for: one ring, or any of the rings of a thread
+     */
+    interface Waitable {
+        boolean hasAvailable();
+    }
+
+    /**
+     * Waits a while for w to have entries. May return early.
+     */
+    abstract void await(Waitable w) throws InterruptedException;
+
+    /**
+     * Called by producers after publishing
+     */
+    abstract void signal();
+
+    /**
+     * @return A strategy like this one for another consumer thread
+     */
+    WaitStrategy copy() {
+        return this;
+    }
+
+    public static WaitStrategy busySpin() {
+        return new WaitStrategy() {
+            @Override
+            void await(Waitable w) {
+            }
+
+            @Override
+            void signal() {
+            }
+        };
+    }
+
+    public static WaitStrategy yielding() {
+        return new WaitStrategy() {
+            @Override
+            void await(Waitable w) {
+                Thread.yield();
+            }
+
+            @Override
+            void signal() {
+            }
+        };
+    }
+
+    /**
+     * @param nanos Time slept between two looks at the ring
+     */
+    public static WaitStrategy sleeping(final long nanos) {
+        if (nanos <= 0) throw new IllegalArgumentException("Invalid sleep time: " + nanos);
+        return new WaitStrategy() {
+            @Override
+            void await(Waitable w) {
+                LockSupport.parkNanos(nanos);
+            }
+
+            @Override
+            void signal() {
+            }
+        };
+    }
+
+    /**
+     * A new blocking strategy, for one consumer thread only
+     */
+    public static WaitStrategy blocking() {
+        return new Blocking();
+    }
+
+    /**
+     * Producers only take the lock when the consumer is asleep
+     */
+    private static class Blocking extends WaitStrategy {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition published = lock.newCondition();
+        private volatile boolean waiting;
+
+        @Override
+        void await(Waitable w) throws InterruptedException {
+            lock.lock();
+            try {
+                waiting = true;
+                // Checked again after announcing the wait so a publish in between isn't missed
+                if (!w.hasAvailable()) published.awaitNanos(MAX_BLOCK_NANOS);
+            } finally {
+                waiting = false;
+                lock.unlock();
+            }
+        }
+
+        @Override
+        void signal() {
+            if (!waiting) return;
+            lock.lock();
+            try {
+                published.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        WaitStrategy copy() {
+            return new Blocking();
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package com.devinbrown.streaminglib.rtsp;
 
 import com.devinbrown.streaminglib.RtspClientStreamEvent;
+import com.devinbrown.streaminglib.SessionThreads;
 
 import org.greenrobot.eventbus.EventBus;
 import org.greenrobot.eventbus.Subscribe;
@@ -9,12 +10,14 @@ import org.greenrobot.eventbus.ThreadMode;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ThreadFactory;
 
 public class RtspClient {
     private static final String TAG = "RtspClient";
     private static RtspClient sharedInstance;
 
     private List<RtspClientSession> sessions = new ArrayList<>();
+    private ThreadFactory threadFactory = SessionThreads.platform();
 
     /**
      * Blocking default constructor for Singleton use
@@ -35,6 +38,22 @@ public class RtspClient {
         return sharedInstance;
     }
 
+    /**
+     * Sets how the thread reading each session's connection is made, e.g.
+     * {@link SessionThreads#virtual()} to run many sessions on few OS threads. Applies to sessions
+     * connected afterwards.
+     *
+     * @param f Factory of connection threads
+     */
+    public void setThreadFactory(ThreadFactory f) {
+        if (f == null) throw new IllegalArgumentException("ThreadFactory must not be null");
+        threadFactory = f;
+    }
+
+    public ThreadFactory getThreadFactory() {
+        return threadFactory;
+    }
+
     // Default bus events
 
     /**
@@ -17,6 +17,7 @@ import org.greenrobot.eventbus.ThreadMode;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.NetworkInterface;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.URISyntaxException;
@@ -50,7 +51,7 @@ public class RtspClientSession extends RtspSession {
         output = socket.getOutputStream();
         eventBus.register(this);
 
-        new Thread(new RtspInputListener()).start();
+        rtspClient.getThreadFactory().newThread(new RtspInputListener()).start();
 
         eventBus.post(new RtspSessionEvent.SessionConnected(this));
     }
@@ -66,11 +67,13 @@ public class RtspClientSession extends RtspSession {
     }
 
     @Override
-    RtpStream initializeRtpStream(RtpStream.RtpProtocol p, RtpMedia m, TransportHeader t) throws SocketException {
+    RtpStream initializeRtpStream(RtpStream.RtpProtocol p, RtpStream.Delivery d, RtpMedia m, TransportHeader t)
+            throws SocketException {
         RtpClientStream s = new RtpClientStream(this, m);
         switch (p) {
             case UDP:
-                s.initializeUdp();
+                if (d == RtpStream.Delivery.MULTICAST) s.initializeMulticast();
+                else s.initializeUdp();
                 break;
             case TCP:
                 s.initializeTcp(getNewInterleavedChannels());
@@ -84,7 +87,8 @@ public class RtspClientSession extends RtspSession {
         s.setSessionId(sessionId);
         switch (s.getRtpProtocol()) {
             case UDP:
-                s.configureUdp(t.serverRtpPorts, host);
+                if (s.getDelivery() == RtpStream.Delivery.MULTICAST) configureMulticast((RtpClientStream) s, t);
+                else s.configureUdp(t.serverRtpPorts, host);
                 break;
             case TCP:
                 s.configureTcp();
@@ -92,6 +96,18 @@ public class RtspClientSession extends RtspSession {
         }
     }
 
+    /**
+     * Joins the group the server answered with on the interface of the RTSP connection
+     */
+    private void configureMulticast(RtpClientStream s, TransportHeader t) {
+        try {
+            InetAddress group = t.destination != null ? InetAddress.getByName(t.destination) : null;
+            s.configureMulticast(group, t.multicastPorts, t.ttl, NetworkInterface.getByInetAddress(socket.getLocalAddress()));
+        } catch (IOException e) {
+            eventBus.post(new RtspClientStreamEvent.Exception(e));
+        }
+    }
+
     @Override
     void handleOptionsRequest(RtspRequest r) {
         Log.d(TAG, "handleOptionsRequest");
@@ -151,7 +167,7 @@ public class RtspClientSession extends RtspSession {
 
     @Subscribe(threadMode = ThreadMode.ASYNC)
     public void handleEvent(RtspClientStreamEvent.SetupStreamRequest event) {
-        sendRtspSetupRequest(event.rtpProtocol, event.media);
+        sendRtspSetupRequest(event.rtpProtocol, event.delivery, event.media);
     }
 
     @Subscribe(threadMode = ThreadMode.ASYNC)
@@ -0,0 +1,242 @@
+package com.devinbrown.streaminglib.rtsp;
+
+import android.util.Log;
+
+import com.devinbrown.streaminglib.rtp.RtpBufferPool;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Serves many RTSP connections of a {@link RtspServer} from one thread
+ * <p>
+ * Each connection is a non-blocking channel registered with the loop's selector. When it is readable
+ * the bytes are read into a buffer shared by every connection of the loop and fed to the connection's
+ * {@link RtspParser}, and each complete request or interleaved frame is passed to its session. Frames
+ * are received into a pool shared by the loop. Writes go through the session's
+ * {@link RtspInterleavedWriter}, which never blocks: when a connection is full the loop waits for it
+ * to become writable and then lets the writer go on.
+ * <p>
+ * An idle connection holds only its channel, session and parser, so a few loops can keep tens of
+ * thousands of control connections open.
+ */
+class RtspEventLoop implements Runnable {
+    private static final String TAG = "RtspEventLoop";
+
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    private static final int FRAME_POOL_SIZE = 256;
+    private static final int FRAME_BUFFER_SIZE = 2048;
+
+    private final RtspServer server;
+    private final Selector selector;
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private final RtpBufferPool framePool = new RtpBufferPool(FRAME_POOL_SIZE, FRAME_BUFFER_SIZE);
+
+    // Registrations and interest changes asked for by other threads, run by the loop
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    private volatile boolean closed;
+
+    RtspEventLoop(RtspServer s) throws IOException {
+        server = s;
+        selector = Selector.open();
+    }
+
+    /**
+     * Hands an accepted connection to the loop. Called from the acceptor.
+     */
+    void register(final SocketChannel channel) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    channel.configureBlocking(false);
+                    channel.socket().setTcpNoDelay(true);
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                    Connection c = new Connection(key);
+                    c.session = new RtspServerSession(server, channel, c);
+                    c.session.getInterleavedWriter().setFailureListener(c);
+                    key.attach(c);
+                    server.addSession(c.session);
+                } catch (IOException e) {
+                    Log.e(TAG, "register: Unable to serve connection: " + e.getMessage());
+                    closeQuietly(channel);
+                }
+            }
+        });
+    }
+
+    /**
+     * Stops the loop and closes its connections
+     */
+    void close() {
+        closed = true;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        Log.d(TAG, "Starting RtspEventLoop");
+        try {
+            while (!closed) {
+                selector.select();
+                runTasks();
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    Connection c = (Connection) key.attachment();
+                    if (c == null || !key.isValid()) continue;
+
+                    try {
+                        if (key.isWritable()) {
+                            key.interestOps(SelectionKey.OP_READ);
+                            c.session.getInterleavedWriter().onWritable();
+                        }
+                        if (key.isValid() && key.isReadable()) read(c);
+                    } catch (RuntimeException e) {
+                        // Only the failed connection goes, the others keep being served
+                        Log.e(TAG, "run: Connection failed: " + e);
+                        close(c, e.toString());
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            Log.e(TAG, "run: " + e.getMessage());
+        }
+
+        for (SelectionKey key : selector.keys()) {
+            Connection c = (Connection) key.attachment();
+            if (c != null) close(c, "Event loop stopped");
+            else closeQuietly(key.channel());
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            Log.w(TAG, "run: " + e.getMessage());
+        }
+        Log.d(TAG, "Stopping RtspEventLoop");
+    }
+
+    /**
+     * Reads what arrived on a connection and passes every complete message to its session
+     */
+    private void read(Connection c) {
+        readBuffer.clear();
+        int n;
+        try {
+            n = c.channel.read(readBuffer);
+        } catch (IOException e) {
+            close(c, e.getMessage());
+            return;
+        }
+        if (n < 0) {
+            close(c, "Client disconnected");
+            return;
+        }
+
+        readBuffer.flip();
+        try {
+            Rtsp r;
+            while ((r = c.parser.parse(readBuffer)) != null) c.session.handleRtspInput(r);
+        } catch (ProtocolException e) {
+            // The rest of the stream can't be framed
+            close(c, e.getMessage());
+        } catch (RuntimeException e) {
+            Log.e(TAG, "read: Session failed: " + e);
+            close(c, e.toString());
+        }
+    }
+
+    private void close(Connection c, String reason) {
+        if (c.closed) return;
+        c.closed = true;
+        Log.d(TAG, "Closing connection: " + reason);
+        c.key.cancel();
+        closeQuietly(c.channel);
+        c.parser.reset();
+        try {
+            c.session.onDisconnected();
+        } catch (RuntimeException e) {
+            Log.e(TAG, "close: Teardown failed: " + e);
+        }
+    }
+
+    private void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "runTasks: Task failed: " + e);
+            }
+        }
+    }
+
+    private static void closeQuietly(Channel c) {
+        try {
+            c.close();
+        } catch (IOException e) {
+            Log.w(TAG, "closeQuietly: " + e.getMessage());
+        }
+    }
+
+    /**
+     * A connection of the loop
+     */
+    private class Connection implements RtspInterleavedWriter.WriteBlockedListener,
+            RtspInterleavedWriter.FailureListener {
+        final SelectionKey key;
+        final SocketChannel channel;
+        final RtspParser parser = new RtspParser(framePool);
+        RtspServerSession session;
+        // Only used on the loop
+        boolean closed;
+
+        Connection(SelectionKey key) {
+            this.key = key;
+            channel = (SocketChannel) key.channel();
+        }
+
+        /**
+         * Waits for the connection to become writable. Called by the writer from any thread.
+         */
+        @Override
+        public void onWriteBlocked() {
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (key.isValid()) key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                }
+            });
+        }
+
+        /**
+         * Closes the connection on the loop, so the session is torn down like on a disconnect. Closing
+         * the channel from the writer's thread would cancel its key without the loop noticing.
+         */
+        @Override
+        public void onWriteFailed(final IOException e) {
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    close(Connection.this, e.getMessage());
+                }
+            });
+        }
+    }
+}
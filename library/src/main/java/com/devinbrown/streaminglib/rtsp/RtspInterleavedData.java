@@ -1,32 +1,30 @@
 package com.devinbrown.streaminglib.rtsp;
 
-import android.util.Log;
+import com.devinbrown.streaminglib.rtp.RtpBuffer;
 
-import java.io.IOException;
-import java.io.InputStream;
+import java.util.Arrays;
 
+/**
+ * RTP or RTCP packet received interleaved on the RTSP connection
+ * <p>
+ * Reference: https://tools.ietf.org/html/rfc2326#section-10.12
+ */
 public class RtspInterleavedData extends Rtsp {
-    private static final String TAG = "RtspInterleavedData";
-
     public int channel;
-    public byte[] data;
+    // Packet, released by whoever handles it
+    public RtpBuffer buffer;
 
     public RtspInterleavedData(int c, byte[] d) {
-        channel = c;
-        data = d;
+        this(c, RtpBuffer.wrap(d));
     }
 
-    public static RtspInterleavedData parseInterleavedData(InputStream i) throws IOException {
-        RtspInterleavedData r;
-        int channel = i.read(), length = (i.read() << 8) & i.read();
-        byte[] d = new byte[length];
-        int actualLength = i.read(d);
-        if (actualLength != length) Log.e(TAG, "Problem reading full RTSP Interleaved Data");
-        return new RtspInterleavedData(channel, d);
+    RtspInterleavedData(int c, RtpBuffer b) {
+        channel = c;
+        buffer = b;
     }
 
     @Override
     public byte[] getBytes() {
-        return data;
+        return Arrays.copyOf(buffer.data, buffer.length);
     }
 }
@@ -0,0 +1,791 @@
+package com.devinbrown.streaminglib.rtsp;
+
+import android.util.Log;
+
+import com.devinbrown.streaminglib.rtp.RtpBuffer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Coalesces the '$' framed packets sent on one RTSP connection into few large writes
+ * <p>
+ * Packets are queued in a bounded send queue and written by a drain task once {@link #FLUSH_BYTES} are
+ * queued or once the first packet has waited {@link #FLUSH_DELAY_MS}, so a burst of packets costs one
+ * write instead of one write and flush each. When the connection has a {@link GatheringByteChannel}
+ * the framing and headers are copied into a batch and shared payloads are written from the packet
+ * buffers with a single gathering write. Otherwise everything is copied into the batch and written
+ * to the stream.
+ * <p>
+ * Producers never write to the connection, and neither do senders of messages. A blocking connection drains on a thread of its own, made
+ * on the first drain and let go once idle, so a viewer that doesn't keep up only stalls that thread
+ * while its queue fills. What happens then is set by the {@link OverflowPolicy}. Queue depth and
+ * drops are counted so slow viewers can be spotted. The writer never closes the connection itself:
+ * once writing fails or a full queue gives it up, the {@link FailureListener} is told so the owner
+ * closes it and tears down its streams.
+ * <p>
+ * RTSP messages go through the same writer so they stay in order with the interleaved data. The drain
+ * writes them as soon as the batch in progress completes, ahead of packets still queued, so replies
+ * aren't held up behind media, and never drops them. Sending one never waits for the connection, so a
+ * stalled viewer can't hold up the thread handling its requests.
+ * <p>
+ * A writer made for a non-blocking channel never waits for the connection. When the channel takes no
+ * more, the rest of the batch is kept and the {@link WriteBlockedListener} is told, and writing goes
+ * on once {@link #onWritable()} is called.
+ * <p>
+ * Reference: https://tools.ietf.org/html/rfc2326#section-10.12
+ */
+public class RtspInterleavedWriter {
+    private static final String TAG = "RtspInterleavedWriter";
+
+    static final int FLUSH_BYTES = 32 * 1024;
+    static final long FLUSH_DELAY_MS = 5;
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 512;
+
+    // Time an idle drain thread is kept
+    private static final long DRAIN_THREAD_KEEP_ALIVE_S = 30;
+
+    private static final int PREFIX_LENGTH = 4;
+    private static final int CHANNEL_COUNT = 256;
+    // Channel states
+    private static final byte CARRIES_KEY_FRAMES = 1;
+    private static final byte WAITING_FOR_KEY_FRAME = 2;
+
+    // Room for a full batch plus the largest possible packet
+    private static final int ARENA_SIZE = FLUSH_BYTES + PREFIX_LENGTH + 0xFFFF;
+
+    /**
+     * What to do with a packet sent while the send queue is full
+     */
+    public enum OverflowPolicy {
+        /**
+         * Drop the channel's packets until one starts a key frame, then drop what the channel still has
+         * queued and resume with it. Receivers see a gap but decode again from the key frame. Only
+         * applies to channels that carried a key frame start; copied packets such as RTCP and channels
+         * without key frames, e.g. audio, drop the oldest queued packet instead.
+         */
+        DROP_UNTIL_KEYFRAME,
+        /**
+         * Drop the oldest queued packet to make room
+         */
+        DROP_OLDEST,
+        /**
+         * Give up the connection and tell the {@link FailureListener}
+         */
+        DISCONNECT
+    }
+
+    /**
+     * Told when a non-blocking channel takes no more bytes. Call {@link #onWritable()} once it does.
+     */
+    interface WriteBlockedListener {
+        void onWriteBlocked();
+    }
+
+    /**
+     * Told once when writing failed or the queue overflowed with {@link OverflowPolicy#DISCONNECT}.
+     * Later sends fail, so the connection should be closed. Called without locks held.
+     */
+    interface FailureListener {
+        void onWriteFailed(IOException e);
+    }
+
+    private static final ThreadFactory threadFactory = new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, TAG);
+            t.setDaemon(true);
+            return t;
+        }
+    };
+
+    // Starts drains of queues that didn't fill up in time, for every connection
+    private static final ScheduledThreadPoolExecutor flushTimer = new ScheduledThreadPoolExecutor(1, threadFactory);
+
+    // Runs drains of non-blocking channels, which never wait for a connection
+    private static final ThreadPoolExecutor drainPool = createDrainPool();
+
+    private final GatheringByteChannel channel;
+    private final OutputStream output;
+    private final WriteBlockedListener writeBlockedListener;
+
+    // Guarded by this. Drains a blocking connection, which waits while it is slow.
+    private ThreadPoolExecutor drainThread;
+    private ThreadFactory drainThreadFactory = threadFactory;
+
+    // Guarded by this
+    private Entry[] queue;
+    private int head;
+    private int queued;
+    private int queuedBytes;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.DROP_UNTIL_KEYFRAME;
+    // Per interleaved channel, made when the first key frame is sent
+    private byte[] channelStates;
+    // Messages waiting for the drain
+    private final ArrayDeque<ByteBuffer> messages = new ArrayDeque<>(2);
+    private boolean drainScheduled;
+    private boolean draining;
+    private IOException failure;
+    private FailureListener failureListener;
+    private long droppedPackets;
+    private int peakQueueDepth;
+
+    // Guarded by flushLock, which is held across writes. A lock rather than a monitor, so a virtual
+    // drain thread waiting on a slow connection doesn't pin its carrier thread.
+    private final Batch batch = new Batch();
+    private final ReentrantLock flushLock = new ReentrantLock();
+    private boolean writeBlocked;
+
+    private final Runnable timedDrain = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (RtspInterleavedWriter.this) {
+                drainScheduled = false;
+                if (draining || queued == 0) return;
+                draining = true;
+            }
+            startDrain();
+        }
+    };
+
+    private final Runnable drain = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    flushLock.lock();
+                    try {
+                        // Stays draining until onWritable() resumes it
+                        if (writeBlocked || !writeQueued()) return;
+                    } finally {
+                        flushLock.unlock();
+                    }
+                    synchronized (RtspInterleavedWriter.this) {
+                        if ((queued == 0 && messages.isEmpty()) || failure != null) {
+                            draining = false;
+                            return;
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                synchronized (RtspInterleavedWriter.this) {
+                    draining = false;
+                }
+                Log.w(TAG, "drain: Unable to write: " + e.getMessage());
+            }
+        }
+    };
+
+    /**
+     * Write to a channel with gathering writes. Shared payloads are not copied.
+     */
+    public RtspInterleavedWriter(GatheringByteChannel c) {
+        this(c, null);
+    }
+
+    /**
+     * Write to a non-blocking channel without ever waiting for it
+     *
+     * @param l Told when the channel is full, e.g. to wait for it to become writable
+     */
+    RtspInterleavedWriter(GatheringByteChannel c, WriteBlockedListener l) {
+        channel = c;
+        output = null;
+        writeBlockedListener = l;
+        queue = newQueue(DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * Write to a stream. Packets are copied into the batch.
+     */
+    public RtspInterleavedWriter(OutputStream o) {
+        channel = null;
+        output = o;
+        writeBlockedListener = null;
+        queue = newQueue(DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * Sets how a full send queue is handled. Call before sending.
+     *
+     * @param policy   What to do with packets sent while the queue is full
+     * @param capacity Number of packets the queue holds
+     */
+    public synchronized void setOverflowPolicy(OverflowPolicy policy, int capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException("Invalid queue capacity: " + capacity);
+        if (queued > 0) throw new IllegalStateException("Packets are queued");
+        overflowPolicy = policy;
+        if (capacity != queue.length) {
+            queue = newQueue(capacity);
+            head = 0;
+        }
+    }
+
+    public synchronized OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * Sets how the drain thread of a blocking connection is made, e.g. the thread factory of the
+     * server. Call before sending.
+     */
+    synchronized void setDrainThreadFactory(ThreadFactory f) {
+        if (f == null) throw new IllegalArgumentException("ThreadFactory must not be null");
+        drainThreadFactory = f;
+    }
+
+    /**
+     * Sets who closes the connection once writing failed
+     */
+    synchronized void setFailureListener(FailureListener l) {
+        failureListener = l;
+    }
+
+    /**
+     * @return Number of packets waiting to be written
+     */
+    public synchronized int getQueueDepth() {
+        return queued;
+    }
+
+    /**
+     * @return Highest number of packets that waited at once
+     */
+    public synchronized int getPeakQueueDepth() {
+        return peakQueueDepth;
+    }
+
+    /**
+     * @return Number of packets dropped because the queue was full
+     */
+    public synchronized long getDroppedPackets() {
+        return droppedPackets;
+    }
+
+    /**
+     * Queue a packet whose bytes are copied, e.g. from a buffer that is reused right away
+     *
+     * @param channelId    Interleaved channel
+     * @param header       Packet header, may be null
+     * @param headerLength Length of the header
+     * @param data         Array holding the rest of the packet
+     * @param offset       Offset of the rest of the packet
+     * @param length       Length of the rest of the packet
+     * @throws IOException A previous write failed, or the queue overflowed with
+     *                     {@link OverflowPolicy#DISCONNECT}
+     */
+    public void send(int channelId, byte[] header, int headerLength, byte[] data, int offset, int length)
+            throws IOException {
+        queue(channelId, header, headerLength, null, data, offset, length, false, false);
+    }
+
+    /**
+     * Queue a packet whose payload stays in a shared, immutable buffer until it is written. The buffer
+     * is retained while queued. Its {@link RtpBuffer#keyFrameStart} decides where
+     * {@link OverflowPolicy#DROP_UNTIL_KEYFRAME} resumes the channel.
+     *
+     * @param channelId    Interleaved channel
+     * @param header       Packet header, copied
+     * @param headerLength Length of the header
+     * @param payload      Buffer holding the rest of the packet
+     * @param offset       Offset of the rest of the packet
+     * @param length       Length of the rest of the packet
+     * @throws IOException A previous write failed, or the queue overflowed with
+     *                     {@link OverflowPolicy#DISCONNECT}
+     */
+    public void send(int channelId, byte[] header, int headerLength, RtpBuffer payload, int offset, int length)
+            throws IOException {
+        queue(channelId, header, headerLength, payload, payload.data, offset, length, true, payload.keyFrameStart);
+    }
+
+    /**
+     * Queue an RTSP message, written by the drain ahead of the packets still queued. Returns right
+     * away, failures to write it go to the {@link FailureListener}.
+     *
+     * @param message Serialized message
+     * @throws IOException The connection already failed
+     */
+    public void sendMessage(byte[] message) throws IOException {
+        synchronized (this) {
+            checkFailure();
+            messages.add(ByteBuffer.wrap(message));
+            if (draining) return;
+            draining = true;
+        }
+        startDrain();
+    }
+
+    /**
+     * Write every queued packet and message now, or as much as a non-blocking channel takes
+     *
+     * @throws IOException Unable to write to the connection
+     */
+    public void flush() throws IOException {
+        flushLock.lock();
+        try {
+            if (!writeBlocked) writeQueued();
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * Goes on writing after a non-blocking channel became writable again
+     */
+    void onWritable() {
+        flushLock.lock();
+        try {
+            writeBlocked = false;
+        } finally {
+            flushLock.unlock();
+        }
+        synchronized (this) {
+            draining = true;
+        }
+        startDrain();
+    }
+
+    /**
+     * Drops everything queued and releases the payloads held for it, once the owner closed the
+     * connection. Later sends fail. The {@link FailureListener} isn't told.
+     */
+    void close() {
+        synchronized (this) {
+            if (failure == null) failure = new IOException("Connection closed");
+            dropQueued();
+            messages.clear();
+        }
+        // A drain still writing drops the batch itself once its write fails or it sees the failure
+        if (flushLock.tryLock()) {
+            try {
+                batch.clear();
+            } finally {
+                flushLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * @param gated Whether the packet may wait for a key frame on its channel
+     */
+    private void queue(int channelId, byte[] header, int headerLength, RtpBuffer shared, byte[] data, int offset,
+                       int length, boolean gated, boolean keyFrameStart) throws IOException {
+        int packetLength = headerLength + length;
+        if (packetLength > 0xFFFF) throw new IllegalArgumentException("Interleaved packet too long: " + packetLength);
+
+        boolean drainNow = false;
+        boolean scheduleDrain = false;
+        IOException overflow = null;
+        synchronized (this) {
+            checkFailure();
+            int state = gated && channelStates != null ? channelStates[channelId & 0xFF] : 0;
+            if (keyFrameStart) {
+                if ((state & WAITING_FOR_KEY_FRAME) != 0) {
+                    // Whatever the channel still has queued belongs to frames before the gap
+                    dropQueued(channelId);
+                }
+                if (channelStates == null) channelStates = new byte[CHANNEL_COUNT];
+                channelStates[channelId & 0xFF] = CARRIES_KEY_FRAMES;
+            } else if ((state & WAITING_FOR_KEY_FRAME) != 0) {
+                droppedPackets++;
+                return;
+            }
+            if (queued == queue.length) {
+                OverflowPolicy policy = overflowPolicy;
+                if (policy == OverflowPolicy.DROP_UNTIL_KEYFRAME
+                        && (keyFrameStart || (state & CARRIES_KEY_FRAMES) == 0)) {
+                    // A key frame makes room, and nothing would end the wait on e.g. RTCP or audio
+                    policy = OverflowPolicy.DROP_OLDEST;
+                }
+                switch (policy) {
+                    case DROP_UNTIL_KEYFRAME:
+                        channelStates[channelId & 0xFF] = CARRIES_KEY_FRAMES | WAITING_FOR_KEY_FRAME;
+                        droppedPackets++;
+                        return;
+                    case DROP_OLDEST:
+                        removeHead().clear();
+                        droppedPackets++;
+                        break;
+                    case DISCONNECT:
+                        overflow = new IOException("Send queue overflowed, disconnecting a slow receiver");
+                        break;
+                }
+            }
+
+            if (overflow == null) {
+                append(channelId, header, headerLength, shared, data, offset, length);
+                if (!draining) {
+                    if (queuedBytes >= FLUSH_BYTES) {
+                        draining = true;
+                        drainNow = true;
+                    } else if (!drainScheduled) {
+                        drainScheduled = true;
+                        scheduleDrain = true;
+                    }
+                }
+            }
+        }
+        if (overflow != null) {
+            fail(overflow);
+            throw overflow;
+        }
+        if (drainNow) startDrain();
+        if (scheduleDrain) flushTimer.schedule(timedDrain, FLUSH_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void append(int channelId, byte[] header, int headerLength, RtpBuffer shared, byte[] data, int offset,
+                        int length) {
+        int tail = (head + queued) % queue.length;
+        Entry e = queue[tail];
+        if (e == null) e = queue[tail] = new Entry();
+        e.set(channelId, header, headerLength, shared, data, offset, length);
+        queued++;
+        queuedBytes += PREFIX_LENGTH + headerLength + length;
+        if (queued > peakQueueDepth) peakQueueDepth = queued;
+    }
+
+    private void startDrain() {
+        try {
+            getDrainExecutor().execute(drain);
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                draining = false;
+            }
+            Log.w(TAG, "startDrain: Unable to drain: " + e);
+        }
+    }
+
+    private synchronized Executor getDrainExecutor() {
+        if (writeBlockedListener != null) return drainPool;
+        if (drainThread == null) {
+            // At most one drain is started at a time, so it never queues behind another
+            drainThread = new ThreadPoolExecutor(1, 1, DRAIN_THREAD_KEEP_ALIVE_S, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), drainThreadFactory);
+            drainThread.allowCoreThreadTimeOut(true);
+        }
+        return drainThread;
+    }
+
+    private static ThreadPoolExecutor createDrainPool() {
+        int n = Runtime.getRuntime().availableProcessors();
+        ThreadPoolExecutor e = new ThreadPoolExecutor(n, n, DRAIN_THREAD_KEEP_ALIVE_S, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), threadFactory);
+        e.allowCoreThreadTimeOut(true);
+        return e;
+    }
+
+    /**
+     * Moves queued packets into the batch and writes it until the queue is empty. Called holding
+     * flushLock.
+     *
+     * @return False if a non-blocking channel filled up, with the rest kept for {@link #onWritable()}
+     */
+    private boolean writeQueued() throws IOException {
+        try {
+            while (true) {
+                // Finish the batch a full channel interrupted, then the messages that waited for it
+                if (batch.bytes > 0) {
+                    while (!batch.writeTo(channel, output)) {
+                        if (writeBlockedListener != null) return blockWrites();
+                    }
+                    batch.clear();
+                }
+                while (true) {
+                    ByteBuffer m;
+                    synchronized (this) {
+                        m = messages.peek();
+                    }
+                    if (m == null) break;
+                    if (!writeMessage(m)) return blockWrites();
+                    synchronized (this) {
+                        messages.poll();
+                    }
+                }
+
+                synchronized (this) {
+                    checkFailure();
+                    while (queued > 0 && batch.fits(queue[head], channel != null)) {
+                        Entry e = removeHead();
+                        batch.add(e, channel != null);
+                        e.clear();
+                    }
+                }
+                if (batch.bytes == 0) return true;
+            }
+        } catch (IOException e) {
+            batch.clear();
+            fail(e);
+            throw e;
+        }
+    }
+
+    /**
+     * @return False if a non-blocking channel took only part of the message
+     */
+    private boolean writeMessage(ByteBuffer m) throws IOException {
+        if (channel == null) {
+            output.write(m.array(), m.position(), m.remaining());
+            output.flush();
+            m.position(m.limit());
+            return true;
+        }
+        do {
+            channel.write(m);
+        } while (m.hasRemaining() && writeBlockedListener == null);
+        return !m.hasRemaining();
+    }
+
+    private boolean blockWrites() {
+        writeBlocked = true;
+        writeBlockedListener.onWriteBlocked();
+        return false;
+    }
+
+    private Entry removeHead() {
+        Entry e = queue[head];
+        head = (head + 1) % queue.length;
+        queued--;
+        queuedBytes -= PREFIX_LENGTH + e.headerLength + e.length;
+        return e;
+    }
+
+    private void dropQueued() {
+        droppedPackets += queued;
+        while (queued > 0) removeHead().clear();
+    }
+
+    /**
+     * Drops the queued packets of one channel, keeping the others in order
+     */
+    private void dropQueued(int channelId) {
+        int kept = 0;
+        for (int i = 0, n = queued; i < n; i++) {
+            int from = (head + i) % queue.length;
+            Entry e = queue[from];
+            if (e.channelId == channelId) {
+                queuedBytes -= PREFIX_LENGTH + e.headerLength + e.length;
+                e.clear();
+                droppedPackets++;
+            } else {
+                // Everything between the two slots was dropped, so the entries just trade places
+                int to = (head + kept) % queue.length;
+                queue[from] = queue[to];
+                queue[to] = e;
+                kept++;
+            }
+        }
+        queued = kept;
+    }
+
+    /**
+     * Drops what is queued and tells the owner about the first failure
+     */
+    private void fail(IOException e) {
+        FailureListener l = null;
+        synchronized (this) {
+            if (failure == null) {
+                failure = e;
+                l = failureListener;
+            }
+            dropQueued();
+            messages.clear();
+        }
+        if (l != null) l.onWriteFailed(e);
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure != null) throw new IOException("Connection failed: " + failure.getMessage(), failure);
+    }
+
+    /**
+     * Entries are made as the queue first fills, so idle connections don't hold them
+     */
+    private static Entry[] newQueue(int capacity) {
+        return new Entry[capacity];
+    }
+
+    /**
+     * A queued packet. Headers and unshared payloads are copied into arrays reused by later packets,
+     * shared payloads are retained.
+     */
+    private static class Entry {
+        int channelId;
+        byte[] header = new byte[16];
+        int headerLength;
+        RtpBuffer shared;
+        byte[] copy;
+        byte[] data;
+        int offset;
+        int length;
+
+        void set(int channelId, byte[] h, int hl, RtpBuffer s, byte[] d, int o, int n) {
+            this.channelId = channelId;
+            if (hl > header.length) header = new byte[hl];
+            if (hl > 0) System.arraycopy(h, 0, header, 0, hl);
+            headerLength = hl;
+            if (s != null) {
+                s.retain();
+                shared = s;
+                data = d;
+                offset = o;
+            } else {
+                if (copy == null || copy.length < n) copy = new byte[Math.max(n, 256)];
+                System.arraycopy(d, o, copy, 0, n);
+                data = copy;
+                offset = 0;
+            }
+            length = n;
+        }
+
+        void clear() {
+            if (shared != null) {
+                shared.release();
+                shared = null;
+            }
+            data = null;
+            headerLength = 0;
+            length = 0;
+        }
+    }
+
+    /**
+     * Packets written at once: framing, headers and copied payloads in an arena, shared payloads
+     * referenced
+     */
+    private static class Batch {
+        // Made on the first packet, so connections that only carry messages don't hold one
+        private byte[] arena;
+        private int arenaUsed;
+
+        // Runs of the arena and shared payloads, in write order
+        private ByteBuffer[] slices = new ByteBuffer[64];
+        private int sliceCount;
+        private int firstUnwritten;
+        private int arenaSliceStart = -1;
+
+        private RtpBuffer[] held = new RtpBuffer[32];
+        private int heldCount;
+
+        int bytes;
+
+        /**
+         * @param gather Whether shared payloads are referenced rather than copied
+         */
+        boolean fits(Entry e, boolean gather) {
+            if (bytes >= FLUSH_BYTES) return false;
+            int arenaBytes = PREFIX_LENGTH + e.headerLength + (gather && e.shared != null ? 0 : e.length);
+            return arenaUsed + arenaBytes <= ARENA_SIZE;
+        }
+
+        void add(Entry e, boolean gather) {
+            if (arena == null) arena = new byte[ARENA_SIZE];
+            int packetLength = e.headerLength + e.length;
+            int p = arenaUsed;
+            arena[p] = '$';
+            arena[p + 1] = (byte) e.channelId;
+            arena[p + 2] = (byte) (packetLength >> 8);
+            arena[p + 3] = (byte) packetLength;
+            arenaUsed += PREFIX_LENGTH;
+            if (e.headerLength > 0) {
+                System.arraycopy(e.header, 0, arena, arenaUsed, e.headerLength);
+                arenaUsed += e.headerLength;
+            }
+            extendArenaSlice(p);
+            bytes += PREFIX_LENGTH + e.headerLength;
+
+            if (!gather || e.shared == null) {
+                appendToArena(e.data, e.offset, e.length);
+                return;
+            }
+
+            // Close the arena run and reference the payload where it is
+            arenaSliceStart = -1;
+            e.shared.retain();
+            if (heldCount == held.length) held = grow(held);
+            held[heldCount++] = e.shared;
+            addSlice(ByteBuffer.wrap(e.data, e.offset, e.length));
+            bytes += e.length;
+        }
+
+        private void appendToArena(byte[] d, int o, int n) {
+            int p = arenaUsed;
+            System.arraycopy(d, o, arena, p, n);
+            arenaUsed += n;
+            extendArenaSlice(p);
+            bytes += n;
+        }
+
+        /**
+         * Extends the current arena run to arenaUsed, or starts one at p
+         */
+        private void extendArenaSlice(int p) {
+            if (arenaSliceStart < 0) {
+                arenaSliceStart = p;
+                addSlice(ByteBuffer.wrap(arena, p, arenaUsed - p));
+            } else {
+                slices[sliceCount - 1].limit(arenaUsed);
+            }
+        }
+
+        private void addSlice(ByteBuffer bb) {
+            if (sliceCount == slices.length) {
+                ByteBuffer[] grown = new ByteBuffer[slices.length * 2];
+                System.arraycopy(slices, 0, grown, 0, sliceCount);
+                slices = grown;
+            }
+            slices[sliceCount++] = bb;
+        }
+
+        /**
+         * Writes the rest of the batch. A blocking channel or a stream takes all of it.
+         *
+         * @return False if a non-blocking channel took no more, the rest is written by the next call
+         */
+        boolean writeTo(GatheringByteChannel c, OutputStream o) throws IOException {
+            if (bytes == 0) return true;
+            if (c != null) {
+                while (firstUnwritten < sliceCount) {
+                    long n = c.write(slices, firstUnwritten, sliceCount - firstUnwritten);
+                    while (firstUnwritten < sliceCount && !slices[firstUnwritten].hasRemaining()) firstUnwritten++;
+                    if (n == 0 && firstUnwritten < sliceCount) return false;
+                }
+            } else {
+                // Everything was copied into the arena
+                o.write(arena, 0, arenaUsed);
+                o.flush();
+            }
+            return true;
+        }
+
+        void clear() {
+            for (int i = 0; i < heldCount; i++) {
+                held[i].release();
+                held[i] = null;
+            }
+            for (int i = 0; i < sliceCount; i++) slices[i] = null;
+            heldCount = 0;
+            sliceCount = 0;
+            firstUnwritten = 0;
+            arenaUsed = 0;
+            arenaSliceStart = -1;
+            bytes = 0;
+        }
+
+        private static RtpBuffer[] grow(RtpBuffer[] a) {
+            RtpBuffer[] grown = new RtpBuffer[a.length * 2];
+            System.arraycopy(a, 0, grown, 0, a.length);
+            return grown;
+        }
+    }
+}
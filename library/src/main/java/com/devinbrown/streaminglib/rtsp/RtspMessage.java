@@ -5,8 +5,6 @@ import android.util.Log;
 import com.devinbrown.streaminglib.Utils;
 import com.devinbrown.streaminglib.rtsp.headers.SessionHeader;
 
-import java.io.BufferedReader;
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -214,66 +212,61 @@ public abstract class RtspMessage extends Rtsp {
     }
 
     /**
-     * Parses Rtsp Message
+     * Parses the start line and headers of a received message. The body is set separately.
      *
-     * @param b BufferedReader attached to socket
-     * @throws IOException Error reading stream from socket
+     * @param head Start line and headers, up to the empty line ending them
+     * @throws IllegalArgumentException Invalid start line
      */
-    void parseMessage(String firstLine, BufferedReader b) throws IOException {
-        parseFirstLine(firstLine);
-        parseHeaders(b);
-        parseBody(b);
+    void parseHead(String head) {
+        int start = 0;
+        boolean firstLine = true;
+        while (start < head.length()) {
+            int end = head.indexOf('\n', start);
+            if (end < 0) end = head.length();
+            int lineEnd = end > start && head.charAt(end - 1) == '\r' ? end - 1 : end;
+            if (lineEnd == start) break;
+
+            String line = head.substring(start, lineEnd);
+            if (firstLine) {
+                parseFirstLine(line);
+                firstLine = false;
+            } else {
+                parseHeaderLine(line);
+            }
+            start = end + 1;
+        }
+        if (firstLine) throw new IllegalArgumentException("RTSP message has no first line");
     }
 
     /* Parsing RtspRequest-Line (RtspRequest) or Status-Line (RtspResponse) */
     abstract void parseFirstLine(String f) throws IllegalArgumentException;
 
-    private void parseHeaders(BufferedReader r) throws IOException {
-        String line;
-        while (r.ready()) {
-            line = r.readLine();
-            if (line == null || line.isEmpty()) {
-                break;
-            }
+    private void parseHeaderLine(String line) {
+        int colon = line.indexOf(':');
+        if (colon < 0) return;
 
-            String[] sSplit = line.split(":", 2);
-            if (sSplit.length >= 2) {
-                String k = sSplit[0];
-                String v = sSplit[1];
-                if (k != null && v != null) {
-                    v = v.trim();
-
-                    // Determine which header this belongs
-                    RtspHeader header = RtspHeader.fromKey(k);
-                    if (header != null) {
-                        insertHeaderAttribute(header, v);
-                    } else {
-                        Log.e(TAG, "Unsupported RTSP header attribute: <" + k + "> value: <" + v + ">");
-                    }
-                }
-            }
-        }
-    }
+        String k = line.substring(0, colon).trim();
+        String v = line.substring(colon + 1).trim();
 
-    private void parseBody(BufferedReader r) throws IOException {
-        // Check if there is a body to read
-        int contentLength = 0;
-        List<String> lengthValuesArray = getHeaderValues(RtspHeader.CONTENT_LENGTH);
-        if (lengthValuesArray != null && lengthValuesArray.size() >= 1) {
-            String lengthString = lengthValuesArray.get(0);
-            if (lengthString != null) {
-                contentLength = Integer.valueOf(lengthString.trim());
-            }
+        // Determine which header this belongs
+        RtspHeader header = RtspHeader.fromKey(k);
+        if (header != null) {
+            insertHeaderAttribute(header, v);
+        } else {
+            Log.e(TAG, "Unsupported RTSP header attribute: <" + k + "> value: <" + v + ">");
         }
+    }
 
-        // Read the body
-        String line;
-        while (contentLength > body.length() && r.ready()) {
-            line = r.readLine();
-            if (line == null || line.isEmpty()) {
-                break;
-            }
-            body += line + CRLF;
+    /**
+     * @return Length of the body from the Content-Length header, 0 without one, -1 if it is invalid
+     */
+    int getContentLength() {
+        List<String> values = getHeaderValues(RtspHeader.CONTENT_LENGTH);
+        if (values == null || values.isEmpty() || values.get(0) == null) return 0;
+        try {
+            return Integer.parseInt(values.get(0).trim());
+        } catch (NumberFormatException e) {
+            return -1;
         }
     }
 
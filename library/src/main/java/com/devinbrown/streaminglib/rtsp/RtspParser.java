@@ -0,0 +1,232 @@
+package com.devinbrown.streaminglib.rtsp;
+
+import com.devinbrown.streaminglib.rtp.RtpBuffer;
+import com.devinbrown.streaminglib.rtp.RtpBufferPool;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Resumable parser of the bytes received on an RTSP connection
+ * <p>
+ * Requests, responses and interleaved binary frames are parsed in one pass from whatever bytes are
+ * available, so a message split across reads is picked up where the last read left off and bytes
+ * following a message are never lost. The start line and headers are collected in a reusable array
+ * and decoded once the empty line ending them arrives. The body, sized by Content-Length, and
+ * interleaved frames are copied straight into their final buffers, and handed over in one reused
+ * {@link RtspInterleavedData}.
+ * <p>
+ * Not thread safe. Each connection needs its own parser.
+ * <p>
+ * Reference: https://tools.ietf.org/html/rfc2326#section-4
+ * Reference: https://tools.ietf.org/html/rfc2326#section-10.12
+ */
+public class RtspParser {
+    // Longest start line and headers accepted
+    static final int MAX_HEAD_LENGTH = 16 * 1024;
+    // Largest body accepted, e.g. a session description
+    static final int MAX_BODY_LENGTH = 64 * 1024;
+
+    private static final int INTERLEAVED_HEADER_LENGTH = 3;
+
+    private enum State {START, HEAD, BODY, INTERLEAVED_HEADER, INTERLEAVED_DATA}
+
+    private final RtpBufferPool framePool;
+    private State state = State.START;
+
+    // Start line and headers of the message being parsed
+    private byte[] head = new byte[1024];
+    private int headLength;
+
+    private RtspMessage message;
+    private byte[] body;
+    private int bodyLength;
+
+    private final byte[] interleavedHeader = new byte[INTERLEAVED_HEADER_LENGTH];
+    private int interleavedHeaderLength;
+    private RtpBuffer frame;
+    private int frameLength;
+    // Returned for every frame, so receiving one allocates nothing
+    private final RtspInterleavedData interleavedData = new RtspInterleavedData(0, (RtpBuffer) null);
+
+    public RtspParser() {
+        this(null);
+    }
+
+    /**
+     * @param p Pool interleaved frames are received into when they fit, null to allocate each one
+     */
+    public RtspParser(RtpBufferPool p) {
+        framePool = p;
+    }
+
+    /**
+     * Consumes bytes until a message is complete or the input is used up
+     *
+     * @param in Received bytes, from its position to its limit
+     * @return The next complete message, or null if all of in was consumed without completing one. An
+     * {@link RtspInterleavedData} is reused by the next call, so take its buffer before then.
+     * @throws ProtocolException The input is not RTSP
+     */
+    public Rtsp parse(ByteBuffer in) throws ProtocolException {
+        while (in.hasRemaining()) {
+            switch (state) {
+                case START:
+                    byte first = in.get(in.position());
+                    if (first == '$') {
+                        in.get();
+                        interleavedHeaderLength = 0;
+                        state = State.INTERLEAVED_HEADER;
+                    } else if (first == '\r' || first == '\n') {
+                        // Skip empty lines between messages
+                        in.get();
+                    } else {
+                        headLength = 0;
+                        state = State.HEAD;
+                    }
+                    break;
+                case HEAD:
+                    if (readHead(in)) {
+                        Rtsp r = finishHead();
+                        if (r != null) return r;
+                    }
+                    break;
+                case BODY:
+                    int n = Math.min(in.remaining(), body.length - bodyLength);
+                    in.get(body, bodyLength, n);
+                    bodyLength += n;
+                    if (bodyLength == body.length) return finishBody();
+                    break;
+                case INTERLEAVED_HEADER:
+                    interleavedHeader[interleavedHeaderLength++] = in.get();
+                    if (interleavedHeaderLength == INTERLEAVED_HEADER_LENGTH) {
+                        Rtsp r = startFrame();
+                        if (r != null) return r;
+                    }
+                    break;
+                case INTERLEAVED_DATA:
+                    int m = Math.min(in.remaining(), frameLength - frame.length);
+                    in.get(frame.data, frame.length, m);
+                    frame.length += m;
+                    if (frame.length == frameLength) return finishFrame();
+                    break;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Drops the message being parsed, e.g. after a parse error
+     */
+    public void reset() {
+        if (frame != null) frame.release();
+        frame = null;
+        message = null;
+        body = null;
+        state = State.START;
+    }
+
+    /**
+     * Copies head bytes up to and including the empty line that ends them
+     *
+     * @return Whether the head is complete
+     */
+    private boolean readHead(ByteBuffer in) throws ProtocolException {
+        while (in.hasRemaining()) {
+            if (headLength == head.length) {
+                if (headLength >= MAX_HEAD_LENGTH) {
+                    reset();
+                    throw new ProtocolException("RTSP message headers longer than " + MAX_HEAD_LENGTH + " bytes");
+                }
+                byte[] grown = new byte[Math.min(MAX_HEAD_LENGTH, head.length * 2)];
+                System.arraycopy(head, 0, grown, 0, headLength);
+                head = grown;
+            }
+
+            byte c = in.get();
+            head[headLength++] = c;
+            // CRLF CRLF, or bare LF LF from lenient peers
+            if (c == '\n' && (endsWith(head, headLength, "\r\n\r\n") || endsWith(head, headLength, "\n\n"))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return The message if it has no body, otherwise null and the body is read next
+     */
+    private Rtsp finishHead() throws ProtocolException {
+        String h = new String(head, 0, headLength, StandardCharsets.UTF_8);
+        RtspMessage m;
+        try {
+            m = h.startsWith("RTSP/") ? RtspResponse.parseResponse(h) : RtspRequest.parseRequest(h);
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            reset();
+            throw new ProtocolException("Invalid RTSP message: " + e.getMessage());
+        }
+
+        int contentLength = m.getContentLength();
+        if (contentLength < 0 || contentLength > MAX_BODY_LENGTH) {
+            reset();
+            throw new ProtocolException("Invalid RTSP Content-Length: " + contentLength);
+        }
+
+        if (contentLength == 0) {
+            state = State.START;
+            return m;
+        }
+        message = m;
+        body = new byte[contentLength];
+        bodyLength = 0;
+        state = State.BODY;
+        return null;
+    }
+
+    private Rtsp finishBody() {
+        RtspMessage m = message;
+        m.body = new String(body, 0, bodyLength, StandardCharsets.UTF_8);
+        message = null;
+        body = null;
+        state = State.START;
+        return m;
+    }
+
+    /**
+     * Reads the channel and length following the '$' and gets a buffer for the frame
+     *
+     * @return The frame if it is empty, otherwise null and its data is read next
+     */
+    private Rtsp startFrame() {
+        frameLength = ((interleavedHeader[1] & 0xFF) << 8) | (interleavedHeader[2] & 0xFF);
+        frame = framePool != null && frameLength <= framePool.getBufferCapacity() ? framePool.acquire() : null;
+        if (frame == null) {
+            frame = RtpBuffer.wrap(new byte[frameLength]);
+            frame.length = 0;
+        }
+
+        if (frameLength == 0) return finishFrame();
+        state = State.INTERLEAVED_DATA;
+        return null;
+    }
+
+    private Rtsp finishFrame() {
+        RtpBuffer b = frame;
+        frame = null;
+        b.arrivalNanos = System.nanoTime();
+        state = State.START;
+        interleavedData.channel = interleavedHeader[0] & 0xFF;
+        interleavedData.buffer = b;
+        return interleavedData;
+    }
+
+    private static boolean endsWith(byte[] d, int length, String suffix) {
+        int n = suffix.length();
+        if (length < n) return false;
+        for (int i = 0; i < n; i++) {
+            if (d[length - n + i] != suffix.charAt(i)) return false;
+        }
+        return true;
+    }
+}
@@ -6,8 +6,6 @@ import com.devinbrown.streaminglib.rtp.RtpStream;
 import com.devinbrown.streaminglib.rtsp.headers.SessionHeader;
 import com.devinbrown.streaminglib.rtsp.headers.TransportHeader;
 
-import java.io.BufferedReader;
-import java.io.IOException;
 import java.net.URISyntaxException;
 
 import static com.devinbrown.streaminglib.Constants.CRLF;
@@ -24,9 +22,13 @@ public final class RtspRequest extends RtspMessage {
     private RtspRequest() {
     }
 
-    public static RtspRequest parseRequest(String firstLine, BufferedReader b) throws IOException {
+    /**
+     * @param head Request line and headers
+     * @throws IllegalArgumentException Invalid request line
+     */
+    static RtspRequest parseRequest(String head) {
         RtspRequest r = new RtspRequest();
-        r.parseMessage(firstLine, b);
+        r.parseHead(head);
         return r;
     }
 
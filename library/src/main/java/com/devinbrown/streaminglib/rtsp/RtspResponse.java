@@ -6,8 +6,6 @@ import com.devinbrown.streaminglib.rtsp.headers.SessionHeader;
 import com.devinbrown.streaminglib.rtsp.headers.TransportHeader;
 import com.devinbrown.streaminglib.sdp.SessionDescription;
 
-import java.io.BufferedReader;
-import java.io.IOException;
 import java.util.List;
 
 import static com.devinbrown.streaminglib.Constants.CRLF;
@@ -23,9 +21,13 @@ public final class RtspResponse extends RtspMessage {
     private RtspResponse() {
     }
 
-    public static RtspResponse parseResponse(String firstLine, BufferedReader b) throws IOException {
+    /**
+     * @param head Status line and headers
+     * @throws IllegalArgumentException Invalid status line
+     */
+    static RtspResponse parseResponse(String head) {
         RtspResponse r = new RtspResponse();
-        r.parseMessage(firstLine, b);
+        r.parseHead(head);
         return r;
     }
 
@@ -3,6 +3,7 @@ package com.devinbrown.streaminglib.rtsp;
 import android.util.Log;
 
 import com.devinbrown.streaminglib.RtspServerStreamEvent;
+import com.devinbrown.streaminglib.SessionThreads;
 import com.devinbrown.streaminglib.media.RtpMedia;
 
 import org.greenrobot.eventbus.EventBus;
@@ -12,20 +13,34 @@ import org.greenrobot.eventbus.ThreadMode;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
 
 public class RtspServer {
     private static final String TAG = "RtspServer";
     private static int DEFAULT_PORT = 8554;
+    // Connections waiting to be accepted, sized for many clients connecting at once
+    private static final int ACCEPT_BACKLOG = 1024;
     private static RtspServer sharedInstance;
 
     private int port;
     private Thread mainServerThread;
     private List<RtpMedia> media = new ArrayList<>();
-    private List<RtspServerSession> sessions = new ArrayList<>();
+    private Set<RtspServerSession> sessions = Collections.newSetFromMap(new ConcurrentHashMap<RtspServerSession, Boolean>());
     private int nextTrackId = 0;
     private RtspAuth.AuthParams auth;
+    private RtspInterleavedWriter.OverflowPolicy overflowPolicy = RtspInterleavedWriter.OverflowPolicy.DROP_UNTIL_KEYFRAME;
+    private int sendQueueCapacity = RtspInterleavedWriter.DEFAULT_QUEUE_CAPACITY;
+    // 0 for a thread per connection
+    private int eventLoopCount;
+    private RtspEventLoop[] eventLoops;
+    private ThreadFactory threadFactory = SessionThreads.platform();
 
     private RtspServer(int port) {
         this.port = port;
@@ -62,6 +77,66 @@ public class RtspServer {
         return auth;
     }
 
+    /**
+     * Sets how viewers receiving interleaved over TCP are treated when they don't keep up. Applies to
+     * connections accepted afterwards.
+     *
+     * @param policy   What to do with packets sent while a connection's send queue is full
+     * @param capacity Number of packets each connection's send queue holds
+     */
+    public void setSlowConsumerPolicy(RtspInterleavedWriter.OverflowPolicy policy, int capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException("Invalid queue capacity: " + capacity);
+        overflowPolicy = policy;
+        sendQueueCapacity = capacity;
+    }
+
+    public RtspInterleavedWriter.OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public int getSendQueueCapacity() {
+        return sendQueueCapacity;
+    }
+
+    /**
+     * Serves connections from a few event loop threads with non-blocking sockets instead of reading
+     * each one on its own thread, so the number of connections isn't bound by the number of threads.
+     * Call before {@link #start()}.
+     *
+     * @param n Number of event loops, 0 for a thread per connection
+     */
+    public void setEventLoopCount(int n) {
+        if (n < 0) throw new IllegalArgumentException("Invalid event loop count: " + n);
+        eventLoopCount = n;
+    }
+
+    public int getEventLoopCount() {
+        return eventLoopCount;
+    }
+
+    /**
+     * Sets how the thread reading each connection is made when there are no event loops. With
+     * {@link SessionThreads#virtual()} every connection keeps its blocking reader without holding an
+     * OS thread. Applies to connections accepted afterwards.
+     *
+     * @param f Factory of connection threads
+     */
+    public void setThreadFactory(ThreadFactory f) {
+        if (f == null) throw new IllegalArgumentException("ThreadFactory must not be null");
+        threadFactory = f;
+    }
+
+    public ThreadFactory getThreadFactory() {
+        return threadFactory;
+    }
+
+    /**
+     * @return Number of open connections
+     */
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
     /**
      * Starts the listener in a thread
      */
@@ -70,7 +145,8 @@ public class RtspServer {
             @Override
             public void run() {
                 try {
-                    listen();
+                    if (eventLoopCount > 0) listenNonBlocking();
+                    else listen();
                 } catch (IOException e) {
                     e.printStackTrace();
                 }
@@ -102,6 +178,47 @@ public class RtspServer {
         }
     }
 
+    /**
+     * Accepts client connections and hands them to the event loops in turn
+     *
+     * @throws IOException server socket cannot be created on port
+     */
+    private void listenNonBlocking() throws IOException {
+        eventLoops = new RtspEventLoop[eventLoopCount];
+        for (int i = 0; i < eventLoops.length; i++) {
+            eventLoops[i] = new RtspEventLoop(this);
+            new Thread(eventLoops[i], "RtspEventLoop-" + i).start();
+        }
+
+        ServerSocketChannel rtspServerChannel = ServerSocketChannel.open();
+        try {
+            Log.d(TAG, "listenNonBlocking: Create server socket");
+            rtspServerChannel.socket().setReuseAddress(true);
+            rtspServerChannel.socket().bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+
+            int next = 0;
+            while (!Thread.interrupted()) {
+                // Blocking, only the accepted connections are non-blocking
+                SocketChannel c = rtspServerChannel.accept();
+                eventLoops[next].register(c);
+                next = (next + 1) % eventLoops.length;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            rtspServerChannel.close();
+            for (RtspEventLoop l : eventLoops) l.close();
+        }
+    }
+
+    void addSession(RtspServerSession s) {
+        sessions.add(s);
+    }
+
+    void removeSession(RtspServerSession s) {
+        sessions.remove(s);
+    }
+
     public List<RtpMedia> getRtpMedia() {
         return media;
     }
@@ -118,7 +235,7 @@ public class RtspServer {
     public void handleEvent(RtspServerEvent.Connection event) {
         Log.d(TAG, "handleEvent: RtspServerEvent.Connection");
         try {
-            sessions.add(new RtspServerSession(this, event.socket));
+            new RtspServerSession(this, event.socket);
         } catch (IOException e) {
             Log.e(TAG, "handleEvent: Failed to create RtspServerSession: " + e.getMessage());
         }
@@ -2,6 +2,7 @@ package com.devinbrown.streaminglib.rtsp;
 
 import android.util.Log;
 
+import com.devinbrown.streaminglib.OrderedEventBus;
 import com.devinbrown.streaminglib.Utils;
 import com.devinbrown.streaminglib.media.RtpMedia;
 import com.devinbrown.streaminglib.rtp.RtpServerStream;
@@ -9,12 +10,11 @@ import com.devinbrown.streaminglib.rtp.RtpStream;
 import com.devinbrown.streaminglib.rtsp.headers.SessionHeader;
 import com.devinbrown.streaminglib.rtsp.headers.TransportHeader;
 
-import org.greenrobot.eventbus.EventBus;
-
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.channels.SocketChannel;
 
 public class RtspServerSession extends RtspSession {
     private static final String TAG = "RtspServerSession";
@@ -34,10 +34,62 @@ public class RtspServerSession extends RtspSession {
         this.socket = socket;
         input = socket.getInputStream();
         output = socket.getOutputStream();
-        eventBus = new EventBus();
+        getInterleavedWriter().setOverflowPolicy(rtspServer.getOverflowPolicy(), rtspServer.getSendQueueCapacity());
+        getInterleavedWriter().setDrainThreadFactory(rtspServer.getThreadFactory());
+        getInterleavedWriter().setFailureListener(new RtspInterleavedWriter.FailureListener() {
+            @Override
+            public void onWriteFailed(IOException e) {
+                // The input listener's read fails and it tears the session down
+                Log.d(TAG, "Closing connection: " + e.getMessage());
+                closeSocket();
+            }
+        });
+        eventBus = OrderedEventBus.create();
         eventBus.register(this);
 
-        new Thread(new RtspInputListener()).start();
+        // Added before reading so a connection that closes right away is removed again
+        rtspServer.addSession(this);
+        rtspServer.getThreadFactory().newThread(new RtspInputListener()).start();
+    }
+
+    /**
+     * A connection served by an {@link RtspEventLoop}, which reads it and passes what arrives to
+     * {@link #handleRtspInput(Rtsp)}. No thread is started.
+     *
+     * @param channel Non-blocking connection
+     * @param l       Told when the connection can't take more, to wait for it to become writable
+     */
+    RtspServerSession(RtspServer rtspServer, SocketChannel channel, RtspInterleavedWriter.WriteBlockedListener l) {
+        name = "Android RTSP Server";
+        this.rtspServer = rtspServer;
+        this.socket = channel.socket();
+        setInterleavedWriter(new RtspInterleavedWriter(channel, l));
+        getInterleavedWriter().setOverflowPolicy(rtspServer.getOverflowPolicy(), rtspServer.getSendQueueCapacity());
+        eventBus = OrderedEventBus.create();
+        eventBus.register(this);
+    }
+
+    /**
+     * Tears down the streams of a connection that closed and forgets the session
+     */
+    @Override
+    void onDisconnected() {
+        closeSocket();
+        // Releases the payloads a connection that died while write-blocked still held
+        getInterleavedWriter().close();
+        for (RtpStream s : streams) {
+            // A TEARDOWN handled at the same time may already have removed it
+            if (streams.remove(s)) s.teardown();
+        }
+        rtspServer.removeSession(this);
+    }
+
+    private void closeSocket() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            Log.w(TAG, "closeSocket: " + e.getMessage());
+        }
     }
 
     @Override
@@ -51,11 +103,13 @@ public class RtspServerSession extends RtspSession {
     }
 
     @Override
-    RtpStream initializeRtpStream(RtpStream.RtpProtocol p, RtpMedia m, TransportHeader t) throws SocketException {
+    RtpStream initializeRtpStream(RtpStream.RtpProtocol p, RtpStream.Delivery d, RtpMedia m, TransportHeader t)
+            throws SocketException {
         RtpServerStream s = new RtpServerStream(this, m);
         switch (p) {
             case UDP:
-                s.initializeUdp();
+                if (d == RtpStream.Delivery.MULTICAST) s.initializeMulticast();
+                else s.initializeUdp();
                 break;
             case TCP:
                 s.initializeTcp(t.interleavedChannels);
@@ -69,7 +123,8 @@ public class RtspServerSession extends RtspSession {
         s.setSessionId(sessionId);
         switch (s.getRtpProtocol()) {
             case UDP:
-                s.configureUdp(t.clientRtpPorts, host);
+                if (s.getDelivery() == RtpStream.Delivery.MULTICAST) ((RtpServerStream) s).configureMulticast();
+                else s.configureUdp(t.clientRtpPorts, host);
                 break;
             case TCP:
                 s.configureTcp();
@@ -105,8 +160,9 @@ public class RtspServerSession extends RtspSession {
         try {
             // TODO: Determine protocol: UDP/TCP
             TransportHeader t = TransportHeader.fromString(r.getTransport());
-            RtpStream stream = initializeRtpStream(t.rtpProtocol, rtpMedia, t);
+            RtpStream stream = initializeRtpStream(t.rtpProtocol, t.delivery, rtpMedia, t);
             configureRtpStream(stream, Utils.getNewSsrc(), t, socket.getInetAddress());
+            streams.add(stream);
             RtspResponse res = RtspResponse.buildSetupResponse(r, stream);
             eventBus.post(new RtspSessionEvent.SendResponse(r, res));
         } catch (SocketException e) {
@@ -132,6 +188,10 @@ public class RtspServerSession extends RtspSession {
     void handleTeardownRequest(RtspRequest r) {
         Log.d(TAG, "handleTeardownRequest");
         SessionHeader session = r.getSession();
+        if (session != null) {
+            RtpStream stream = getStreamFromSession(session.sessionId);
+            if (stream != null && streams.remove(stream)) stream.teardown();
+        }
         RtspResponse res = RtspResponse.buildTeardownResponse(r, session);
         eventBus.post(new RtspSessionEvent.SendResponse(r, res));
     }
@@ -2,12 +2,13 @@ package com.devinbrown.streaminglib.rtsp;
 
 import android.net.Uri;
 import android.util.Log;
-import android.util.Pair;
 import android.util.SparseArray;
 
 import com.devinbrown.streaminglib.RtspClientStreamEvent;
 import com.devinbrown.streaminglib.UnsupportedRtspMethodException;
 import com.devinbrown.streaminglib.media.RtpMedia;
+import com.devinbrown.streaminglib.rtp.RtpBuffer;
+import com.devinbrown.streaminglib.rtp.RtpBufferPool;
 import com.devinbrown.streaminglib.rtp.RtpClientStream;
 import com.devinbrown.streaminglib.rtp.RtpStream;
 import com.devinbrown.streaminglib.rtsp.headers.TransportHeader;
@@ -21,11 +22,15 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetAddress;
+import java.net.ProtocolException;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public abstract class RtspSession {
     private static final String TAG = "RtspSession";
@@ -35,7 +40,8 @@ public abstract class RtspSession {
     RtspInputListener rtspInputListener;
 
     List<Rtsp.Method> supportedMethods = new ArrayList<>();
-    List<RtpStream> streams = new ArrayList<>();
+    // Copy on write: SETUP adds streams while the event loop looks up interleaved channels
+    List<RtpStream> streams = new CopyOnWriteArrayList<>();
     SparseArray<RtspSessionEvent.SendRequest> pastRequests = new SparseArray<>();
 
     String name;
@@ -49,19 +55,79 @@ public abstract class RtspSession {
 
     private String nonce = RtspAuth.generateNonce();
 
+    // Guarded by this
+    private RtspInterleavedWriter interleavedWriter;
+
     SessionDescription sessionDescription;
 
     abstract RtspAuth.AuthParams getAuth();
 
     abstract RtpStream.StreamType getStreamType();
 
-    abstract RtpStream initializeRtpStream(RtpStream.RtpProtocol p, RtpMedia m, TransportHeader t) throws SocketException;
+    abstract RtpStream initializeRtpStream(RtpStream.RtpProtocol p, RtpStream.Delivery d, RtpMedia m, TransportHeader t)
+            throws SocketException;
 
     abstract void configureRtpStream(RtpStream s, String sessionId, TransportHeader t, InetAddress host);
 
-    public synchronized void sendRtsp(Rtsp r) throws IOException {
-        output.write(r.getBytes());
-        output.flush();
+    public void sendRtsp(Rtsp r) throws IOException {
+        getInterleavedWriter().sendMessage(r.getBytes());
+    }
+
+    /**
+     * Queue an RTP or RTCP packet interleaved on the RTSP connection, given as a header and payload
+     * so the header can differ per session. Both are copied.
+     * <p>
+     * Reference: https://tools.ietf.org/html/rfc2326#section-10.12
+     *
+     * @param channel       Interleaved channel
+     * @param header        Packet header, may be null
+     * @param headerLength  Length of the header
+     * @param payload       Array holding the rest of the packet
+     * @param offset        Offset of the rest of the packet
+     * @param payloadLength Length of the rest of the packet
+     * @throws IOException Unable to write to the connection
+     */
+    public void sendInterleaved(int channel, byte[] header, int headerLength, byte[] payload, int offset,
+                                int payloadLength) throws IOException {
+        getInterleavedWriter().send(channel, header, headerLength, payload, offset, payloadLength);
+    }
+
+    /**
+     * Queue an RTP packet interleaved on the RTSP connection whose payload stays in a shared buffer
+     * until it is written
+     *
+     * @param channel       Interleaved channel
+     * @param header        Packet header, copied
+     * @param headerLength  Length of the header
+     * @param payload       Immutable buffer holding the rest of the packet, retained while queued
+     * @param offset        Offset of the rest of the packet
+     * @param payloadLength Length of the rest of the packet
+     * @throws IOException Unable to write to the connection
+     */
+    public void sendInterleaved(int channel, byte[] header, int headerLength, RtpBuffer payload, int offset,
+                                int payloadLength) throws IOException {
+        getInterleavedWriter().send(channel, header, headerLength, payload, offset, payloadLength);
+    }
+
+    /**
+     * Everything written to the connection goes through one writer so messages and interleaved
+     * packets stay in order
+     *
+     * @return Writer of this connection, e.g. to read its send queue counters
+     */
+    public synchronized RtspInterleavedWriter getInterleavedWriter() {
+        if (interleavedWriter == null) {
+            SocketChannel c = socket != null ? socket.getChannel() : null;
+            interleavedWriter = c != null ? new RtspInterleavedWriter(c) : new RtspInterleavedWriter(output);
+        }
+        return interleavedWriter;
+    }
+
+    /**
+     * Writes through w instead, e.g. a writer that never blocks an event loop. Call before sending.
+     */
+    synchronized void setInterleavedWriter(RtspInterleavedWriter w) {
+        interleavedWriter = w;
     }
 
     /**
@@ -122,10 +188,10 @@ public abstract class RtspSession {
      * RTSP SETUP
      * Setup stream
      */
-    void sendRtspSetupRequest(RtpStream.RtpProtocol p, RtpMedia m) {
+    void sendRtspSetupRequest(RtpStream.RtpProtocol p, RtpStream.Delivery d, RtpMedia m) {
         validateRtspMessage(Rtsp.Method.SETUP, getStreamType());
         try {
-            RtpStream s = initializeRtpStream(p, m, null);
+            RtpStream s = initializeRtpStream(p, d, m, null);
             streams.add(s);
             TransportHeader t = TransportHeader.fromRtpStream(s);
             RtspRequest r = RtspRequest.buildSetupRequest(++cSeq, m.uri, t);
@@ -183,6 +249,7 @@ public abstract class RtspSession {
         validateRtspMessage(Rtsp.Method.TEARDOWN, getStreamType());
         RtspRequest r = RtspRequest.buildTeardownRequest(++cSeq, s.getRtpMedia().uri, s);
         streams.remove(s);
+        s.teardown();
         eventBus.post(new RtspSessionEvent.SendRequest(r));
     }
 
@@ -193,7 +260,9 @@ public abstract class RtspSession {
     private void sendRtspTeardownRequest() {
         validateRtspMessage(Rtsp.Method.TEARDOWN, getStreamType());
         RtspRequest r = RtspRequest.buildTeardownRequest(++cSeq, uri, null);
-        streams.clear();
+        for (RtpStream s : streams) {
+            if (streams.remove(s)) s.teardown();
+        }
         eventBus.post(new RtspSessionEvent.SendRequest(r));
     }
 
@@ -392,6 +461,12 @@ public abstract class RtspSession {
 
     abstract void handleNonOkResponse(RtspSessionEvent.ReceivedResponse e);
 
+    /**
+     * Called once the connection closed, by its input listener or event loop
+     */
+    void onDisconnected() {
+    }
+
     /**
      * Looks for the base URI
      * <p>
@@ -422,8 +497,7 @@ public abstract class RtspSession {
     private RtpStream getStreamForChannel(int channel) {
         RtpStream match = null;
         for (RtpStream s : streams) {
-            Pair<Integer, Integer> channels = s.getInterleavedRtpChannels();
-            if (channels.first == channel && channels.second == channel) {
+            if (s.getInterleavedRtpChannels() != null && s.getTypeByChannel(channel) != null) {
                 match = s;
                 break;
             }
@@ -431,57 +505,98 @@ public abstract class RtspSession {
         return match;
     }
 
+    /**
+     * Passes a received message or interleaved frame on to its handler. Responses to unknown requests
+     * and frames of unknown channels are dropped.
+     */
+    void handleRtspInput(Rtsp r) {
+        if (r instanceof RtspRequest) {
+            Log.d(TAG, "RECEIVED RTSP REQUEST:\n" + r.toString());
+
+            RtspRequest request = (RtspRequest) r;
+
+            eventBus.post(new RtspSessionEvent.ReceivedRequest(request));
+        } else if (r instanceof RtspResponse) {
+            Log.d(TAG, "RECEIVED RTSP RESPONSE:\n" + r.toString());
+
+            RtspResponse response = (RtspResponse) r;
+
+            // Match this response to a request
+            Integer cseq = response.getCseq();
+            RtspSessionEvent.SendRequest sendRequest = cseq != null ? pastRequests.get(cseq) : null;
+            if (sendRequest == null) {
+                Log.w(TAG, "Dropping response to unknown request " + cseq);
+                return;
+            }
+            RtspRequest matchedRequest = sendRequest.rtspRequest;
+            RtpStream matchedStream = sendRequest.stream;
+
+            eventBus.post(new RtspSessionEvent.ReceivedResponse(matchedRequest, response, matchedStream));
+        } else if (r instanceof RtspInterleavedData) {
+            RtspInterleavedData rtspInterleavedData = (RtspInterleavedData) r;
+
+            // Determine if RTP or RTCP by the channel
+            RtpStream stream = getStreamForChannel(rtspInterleavedData.channel);
+            if (stream == null) {
+                rtspInterleavedData.buffer.release();
+                return;
+            }
+            RtpStream.RtpPacketType type = stream.getTypeByChannel(rtspInterleavedData.channel);
+            switch (type) {
+                case RTP:
+                    stream.onRtpReceived(rtspInterleavedData.buffer);
+                    break;
+                case RTCP:
+                    stream.getStreamEventBus().post(new RtspSessionEvent.RtcpPacketReceived(rtspInterleavedData.buffer));
+                    break;
+                default:
+                    rtspInterleavedData.buffer.release();
+                    break;
+            }
+        }
+    }
+
     class RtspInputListener implements Runnable {
         private static final String TAG = "RtspInputListener";
 
+        private static final int READ_BUFFER_SIZE = 8192;
+        private static final int FRAME_POOL_SIZE = 64;
+        private static final int FRAME_BUFFER_SIZE = 2048;
+
         @Override
         public void run() {
             Log.d(TAG, "Starting RtspInputListener");
+            RtspParser parser = new RtspParser(new RtpBufferPool(FRAME_POOL_SIZE, FRAME_BUFFER_SIZE));
+            byte[] readBuffer = new byte[READ_BUFFER_SIZE];
+            ByteBuffer in = ByteBuffer.wrap(readBuffer);
+            in.limit(0);
+
             while (!Thread.interrupted()) {
                 try {
-                    // Read Rtsp RtspResponse from socket
-                    Rtsp r = Rtsp.parseRtspInput(input);
+                    Rtsp r = parser.parse(in);
                     if (r == null) {
-                        break;
-                    } else if (r instanceof RtspRequest) {
-                        Log.d(TAG, "RECEIVED RTSP REQUEST:\n" + r.toString());
-
-                        RtspRequest request = (RtspRequest) r;
-
-                        eventBus.post(new RtspSessionEvent.ReceivedRequest(request));
-                    } else if (r instanceof RtspResponse) {
-                        Log.d(TAG, "RECEIVED RTSP RESPONSE:\n" + r.toString());
-
-                        RtspResponse response = (RtspResponse) r;
-
-                        // Match this response to a request
-                        int cseq = response.getCseq();
-                        RtspSessionEvent.SendRequest sendRequest = pastRequests.get(cseq);
-                        RtspRequest matchedRequest = sendRequest.rtspRequest;
-                        RtpStream matchedStream = sendRequest.stream;
-
-                        eventBus.post(new RtspSessionEvent.ReceivedResponse(matchedRequest, response, matchedStream));
-                    } else if (r instanceof RtspInterleavedData) {
-                        Log.d(TAG, "RECEIVED RTSP INTERLEAVED DATA");
-
-                        RtspInterleavedData rtspInterleavedData = (RtspInterleavedData) r;
-
-                        // Determine if RTP or RTCP by the channel
-                        RtpStream stream = getStreamForChannel(rtspInterleavedData.channel);
-                        RtpStream.RtpPacketType type = stream.getTypeByChannel(rtspInterleavedData.channel);
-                        switch (type) {
-                            case RTP:
-                                stream.getStreamEventBus().post(new RtspSessionEvent.RtpPacketReceived(rtspInterleavedData.data));
-                                break;
-                            case RTCP:
-                                stream.getStreamEventBus().post(new RtspSessionEvent.RtcpPacketReceived(rtspInterleavedData.data));
-                                break;
+                        // Everything received so far was consumed
+                        int n = input.read(readBuffer);
+                        if (n < 0) {
+                            Log.d(TAG, "Server Disconnected");
+                            break;
                         }
+                        in.clear();
+                        in.limit(n);
+                    } else {
+                        handleRtspInput(r);
                     }
+                } catch (ProtocolException e) {
+                    // The rest of the stream can't be framed
+                    Log.e(TAG, "Closing connection: " + e.getMessage());
+                    break;
                 } catch (IOException e) {
                     e.printStackTrace();
+                    break;
                 }
             }
+            parser.reset();
+            onDisconnected();
 
             Log.d(TAG, "Stopping RtspInputListener");
         }
@@ -2,6 +2,7 @@ package com.devinbrown.streaminglib.rtsp;
 
 import android.media.MediaFormat;
 
+import com.devinbrown.streaminglib.rtp.RtpBuffer;
 import com.devinbrown.streaminglib.rtp.RtpStream;
 
 public class RtspSessionEvent {
@@ -107,17 +108,23 @@ public class RtspSessionEvent {
         }
     }
 
+    /**
+     * The receiver of this event must release the buffer when done with it
+     */
     public static class RtpPacketReceived {
-        public byte[] data;
-        public RtpPacketReceived(byte[] d) {
-            data = d;
+        public RtpBuffer buffer;
+        public RtpPacketReceived(RtpBuffer b) {
+            buffer = b;
         }
     }
 
+    /**
+     * The receiver of this event must release the buffer when done with it
+     */
     public static class RtcpPacketReceived {
-        public byte[] data;
-        public RtcpPacketReceived(byte[] d) {
-            data = d;
+        public RtpBuffer buffer;
+        public RtcpPacketReceived(RtpBuffer b) {
+            buffer = b;
         }
     }
 }
@@ -33,6 +33,7 @@ public class TransportHeader {
     // Multicast specific
     public Integer ttl;
     public Integer layers;
+    public Pair<Integer, Integer> multicastPorts;
 
     private TransportHeader() {
     }
@@ -50,6 +51,7 @@ public class TransportHeader {
      * RTP/AVP;unicast;destination=10.0.0.8;source=10.0.0.8;client_port=4588-4589;server_port=6970-6971
      * RTP/AVP/TCP;interleaved=0-1
      * RTP/AVP;unicast;client_port=8000-8001;server_port=9000-9001;ssrc=1234ABCD
+     * RTP/AVP;multicast;destination=239.255.42.0;port=52000-52001;ttl=16
      *
      * @param string Transport header string
      * @return TransportHeader
@@ -90,8 +92,12 @@ public class TransportHeader {
 
                 switch (s.getDelivery()) {
                     case MULTICAST:
-                        // TODO: Should this be determined elsewhere? At least in a static constant?
-                        t.ttl = 127;
+                        // Known once the server chose the group, so only in responses
+                        if (s.getMulticastAddress() != null) {
+                            t.destination = s.getMulticastAddress().getHostAddress();
+                            t.multicastPorts = s.getRemoteRtpPorts();
+                        }
+                        t.ttl = s.getMulticastTtl();
 
                         // TODO: Should this be determined elsewhere? At least in a static constant?
                         t.layers = 1;
@@ -144,6 +150,10 @@ public class TransportHeader {
 
                 if (delivery == null || delivery == RtpStream.Delivery.MULTICAST) {
                     // Default delivery is multicast (RFC 2326, p. 59)
+                    if (destination != null) sb.append("destination=").append(destination).append(";");
+                    if (multicastPorts != null && multicastPorts.first != null && multicastPorts.second != null) {
+                        sb.append("port=").append(multicastPorts.first).append("-").append(multicastPorts.second).append(";");
+                    }
                     if (ttl != null) sb.append("ttl").append("=").append(ttl).append(";");
                     if (layers != null) sb.append("layers").append("=").append(layers).append(";");
                 } else {
@@ -234,6 +244,9 @@ public class TransportHeader {
                 case "server_port":
                     if (keyValue.second != null) parseServerPorts(keyValue.second);
                     break;
+                case "port":
+                    if (keyValue.second != null) parseMulticastPorts(keyValue.second);
+                    break;
                 case "ssrc":
                     if (keyValue.second != null) parseSsrc(keyValue.second);
                     break;
@@ -383,6 +396,23 @@ public class TransportHeader {
         }
     }
 
+    /**
+     * Example: port=3456-3457
+     *
+     * @param s Multicast ports as string
+     * @throws IllegalArgumentException Unable to parse input or unexpected input
+     */
+    private void parseMulticastPorts(@NonNull String s) throws IllegalArgumentException {
+        String[] a = s.split("-");
+        try {
+            int rtp = Integer.parseInt(a[0]);
+            int rtcp = a.length == 2 ? Integer.parseInt(a[1]) : rtp + 1;
+            multicastPorts = new Pair<>(rtp, rtcp);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Problem parsing Transport parameter: port");
+        }
+    }
+
     /**
      * Example: ssrc=1234ABCD
      *
@@ -20,11 +20,12 @@ public class Fmtp {
         int payloadType;
         String formatSpecificParams;
 
-        String[] sSplit = s.split(" ");
+        // Parameters may themselves contain spaces (e.g. "a=b; c=d")
+        String[] sSplit = s.trim().split(" ", 2);
         if (sSplit.length == 2) {
             try {
                 payloadType = Integer.parseInt(sSplit[0]);
-                formatSpecificParams = sSplit[1];
+                formatSpecificParams = sSplit[1].trim();
                 f = new Fmtp(payloadType, formatSpecificParams);
             } catch (NumberFormatException e) {
                 throw new IllegalArgumentException(e.getMessage());
@@ -34,6 +35,22 @@ public class Fmtp {
         return f;
     }
 
+    /**
+     * Look up one parameter of a "name=value; name=value" style parameter list
+     *
+     * @param name Parameter name, matched case insensitively
+     * @return Parameter value, or null if not present
+     */
+    public String getParameter(String name) {
+        for (String param : formatSpecificParams.split(";")) {
+            int i = param.indexOf('=');
+            if (i > 0 && param.substring(0, i).trim().equalsIgnoreCase(name)) {
+                return param.substring(i + 1).trim();
+            }
+        }
+        return null;
+    }
+
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
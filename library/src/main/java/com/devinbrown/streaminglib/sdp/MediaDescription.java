@@ -185,11 +185,12 @@ public class MediaDescription extends Description {
     }
 
     public List<Fmtp> getFmtps() {
-        List<String> fmtpStrings = getAttributeValues("rtpmap");
+        List<String> fmtpStrings = getAttributeValues("fmtp");
         List<Fmtp> fmtps = new ArrayList<>();
 
         for (String fmtpString : fmtpStrings) {
-            fmtps.add(Fmtp.fromString(fmtpString));
+            Fmtp f = Fmtp.fromString(fmtpString);
+            if (f != null) fmtps.add(f);
         }
 
         return fmtps;
@@ -0,0 +1,63 @@
+package com.devinbrown.streaminglib;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SerialExecutorTest {
+
+    @Test
+    public void runsEachExecutorsTasksInOrderWithoutOverlap() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        int executors = 8;
+        int tasks = 1000;
+        final AtomicBoolean overlapped = new AtomicBoolean();
+        List<SerialExecutor> serial = new ArrayList<>();
+        List<List<Integer>> runs = new ArrayList<>();
+        for (int e = 0; e < executors; e++) {
+            serial.add(new SerialExecutor(pool));
+            runs.add(new ArrayList<Integer>());
+        }
+
+        // Tasks of all executors interleaved on the shared pool
+        final AtomicBoolean[] running = new AtomicBoolean[executors];
+        for (int e = 0; e < executors; e++) running[e] = new AtomicBoolean();
+        for (int i = 0; i < tasks; i++) {
+            for (int e = 0; e < executors; e++) {
+                final int n = i;
+                final AtomicBoolean r = running[e];
+                // Not synchronized: the executor alone must make the tasks see each other's writes
+                final List<Integer> run = runs.get(e);
+                serial.get(e).execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!r.compareAndSet(false, true)) overlapped.set(true);
+                        run.add(n);
+                        r.set(false);
+                    }
+                });
+            }
+        }
+
+        for (SerialExecutor s : serial) {
+            s.shutdown();
+            assertTrue(s.awaitTermination(10, TimeUnit.SECONDS));
+        }
+        pool.shutdown();
+
+        assertFalse(overlapped.get());
+        for (List<Integer> run : runs) {
+            assertEquals(tasks, run.size());
+            for (int i = 0; i < tasks; i++) assertEquals(i, (int) run.get(i));
+        }
+    }
+}
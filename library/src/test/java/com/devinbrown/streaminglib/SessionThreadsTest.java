@@ -0,0 +1,30 @@
+package com.devinbrown.streaminglib;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+
+public class SessionThreadsTest {
+
+    @Test
+    public void fallsBackToPlatformThreadsWithoutVirtualThreads() throws Exception {
+        ThreadFactory f = SessionThreads.virtualOrPlatform();
+        if (SessionThreads.virtual() == null) assertSame(SessionThreads.platform(), f);
+
+        // Whichever it is, its threads run
+        final CountDownLatch ran = new CountDownLatch(1);
+        Thread t = f.newThread(new Runnable() {
+            @Override
+            public void run() {
+                ran.countDown();
+            }
+        });
+        assertNotNull(t);
+        t.start();
+        ran.await();
+    }
+}
@@ -0,0 +1,69 @@
+package com.devinbrown.streaminglib.media;
+
+import org.junit.Test;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RtpMediaTest {
+    private static final int INTERVAL_MS = 200;
+
+    private final RtpMedia media = new RtpMedia(null, "trackID=0", null, null);
+    private final Semaphore requested = new Semaphore(0);
+
+    private final RtpMedia.KeyFrameRequestListener producer = new RtpMedia.KeyFrameRequestListener() {
+        @Override
+        public void onKeyFrameRequested(RtpMedia m) {
+            requested.release();
+        }
+    };
+
+    @Test
+    public void passesFirstRequestOnRightAway() {
+        media.setKeyFrameRequestListener(producer, INTERVAL_MS);
+        media.requestKeyFrame();
+
+        assertEquals(1, requested.availablePermits());
+        assertEquals(1, media.getForcedKeyFrameCount());
+    }
+
+    @Test
+    public void combinesRequestsWithinInterval() throws Exception {
+        media.setKeyFrameRequestListener(producer, INTERVAL_MS);
+        long start = System.nanoTime();
+        media.requestKeyFrame();
+        for (int i = 0; i < 5; i++) media.requestKeyFrame();
+        assertEquals(1, requested.availablePermits());
+
+        // The rest become one request, once the interval is over
+        assertTrue(requested.tryAcquire(2, 10, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(INTERVAL_MS));
+        assertFalse(requested.tryAcquire(2 * INTERVAL_MS, TimeUnit.MILLISECONDS));
+        assertEquals(6, media.getKeyFrameRequestCount());
+        assertEquals(2, media.getForcedKeyFrameCount());
+    }
+
+    @Test
+    public void keyFrameSentSatisfiesPendingRequest() throws Exception {
+        media.setKeyFrameRequestListener(producer, INTERVAL_MS);
+        media.requestKeyFrame();
+        media.requestKeyFrame();
+        media.onKeyFrameSent();
+
+        assertFalse(requested.tryAcquire(2, 2 * INTERVAL_MS, TimeUnit.MILLISECONDS));
+        assertEquals(1, requested.availablePermits());
+        assertEquals(1, media.getForcedKeyFrameCount());
+    }
+
+    @Test
+    public void ignoresRequestsWithoutProducer() {
+        media.requestKeyFrame();
+
+        assertEquals(1, media.getKeyFrameRequestCount());
+        assertEquals(0, media.getForcedKeyFrameCount());
+    }
+}
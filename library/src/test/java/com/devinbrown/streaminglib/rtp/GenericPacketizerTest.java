@@ -0,0 +1,66 @@
+package com.devinbrown.streaminglib.rtp;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class GenericPacketizerTest {
+    private final List<RtpBuffer> packets = new ArrayList<>();
+    private final RtpPacket packet = new RtpPacket();
+
+    private final RtpPacketizer.Listener recorder = new RtpPacketizer.Listener() {
+        @Override
+        public void onPacket(RtpBuffer b) {
+            packets.add(b);
+        }
+    };
+
+    @Test
+    public void splitsFrameAtMaximumPayloadSize() {
+        GenericPacketizer p = new GenericPacketizer(recorder, 97, 1000);
+        byte[] frame = new byte[2500];
+        for (int i = 0; i < frame.length; i++) frame[i] = (byte) i;
+
+        p.packetize(frame, 0, frame.length, 0x12345678L, true);
+        p.packetize(frame, 0, 10, 0x12345678L + 3000, false);
+
+        assertEquals(4, packets.size());
+        byte[] reassembled = new byte[frame.length];
+        int o = 0;
+        for (int i = 0; i < 3; i++) {
+            assertTrue(packet.wrap(packets.get(i)));
+            assertEquals(i == 0, packets.get(i).keyFrameStart);
+            assertEquals(97, packet.getPayloadType());
+            assertEquals(i, packet.getSequenceNumber());
+            assertEquals(0x12345678L, packet.getTimestamp());
+            assertEquals(i == 2, packet.getMarker());
+            assertEquals(0, packet.getSsrc());
+            o += packet.copyPayload(reassembled, o);
+        }
+        assertArrayEquals(frame, reassembled);
+
+        assertTrue(packet.wrap(packets.get(3)));
+        assertEquals(3, packet.getSequenceNumber());
+        assertTrue(packet.getMarker());
+        assertEquals(10, packet.getPayloadLength());
+    }
+
+    @Test
+    public void mapsMediaTimeToTheClockRateOfTheMedia() {
+        GenericPacketizer p = new GenericPacketizer(recorder, 97, 1000, 48000);
+        byte[] frame = new byte[10];
+
+        p.packetize(frame, 0, frame.length, p.toRtpTimestamp(0), false);
+        p.packetize(frame, 0, frame.length, p.toRtpTimestamp(20000), false);
+
+        assertTrue(packet.wrap(packets.get(0)));
+        assertEquals(0, packet.getTimestamp());
+        assertTrue(packet.wrap(packets.get(1)));
+        assertEquals(960, packet.getTimestamp());
+    }
+}
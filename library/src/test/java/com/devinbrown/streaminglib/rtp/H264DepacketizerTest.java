@@ -0,0 +1,194 @@
+package com.devinbrown.streaminglib.rtp;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class H264DepacketizerTest {
+    private static final byte[] SPS = {0x67, 0x42, 0x00, 0x1F};
+    private static final byte[] PPS = {0x68, (byte) 0xCE, 0x31};
+    private static final byte[] START_CODE = {0, 0, 0, 1};
+
+    private final List<byte[]> frames = new ArrayList<>();
+    private final List<Long> timestamps = new ArrayList<>();
+    private final List<Boolean> keyFrames = new ArrayList<>();
+
+    private final RtpDepacketizer.Listener recorder = new RtpDepacketizer.Listener() {
+        @Override
+        public void onFrame(RtpBuffer b, int offset, int length, long timestamp, boolean keyFrame) {
+            frames.add(Arrays.copyOfRange(b.data, offset, offset + length));
+            timestamps.add(timestamp);
+            keyFrames.add(keyFrame);
+            b.release();
+        }
+    };
+
+    private final RtpPacket packet = new RtpPacket();
+
+    @Test
+    public void assemblesStapAAndFuAIntoAnnexB() {
+        H264Depacketizer d = new H264Depacketizer(recorder, NalUnitDepacketizer.NalFraming.ANNEX_B);
+        byte[] idr = idr(3000);
+
+        d.depacketize(packet(0, 1000, false, stapA(SPS, PPS)));
+        for (byte[] fu : fuA(idr, 1200)) d.depacketize(packet(0, 1000, false, fu));
+        d.depacketize(packet(0, 1000, true, new byte[]{0x06, 0x05, 0x01}));
+
+        assertEquals(1, frames.size());
+        assertTrue(keyFrames.get(0));
+        assertEquals(1000L, (long) timestamps.get(0));
+        assertArrayEquals(concat(START_CODE, SPS, START_CODE, PPS, START_CODE, idr, START_CODE, new byte[]{0x06, 0x05, 0x01}),
+                frames.get(0));
+    }
+
+    @Test
+    public void writesAvccLengths() {
+        H264Depacketizer d = new H264Depacketizer(recorder, NalUnitDepacketizer.NalFraming.LENGTH_PREFIXED);
+        byte[] nal = {0x41, 1, 2, 3, 4, 5};
+        for (byte[] fu : fuA(nal, 2)) d.depacketize(packet(0, 10, false, fu));
+        d.depacketize(packet(0, 10, true, new byte[]{0x41, 9}));
+
+        assertFalse(keyFrames.get(0));
+        assertArrayEquals(concat(new byte[]{0, 0, 0, 6}, nal, new byte[]{0, 0, 0, 2, 0x41, 9}), frames.get(0));
+    }
+
+    @Test
+    public void endsFrameOnTimestampChangeWhenMarkerLost() {
+        H264Depacketizer d = new H264Depacketizer(recorder, NalUnitDepacketizer.NalFraming.ANNEX_B);
+        d.depacketize(packet(0, 10, false, new byte[]{0x41, 1}));
+        d.depacketize(packet(0, 20, true, new byte[]{0x41, 2}));
+
+        assertEquals(2, frames.size());
+        assertEquals(10L, (long) timestamps.get(0));
+        assertEquals(20L, (long) timestamps.get(1));
+    }
+
+    @Test
+    public void discardsDamagedFrameAfterLoss() {
+        H264Depacketizer d = new H264Depacketizer(recorder, NalUnitDepacketizer.NalFraming.ANNEX_B);
+        List<byte[]> fus = fuA(idr(100), 30);
+
+        d.depacketize(packet(0, 10, false, fus.get(0)));
+        d.onPacketsLost();
+        d.depacketize(packet(0, 10, false, fus.get(2)));
+        d.depacketize(packet(0, 10, true, fus.get(3)));
+        d.depacketize(packet(0, 20, true, new byte[]{0x41, 1}));
+
+        assertEquals(1, frames.size());
+        assertEquals(20L, (long) timestamps.get(0));
+        assertEquals(2, d.getDiscardedPackets());
+    }
+
+    @Test
+    public void keepsNextFrameThatStartsCleanlyAfterLoss() {
+        H264Depacketizer d = new H264Depacketizer(recorder, NalUnitDepacketizer.NalFraming.ANNEX_B);
+        List<byte[]> fus = fuA(idr(100), 30);
+
+        // The end of the frame in progress was lost, the next one starts with a whole NAL unit
+        d.depacketize(packet(0, 10, false, fus.get(0)));
+        d.onPacketsLost();
+        d.depacketize(packet(0, 20, true, new byte[]{0x41, 1}));
+
+        assertEquals(1, frames.size());
+        assertEquals(20L, (long) timestamps.get(0));
+        assertEquals(0, d.getDiscardedPackets());
+    }
+
+    @Test
+    public void discardsNextFrameWhoseStartWasLost() {
+        H264Depacketizer d = new H264Depacketizer(recorder, NalUnitDepacketizer.NalFraming.ANNEX_B);
+        List<byte[]> fus = fuA(idr(100), 30);
+
+        // Lost between frames, taking the first fragment of the next one
+        d.depacketize(packet(0, 10, true, new byte[]{0x41, 1}));
+        d.onPacketsLost();
+        d.depacketize(packet(0, 20, false, fus.get(1)));
+        d.depacketize(packet(0, 20, true, fus.get(3)));
+        d.depacketize(packet(0, 30, true, new byte[]{0x41, 2}));
+
+        assertEquals(2, frames.size());
+        assertEquals(10L, (long) timestamps.get(0));
+        assertEquals(30L, (long) timestamps.get(1));
+        assertEquals(2, d.getDiscardedPackets());
+    }
+
+    @Test
+    public void reusesFrameBuffers() {
+        final Set<byte[]> arrays = Collections.newSetFromMap(new IdentityHashMap<byte[], Boolean>());
+        RtpDepacketizer.Listener l = new RtpDepacketizer.Listener() {
+            @Override
+            public void onFrame(RtpBuffer b, int offset, int length, long timestamp, boolean keyFrame) {
+                arrays.add(b.data);
+                b.release();
+            }
+        };
+        H264Depacketizer d = new H264Depacketizer(l, NalUnitDepacketizer.NalFraming.ANNEX_B);
+        for (int i = 0; i < 100; i++) d.depacketize(packet(i, i, true, new byte[]{0x41, 1}));
+
+        // Frames cycle through the pool rather than allocating
+        assertTrue(arrays.size() <= 8);
+    }
+
+    private RtpPacket packet(int seq, long timestamp, boolean marker, byte[] payload) {
+        byte[] d = new byte[12 + payload.length];
+        d[0] = (byte) 0x80;
+        d[1] = (byte) ((marker ? 0x80 : 0) | 96);
+        d[2] = (byte) (seq >> 8);
+        d[3] = (byte) seq;
+        d[4] = (byte) (timestamp >> 24);
+        d[5] = (byte) (timestamp >> 16);
+        d[6] = (byte) (timestamp >> 8);
+        d[7] = (byte) timestamp;
+        System.arraycopy(payload, 0, d, 12, payload.length);
+        assertTrue(packet.wrap(d, 0, d.length));
+        return packet;
+    }
+
+    private static byte[] idr(int size) {
+        byte[] nal = new byte[size];
+        nal[0] = 0x65;
+        for (int i = 1; i < size; i++) nal[i] = (byte) i;
+        return nal;
+    }
+
+    private static byte[] stapA(byte[]... nals) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0x78);
+        for (byte[] nal : nals) {
+            out.write(nal.length >> 8);
+            out.write(nal.length);
+            out.write(nal, 0, nal.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static List<byte[]> fuA(byte[] nal, int fragmentSize) {
+        List<byte[]> fus = new ArrayList<>();
+        for (int o = 1; o < nal.length; o += fragmentSize) {
+            int n = Math.min(fragmentSize, nal.length - o);
+            byte[] fu = new byte[2 + n];
+            fu[0] = (byte) ((nal[0] & 0xE0) | 28);
+            fu[1] = (byte) ((o == 1 ? 0x80 : 0) | (o + n == nal.length ? 0x40 : 0) | (nal[0] & 0x1F));
+            System.arraycopy(nal, o, fu, 2, n);
+            fus.add(fu);
+        }
+        return fus;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] p : parts) out.write(p, 0, p.length);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,113 @@
+package com.devinbrown.streaminglib.rtp;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class H264PacketizerTest {
+    private static final byte[] SPS = {0x67, 0x42, 0x00, 0x1E};
+    private static final byte[] PPS = {0x68, (byte) 0xCE, 0x3C, (byte) 0x80};
+    private static final byte[] START_CODE = {0, 0, 0, 1};
+
+    private final List<byte[]> payloads = new ArrayList<>();
+    private final List<Boolean> markers = new ArrayList<>();
+    private final RtpPacket packet = new RtpPacket();
+
+    private final RtpPacketizer.Listener recorder = new RtpPacketizer.Listener() {
+        @Override
+        public void onPacket(RtpBuffer b) {
+            assertTrue(packet.wrap(b));
+            byte[] payload = new byte[packet.getPayloadLength()];
+            packet.copyPayload(payload, 0);
+            payloads.add(payload);
+            markers.add(packet.getMarker());
+            b.release();
+        }
+    };
+
+    @Test
+    public void aggregatesParameterSetsAndFragmentsLargeNal() {
+        H264Packetizer p = new H264Packetizer(recorder, 96, 1000);
+        byte[] idr = nal(0x65, 2500);
+        byte[] au = concat(START_CODE, SPS, START_CODE, PPS, new byte[]{0, 0, 1}, idr);
+
+        p.packetize(au, 0, au.length, 9000, false);
+
+        // STAP-A with SPS and PPS, then three FU-A fragments of the IDR slice
+        assertEquals(4, payloads.size());
+        assertArrayEquals(concat(new byte[]{0x78, 0, 4}, SPS, new byte[]{0, 4}, PPS), payloads.get(0));
+        assertFalse(markers.get(0));
+
+        ByteArrayOutputStream slice = new ByteArrayOutputStream();
+        slice.write(idr[0]);
+        for (int i = 1; i < 4; i++) {
+            byte[] fu = payloads.get(i);
+            assertTrue(fu.length <= 1000);
+            assertEquals(0x7C, fu[0]);
+            assertEquals((i == 1 ? 0x80 : 0) | (i == 3 ? 0x40 : 0) | 5, fu[1] & 0xFF);
+            assertEquals(i == 3, markers.get(i));
+            slice.write(fu, 2, fu.length - 2);
+        }
+        assertArrayEquals(idr, slice.toByteArray());
+    }
+
+    @Test
+    public void sendsLoneSmallNalAsSingleNalUnit() {
+        H264Packetizer p = new H264Packetizer(recorder, 96, 1000);
+        byte[] slice = nal(0x41, 300);
+        byte[] au = concat(START_CODE, slice, new byte[]{0, 0});
+
+        p.packetize(au, 0, au.length, 9000, false);
+
+        assertEquals(1, payloads.size());
+        assertArrayEquals(slice, payloads.get(0));
+        assertTrue(markers.get(0));
+    }
+
+    @Test
+    public void roundTripsThroughDepacketizer() {
+        final List<byte[]> frames = new ArrayList<>();
+        final H264Depacketizer d = new H264Depacketizer(new RtpDepacketizer.Listener() {
+            @Override
+            public void onFrame(RtpBuffer b, int offset, int length, long timestamp, boolean keyFrame) {
+                frames.add(Arrays.copyOfRange(b.data, offset, offset + length));
+                b.release();
+            }
+        }, NalUnitDepacketizer.NalFraming.ANNEX_B);
+        H264Packetizer p = new H264Packetizer(new RtpPacketizer.Listener() {
+            @Override
+            public void onPacket(RtpBuffer b) {
+                assertTrue(packet.wrap(b));
+                d.depacketize(packet);
+                b.release();
+            }
+        }, 96, 1000);
+
+        byte[] au = concat(START_CODE, SPS, START_CODE, PPS, START_CODE, nal(0x65, 5000));
+        p.packetize(au, 0, au.length, 3000, true);
+
+        assertEquals(1, frames.size());
+        assertArrayEquals(au, frames.get(0));
+    }
+
+    private static byte[] nal(int header, int size) {
+        byte[] nal = new byte[size];
+        nal[0] = (byte) header;
+        for (int i = 1; i < size; i++) nal[i] = (byte) (i % 200 + 2);
+        return nal;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] p : parts) out.write(p, 0, p.length);
+        return out.toByteArray();
+    }
+}
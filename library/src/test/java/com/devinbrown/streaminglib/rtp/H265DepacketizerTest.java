@@ -0,0 +1,137 @@
+package com.devinbrown.streaminglib.rtp;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class H265DepacketizerTest {
+    // NAL unit headers: VPS (32), SPS (33), PPS (34), IDR_W_RADL (19), TRAIL_R (1)
+    private static final byte[] VPS = {0x40, 0x01, 0x0C};
+    private static final byte[] SPS = {0x42, 0x01, 0x01, 0x01};
+    private static final byte[] PPS = {0x44, 0x01, (byte) 0xC1};
+    private static final byte[] START_CODE = {0, 0, 0, 1};
+
+    private final List<byte[]> frames = new ArrayList<>();
+    private final List<Boolean> keyFrames = new ArrayList<>();
+
+    private final RtpDepacketizer.Listener recorder = new RtpDepacketizer.Listener() {
+        @Override
+        public void onFrame(RtpBuffer b, int offset, int length, long timestamp, boolean keyFrame) {
+            frames.add(Arrays.copyOfRange(b.data, offset, offset + length));
+            keyFrames.add(keyFrame);
+            b.release();
+        }
+    };
+
+    private final RtpPacket packet = new RtpPacket();
+
+    @Test
+    public void assemblesAggregationAndFragmentationUnits() {
+        H265Depacketizer d = new H265Depacketizer(recorder, NalUnitDepacketizer.NalFraming.ANNEX_B, false);
+        byte[] idr = nal(0x26, 2000);
+
+        d.depacketize(packet(10, false, ap(false, VPS, SPS, PPS)));
+        for (byte[] fu : fu(idr, 700, false)) d.depacketize(packet(10, false, fu));
+        d.depacketize(packet(10, true, new byte[]{0x02, 0x01, 7}));
+
+        assertEquals(1, frames.size());
+        assertTrue(keyFrames.get(0));
+        assertArrayEquals(concat(START_CODE, VPS, START_CODE, SPS, START_CODE, PPS, START_CODE, idr,
+                START_CODE, new byte[]{0x02, 0x01, 7}), frames.get(0));
+    }
+
+    @Test
+    public void stripsDecodingOrderNumbers() {
+        H265Depacketizer d = new H265Depacketizer(recorder, NalUnitDepacketizer.NalFraming.LENGTH_PREFIXED, true);
+        byte[] trail = nal(0x02, 50);
+
+        d.depacketize(packet(10, false, ap(true, VPS, PPS)));
+        for (byte[] fu : fu(trail, 20, true)) d.depacketize(packet(10, false, fu));
+        // Single NAL unit: header, DONL, payload
+        d.depacketize(packet(10, true, new byte[]{0x02, 0x01, 0, 9, 5, 6}));
+
+        assertFalse(keyFrames.get(0));
+        assertArrayEquals(concat(new byte[]{0, 0, 0, 3}, VPS, new byte[]{0, 0, 0, 3}, PPS,
+                new byte[]{0, 0, 0, 50}, trail, new byte[]{0, 0, 0, 4, 0x02, 0x01, 5, 6}), frames.get(0));
+    }
+
+    @Test
+    public void dropsFragmentWithoutStart() {
+        H265Depacketizer d = new H265Depacketizer(recorder, NalUnitDepacketizer.NalFraming.ANNEX_B, false);
+        List<byte[]> fus = fu(nal(0x02, 100), 40, false);
+
+        d.depacketize(packet(10, false, fus.get(1)));
+        d.depacketize(packet(10, true, fus.get(2)));
+
+        assertEquals(0, frames.size());
+        assertEquals(2, d.getDiscardedPackets());
+    }
+
+    private RtpPacket packet(long timestamp, boolean marker, byte[] payload) {
+        byte[] d = new byte[12 + payload.length];
+        d[0] = (byte) 0x80;
+        d[1] = (byte) ((marker ? 0x80 : 0) | 96);
+        d[7] = (byte) timestamp;
+        System.arraycopy(payload, 0, d, 12, payload.length);
+        assertTrue(packet.wrap(d, 0, d.length));
+        return packet;
+    }
+
+    private static byte[] nal(int headerByte, int size) {
+        byte[] nal = new byte[size];
+        nal[0] = (byte) headerByte;
+        nal[1] = 0x01;
+        for (int i = 2; i < size; i++) nal[i] = (byte) i;
+        return nal;
+    }
+
+    private static byte[] ap(boolean don, byte[]... nals) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(48 << 1);
+        out.write(0x01);
+        for (int i = 0; i < nals.length; i++) {
+            if (don) {
+                if (i == 0) out.write(0);
+                out.write(i);
+            }
+            out.write(nals[i].length >> 8);
+            out.write(nals[i].length);
+            out.write(nals[i], 0, nals[i].length);
+        }
+        return out.toByteArray();
+    }
+
+    private static List<byte[]> fu(byte[] nal, int fragmentSize, boolean don) {
+        List<byte[]> fus = new ArrayList<>();
+        int type = (nal[0] >> 1) & 0x3F;
+        for (int o = 2; o < nal.length; o += fragmentSize) {
+            int n = Math.min(fragmentSize, nal.length - o);
+            boolean start = o == 2;
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            out.write((nal[0] & 0x81) | (49 << 1));
+            out.write(nal[1]);
+            out.write((start ? 0x80 : 0) | (o + n == nal.length ? 0x40 : 0) | type);
+            if (don && start) {
+                out.write(0);
+                out.write(1);
+            }
+            out.write(nal, o, n);
+            fus.add(out.toByteArray());
+        }
+        return fus;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] p : parts) out.write(p, 0, p.length);
+        return out.toByteArray();
+    }
+}
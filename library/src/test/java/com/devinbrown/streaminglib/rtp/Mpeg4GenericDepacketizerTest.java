@@ -0,0 +1,139 @@
+package com.devinbrown.streaminglib.rtp;
+
+import com.devinbrown.streaminglib.sdp.Fmtp;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class Mpeg4GenericDepacketizerTest {
+    private static final Fmtp AAC_HBR = Fmtp.fromString(
+            "96 streamtype=5; profile-level-id=1; mode=AAC-hbr; sizelength=13; indexlength=3; indexdeltalength=3; config=1210");
+
+    private final List<RtpBuffer> buffers = new ArrayList<>();
+    private final List<byte[]> frames = new ArrayList<>();
+    private final List<Long> timestamps = new ArrayList<>();
+
+    private final RtpDepacketizer.Listener recorder = new RtpDepacketizer.Listener() {
+        @Override
+        public void onFrame(RtpBuffer b, int offset, int length, long timestamp, boolean keyFrame) {
+            buffers.add(b);
+            frames.add(Arrays.copyOfRange(b.data, offset, offset + length));
+            timestamps.add(timestamp);
+        }
+    };
+
+    private final RtpBufferPool pool = new RtpBufferPool(4, 1400);
+    private final RtpPacket packet = new RtpPacket();
+
+    @Test
+    public void splitsAccessUnitsWithoutCopying() {
+        Mpeg4GenericDepacketizer d = new Mpeg4GenericDepacketizer(recorder, AAC_HBR);
+        byte[] au1 = au(100, 1);
+        byte[] au2 = au(200, 2);
+        byte[] au3 = au(50, 3);
+
+        RtpBuffer b = packet(5000, true, aacHbr(au1, au2, au3));
+        d.depacketize(packet);
+        b.release();
+
+        assertEquals(3, frames.size());
+        assertArrayEquals(au1, frames.get(0));
+        assertArrayEquals(au2, frames.get(1));
+        assertArrayEquals(au3, frames.get(2));
+        assertEquals(5000L, (long) timestamps.get(0));
+        assertEquals(5000L + 1024, (long) timestamps.get(1));
+        assertEquals(5000L + 2048, (long) timestamps.get(2));
+
+        // Every access unit is a view of the packet buffer, which goes back to the pool with the last one
+        for (RtpBuffer f : buffers) assertSame(b, f);
+        assertEquals(3, pool.getAvailable());
+        for (RtpBuffer f : buffers) f.release();
+        assertEquals(4, pool.getAvailable());
+    }
+
+    @Test
+    public void reassemblesFragmentedAccessUnit() {
+        Mpeg4GenericDepacketizer d = new Mpeg4GenericDepacketizer(recorder, AAC_HBR);
+        byte[] au = au(3000, 7);
+
+        for (int o = 0; o < au.length; o += 1000) {
+            RtpBuffer b = packet(9000, o + 1000 >= au.length, fragment(au, o, 1000));
+            d.depacketize(packet);
+            b.release();
+        }
+
+        assertEquals(1, frames.size());
+        assertArrayEquals(au, frames.get(0));
+        assertEquals(9000L, (long) timestamps.get(0));
+    }
+
+    @Test
+    public void dropsFragmentedAccessUnitAfterLoss() {
+        Mpeg4GenericDepacketizer d = new Mpeg4GenericDepacketizer(recorder, AAC_HBR);
+        byte[] au = au(3000, 7);
+
+        packet(9000, false, fragment(au, 0, 1000));
+        d.depacketize(packet);
+        d.onPacketsLost();
+        packet(9000, true, fragment(au, 2000, 1000));
+        d.depacketize(packet);
+        packet(10024, true, aacHbr(au(10, 1)));
+        d.depacketize(packet);
+
+        assertEquals(1, frames.size());
+        assertEquals(10024L, (long) timestamps.get(0));
+    }
+
+    private RtpBuffer packet(long timestamp, boolean marker, byte[] payload) {
+        RtpBuffer b = pool.acquire();
+        b.data[0] = (byte) 0x80;
+        b.data[1] = (byte) ((marker ? 0x80 : 0) | 96);
+        b.data[4] = (byte) (timestamp >> 24);
+        b.data[5] = (byte) (timestamp >> 16);
+        b.data[6] = (byte) (timestamp >> 8);
+        b.data[7] = (byte) timestamp;
+        System.arraycopy(payload, 0, b.data, 12, payload.length);
+        b.length = 12 + payload.length;
+        assertTrue(packet.wrap(b));
+        return b;
+    }
+
+    private static byte[] au(int size, int fill) {
+        byte[] au = new byte[size];
+        Arrays.fill(au, (byte) fill);
+        return au;
+    }
+
+    // AU headers of 13 bit size and 3 bit index (delta) each, so 2 bytes per access unit
+    private static byte[] aacHbr(byte[]... aus) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int bits = 16 * aus.length;
+        out.write(bits >> 8);
+        out.write(bits);
+        for (byte[] au : aus) {
+            out.write(au.length >> 5);
+            out.write(au.length << 3);
+        }
+        for (byte[] au : aus) out.write(au, 0, au.length);
+        return out.toByteArray();
+    }
+
+    private static byte[] fragment(byte[] au, int o, int n) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0);
+        out.write(16);
+        out.write(au.length >> 5);
+        out.write(au.length << 3);
+        out.write(au, o, Math.min(n, au.length - o));
+        return out.toByteArray();
+    }
+}
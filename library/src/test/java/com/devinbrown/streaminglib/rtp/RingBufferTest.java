@@ -0,0 +1,154 @@
+package com.devinbrown.streaminglib.rtp;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RingBufferTest {
+    private static class Slot {
+        long value;
+    }
+
+    private static final RingBuffer.EntryFactory<Slot> FACTORY = new RingBuffer.EntryFactory<Slot>() {
+        @Override
+        public Slot newEntry() {
+            return new Slot();
+        }
+    };
+
+    @Test
+    public void rejectsClaimsWhileFullAndReusesSlotsAfterPoll() {
+        RingBuffer<Slot> r = new RingBuffer<>(4, FACTORY, false, WaitStrategy.busySpin());
+        for (int i = 0; i < 4; i++) {
+            long seq = r.tryClaim();
+            r.get(seq).value = i;
+            r.publish(seq);
+        }
+        assertEquals(-1, r.tryClaim());
+        assertEquals(1, r.getRejectedClaims());
+
+        final long[] sum = {0};
+        final int[] batchEnds = {0};
+        RingBuffer.Handler<Slot> h = new RingBuffer.Handler<Slot>() {
+            @Override
+            public void onEntry(Slot s, boolean endOfBatch) {
+                sum[0] += s.value;
+                if (endOfBatch) batchEnds[0]++;
+            }
+        };
+        assertEquals(3, r.poll(h, 3));
+        assertEquals(1, r.poll(h, 3));
+        assertEquals(0, r.poll(h, 3));
+        assertEquals(6, sum[0]);
+        assertEquals(2, batchEnds[0]);
+
+        // The same 4 entries are used again
+        assertEquals(4, r.tryClaim());
+    }
+
+    @Test
+    public void deliversEveryEntryOfSeveralProducersThroughStage() throws Exception {
+        final int producers = 4;
+        final int perProducer = 20000;
+        final RingBuffer<Slot> r = new RingBuffer<>(256, FACTORY, true, WaitStrategy.blocking());
+
+        final long[] lastSeen = new long[producers];
+        final long[] count = {0};
+        final CountDownLatch done = new CountDownLatch(1);
+        for (int p = 0; p < producers; p++) lastSeen[p] = -1;
+        RingStage<Slot> stage = new RingStage<>(r, new RingBuffer.Handler<Slot>() {
+            @Override
+            public void onEntry(Slot s, boolean endOfBatch) {
+                int p = (int) (s.value / perProducer);
+                long n = s.value % perProducer;
+                // Each producer's entries come in the order it published them
+                if (n != lastSeen[p] + 1) throw new AssertionError("Out of order: " + s.value);
+                lastSeen[p] = n;
+                if (++count[0] == producers * perProducer) done.countDown();
+            }
+        }, RingStage.DEFAULT_BATCH_SIZE, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable);
+            }
+        });
+        stage.start();
+
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            final int id = p;
+            threads[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perProducer; i++) {
+                        long seq;
+                        while ((seq = r.tryClaim()) < 0) Thread.yield();
+                        r.get(seq).value = (long) id * perProducer + i;
+                        r.publish(seq);
+                    }
+                }
+            });
+            threads[p].start();
+        }
+        for (Thread t : threads) t.join();
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        stage.stop();
+        assertEquals(producers * perProducer, count[0]);
+    }
+
+    @Test
+    public void runsManyStagesOnFewSharedThreads() throws Exception {
+        final int stageCount = 16;
+        final int perStage = 1000;
+        RingStageGroup g = new RingStageGroup(2, WaitStrategy.blocking());
+        final Set<Thread> threads = Collections.newSetFromMap(new ConcurrentHashMap<Thread, Boolean>());
+        final CountDownLatch done = new CountDownLatch(stageCount);
+        List<RingStage<Slot>> stages = new ArrayList<>();
+        for (int i = 0; i < stageCount; i++) {
+            RingStage<Slot> stage = g.newStage(64, FACTORY, false, new RingBuffer.Handler<Slot>() {
+                private long next;
+
+                @Override
+                public void onEntry(Slot s, boolean endOfBatch) {
+                    if (s.value != next) throw new AssertionError("Out of order: " + s.value);
+                    threads.add(Thread.currentThread());
+                    if (++next == perStage) done.countDown();
+                }
+            }, RingStage.DEFAULT_BATCH_SIZE);
+            stage.start();
+            stages.add(stage);
+        }
+
+        for (int n = 0; n < perStage; n++) {
+            for (RingStage<Slot> stage : stages) {
+                RingBuffer<Slot> r = stage.getRing();
+                long seq;
+                while ((seq = r.tryClaim()) < 0) Thread.yield();
+                r.get(seq).value = n;
+                r.publish(seq);
+            }
+        }
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertTrue(threads.size() <= 2);
+        assertEquals(stageCount, g.getStageCount());
+
+        // Stopped stages leave their thread
+        for (RingStage<Slot> stage : stages) stage.stop();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (g.getStageCount() > 0 && System.nanoTime() < deadline) Thread.sleep(1);
+        assertEquals(0, g.getStageCount());
+        g.shutdown();
+    }
+}
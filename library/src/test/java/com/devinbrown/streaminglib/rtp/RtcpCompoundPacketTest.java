@@ -0,0 +1,124 @@
+package com.devinbrown.streaminglib.rtp;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RtcpCompoundPacketTest {
+    private final RtcpCompoundWriter writer = new RtcpCompoundWriter();
+    private final RtcpCompoundPacket compound = new RtcpCompoundPacket();
+
+    @Test
+    public void readsBackWrittenCompoundPacket() {
+        // Start small so the writer has to grow the buffer
+        RtpBuffer b = new RtpBuffer(null, 16);
+        writer.start(b);
+        writer.beginSenderReport(0x11223344L, 0x0102030405060708L, 90000, 10, 1000);
+        writer.addReportBlock(0xAABBCCDDL, 25, -3, 70000, 12, 0x03040506L, 65536);
+        writer.beginSourceDescription();
+        writer.addSourceDescriptionChunk(0x11223344L);
+        writer.addSourceDescriptionItem(SourceDescriptionRtcpPacket.ITEM_CNAME, "user@host".getBytes(StandardCharsets.UTF_8));
+        writer.addGoodBye(0x11223344L, "done".getBytes(StandardCharsets.UTF_8));
+        int length = writer.finish();
+
+        assertEquals(b.length, length);
+        assertEquals(0, length % 4);
+        assertTrue(compound.wrap(b));
+
+        assertTrue(compound.next());
+        SenderReportRtcpPacket sr = compound.getSenderReport();
+        assertNotNull(sr);
+        assertNull(compound.getReceiverReport());
+        assertEquals(0x11223344L, sr.getSsrc());
+        assertEquals(0x0102030405060708L, sr.getNtpTimestamp());
+        assertEquals(0x03040506L, sr.getCompactNtpTimestamp());
+        assertEquals(90000, sr.getRtpTimestamp());
+        assertEquals(10, sr.getPacketCount());
+        assertEquals(1000, sr.getOctetCount());
+        assertEquals(1, sr.getReportCount());
+        RtcpReportBlock block = sr.getReportBlock(0, new RtcpReportBlock());
+        assertEquals(0xAABBCCDDL, block.getSsrc());
+        assertEquals(25, block.getFractionLost());
+        assertEquals(-3, block.getCumulativeLost());
+        assertEquals(70000, block.getExtendedHighestSequenceNumber());
+        assertEquals(12, block.getJitter());
+        assertEquals(0x03040506L, block.getLastSr());
+        assertEquals(65536, block.getDelaySinceLastSr());
+
+        assertTrue(compound.next());
+        SourceDescriptionRtcpPacket sdes = compound.getSourceDescription();
+        assertNotNull(sdes);
+        assertEquals(1, sdes.getChunkCount());
+        assertTrue(sdes.nextItem());
+        assertEquals(0x11223344L, sdes.getItemSsrc());
+        assertEquals(SourceDescriptionRtcpPacket.ITEM_CNAME, sdes.getItemType());
+        assertEquals("user@host", sdes.getItemText());
+        assertFalse(sdes.nextItem());
+
+        assertTrue(compound.next());
+        GoodByeRtcpPacket bye = compound.getGoodBye();
+        assertNotNull(bye);
+        assertEquals(1, bye.getSourceCount());
+        assertEquals(0x11223344L, bye.getSource(0));
+        assertEquals("done", bye.getReason());
+
+        assertFalse(compound.next());
+    }
+
+    @Test
+    public void rejectsCompoundPacketNotStartingWithReport() {
+        RtpBuffer b = new RtpBuffer(null, 64);
+        writer.start(b);
+        writer.beginSourceDescription();
+        writer.addSourceDescriptionChunk(1);
+        writer.finish();
+
+        assertFalse(compound.wrap(b));
+    }
+
+    @Test
+    public void rejectsTruncatedCompoundPacket() {
+        RtpBuffer b = new RtpBuffer(null, 64);
+        writer.start(b);
+        writer.beginReceiverReport(1);
+        writer.addReportBlock(2, 0, 0, 0, 0, 0, 0);
+        writer.finish();
+        b.length -= 4;
+
+        assertFalse(compound.wrap(b));
+    }
+
+    @Test
+    public void readsBackKeyFrameRequests() {
+        RtpBuffer b = new RtpBuffer(null, 64);
+        writer.start(b);
+        writer.beginReceiverReport(1);
+        writer.addPictureLossIndication(1, 0xCAFEBABEL);
+        writer.addFullIntraRequest(1, 0xCAFEBABEL, 257);
+        writer.finish();
+
+        assertTrue(compound.wrap(b));
+        assertTrue(compound.next());
+        assertTrue(compound.next());
+        FeedbackRtcpPacket pli = compound.getFeedback();
+        assertNotNull(pli);
+        assertTrue(pli.isPictureLossIndication());
+        assertFalse(pli.isGenericNack());
+        assertEquals(0xCAFEBABEL, pli.getMediaSsrc());
+
+        assertTrue(compound.next());
+        FeedbackRtcpPacket fir = compound.getFeedback();
+        assertNotNull(fir);
+        assertTrue(fir.isFullIntraRequest());
+        assertEquals(1, fir.getFirCount());
+        assertEquals(0xCAFEBABEL, fir.getFirSsrc(0));
+        assertEquals(1, fir.getFirSequenceNumber(0));
+        assertFalse(compound.next());
+    }
+}
@@ -0,0 +1,174 @@
+package com.devinbrown.streaminglib.rtp;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RtcpSchedulerTest {
+    private static final double DELTA = 1e-9;
+
+    @Test
+    public void smallSessionUsesMinimumInterval() {
+        assertEquals(5.0, RtcpScheduler.computeDeterministicInterval(2, 1, 400, false, 100, false), DELTA);
+        // Halved before the first report
+        assertEquals(2.5, RtcpScheduler.computeDeterministicInterval(2, 1, 400, false, 100, true), DELTA);
+    }
+
+    @Test
+    public void intervalScalesWithMembers() {
+        // 1000 receivers sharing 75% of 1000 bytes/s, with 1 sender
+        double receiver = RtcpScheduler.computeDeterministicInterval(1001, 1, 1000, false, 150, false);
+        assertEquals(150.0 * 1000 / 750, receiver, DELTA);
+
+        // The sender shares 25% of the bandwidth with no other sender
+        double sender = RtcpScheduler.computeDeterministicInterval(1001, 1, 1000, true, 150, false);
+        assertEquals(5.0, sender, DELTA);
+    }
+
+    @Test
+    public void randomizedIntervalStaysInRange() {
+        RtcpScheduler s = new RtcpScheduler();
+        double compensation = 2.71828 - 1.5;
+        for (int i = 0; i < 1000; i++) {
+            double t = s.randomizeInterval(10);
+            assertTrue(t >= 5 / compensation && t <= 15 / compensation);
+        }
+        s.shutdown();
+    }
+
+    @Test
+    public void timerReconsiderationPostponesReportWhenMembershipGrew() {
+        RtcpScheduler s = new RtcpScheduler();
+        FakeParticipant p = new FakeParticipant();
+        RtcpScheduler.Session session = s.add(p);
+        long start = System.nanoTime();
+
+        // The first interval is at most 2.5 s randomized, but 10000 members stretch it to minutes
+        p.members = 10000;
+        long now = start + seconds(3.1);
+        session.onTimerExpired(now);
+        assertEquals(0, p.reports);
+        assertTrue(session.getNextTransmissionNanos() - now > seconds(60));
+        s.shutdown();
+    }
+
+    @Test
+    public void sendsReportWhenStillDue() {
+        RtcpScheduler s = new RtcpScheduler();
+        FakeParticipant p = new FakeParticipant();
+        RtcpScheduler.Session session = s.add(p);
+        long now = System.nanoTime() + seconds(3.1);
+
+        session.onTimerExpired(now);
+        assertEquals(1, p.reports);
+        assertTrue(session.getNextTransmissionNanos() - now > 0);
+        s.shutdown();
+    }
+
+    @Test
+    public void reverseReconsiderationPullsReportForward() {
+        RtcpScheduler s = new RtcpScheduler();
+        FakeParticipant p = new FakeParticipant();
+        RtcpScheduler.Session session = s.add(p);
+
+        // A report counts 1000 members
+        p.members = 1000;
+        long sent = System.nanoTime() + seconds(1000);
+        session.onTimerExpired(sent);
+        assertEquals(1, p.reports);
+        long due = session.getNextTransmissionNanos();
+
+        // Members joining don't move it
+        long now = sent + seconds(1);
+        p.members = 2000;
+        session.onMembersLeft(now);
+        assertEquals(due, session.getNextTransmissionNanos());
+
+        // 90% leaving brings it 90% closer
+        p.members = 100;
+        session.onMembersLeft(now);
+        assertEquals(now + (long) ((due - now) * 0.1), session.getNextTransmissionNanos());
+        s.shutdown();
+    }
+
+    @Test
+    public void sendsNoGoodByeBeforeFirstReport() {
+        RtcpScheduler s = new RtcpScheduler();
+        FakeParticipant p = new FakeParticipant();
+        final boolean[] closed = {false};
+        s.add(p).close(true, new Runnable() {
+            @Override
+            public void run() {
+                closed[0] = true;
+            }
+        });
+
+        // Never counted as a member, so it closes right away without a BYE
+        assertTrue(closed[0]);
+        assertEquals(0, p.goodByes);
+        s.shutdown();
+    }
+
+    @Test
+    public void closesAfterGoodByeWentOut() throws Exception {
+        RtcpScheduler s = new RtcpScheduler();
+        FakeParticipant p = new FakeParticipant();
+        RtcpScheduler.Session session = s.add(p);
+        session.onTimerExpired(System.nanoTime() + seconds(3.1));
+
+        final CountDownLatch closed = new CountDownLatch(1);
+        session.close(true, new Runnable() {
+            @Override
+            public void run() {
+                closed.countDown();
+            }
+        });
+        assertTrue(closed.await(10, TimeUnit.SECONDS));
+        assertEquals(1, p.goodByes);
+        s.shutdown();
+    }
+
+    private static long seconds(double s) {
+        return (long) (s * 1000000000L);
+    }
+
+    /**
+     * A receiver in a session of a set size, sharing 1000 bytes/s of RTCP
+     */
+    private static class FakeParticipant implements RtcpScheduler.Participant {
+        volatile int members = 1;
+        volatile int reports;
+        volatile int goodByes;
+
+        @Override
+        public int getMemberCount(long activeSinceNanos) {
+            return members;
+        }
+
+        @Override
+        public int getSenderCount(long activeSinceNanos) {
+            return 0;
+        }
+
+        @Override
+        public boolean isSender() {
+            return false;
+        }
+
+        @Override
+        public double getRtcpBandwidth() {
+            return 1000;
+        }
+
+        @Override
+        public int sendReport(RtcpCompoundWriter w, RtpBuffer b, boolean goodBye) {
+            if (goodBye) goodByes++;
+            else reports++;
+            return 100;
+        }
+    }
+}
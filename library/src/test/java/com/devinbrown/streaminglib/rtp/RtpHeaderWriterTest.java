@@ -0,0 +1,63 @@
+package com.devinbrown.streaminglib.rtp;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RtpHeaderWriterTest {
+    private final RtpPacket packet = new RtpPacket();
+
+    @Test
+    public void writesCsrcsAndExtension() {
+        RtpHeaderWriter w = new RtpHeaderWriter(0xCAFEBABEL, 96, 90000, 0xFFFF, 1000);
+        w.setCsrcs(new long[]{1, 2}, 2);
+        w.setExtension(0xBEDE, new byte[]{1, 2, 3, 4}, 0, 4);
+        assertEquals(12 + 8 + 8, w.getHeaderLength());
+
+        ByteBuffer bb = ByteBuffer.allocate(100);
+        w.write(bb, w.toRtpTimestamp(1000000), true);
+        w.write(bb, w.toRtpTimestamp(1500000), false);
+        assertEquals(2 * w.getHeaderLength(), bb.position());
+
+        assertTrue(packet.wrap(bb.array(), 0, w.getHeaderLength()));
+        assertEquals(96, packet.getPayloadType());
+        assertTrue(packet.getMarker());
+        assertEquals(0xFFFF, packet.getSequenceNumber());
+        assertEquals(1000 + 90000, packet.getTimestamp());
+        assertEquals(0xCAFEBABEL, packet.getSsrc());
+        assertEquals(2, packet.getCsrcCount());
+        assertEquals(2, packet.getCsrc(1));
+        assertEquals(0xBEDE, packet.getExtensionProfile());
+        assertEquals(4, packet.getExtensionLength());
+        assertEquals(0, packet.getPayloadLength());
+
+        assertTrue(packet.wrap(bb.array(), w.getHeaderLength(), w.getHeaderLength()));
+        assertFalse(packet.getMarker());
+        assertEquals(0, packet.getSequenceNumber());
+        assertEquals(1000 + 135000, packet.getTimestamp());
+    }
+
+    @Test
+    public void translatesRelayedHeaderWithOffsets() {
+        RtpHeaderWriter source = new RtpHeaderWriter(0, 97, 90000, 10, 0xFFFFFFF0L);
+        byte[] src = new byte[12];
+        source.write(src, 0, 0xFFFFFFF0L, true);
+
+        RtpHeaderWriter w = new RtpHeaderWriter(0x1234, 96, 90000, 100, 0x20);
+        byte[] d = new byte[12];
+        assertEquals(12, w.translate(src, 0, d, 0));
+
+        assertTrue(packet.wrap(d, 0, d.length));
+        assertEquals(97, packet.getPayloadType());
+        assertTrue(packet.getMarker());
+        assertEquals(110, packet.getSequenceNumber());
+        // Wraps around
+        assertEquals(0x10, packet.getTimestamp());
+        assertEquals(0x1234, packet.getSsrc());
+        assertEquals(111, w.getSequenceNumber());
+    }
+}
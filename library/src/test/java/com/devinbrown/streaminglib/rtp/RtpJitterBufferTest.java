@@ -0,0 +1,141 @@
+package com.devinbrown.streaminglib.rtp;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class RtpJitterBufferTest {
+    private static final long MS = 1000000L;
+
+    private final List<Long> released = new ArrayList<>();
+    private final List<long[]> losses = new ArrayList<>();
+
+    private final RtpJitterBuffer.Listener recorder = new RtpJitterBuffer.Listener() {
+        @Override
+        public void onPacket(RtpBuffer b, long extendedSequenceNumber) {
+            released.add(extendedSequenceNumber);
+            b.release();
+        }
+
+        @Override
+        public void onPacketsLost(long firstExtendedSequenceNumber, int count) {
+            losses.add(new long[]{firstExtendedSequenceNumber, count});
+        }
+    };
+
+    @Test
+    public void releasesReorderedPacketsInOrder() {
+        RtpJitterBuffer j = new RtpJitterBuffer(recorder, 90000, 16, 50, 100);
+        insert(j, 10, 0);
+        insert(j, 12, 1);
+        insert(j, 13, 2);
+        assertEquals(1, released.size());
+
+        insert(j, 11, 3);
+        assertEquals(4, released.size());
+        for (int i = 0; i < 4; i++) assertEquals(10 + i, (long) released.get(i));
+        assertEquals(0, j.getBuffered());
+        assertEquals(0, losses.size());
+    }
+
+    @Test
+    public void handlesSequenceNumberWraparound() {
+        RtpJitterBuffer j = new RtpJitterBuffer(recorder, 90000, 16, 50, 100);
+        insert(j, 65534, 0);
+        insert(j, 0, 1);
+        insert(j, 65535, 2);
+        insert(j, 1, 3);
+
+        assertEquals(4, released.size());
+        assertEquals(65534L, (long) released.get(0));
+        assertEquals(65535L, (long) released.get(1));
+        assertEquals(65536L, (long) released.get(2));
+        assertEquals(65537L, (long) released.get(3));
+    }
+
+    @Test
+    public void skipsGapAfterMaxLatency() {
+        RtpJitterBuffer j = new RtpJitterBuffer(recorder, 90000, 16, 20, 20);
+        insert(j, 1, 0);
+        insert(j, 3, 1);
+        j.drain(10 * MS);
+        assertEquals(1, released.size());
+
+        j.drain(25 * MS);
+        assertEquals(2, released.size());
+        assertEquals(3L, (long) released.get(1));
+        assertEquals(1, losses.size());
+        assertEquals(2L, losses.get(0)[0]);
+        assertEquals(1L, losses.get(0)[1]);
+
+        // The lost packet showing up afterwards is dropped as late
+        insert(j, 2, 30);
+        assertEquals(2, released.size());
+        assertEquals(1, j.getLate());
+    }
+
+    @Test
+    public void capsNumberOfHeldPackets() {
+        RtpJitterBuffer j = new RtpJitterBuffer(recorder, 90000, 4, 1000, 1000);
+        insert(j, 0, 0);
+        for (int s = 2; s < 6; s++) insert(j, s, s);
+        assertEquals(4, j.getBuffered());
+
+        // A fifth held packet forces the gap to be given up on long before the latency cap
+        insert(j, 6, 6);
+        assertEquals(0, j.getBuffered());
+        assertEquals(1, j.getLost());
+        assertEquals(6, released.size());
+    }
+
+    @Test
+    public void dropsDuplicates() {
+        RtpJitterBuffer j = new RtpJitterBuffer(recorder, 90000, 16, 50, 100);
+        insert(j, 5, 0);
+        insert(j, 7, 1);
+        insert(j, 7, 2);
+        assertEquals(1, j.getDuplicates());
+        assertEquals(1, j.getBuffered());
+    }
+
+    @Test
+    public void resynchronizesOnSequentialPacketsAfterRestart() {
+        RtpJitterBuffer j = new RtpJitterBuffer(recorder, 90000, 16, 50, 100);
+        for (int s = 20000; s < 20010; s++) insert(j, s, s - 20000);
+
+        // A single packet far behind is dropped
+        insert(j, 100, 20);
+        assertEquals(10, released.size());
+        assertEquals(1, j.getLate());
+
+        // The one after it confirms the sender restarted lower
+        insert(j, 101, 21);
+        insert(j, 102, 22);
+        assertEquals(12, released.size());
+        assertEquals(101L, (long) released.get(10));
+        assertEquals(102L, (long) released.get(11));
+    }
+
+    @Test
+    public void reportsWhenHeldPacketsAreDue() {
+        RtpJitterBuffer j = new RtpJitterBuffer(recorder, 90000, 16, 20, 20);
+        insert(j, 1, 0);
+        assertEquals(-1, j.getDrainDelayNanos(0));
+
+        insert(j, 3, 5);
+        assertEquals(20 * MS, j.getDrainDelayNanos(5 * MS));
+        assertEquals(5 * MS, j.getDrainDelayNanos(20 * MS));
+
+        j.drain(25 * MS);
+        assertEquals(-1, j.getDrainDelayNanos(25 * MS));
+        assertEquals(2, released.size());
+    }
+
+    // Timestamps track arrival times exactly, so no jitter is measured
+    private static void insert(RtpJitterBuffer j, int seq, long arrivalMs) {
+        j.insert(RtpBuffer.wrap(new byte[12]), seq, arrivalMs * 90, arrivalMs * MS);
+    }
+}
@@ -0,0 +1,21 @@
+package com.devinbrown.streaminglib.rtp;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+
+import static org.junit.Assert.assertEquals;
+
+public class RtpMulticastGroupTest {
+
+    @Test
+    public void allocatesConsecutiveGroupAddresses() throws Exception {
+        InetAddress first = InetAddress.getByName("239.255.42.0");
+        assertEquals(first, RtpMulticastGroup.groupAddress(first, 0));
+        assertEquals(InetAddress.getByName("239.255.42.7"), RtpMulticastGroup.groupAddress(first, 7));
+
+        // Carries into the next octet
+        InetAddress high = InetAddress.getByName("239.255.42.250");
+        assertEquals(InetAddress.getByName("239.255.43.4"), RtpMulticastGroup.groupAddress(high, 10));
+    }
+}
@@ -0,0 +1,84 @@
+package com.devinbrown.streaminglib.rtp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class RtpNackGeneratorTest {
+    private static final long MS = 1000000L;
+    private static final long SSRC = 0x1234L;
+
+    @Test
+    public void batchesGapsIntoBitmaskItemsAfterReorderWait() {
+        RtpNackGenerator g = new RtpNackGenerator();
+        g.setTiming(10 * MS, 40 * MS, 200 * MS);
+
+        // 65533, 65535 and 0 missing across the wrap, then 20 missing further on
+        g.onPacket(SSRC, 65532, 0);
+        assertTrue(g.onPacket(SSRC, 65534, 0));
+        assertTrue(g.onPacket(SSRC, 1, 0));
+        for (int i = 2; i < 20; i++) assertFalse(g.onPacket(SSRC, i, 0));
+        assertTrue(g.onPacket(SSRC, 21, 0));
+        assertEquals(4, g.getMissingCount());
+
+        // Not due before the reorder wait
+        assertEquals(10 * MS, g.getDelayNanos(0));
+        assertEquals(0, g.writeNacks(new RtcpCompoundWriter(), 1, 5 * MS));
+
+        FeedbackRtcpPacket fb = write(g, 10 * MS, 4);
+        assertEquals(SSRC, fb.getMediaSsrc());
+        assertEquals(2, fb.getNackCount());
+        assertEquals(65533, fb.getNackPacketId(0));
+        assertEquals(0x0006, fb.getNackBitmask(0));
+        assertEquals(20, fb.getNackPacketId(1));
+        assertEquals(0, fb.getNackBitmask(1));
+
+        // Requested again after the retry interval
+        assertEquals(40 * MS, g.getDelayNanos(10 * MS));
+    }
+
+    @Test
+    public void forgetsRecoveredAndAbandonedPackets() {
+        RtpNackGenerator g = new RtpNackGenerator();
+        g.setTiming(0, 10 * MS, 100 * MS);
+        g.setMaxRequests(2);
+
+        g.onPacket(SSRC, 10, 0);
+        g.onPacket(SSRC, 14, 0);
+        assertEquals(3, g.getMissingCount());
+
+        // A retransmission of 12 arrives
+        assertFalse(g.onPacket(SSRC, 12, 0));
+        assertEquals(1, g.getRecovered());
+
+        write(g, 0, 2);
+        write(g, 10 * MS, 2);
+        assertEquals(0, g.writeNacks(new RtcpCompoundWriter(), 1, 20 * MS));
+        assertEquals(2, g.getAbandoned());
+        assertEquals(-1, g.getDelayNanos(20 * MS));
+
+        // A jump past the tracked span starts over instead of requesting everything
+        assertFalse(g.onPacket(SSRC, 14 + RtpNackGenerator.CAPACITY + 1, 20 * MS));
+        assertEquals(0, g.getMissingCount());
+    }
+
+    private static FeedbackRtcpPacket write(RtpNackGenerator g, long nowNanos, int expected) {
+        RtcpCompoundWriter w = new RtcpCompoundWriter();
+        RtpBuffer b = new RtpBuffer(null, 256);
+        w.start(b);
+        w.beginReceiverReport(1);
+        assertEquals(expected, g.writeNacks(w, 1, nowNanos));
+        w.finish();
+
+        RtcpCompoundPacket c = new RtcpCompoundPacket();
+        assertTrue(c.wrap(b));
+        assertTrue(c.next());
+        assertTrue(c.next());
+        FeedbackRtcpPacket fb = c.getFeedback();
+        assertNotNull(fb);
+        return fb;
+    }
+}
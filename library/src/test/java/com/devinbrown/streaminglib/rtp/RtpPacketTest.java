@@ -0,0 +1,117 @@
+package com.devinbrown.streaminglib.rtp;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RtpPacketTest {
+
+    @Test
+    public void decodesFixedHeader() {
+        byte[] d = {
+                (byte) 0x80, (byte) 0xE0, (byte) 0xFF, (byte) 0xFE,
+                0x12, 0x34, 0x56, 0x78,
+                (byte) 0xDE, (byte) 0xAD, (byte) 0xBE, (byte) 0xEF,
+                1, 2, 3};
+
+        RtpPacket p = new RtpPacket();
+        assertTrue(p.wrap(d, 0, d.length));
+        assertEquals(2, p.getVersion());
+        assertFalse(p.hasPadding());
+        assertFalse(p.hasExtension());
+        assertEquals(0, p.getCsrcCount());
+        assertTrue(p.getMarker());
+        assertEquals(96, p.getPayloadType());
+        assertEquals(0xFFFE, p.getSequenceNumber());
+        assertEquals(0x12345678L, p.getTimestamp());
+        assertEquals(0xDEADBEEFL, p.getSsrc());
+        assertEquals(12, p.getPayloadOffset());
+        assertEquals(3, p.getPayloadLength());
+    }
+
+    @Test
+    public void skipsCsrcsExtensionAndPadding() {
+        byte[] d = {
+                // V=2, P=1, X=1, CC=2
+                (byte) 0xB2, 0x60, 0x00, 0x01,
+                0, 0, 0, 1,
+                0, 0, 0, 2,
+                // CSRCs
+                0, 0, 0, 3,
+                (byte) 0xFF, 0, 0, 4,
+                // Extension: profile 0xBEDE, one word
+                (byte) 0xBE, (byte) 0xDE, 0x00, 0x01,
+                9, 9, 9, 9,
+                // Payload
+                10, 11, 12, 13, 14,
+                // Padding
+                0, 0, 3};
+
+        RtpPacket p = new RtpPacket();
+        assertTrue(p.wrap(d, 0, d.length));
+        assertEquals(2, p.getCsrcCount());
+        assertEquals(3L, p.getCsrc(0));
+        assertEquals(0xFF000004L, p.getCsrc(1));
+        assertEquals(0xBEDE, p.getExtensionProfile());
+        assertEquals(4, p.getExtensionLength());
+        assertEquals(24, p.getExtensionOffset());
+        assertEquals(28, p.getHeaderLength());
+        assertEquals(3, p.getPaddingLength());
+        assertEquals(28, p.getPayloadOffset());
+        assertEquals(5, p.getPayloadLength());
+        assertEquals(10, p.getBuffer()[p.getPayloadOffset()]);
+    }
+
+    @Test
+    public void wrapsRegionOfLargerBuffer() {
+        ByteBuffer bb = ByteBuffer.allocate(64);
+        bb.position(8);
+        bb.put((byte) 0x80).put((byte) 0x08).putShort((short) 7).putInt(160).putInt(42).put((byte) 0x55);
+        bb.flip().position(8);
+
+        RtpPacket p = new RtpPacket();
+        assertTrue(p.wrap(bb));
+        assertEquals(7, p.getSequenceNumber());
+        assertEquals(8, p.getPayloadType());
+        assertEquals(20, p.getPayloadOffset());
+        assertEquals(1, p.getPayloadLength());
+
+        byte[] payload = new byte[1];
+        assertEquals(1, p.copyPayload(payload, 0));
+        assertEquals(0x55, payload[0]);
+    }
+
+    @Test
+    public void rejectsMalformedPackets() {
+        RtpPacket p = new RtpPacket();
+
+        // Too short
+        assertFalse(p.wrap(new byte[11], 0, 11));
+
+        // Wrong version
+        byte[] v1 = new byte[12];
+        v1[0] = 0x40;
+        assertFalse(p.wrap(v1, 0, 12));
+
+        // CSRC count larger than the packet
+        byte[] cc = new byte[16];
+        cc[0] = (byte) 0x82;
+        assertFalse(p.wrap(cc, 0, 16));
+
+        // Padding larger than the packet
+        byte[] pad = new byte[14];
+        pad[0] = (byte) 0xA0;
+        pad[13] = 10;
+        assertFalse(p.wrap(pad, 0, 14));
+
+        // Extension length larger than the packet
+        byte[] ext = new byte[20];
+        ext[0] = (byte) 0x90;
+        ext[15] = 5;
+        assertFalse(p.wrap(ext, 0, 20));
+    }
+}
@@ -0,0 +1,73 @@
+package com.devinbrown.streaminglib.rtp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RtpReceiverStatisticsTest {
+    private static final long MS = 1000000L;
+
+    @Test
+    public void countsLossAcrossWraparound() {
+        RtpReceiverStatistics s = new RtpReceiverStatistics(1, 90000);
+
+        // The first packet only starts probation
+        assertFalse(s.update(65530, 0, 0));
+        for (int seq = 65531; seq < 65536; seq++) assertTrue(s.update(seq, 0, 0));
+        RtpReceiverStatistics.Snapshot prior = s.snapshot();
+
+        // 0 and 3 are lost
+        s.update(1, 0, 0);
+        s.update(2, 0, 0);
+        s.update(4, 0, 0);
+
+        RtpReceiverStatistics.Snapshot now = s.snapshot();
+        assertEquals(65531, now.baseSequenceNumber);
+        assertEquals(65536 + 4, now.extendedHighestSequenceNumber);
+        assertEquals(10, now.getExpected());
+        assertEquals(8, now.received);
+        assertEquals(2, now.getCumulativeLost());
+        assertEquals((2 << 8) / 5, now.getFractionLost(prior));
+    }
+
+    @Test
+    public void reorderedPacketsAreNotLost() {
+        RtpReceiverStatistics s = new RtpReceiverStatistics(1, 90000);
+        int[] order = {10, 11, 13, 12, 14};
+        for (int seq : order) s.update(seq, 0, 0);
+
+        RtpReceiverStatistics.Snapshot now = s.snapshot();
+        assertEquals(14, now.extendedHighestSequenceNumber);
+        assertEquals(0, now.getCumulativeLost());
+    }
+
+    @Test
+    public void resynchronizesAfterRestart() {
+        RtpReceiverStatistics s = new RtpReceiverStatistics(1, 90000);
+        for (int seq = 100; seq < 105; seq++) s.update(seq, 0, 0);
+
+        assertFalse(s.update(40000, 0, 0));
+        assertTrue(s.update(40001, 0, 0));
+
+        RtpReceiverStatistics.Snapshot now = s.snapshot();
+        assertEquals(40001, now.baseSequenceNumber);
+        assertEquals(1, now.received);
+    }
+
+    @Test
+    public void measuresJitter() {
+        RtpReceiverStatistics s = new RtpReceiverStatistics(1, 90000);
+
+        // 20ms frames (1800 ticks) arriving alternately 2ms early and late
+        for (int i = 0; i < 200; i++) {
+            long arrivalMs = i * 20 + (i % 2 == 0 ? 0 : 4);
+            s.update(i, i * 1800L, arrivalMs * MS);
+        }
+
+        // Every transit difference is 4ms = 360 ticks
+        long jitter = s.snapshot().jitter;
+        assertTrue("jitter " + jitter, jitter > 340 && jitter <= 360);
+    }
+}
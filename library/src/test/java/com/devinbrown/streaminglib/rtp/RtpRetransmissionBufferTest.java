@@ -0,0 +1,81 @@
+package com.devinbrown.streaminglib.rtp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class RtpRetransmissionBufferTest {
+    private final RtpBufferPool pool = new RtpBufferPool(8, 1400);
+
+    @Test
+    public void holdsRecentPacketsBySequenceNumber() {
+        RtpRetransmissionBuffer r = new RtpRetransmissionBuffer(4, 1.0);
+        RtpBuffer[] sent = new RtpBuffer[6];
+        for (int i = 0; i < sent.length; i++) {
+            sent[i] = packet(100);
+            r.onPacketSent((0xFFFE + i) & 0xFFFF, sent[i]);
+            sent[i].release();
+        }
+
+        // Only the last 4 are held, across the sequence number wrap
+        assertEquals(4, pool.getAvailable());
+        assertNull(r.get(0xFFFF));
+        assertSame(sent[5], r.get(3));
+        assertSame(sent[2], r.get(0));
+        assertEquals(2, r.getRetransmitted());
+        assertEquals(1, r.getMissing());
+
+        r.clear();
+        assertEquals(8, pool.getAvailable());
+    }
+
+    @Test
+    public void limitsRetransmissionsToBandwidthShare() {
+        RtpRetransmissionBuffer r = new RtpRetransmissionBuffer(16, 0.25);
+        for (int i = 0; i < 8; i++) {
+            RtpBuffer b = packet(1000);
+            r.onPacketSent(i, b);
+            b.release();
+        }
+
+        // 8000 bytes sent earn 2000 bytes of retransmissions
+        assertNotNull(r.get(0));
+        assertNotNull(r.get(1));
+        assertNull(r.get(2));
+        assertEquals(1, r.getRateLimited());
+        r.clear();
+    }
+
+    @Test
+    public void readsBackGenericNack() {
+        RtcpCompoundWriter w = new RtcpCompoundWriter();
+        RtpBuffer b = new RtpBuffer(null, 64);
+        w.start(b);
+        w.beginReceiverReport(1);
+        w.beginGenericNack(1, 0xCAFEBABEL);
+        w.addGenericNackItem(65530, 0x8001);
+        w.finish();
+
+        RtcpCompoundPacket c = new RtcpCompoundPacket();
+        assertTrue(c.wrap(b));
+        assertTrue(c.next());
+        assertTrue(c.next());
+        FeedbackRtcpPacket fb = c.getFeedback();
+        assertNotNull(fb);
+        assertTrue(fb.isGenericNack());
+        assertEquals(0xCAFEBABEL, fb.getMediaSsrc());
+        assertEquals(1, fb.getNackCount());
+        assertEquals(65530, fb.getNackPacketId(0));
+        assertEquals(0x8001, fb.getNackBitmask(0));
+    }
+
+    private RtpBuffer packet(int length) {
+        RtpBuffer b = pool.acquire();
+        b.length = length;
+        return b;
+    }
+}
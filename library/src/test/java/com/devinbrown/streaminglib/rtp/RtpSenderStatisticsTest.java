@@ -0,0 +1,69 @@
+package com.devinbrown.streaminglib.rtp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RtpSenderStatisticsTest {
+    private final RtcpCompoundWriter writer = new RtcpCompoundWriter();
+    private final RtcpCompoundPacket compound = new RtcpCompoundPacket();
+
+    @Test
+    public void mapsReportTimeToRtpTimestamp() {
+        RtpSenderStatistics s = new RtpSenderStatistics(90000);
+        long t0 = 1000000000L;
+        // Three packets of one frame, then the first packet of the next frame 40 ms later
+        s.onPacketSent(0xFFFFF000L, 1000, t0);
+        s.onPacketSent(0xFFFFF000L, 1000, t0 + 2000000);
+        s.onPacketSent(0xFFFFF000L, 500, t0 + 4000000);
+        s.onPacketSent(0xFFFFF000L + 3600, 800, t0 + 40000000);
+
+        RtpSenderStatistics.Snapshot snap = s.snapshot();
+        assertEquals(4, snap.packetCount);
+        assertEquals(3300, snap.octetCount);
+        assertEquals(t0 + 40000000, snap.rtpTimestampNanos);
+
+        // 100 ms after the second frame went out is 9000 ticks later, wrapping around
+        long expected = (0xFFFFF000L + 3600 + 9000) & 0xFFFFFFFFL;
+        assertEquals(expected, RtpSenderStatistics.getRtpTimestampAt(snap, t0 + 140000000, 90000));
+    }
+
+    @Test
+    public void convertsToNtpTimestamp() {
+        assertEquals(2208988800L << 32, RtpSenderStatistics.unixNanosToNtp(0));
+        // Half a second is half of the 32 bit fraction
+        assertEquals((2208988801L << 32) | 0x80000000L, RtpSenderStatistics.unixNanosToNtp(1500000000L));
+    }
+
+    @Test
+    public void reportsAsSenderWhileSending() {
+        RtpSenderStatistics s = new RtpSenderStatistics(8000);
+        RtpBuffer b = new RtpBuffer(null, 128);
+        assertFalse(s.isSender());
+
+        s.onPacketSent(1234, 160, System.nanoTime());
+        assertTrue(s.isSender());
+        assertNotNull(report(s, b).getSenderReport());
+        assertEquals(1, compound.getSenderReport().getPacketCount());
+        assertEquals(160, compound.getSenderReport().getOctetCount());
+
+        // Still a sender for the interval after the last packet, then a receiver
+        assertNotNull(report(s, b).getSenderReport());
+        assertFalse(s.isSender());
+        assertNull(report(s, b).getSenderReport());
+        assertNotNull(compound.getReceiverReport());
+    }
+
+    private RtcpCompoundPacket report(RtpSenderStatistics s, RtpBuffer b) {
+        writer.start(b);
+        s.beginReport(writer, 0x01020304L, System.nanoTime());
+        writer.finish();
+        assertTrue(compound.wrap(b));
+        assertTrue(compound.next());
+        return compound;
+    }
+}
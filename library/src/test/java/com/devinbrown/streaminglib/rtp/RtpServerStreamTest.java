@@ -0,0 +1,51 @@
+package com.devinbrown.streaminglib.rtp;
+
+import com.devinbrown.streaminglib.media.RtpMedia;
+import com.devinbrown.streaminglib.rtsp.RtspSessionEvent;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class RtpServerStreamTest {
+    private static final long RECEIVER_SSRC = 0x12345678L;
+
+    private final RtpMedia media = new RtpMedia(null, "trackID=0", null, null);
+    private final RtpServerStream stream = new RtpServerStream(null, media);
+
+    @Test
+    public void passesFullIntraRequestOnOncePerSequenceNumber() {
+        media.setKeyFrameRequestListener(new RtpMedia.KeyFrameRequestListener() {
+            @Override
+            public void onKeyFrameRequested(RtpMedia m) {
+            }
+        }, 0);
+
+        receive(fir(stream.ssrc, 1));
+        // Repetitions of the same request
+        receive(fir(stream.ssrc, 1));
+        receive(fir(stream.ssrc, 1));
+        assertEquals(1, media.getForcedKeyFrameCount());
+
+        receive(fir(stream.ssrc, 2));
+        assertEquals(2, media.getForcedKeyFrameCount());
+
+        // Meant for another stream
+        receive(fir(stream.ssrc ^ 1, 3));
+        assertEquals(2, media.getForcedKeyFrameCount());
+    }
+
+    private void receive(RtpBuffer b) {
+        stream.handleEvent(new RtspSessionEvent.RtcpPacketReceived(b));
+    }
+
+    private static RtpBuffer fir(long mediaSsrc, int sequenceNumber) {
+        RtpBuffer b = RtpBuffer.wrap(new byte[256]);
+        RtcpCompoundWriter w = new RtcpCompoundWriter();
+        w.start(b);
+        w.beginReceiverReport(RECEIVER_SSRC);
+        w.addFullIntraRequest(RECEIVER_SSRC, mediaSsrc, sequenceNumber);
+        w.finish();
+        return b;
+    }
+}
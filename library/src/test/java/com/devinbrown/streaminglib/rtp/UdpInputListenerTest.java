@@ -0,0 +1,206 @@
+package com.devinbrown.streaminglib.rtp;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class UdpInputListenerTest {
+    private static final int POOL_SIZE = 8;
+    private static final int MTU = 1400;
+
+    private DatagramChannel receiver;
+    private DatagramChannel sender;
+    private InetSocketAddress address;
+
+    @Before
+    public void setUp() throws Exception {
+        receiver = DatagramChannel.open();
+        receiver.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        address = (InetSocketAddress) receiver.getLocalAddress();
+        sender = DatagramChannel.open();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        receiver.close();
+        sender.close();
+    }
+
+    @Test
+    public void reusesPooledBuffersAndReportsValidLength() throws Exception {
+        final RtpBufferPool pool = new RtpBufferPool(POOL_SIZE, MTU);
+        final Set<RtpBuffer> seen = Collections.newSetFromMap(new IdentityHashMap<RtpBuffer, Boolean>());
+        final AtomicInteger count = new AtomicInteger();
+        final AtomicInteger badLength = new AtomicInteger();
+
+        Thread t = new Thread(new UdpInputListener(receiver, pool, new UdpInputListener.Sink() {
+            @Override
+            public void onPacket(RtpBuffer b) {
+                synchronized (seen) {
+                    seen.add(b);
+                }
+                if (b.length != 100 + (b.data[0] & 0xFF)) badLength.incrementAndGet();
+                b.release();
+                count.incrementAndGet();
+            }
+        }));
+        t.start();
+
+        int packets = 1000;
+        sendAndAwait(packets, 0, count);
+
+        assertEquals(packets, count.get());
+        assertEquals(0, badLength.get());
+        assertTrue(seen.size() <= POOL_SIZE);
+        // The listener already holds the buffer for the next datagram
+        assertEquals(POOL_SIZE - 1, pool.getAvailable());
+        t.interrupt();
+    }
+
+    @Test
+    public void dropsWhenPoolIsExhausted() throws Exception {
+        RtpBufferPool pool = new RtpBufferPool(POOL_SIZE, MTU);
+        final AtomicInteger count = new AtomicInteger();
+
+        UdpInputListener listener = new UdpInputListener(receiver, pool, new UdpInputListener.Sink() {
+            @Override
+            public void onPacket(RtpBuffer b) {
+                // Never released
+                count.incrementAndGet();
+            }
+        });
+        Thread t = new Thread(listener);
+        t.start();
+
+        sendAndAwait(POOL_SIZE + 4, 0, count);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (listener.getDropped() < 4 && System.currentTimeMillis() < deadline) Thread.sleep(5);
+
+        assertEquals(POOL_SIZE, count.get());
+        assertEquals(4, listener.getDropped());
+        assertEquals(0, pool.getAvailable());
+        t.interrupt();
+    }
+
+    @Test
+    public void steadyStateReceiveLoopWithReleasingSinkDoesNotAllocate() throws Exception {
+        final AtomicInteger count = new AtomicInteger();
+        assertReceiveDoesNotAllocate(new UdpInputListener.Sink() {
+            @Override
+            public void onPacket(RtpBuffer b) {
+                b.release();
+                count.incrementAndGet();
+            }
+        }, count);
+    }
+
+    /**
+     * The sink of client streams: each packet is published into the receive ring, as
+     * RtpClientStream.onRtpReceived does, and released by the stage consuming it
+     */
+    @Test
+    public void steadyStateReceiveIntoRingStageDoesNotAllocate() throws Exception {
+        final AtomicInteger count = new AtomicInteger();
+        final RingBuffer<RtpBuffer[]> ring = new RingBuffer<>(64, new RingBuffer.EntryFactory<RtpBuffer[]>() {
+            @Override
+            public RtpBuffer[] newEntry() {
+                return new RtpBuffer[1];
+            }
+        }, false, WaitStrategy.blocking());
+        RingStage<RtpBuffer[]> stage = new RingStage<>(ring, new RingBuffer.Handler<RtpBuffer[]>() {
+            @Override
+            public void onEntry(RtpBuffer[] entry, boolean endOfBatch) {
+                entry[0].release();
+                entry[0] = null;
+                count.incrementAndGet();
+            }
+        }, RingStage.DEFAULT_BATCH_SIZE, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r);
+            }
+        });
+        stage.start();
+        try {
+            assertReceiveDoesNotAllocate(new UdpInputListener.Sink() {
+                @Override
+                public void onPacket(RtpBuffer b) {
+                    long seq = ring.tryClaim();
+                    if (seq < 0) {
+                        b.release();
+                        count.incrementAndGet();
+                        return;
+                    }
+                    ring.get(seq)[0] = b;
+                    ring.publish(seq);
+                }
+            }, count);
+        } finally {
+            stage.stop();
+        }
+    }
+
+    /**
+     * Measures what the receive thread allocates for packets handed to sink, which counts each one
+     * in count once it is done with it
+     */
+    private void assertReceiveDoesNotAllocate(UdpInputListener.Sink sink, AtomicInteger count) throws Exception {
+        Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(mx.isThreadAllocatedMemorySupported());
+        mx.setThreadAllocatedMemoryEnabled(true);
+
+        RtpBufferPool pool = new RtpBufferPool(POOL_SIZE, MTU);
+        Thread t = new Thread(new UdpInputListener(receiver, pool, sink));
+        t.start();
+
+        // Warm up so class loading and JIT compilation are out of the way
+        sendAndAwait(20000, 0, count);
+
+        int packets = 20000;
+        long before = mx.getThreadAllocatedBytes(t.getId());
+        sendAndAwait(packets, 20000, count);
+        long after = mx.getThreadAllocatedBytes(t.getId());
+        t.interrupt();
+
+        // Allow for a few stray allocations (e.g. lock contention in the pool), but nothing per packet
+        assertTrue("Receive thread allocated " + (after - before) + " bytes for " + packets + " packets",
+                after - before < packets);
+    }
+
+    /**
+     * Sends packets of varying size, keeping at most a few dozen in flight so the socket receive
+     * buffer never overflows, then waits for the listener to deliver them
+     */
+    private void sendAndAwait(int packets, int alreadyReceived, AtomicInteger count) throws Exception {
+        ByteBuffer out = ByteBuffer.allocate(MTU);
+        for (int i = 0; i < packets; i++) {
+            out.clear();
+            out.put(0, (byte) i);
+            out.limit(100 + (i & 0xFF));
+            sender.send(out, address);
+            await(count, alreadyReceived + i - 32);
+        }
+        await(count, alreadyReceived + packets);
+    }
+
+    private static void await(AtomicInteger count, int target) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 2000;
+        while (count.get() < target && System.currentTimeMillis() < deadline) Thread.sleep(0, 1000);
+    }
+}
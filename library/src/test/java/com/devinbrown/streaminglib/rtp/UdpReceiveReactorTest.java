@@ -0,0 +1,99 @@
+package com.devinbrown.streaminglib.rtp;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+public class UdpReceiveReactorTest {
+    private static final int CHANNELS = 50;
+
+    private UdpReceiveReactor reactor;
+    private DatagramChannel[] receivers = new DatagramChannel[CHANNELS];
+    private DatagramChannel sender;
+
+    @Before
+    public void setUp() throws Exception {
+        reactor = new UdpReceiveReactor(2);
+        for (int i = 0; i < CHANNELS; i++) {
+            receivers[i] = DatagramChannel.open();
+            receivers[i].bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        }
+        sender = DatagramChannel.open();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        reactor.shutdown();
+        for (DatagramChannel c : receivers) c.close();
+        sender.close();
+    }
+
+    @Test
+    public void servesManyChannelsWithFewThreads() throws Exception {
+        RtpBufferPool pool = new RtpBufferPool(16, 1400);
+        final AtomicInteger[] counts = new AtomicInteger[CHANNELS];
+        for (int i = 0; i < CHANNELS; i++) {
+            counts[i] = new AtomicInteger();
+            reactor.register(receivers[i], pool, countingSink(counts[i]));
+        }
+
+        int activeBefore = Thread.activeCount();
+        for (int round = 0; round < 20; round++) {
+            for (DatagramChannel c : receivers) send(c);
+            awaitTotal(counts, (round + 1) * CHANNELS);
+        }
+
+        for (AtomicInteger c : counts) assertEquals(20, c.get());
+        assertEquals(16, pool.getAvailable());
+        assertEquals(activeBefore, Thread.activeCount());
+    }
+
+    @Test
+    public void stopsDeliveringAfterDeregister() throws Exception {
+        RtpBufferPool pool = new RtpBufferPool(16, 1400);
+        AtomicInteger count = new AtomicInteger();
+        UdpReceiveReactor.Registration r = reactor.register(receivers[0], pool, countingSink(count));
+
+        send(receivers[0]);
+        awaitTotal(new AtomicInteger[]{count}, 1);
+        assertEquals(1, count.get());
+
+        reactor.deregister(r);
+        Thread.sleep(50);
+        send(receivers[0]);
+        Thread.sleep(100);
+        assertEquals(1, count.get());
+    }
+
+    private static UdpInputListener.Sink countingSink(final AtomicInteger count) {
+        return new UdpInputListener.Sink() {
+            @Override
+            public void onPacket(RtpBuffer b) {
+                b.release();
+                count.incrementAndGet();
+            }
+        };
+    }
+
+    private void send(DatagramChannel to) throws Exception {
+        sender.send(ByteBuffer.allocate(200), to.getLocalAddress());
+    }
+
+    private static void awaitTotal(AtomicInteger[] counts, int target) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 2000;
+        while (System.currentTimeMillis() < deadline) {
+            int total = 0;
+            for (AtomicInteger c : counts) total += c.get();
+            if (total >= target) return;
+            Thread.sleep(1);
+        }
+    }
+}
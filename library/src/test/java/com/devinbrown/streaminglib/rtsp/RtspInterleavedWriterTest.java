@@ -0,0 +1,449 @@
+package com.devinbrown.streaminglib.rtsp;
+
+import com.devinbrown.streaminglib.rtp.RtpBuffer;
+import com.devinbrown.streaminglib.rtp.RtpBufferPool;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.Pipe;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RtspInterleavedWriterTest {
+
+    /**
+     * Accepts at most 1000 bytes per write, like a socket with a small send buffer
+     */
+    private static class RecordingChannel implements GatheringByteChannel {
+        final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        int writes;
+        volatile boolean closed;
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            writes++;
+            long n = 0;
+            for (int i = offset; i < offset + length && n < 1000; i++) {
+                while (srcs[i].hasRemaining() && n < 1000) {
+                    written.write(srcs[i].get());
+                    n++;
+                }
+            }
+            return n;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) {
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            return (int) write(new ByteBuffer[]{src});
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    @Test
+    public void coalescesPacketsIntoGatheringWrites() throws IOException {
+        RecordingChannel c = new RecordingChannel();
+        RtspInterleavedWriter w = new RtspInterleavedWriter(c);
+        RtpBufferPool pool = new RtpBufferPool(1, 100);
+        RtpBuffer payload = pool.acquire();
+        for (int i = 0; i < 100; i++) payload.data[i] = (byte) i;
+        payload.length = 100;
+
+        byte[] header = {1, 2, 3};
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for (int i = 0; i < 20; i++) {
+            w.send(i % 2, header, header.length, payload, 10, 90);
+            expected.write(new byte[]{'$', (byte) (i % 2), 0, 93}, 0, 4);
+            expected.write(header, 0, header.length);
+            expected.write(payload.data, 10, 90);
+        }
+        w.flush();
+        w.sendMessage("RTSP/1.0 200 OK\r\n\r\n".getBytes());
+        expected.write("RTSP/1.0 200 OK\r\n\r\n".getBytes(), 0, 19);
+        w.flush();
+
+        // 20 packets in 2 writes of at most 1000 bytes, then the message
+        assertEquals(3, c.writes);
+        assertArrayEquals(expected.toByteArray(), c.written.toByteArray());
+
+        // The payload is only referenced while queued
+        payload.release();
+        assertEquals(1, pool.getAvailable());
+    }
+
+    @Test
+    public void copiesIntoStreamWrites() throws IOException {
+        final int[] writes = {0};
+        ByteArrayOutputStream out = new ByteArrayOutputStream() {
+            @Override
+            public synchronized void write(byte[] b, int off, int len) {
+                writes[0]++;
+                super.write(b, off, len);
+            }
+        };
+        RtspInterleavedWriter w = new RtspInterleavedWriter(out);
+
+        byte[] rtcp = new byte[28];
+        w.send(1, null, 0, rtcp, 0, rtcp.length);
+        rtcp[0] = 1;
+        w.flush();
+
+        assertEquals(1, writes[0]);
+        assertEquals(32, out.size());
+        assertEquals(0, out.toByteArray()[4]);
+    }
+
+    @Test
+    public void dropsOldestPacketsOfSlowReceiver() throws Exception {
+        BlockingChannel c = new BlockingChannel();
+        RtspInterleavedWriter w = new RtspInterleavedWriter(c);
+        w.setOverflowPolicy(RtspInterleavedWriter.OverflowPolicy.DROP_OLDEST, 4);
+        c.stallNextWrite(w);
+
+        for (int i = 1; i <= 6; i++) w.send(0, null, 0, new byte[]{(byte) i}, 0, 1);
+        assertEquals(4, w.getQueueDepth());
+        assertEquals(2, w.getDroppedPackets());
+
+        c.release.countDown();
+        w.flush();
+        assertArrayEquals(new byte[]{'$', 0, 0, 1, 0, '$', 0, 0, 1, 3, '$', 0, 0, 1, 4, '$', 0, 0, 1, 5,
+                '$', 0, 0, 1, 6}, c.written.toByteArray());
+        assertEquals(4, w.getPeakQueueDepth());
+    }
+
+    @Test
+    public void resumesSlowReceiverAtKeyFrame() throws Exception {
+        BlockingChannel c = new BlockingChannel();
+        RtspInterleavedWriter w = new RtspInterleavedWriter(c);
+        w.setOverflowPolicy(RtspInterleavedWriter.OverflowPolicy.DROP_UNTIL_KEYFRAME, 4);
+        c.stallNextWrite(w, video(0, true));
+
+        for (int i = 1; i <= 6; i++) w.send(0, null, 0, video(i, false), 0, 1);
+        assertEquals(2, w.getDroppedPackets());
+
+        RtpBufferPool pool = new RtpBufferPool(1, 100);
+        RtpBuffer key = pool.acquire();
+        key.data[0] = 7;
+        key.length = 1;
+        key.keyFrameStart = true;
+        w.send(0, null, 0, key, 0, 1);
+        key.release();
+
+        // The queued packets before the key frame are dropped too
+        assertEquals(1, w.getQueueDepth());
+        assertEquals(6, w.getDroppedPackets());
+
+        w.send(0, null, 0, video(8, false), 0, 1);
+        c.release.countDown();
+        w.flush();
+        assertArrayEquals(new byte[]{'$', 0, 0, 1, 0, '$', 0, 0, 1, 7, '$', 0, 0, 1, 8},
+                c.written.toByteArray());
+        assertEquals(1, pool.getAvailable());
+    }
+
+    @Test
+    public void keepsAudioOnlyConnectionFlowingAfterOverflow() throws Exception {
+        BlockingChannel c = new BlockingChannel();
+        RtspInterleavedWriter w = new RtspInterleavedWriter(c);
+        w.setOverflowPolicy(RtspInterleavedWriter.OverflowPolicy.DROP_UNTIL_KEYFRAME, 4);
+        c.stallNextWrite(w, video(0, false));
+
+        // Audio never starts a key frame, so the oldest packets make room instead
+        for (int i = 1; i <= 6; i++) w.send(0, null, 0, video(i, false), 0, 1);
+        assertEquals(4, w.getQueueDepth());
+        assertEquals(2, w.getDroppedPackets());
+
+        c.release.countDown();
+        w.flush();
+        w.send(0, null, 0, video(7, false), 0, 1);
+        w.flush();
+        assertArrayEquals(new byte[]{'$', 0, 0, 1, 0, '$', 0, 0, 1, 3, '$', 0, 0, 1, 4, '$', 0, 0, 1, 5,
+                '$', 0, 0, 1, 6, '$', 0, 0, 1, 7}, c.written.toByteArray());
+    }
+
+    @Test
+    public void sendsRtcpWhileVideoWaitsForKeyFrame() throws Exception {
+        BlockingChannel c = new BlockingChannel();
+        RtspInterleavedWriter w = new RtspInterleavedWriter(c);
+        w.setOverflowPolicy(RtspInterleavedWriter.OverflowPolicy.DROP_UNTIL_KEYFRAME, 4);
+        c.stallNextWrite(w, video(0, true));
+
+        // The fifth video packet overflows the queue and the channel waits for a key frame
+        for (int i = 1; i <= 5; i++) w.send(0, null, 0, video(i, false), 0, 1);
+        assertEquals(1, w.getDroppedPackets());
+
+        // RTCP on the other channel still gets in, in place of the oldest packet
+        w.send(1, null, 0, new byte[]{9}, 0, 1);
+        w.send(0, null, 0, video(6, false), 0, 1);
+        assertEquals(4, w.getQueueDepth());
+        assertEquals(3, w.getDroppedPackets());
+
+        c.release.countDown();
+        w.flush();
+        assertArrayEquals(new byte[]{'$', 0, 0, 1, 0, '$', 0, 0, 1, 2, '$', 0, 0, 1, 3, '$', 0, 0, 1, 4,
+                '$', 1, 0, 1, 9}, c.written.toByteArray());
+    }
+
+    @Test
+    public void sendsMessageWithoutWaitingForStalledConnection() throws Exception {
+        BlockingChannel c = new BlockingChannel();
+        final RtspInterleavedWriter w = new RtspInterleavedWriter(c);
+        c.stallNextWrite(w);
+        w.send(0, null, 0, new byte[]{1}, 0, 1);
+
+        // Returns while the drain is still stuck in a write
+        final CountDownLatch sent = new CountDownLatch(1);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    w.sendMessage("RTSP/1.0 200 OK\r\n\r\n".getBytes());
+                    sent.countDown();
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        }).start();
+        assertTrue(sent.await(10, TimeUnit.SECONDS));
+
+        // The message goes ahead of the packet still queued
+        c.release.countDown();
+        w.flush();
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write(new byte[]{'$', 0, 0, 1, 0});
+        expected.write("RTSP/1.0 200 OK\r\n\r\n".getBytes());
+        expected.write(new byte[]{'$', 0, 0, 1, 1});
+        assertArrayEquals(expected.toByteArray(), c.written.toByteArray());
+    }
+
+    @Test
+    public void tellsOwnerWhenDisconnectingSlowReceiver() throws Exception {
+        BlockingChannel c = new BlockingChannel();
+        RtspInterleavedWriter w = new RtspInterleavedWriter(c);
+        w.setOverflowPolicy(RtspInterleavedWriter.OverflowPolicy.DISCONNECT, 4);
+        final List<IOException> failures = new ArrayList<>();
+        w.setFailureListener(new RtspInterleavedWriter.FailureListener() {
+            @Override
+            public void onWriteFailed(IOException e) {
+                failures.add(e);
+            }
+        });
+        c.stallNextWrite(w);
+
+        RtpBufferPool pool = new RtpBufferPool(1, 100);
+        RtpBuffer b = pool.acquire();
+        b.length = 1;
+        for (int i = 0; i < 4; i++) w.send(0, null, 0, b, 0, 1);
+        try {
+            w.send(0, null, 0, b, 0, 1);
+            fail("Overflow should give up the connection");
+        } catch (IOException e) {
+            assertEquals(1, failures.size());
+            assertTrue(failures.get(0) == e);
+        }
+
+        // The queued packets are let go, and closing is left to the owner
+        b.release();
+        assertEquals(1, pool.getAvailable());
+        assertEquals(0, w.getQueueDepth());
+        assertFalse(c.closed);
+
+        try {
+            w.send(1, null, 0, new byte[]{1}, 0, 1);
+            fail("Sends after the failure should fail");
+        } catch (IOException e) {
+            assertEquals(1, failures.size());
+        }
+        c.release.countDown();
+    }
+
+    @Test
+    public void slowReceiverDoesNotHoldUpOtherConnections() throws Exception {
+        BlockingChannel slow = new BlockingChannel();
+        RtspInterleavedWriter stalled = new RtspInterleavedWriter(slow);
+        slow.stallNextWrite(stalled);
+
+        RecordingChannel fast = new RecordingChannel();
+        RtspInterleavedWriter w = new RtspInterleavedWriter(fast);
+        w.send(0, null, 0, new byte[]{1}, 0, 1);
+
+        // Written by the timed drain while the other connection's drain is blocked
+        long deadline = System.currentTimeMillis() + 2000;
+        while (fast.written.size() == 0 && System.currentTimeMillis() < deadline) Thread.sleep(1);
+        assertArrayEquals(new byte[]{'$', 0, 0, 1, 1}, fast.written.toByteArray());
+        slow.release.countDown();
+    }
+
+    @Test
+    public void resumesNonBlockingChannelWhenWritable() throws Exception {
+        Pipe pipe = Pipe.open();
+        pipe.sink().configureBlocking(false);
+        final AtomicInteger blocked = new AtomicInteger();
+        final CountDownLatch firstBlock = new CountDownLatch(1);
+        RtspInterleavedWriter w = new RtspInterleavedWriter(pipe.sink(), new RtspInterleavedWriter.WriteBlockedListener() {
+            @Override
+            public void onWriteBlocked() {
+                blocked.incrementAndGet();
+                firstBlock.countDown();
+            }
+        });
+
+        // Far more than the pipe holds
+        byte[] payload = new byte[1000];
+        for (int i = 0; i < 200; i++) {
+            payload[0] = (byte) i;
+            w.send(0, null, 0, payload, 0, payload.length);
+        }
+        w.flush();
+        firstBlock.await();
+        byte[] message = "RTSP/1.0 200 OK\r\nCSeq: 2\r\n\r\n".getBytes();
+        w.sendMessage(message);
+
+        // Read like a slow receiver, resuming the writer each time it gave up. The writer may give up
+        // after the pipe was drained, so the reader must not block on it.
+        pipe.source().configureBlocking(false);
+        int total = 200 * (4 + payload.length) + message.length;
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        ByteBuffer bb = ByteBuffer.allocate(4096);
+        while (received.size() < total) {
+            bb.clear();
+            int n = pipe.source().read(bb);
+            received.write(bb.array(), 0, bb.position());
+            if (blocked.get() > 0) {
+                blocked.decrementAndGet();
+                w.onWritable();
+            } else if (n == 0) {
+                Thread.sleep(1);
+            }
+        }
+
+        // Every packet in order, and the message whole between two of them
+        byte[] r = received.toByteArray();
+        int p = 0;
+        int next = 0;
+        boolean sawMessage = false;
+        while (p < r.length) {
+            if (r[p] == '$') {
+                assertEquals(next++, r[p + 4] & 0xFF);
+                p += 4 + payload.length;
+            } else {
+                assertArrayEquals(message, Arrays.copyOfRange(r, p, p + message.length));
+                assertFalse(sawMessage);
+                sawMessage = true;
+                p += message.length;
+            }
+        }
+        assertEquals(200, next);
+        assertTrue(sawMessage);
+    }
+
+    @Test
+    public void releasesPayloadsWhenConnectionCloses() throws Exception {
+        Pipe pipe = Pipe.open();
+        pipe.sink().configureBlocking(false);
+        final CountDownLatch blocked = new CountDownLatch(1);
+        RtspInterleavedWriter w = new RtspInterleavedWriter(pipe.sink(), new RtspInterleavedWriter.WriteBlockedListener() {
+            @Override
+            public void onWriteBlocked() {
+                blocked.countDown();
+            }
+        });
+
+        // Far more than the pipe holds, so some are in the batch and some still queued
+        RtpBufferPool pool = new RtpBufferPool(200, 1400);
+        for (int i = 0; i < 200; i++) {
+            RtpBuffer payload = pool.acquire();
+            payload.length = 1400;
+            w.send(0, null, 0, payload, 0, payload.length);
+            payload.release();
+        }
+        w.flush();
+        assertTrue(blocked.await(10, TimeUnit.SECONDS));
+        assertTrue(pool.getAvailable() < 200);
+
+        w.close();
+        assertEquals(200, pool.getAvailable());
+        assertEquals(0, w.getQueueDepth());
+        try {
+            w.sendMessage("RTSP/1.0 200 OK\r\n\r\n".getBytes());
+            fail("Sent on a closed connection");
+        } catch (IOException expected) {
+            // Later sends fail
+        }
+        pipe.sink().close();
+        pipe.source().close();
+    }
+
+    /**
+     * A one byte packet of a shared buffer, like the packets of a stream
+     */
+    private static RtpBuffer video(int value, boolean keyFrameStart) {
+        RtpBuffer b = RtpBuffer.wrap(new byte[]{(byte) value});
+        b.keyFrameStart = keyFrameStart;
+        return b;
+    }
+
+    /**
+     * Blocks the first write until released, like a receiver that stopped reading
+     */
+    private static class BlockingChannel extends RecordingChannel {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        /**
+         * Queues a packet and waits until its drain blocks
+         */
+        void stallNextWrite(RtspInterleavedWriter w) throws Exception {
+            w.send(0, null, 0, new byte[]{0}, 0, 1);
+            awaitStall(w);
+        }
+
+        void stallNextWrite(RtspInterleavedWriter w, RtpBuffer packet) throws Exception {
+            w.send(0, null, 0, packet, 0, 1);
+            awaitStall(w);
+        }
+
+        private void awaitStall(RtspInterleavedWriter w) throws Exception {
+            entered.await();
+            assertEquals(0, w.getQueueDepth());
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            entered.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new AssertionError(e);
+            }
+            return super.write(srcs, offset, length);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.devinbrown.streaminglib.rtsp;
+
+import com.devinbrown.streaminglib.rtp.RtpBuffer;
+import com.devinbrown.streaminglib.rtp.RtpBufferPool;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class RtspParserTest {
+    private static final byte[] RTP = {(byte) 0x80, 96, 0, 1, '$', 'R', 'T', 'S', 'P', '\r', '\n'};
+
+    @Test
+    public void parsesInterleavedFramesInOneRead() throws Exception {
+        RtpBufferPool pool = new RtpBufferPool(4, 64);
+        List<Rtsp> frames = parseAll(new RtspParser(pool), frames(), Integer.MAX_VALUE);
+        checkFrames(frames);
+
+        // The small frames came from the pool, the large one didn't fit
+        assertEquals(2, pool.getAvailable());
+        for (Rtsp r : frames) ((RtspInterleavedData) r).buffer.release();
+        assertEquals(4, pool.getAvailable());
+    }
+
+    @Test
+    public void reusesInterleavedFrame() throws Exception {
+        RtspParser p = new RtspParser();
+        ByteBuffer in = ByteBuffer.wrap(frames());
+        Rtsp first = p.parse(in);
+        RtpBuffer firstBuffer = ((RtspInterleavedData) first).buffer;
+        Rtsp second = p.parse(in);
+        assertSame(first, second);
+        assertNotSame(firstBuffer, ((RtspInterleavedData) second).buffer);
+        assertEquals(1, ((RtspInterleavedData) second).channel);
+    }
+
+    @Test
+    public void resumesFramesSplitAcrossReads() throws Exception {
+        checkFrames(parseAll(new RtspParser(), frames(), 1));
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void rejectsInvalidRequestLine() throws Exception {
+        byte[] d = "FETCH rtsp://example.com/a RTSP/1.0\r\nCSeq: 1\r\n\r\n".getBytes(StandardCharsets.UTF_8);
+        new RtspParser().parse(ByteBuffer.wrap(d));
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void rejectsUnterminatedHeaders() throws Exception {
+        byte[] d = new byte[RtspParser.MAX_HEAD_LENGTH + 1];
+        Arrays.fill(d, (byte) 'a');
+        new RtspParser().parse(ByteBuffer.wrap(d));
+    }
+
+    private static void checkFrames(List<Rtsp> frames) {
+        assertEquals(3, frames.size());
+
+        // Framing bytes inside the payload don't end the frame
+        RtspInterleavedData rtp = (RtspInterleavedData) frames.get(0);
+        assertEquals(0, rtp.channel);
+        assertArrayEquals(RTP, rtp.getBytes());
+
+        RtspInterleavedData rtcp = (RtspInterleavedData) frames.get(1);
+        assertEquals(1, rtcp.channel);
+        assertEquals(300, rtcp.buffer.length);
+        assertEquals(7, rtcp.buffer.data[299]);
+
+        RtspInterleavedData empty = (RtspInterleavedData) frames.get(2);
+        assertEquals(255, empty.channel);
+        assertEquals(0, empty.buffer.length);
+    }
+
+    /**
+     * An RTP frame holding '$', "RTSP" and CRLF, a frame larger than the pool's buffers and an empty
+     * frame, with a stray CRLF between them
+     */
+    private static byte[] frames() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write('$');
+        out.write(0);
+        out.write(0);
+        out.write(RTP.length);
+        out.write(RTP, 0, RTP.length);
+
+        out.write('\r');
+        out.write('\n');
+
+        byte[] rtcp = new byte[300];
+        rtcp[299] = 7;
+        out.write('$');
+        out.write(1);
+        out.write(rtcp.length >> 8);
+        out.write(rtcp.length & 0xFF);
+        out.write(rtcp, 0, rtcp.length);
+
+        out.write('$');
+        out.write(255);
+        out.write(0);
+        out.write(0);
+        return out.toByteArray();
+    }
+
+    /**
+     * Parses everything, copying each frame out of the parser's reused one
+     */
+    private static List<Rtsp> parseAll(RtspParser p, byte[] d, int chunk) throws ProtocolException {
+        List<Rtsp> messages = new ArrayList<>();
+        for (int o = 0; o < d.length; o += chunk) {
+            ByteBuffer in = ByteBuffer.wrap(d, o, Math.min(chunk, d.length - o));
+            Rtsp r;
+            while ((r = p.parse(in)) != null) {
+                if (r instanceof RtspInterleavedData) {
+                    RtspInterleavedData f = (RtspInterleavedData) r;
+                    r = new RtspInterleavedData(f.channel, f.buffer);
+                }
+                messages.add(r);
+            }
+            assertFalse(in.hasRemaining());
+        }
+        assertNull(p.parse(ByteBuffer.allocate(0)));
+        return messages;
+    }
+}
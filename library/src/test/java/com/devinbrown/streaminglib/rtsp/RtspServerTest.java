@@ -0,0 +1,106 @@
+package com.devinbrown.streaminglib.rtsp;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class RtspServerTest {
+    @Test
+    public void forgetsBlockingSessionWhenClientDisconnects() throws Exception {
+        int port = freePort();
+        RtspServer server = RtspServer.newServer(port);
+        server.start();
+
+        Socket client = connect(port);
+        awaitSessionCount(server, 1);
+        client.close();
+        awaitSessionCount(server, 0);
+    }
+
+    @Test
+    public void forgetsEventLoopSessionWhenClientDisconnects() throws Exception {
+        int port = freePort();
+        RtspServer server = RtspServer.newServer(port);
+        server.setEventLoopCount(1);
+        server.start();
+
+        Socket first = connect(port);
+        Socket second = connect(port);
+        awaitSessionCount(server, 2);
+        first.close();
+        awaitSessionCount(server, 1);
+        second.close();
+        awaitSessionCount(server, 0);
+    }
+
+    @Test
+    public void keepsServingOthersWhenOneConnectionSendsGarbage() throws Exception {
+        int port = freePort();
+        RtspServer server = RtspServer.newServer(port);
+        server.setEventLoopCount(1);
+        server.start();
+
+        Socket bad = connect(port);
+        Socket good = connect(port);
+        awaitSessionCount(server, 2);
+
+        // Can't be framed, so only that connection is closed
+        bad.setSoTimeout(10000);
+        bad.getOutputStream().write("FETCH rtsp://example.com/a RTSP/1.0\r\nCSeq: 1\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+        assertEquals(-1, bad.getInputStream().read());
+        awaitSessionCount(server, 1);
+
+        // The other stays open and the loop goes on taking connections
+        good.setSoTimeout(100);
+        try {
+            good.getInputStream().read();
+            fail("Connection closed");
+        } catch (SocketTimeoutException expected) {
+            // Still open
+        }
+        Socket next = connect(port);
+        awaitSessionCount(server, 2);
+        next.close();
+        good.close();
+        bad.close();
+        awaitSessionCount(server, 0);
+    }
+
+    static int freePort() throws Exception {
+        ServerSocket s = new ServerSocket(0);
+        try {
+            return s.getLocalPort();
+        } finally {
+            s.close();
+        }
+    }
+
+    /**
+     * Connects once the server listens
+     */
+    static Socket connect(int port) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (true) {
+            try {
+                return new Socket(InetAddress.getLoopbackAddress(), port);
+            } catch (java.net.ConnectException e) {
+                if (System.nanoTime() > deadline) throw e;
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    static void awaitSessionCount(RtspServer server, int n) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (server.getSessionCount() != n && System.nanoTime() < deadline) Thread.sleep(5);
+        assertEquals(n, server.getSessionCount());
+    }
+}